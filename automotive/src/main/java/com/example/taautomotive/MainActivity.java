@@ -1,8 +1,11 @@
 package com.example.taautomotive;
 
+import android.Manifest;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.TextView;
@@ -13,6 +16,8 @@ import android.widget.TextView;
  */
 public class MainActivity extends Activity {
 
+    private static final int REQUEST_AUDIO_PERMISSION = 1;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -29,5 +34,25 @@ public class MainActivity extends Activity {
         textView.setTextAlignment(View.TEXT_ALIGNMENT_CENTER);
         
         setContentView(textView);
+
+        // On-device music is only scanned once storage access is granted
+        String permission = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                ? Manifest.permission.READ_MEDIA_AUDIO
+                : Manifest.permission.READ_EXTERNAL_STORAGE;
+        if (checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[] {permission}, REQUEST_AUDIO_PERMISSION);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_AUDIO_PERMISSION
+                && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            Intent scanIntent = new Intent(this, com.example.taautomotive.shared.TAMediaLibraryService.class)
+                    .setAction(com.example.taautomotive.shared.TAMediaLibraryService.ACTION_SCAN_LOCAL_MUSIC);
+            startForegroundService(scanIntent);
+        }
     }
 }
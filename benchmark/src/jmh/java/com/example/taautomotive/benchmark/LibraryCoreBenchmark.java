@@ -0,0 +1,133 @@
+package com.example.taautomotive.benchmark;
+
+import com.example.taautomotive.benchmark.SyntheticLibrary.Entry;
+import com.example.taautomotive.benchmark.SyntheticLibrary.Node;
+import com.example.taautomotive.benchmark.SyntheticLibrary.Track;
+import com.example.taautomotive.core.MediaIds;
+import com.example.taautomotive.core.Paging;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of the library operations behind the session callbacks, on libraries of 10 to 1M
+ * tracks: path lookup (onGetChildren, onGetItem on a folder), lookup of a bare mediaId and of
+ * a {@link MediaIds} item id (onGetItem), loading and paging a folder (onGetChildren) and
+ * resolving a batch of ids (onAddMediaItems, onSetMediaItems). Each operation picks the next of
+ * a fixed pseudo-random set of targets so lookups aren't all served from the same cache lines.
+ *
+ * <p>Only {@link com.example.taautomotive.core.IdIndex}, {@link
+ * com.example.taautomotive.core.MediaPaths} and {@link Paging} are the service's own code. The
+ * folder nodes, items and children loading are {@link SyntheticLibrary} stand-ins for the trie's,
+ * so these numbers leave out the trie's locking, the children cache and MediaItem building.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LibraryCoreBenchmark {
+
+    private static final int TARGETS = 1024;
+    private static final int PAGE_SIZE = 50;
+    private static final int BATCH_SIZE = 100;
+    /** Ids in each batch that the index doesn't hold, as when a browser adds stale ids. */
+    private static final int BATCH_MISSES = 10;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int trackCount;
+
+    private SyntheticLibrary library;
+    private String[] albumPaths;
+    private String[] trackIds;
+    private String[] itemIds;
+    private int[] pages;
+    private List<List<String>> batches;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        library = new SyntheticLibrary(trackCount);
+        Random random = new Random(42);
+        albumPaths = new String[TARGETS];
+        trackIds = new String[TARGETS];
+        itemIds = new String[TARGETS];
+        pages = new int[TARGETS];
+        int pageCount = (trackCount + PAGE_SIZE - 1) / PAGE_SIZE;
+        for (int i = 0; i < TARGETS; i++) {
+            albumPaths[i] = library.albumPaths.get(random.nextInt(library.albumPaths.size()));
+            trackIds[i] = library.trackIds.get(random.nextInt(trackCount));
+            itemIds[i] = MediaIds.itemId(library.index.get(trackIds[i]).parentPath, trackIds[i]);
+            pages[i] = random.nextInt(pageCount);
+        }
+        batches = new ArrayList<>();
+        for (int b = 0; b < TARGETS / BATCH_SIZE; b++) {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(i < BATCH_MISSES
+                        ? "missing_" + b + "_" + i
+                        : library.trackIds.get(random.nextInt(trackCount)));
+            }
+            batches.add(batch);
+        }
+    }
+
+    private int nextTarget() {
+        next = (next + 1) & (TARGETS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Node getNode() {
+        return library.getNode(albumPaths[nextTarget()]);
+    }
+
+    @Benchmark
+    public Track findById() {
+        Entry entry = library.index.get(trackIds[nextTarget()]);
+        return entry != null ? entry.track : null;
+    }
+
+    /** An id handed out by onGetChildren, which names the album that lists the track. */
+    @Benchmark
+    public Track findByItemId() {
+        return library.findByItemId(itemIds[nextTarget()]);
+    }
+
+    /** An album page: walk to the folder, load its children and slice the first page. */
+    @Benchmark
+    public List<Track> loadChildrenPage() {
+        Node album = library.getNode(albumPaths[nextTarget()]);
+        return Paging.slice(album.loadChildren.get(), Paging.offsetOf(0, PAGE_SIZE), PAGE_SIZE);
+    }
+
+    /** A random page of the flat folder listing every track, as a browser scrolling it. */
+    @Benchmark
+    public List<Track> allTracksPage() {
+        Node all = library.getNode(SyntheticLibrary.ALL_TRACKS);
+        int offset = Paging.offsetOf(pages[nextTarget()], PAGE_SIZE);
+        return Paging.slice(all.loadChildren.get(), offset, PAGE_SIZE);
+    }
+
+    /** Resolves a batch of ids, some unknown, into items in the same order. */
+    @Benchmark
+    public Track[] resolveBatch() {
+        List<String> ids = batches.get(nextTarget() % batches.size());
+        Track[] tracks = new Track[ids.size()];
+        Set<String> missing = library.index.getAll(ids, Entry::getTrack, tracks);
+        if (missing.size() != BATCH_MISSES) {
+            throw new IllegalStateException("Resolved " + missing.size() + " unknown ids");
+        }
+        return tracks;
+    }
+}
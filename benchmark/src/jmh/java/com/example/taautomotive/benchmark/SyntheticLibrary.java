@@ -0,0 +1,118 @@
+package com.example.taautomotive.benchmark;
+
+import com.example.taautomotive.core.IdIndex;
+import com.example.taautomotive.core.MediaIds;
+import com.example.taautomotive.core.MediaPaths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A library shaped like the one the service builds, without Android: a "music" folder with one
+ * folder per artist, ten albums per artist and ten tracks per album, plus an "all" folder that
+ * lists every track flat. Every track is indexed by mediaId with the path of its album, as the
+ * trie does.
+ */
+final class SyntheticLibrary {
+
+    static final int TRACKS_PER_ALBUM = 10;
+    static final int ALBUMS_PER_ARTIST = 10;
+    static final String MUSIC = "music";
+    static final String ALL_TRACKS = MUSIC + MediaPaths.PATH_SEPARATOR + "all";
+
+    /** Stands in for a MediaItem. */
+    static final class Track {
+        final String mediaId;
+        final String title;
+
+        Track(String mediaId, String title) {
+            this.mediaId = mediaId;
+            this.title = title;
+        }
+    }
+
+    /** Stands in for an IndexEntry: the item and the folder that lists it. */
+    static final class Entry {
+        final Track track;
+        final String parentPath;
+
+        Entry(Track track, String parentPath) {
+            this.track = track;
+            this.parentPath = parentPath;
+        }
+
+        Track getTrack() {
+            return track;
+        }
+    }
+
+    /** Stands in for a MediaFolderNode: children by segment and a loader for its items. */
+    static final class Node {
+        final String path;
+        final Map<String, Node> children = new LinkedHashMap<>();
+        Supplier<List<Track>> loadChildren = Collections::emptyList;
+
+        Node(String path) {
+            this.path = path;
+        }
+
+        Node getChild(String segment) {
+            return children.get(segment);
+        }
+
+        Node addChild(String segment) {
+            Node child = new Node(MediaPaths.childPath(path, segment));
+            children.put(segment, child);
+            return child;
+        }
+    }
+
+    final Node root = new Node("");
+    final IdIndex<Entry> index = new IdIndex<>();
+    final List<String> albumPaths = new ArrayList<>();
+    final List<String> trackIds = new ArrayList<>();
+
+    SyntheticLibrary(int trackCount) {
+        Node music = root.addChild(MUSIC);
+        List<Track> allTracks = new ArrayList<>(trackCount);
+        Node artist = null;
+        Node album = null;
+        List<Track> albumTracks = null;
+        for (int i = 0; i < trackCount; i++) {
+            if (i % TRACKS_PER_ALBUM == 0) {
+                int albumNumber = i / TRACKS_PER_ALBUM;
+                if (albumNumber % ALBUMS_PER_ARTIST == 0) {
+                    artist = music.addChild("artist" + albumNumber / ALBUMS_PER_ARTIST);
+                }
+                album = artist.addChild("album" + albumNumber);
+                albumTracks = new ArrayList<>(TRACKS_PER_ALBUM);
+                List<Track> listing = Collections.unmodifiableList(albumTracks);
+                // Like a library loader, each load builds a new list.
+                album.loadChildren = () -> new ArrayList<>(listing);
+                albumPaths.add(album.path);
+            }
+            Track track = new Track("track_" + i, "Track " + i);
+            albumTracks.add(track);
+            allTracks.add(track);
+            trackIds.add(track.mediaId);
+            index.putIfAbsent(track.mediaId, new Entry(track, album.path));
+        }
+        List<Track> allListing = Collections.unmodifiableList(allTracks);
+        music.addChild("all").loadChildren = () -> allListing;
+    }
+
+    Node getNode(String path) {
+        return MediaPaths.walk(root, path, Node::getChild);
+    }
+
+    /** Resolves a {@link MediaIds} item id as the trie does: a walk to its folder, one lookup. */
+    Track findByItemId(String itemId) {
+        int parentPathEnd = MediaIds.parentPathEnd(itemId);
+        Node folder = MediaPaths.walk(root, itemId, parentPathEnd, Node::getChild);
+        Entry entry = folder != null ? index.get(itemId.substring(parentPathEnd + 1)) : null;
+        return entry != null ? entry.track : null;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.taautomotive.core;
+
+import androidx.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Concurrent index from mediaId to an entry, read without locking. Besides single lookups it
+ * resolves whole batches, as a browser adding a folder or restoring a queue does, reporting
+ * the ids it doesn't hold so the caller can look for them elsewhere in one pass.
+ */
+public final class IdIndex<E> {
+
+    private final Map<String, E> entries = new ConcurrentHashMap<>();
+
+    @Nullable
+    public E get(String id) {
+        return entries.get(id);
+    }
+
+    /** Adds entry for id unless id already has one; returns the existing entry or null. */
+    @Nullable
+    public E putIfAbsent(String id, E entry) {
+        return entries.putIfAbsent(id, entry);
+    }
+
+    /** Sets the entry for id, replacing any it had, so readers never see it missing. */
+    public void put(String id, E entry) {
+        entries.put(id, entry);
+    }
+
+    public void remove(String id) {
+        entries.remove(id);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Returns a live view of all entries. */
+    public Collection<E> values() {
+        return entries.values();
+    }
+
+    /**
+     * Stores value of the entry for ids.get(i) in out[i], for every id in the index. Null and
+     * empty ids are skipped; returns the other ids that have no entry, in a mutable set.
+     */
+    public <V> Set<String> getAll(
+            List<String> ids, Function<? super E, ? extends V> value, V[] out) {
+        Set<String> missing = new HashSet<>();
+        for (int i = 0; i < out.length; i++) {
+            String id = ids.get(i);
+            if (id == null || id.isEmpty()) {
+                continue;
+            }
+            E entry = entries.get(id);
+            if (entry != null) {
+                out[i] = value.apply(entry);
+            } else {
+                missing.add(id);
+            }
+        }
+        return missing;
+    }
+}
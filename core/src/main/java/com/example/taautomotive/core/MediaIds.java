@@ -0,0 +1,41 @@
+package com.example.taautomotive.core;
+
+/**
+ * Self-describing mediaIds for playable items: the path of the folder that lists the item,
+ * {@link #ITEM_SEPARATOR}, then the item's own key, e.g. "music/artist3/album12|local:/a.mp3".
+ * Resolving one is a walk to the folder plus one keyed lookup in it, however large the library.
+ *
+ * <p>Folder ids stay bare paths. Keys may contain anything, so an id is split at its first
+ * separator; folders whose path contains the separator keep handing out bare keys. Ids without
+ * a separator, and ids whose folder part names no folder or whose key that folder doesn't list,
+ * are legacy ids and are resolved as before.
+ */
+public final class MediaIds {
+
+    public static final char ITEM_SEPARATOR = '|';
+
+    private MediaIds() {}
+
+    /** Returns the id of the item with the given key as listed by the folder at parentPath. */
+    public static String itemId(String parentPath, String key) {
+        if (key.isEmpty() || parentPath.indexOf(ITEM_SEPARATOR) >= 0) {
+            return key;
+        }
+        return parentPath + ITEM_SEPARATOR + key;
+    }
+
+    /**
+     * Returns the length of the folder part of id, to walk with
+     * {@link MediaPaths#walk(Object, String, int, MediaPaths.ChildLookup)}, or -1 if id is not
+     * an item id.
+     */
+    public static int parentPathEnd(String id) {
+        return id.indexOf(ITEM_SEPARATOR);
+    }
+
+    /** Returns the key of the item id, or id itself if it is not an item id. */
+    public static String keyOf(String id) {
+        int end = parentPathEnd(id);
+        return end < 0 ? id : id.substring(end + 1);
+    }
+}
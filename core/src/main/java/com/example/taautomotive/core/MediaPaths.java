@@ -0,0 +1,104 @@
+package com.example.taautomotive.core;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Folder paths of the media library, e.g. "music/artist3/album12". Segments are separated by
+ * {@link #PATH_SEPARATOR}; the empty path, "/" and "root" all name the root folder. Shared by
+ * the trie in the shared module and the host benchmarks, so it uses nothing from Android.
+ *
+ * <p>Paths are scanned in place: walking one allocates nothing but the segment keys handed to
+ * the {@link ChildLookup}, and a path of a single segment is passed on as is.
+ */
+public final class MediaPaths {
+
+    public static final String PATH_SEPARATOR = "/";
+    /** The mediaId browsers use for the root folder. */
+    public static final String ROOT_ID = "root";
+
+    private static final char SEPARATOR_CHAR = '/';
+
+    /** Returns the child of parent for one path segment, or null if there is none. */
+    public interface ChildLookup<N> {
+
+        @Nullable
+        N getChild(N parent, String segment);
+    }
+
+    private MediaPaths() {}
+
+    /**
+     * Returns the segments of path in order. A leading separator and empty segments are
+     * ignored; the root folder has no segments.
+     */
+    public static List<String> segmentsOf(@Nullable String path) {
+        if (path == null || isRoot(path, path.length())) {
+            return Collections.emptyList();
+        }
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        while (start < path.length()) {
+            int end = segmentEnd(path, start, path.length());
+            if (end > start) {
+                segments.add(segment(path, start, end));
+            }
+            start = end + 1;
+        }
+        return segments;
+    }
+
+    /** Returns the path of the child named segment of the folder at parentPath. */
+    public static String childPath(String parentPath, String segment) {
+        return parentPath.isEmpty() ? segment : parentPath + PATH_SEPARATOR + segment;
+    }
+
+    /** Walks from root along path and returns the node it names, or null if there is none. */
+    @Nullable
+    public static <N> N walk(N root, @Nullable String path, ChildLookup<N> lookup) {
+        return walk(root, path, path != null ? path.length() : 0, lookup);
+    }
+
+    /**
+     * Walks from root along the first end characters of path, e.g. the folder part of an item
+     * id (see {@link MediaIds}), and returns the node they name, or null if there is none.
+     */
+    @Nullable
+    public static <N> N walk(N root, @Nullable String path, int end, ChildLookup<N> lookup) {
+        if (path == null || isRoot(path, end)) {
+            return root;
+        }
+        N current = root;
+        int start = 0;
+        while (start < end) {
+            int segmentEnd = segmentEnd(path, start, end);
+            if (segmentEnd > start) {
+                current = lookup.getChild(current, segment(path, start, segmentEnd));
+                if (current == null) {
+                    return null;
+                }
+            }
+            start = segmentEnd + 1;
+        }
+        return current;
+    }
+
+    /** Returns whether the first end characters of path name the root: "", "/", "root", "/root". */
+    private static boolean isRoot(String path, int end) {
+        int start = end > 0 && path.charAt(0) == SEPARATOR_CHAR ? 1 : 0;
+        int length = end - start;
+        return length == 0
+                || (length == ROOT_ID.length() && path.startsWith(ROOT_ID, start));
+    }
+
+    private static int segmentEnd(String path, int start, int end) {
+        int separator = path.indexOf(SEPARATOR_CHAR, start);
+        return separator < 0 || separator > end ? end : separator;
+    }
+
+    private static String segment(String path, int start, int end) {
+        return start == 0 && end == path.length() ? path : path.substring(start, end);
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.taautomotive.core;
+
+import java.util.Collections;
+import java.util.List;
+
+/** Page arithmetic for browse and search results, as requested by a media browser. */
+public final class Paging {
+
+    private Paging() {}
+
+    /**
+     * Returns the offset of the first item of page, or -1 if page or pageSize is invalid or the
+     * offset does not fit an int.
+     */
+    public static int offsetOf(int page, int pageSize) {
+        long offset = (long) page * pageSize;
+        if (page < 0 || pageSize <= 0 || offset > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Returns a view of up to limit items of all starting at offset, or an empty list if offset
+     * is out of range.
+     */
+    public static <T> List<T> slice(List<T> all, int offset, int limit) {
+        if (offset < 0 || offset >= all.size() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int end = (int) Math.min((long) offset + limit, all.size());
+        return all.subList(offset, end);
+    }
+}
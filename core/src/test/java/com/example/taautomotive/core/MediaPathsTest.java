@@ -0,0 +1,73 @@
+package com.example.taautomotive.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/** Runs on the host: the path and paging rules the trie and the service rely on. */
+public class MediaPathsTest {
+
+    @Test
+    public void rootHasNoSegments() {
+        assertTrue(MediaPaths.segmentsOf(null).isEmpty());
+        assertTrue(MediaPaths.segmentsOf("").isEmpty());
+        assertTrue(MediaPaths.segmentsOf("/").isEmpty());
+        assertTrue(MediaPaths.segmentsOf("root").isEmpty());
+    }
+
+    @Test
+    public void emptySegmentsAreSkipped() {
+        assertEquals(Arrays.asList("music", "artist1"), MediaPaths.segmentsOf("/music//artist1/"));
+        assertEquals("music/artist1", MediaPaths.childPath("music", "artist1"));
+        assertEquals("music", MediaPaths.childPath("", "music"));
+    }
+
+    @Test
+    public void walkFollowsSegments() {
+        Map<String, String> parents = new HashMap<>();
+        parents.put("/music", "music");
+        parents.put("music/artist1", "artist1");
+        MediaPaths.ChildLookup<String> lookup =
+                (parent, segment) -> parents.get(parent + "/" + segment);
+
+        assertEquals("artist1", MediaPaths.walk("", "music/artist1", lookup));
+        assertEquals("", MediaPaths.walk("", "root", lookup));
+        assertNull(MediaPaths.walk("", "music/artist2", lookup));
+    }
+
+    @Test
+    public void walkStopsAtTheFolderPartOfAnItemId() {
+        Map<String, String> parents = new HashMap<>();
+        parents.put("/music", "music");
+        parents.put("music/album|1", "album|1");
+        MediaPaths.ChildLookup<String> lookup =
+                (parent, segment) -> parents.get(parent + "/" + segment);
+        String itemId = MediaIds.itemId("music", "local:/a|b.mp3");
+
+        assertEquals("music|local:/a|b.mp3", itemId);
+        assertEquals("local:/a|b.mp3", MediaIds.keyOf(itemId));
+        assertEquals("music", MediaPaths.walk("", itemId, MediaIds.parentPathEnd(itemId), lookup));
+        // A folder whose path holds the separator hands out bare keys.
+        assertEquals("track_1", MediaIds.itemId("music/album|1", "track_1"));
+        assertEquals("track_1", MediaIds.keyOf("track_1"));
+        assertEquals(-1, MediaIds.parentPathEnd("track_1"));
+    }
+
+    @Test
+    public void pagesOutOfRangeAreEmpty() {
+        List<Integer> items = Arrays.asList(0, 1, 2, 3, 4);
+        assertEquals(Arrays.asList(2, 3), Paging.slice(items, Paging.offsetOf(1, 2), 2));
+        assertEquals(Collections.singletonList(4), Paging.slice(items, Paging.offsetOf(2, 2), 2));
+        assertTrue(Paging.slice(items, Paging.offsetOf(3, 2), 2).isEmpty());
+        assertEquals(-1, Paging.offsetOf(-1, 10));
+        assertEquals(-1, Paging.offsetOf(1, 0));
+        assertEquals(-1, Paging.offsetOf(Integer.MAX_VALUE, 2));
+    }
+}
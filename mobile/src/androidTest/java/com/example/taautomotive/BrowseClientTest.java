@@ -0,0 +1,245 @@
+package com.example.taautomotive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import androidx.media3.common.MediaItem;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Scrolls folders through {@link BrowseClient}, against a connection that answers after a fixed
+ * delay as the service would over IPC, and against the library service itself.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BrowseClientTest {
+
+    private static final String TAG = "BrowseClientTest";
+    private static final String FOLDER = "catalog/large";
+    private static final int FOLDER_SIZE = 2_000;
+    private static final int PAGE_SIZE = 50;
+    private static final long ROUND_TRIP_MS = 40;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private BrowseClient client;
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            onMain(
+                    () -> {
+                        client.release();
+                        return null;
+                    });
+        }
+    }
+
+    @Test
+    public void scrollingLargeFolderWaitsOnlyForFirstPage() throws Exception {
+        FakeConnection connection = new FakeConnection();
+        client = new BrowseClient(connection, PAGE_SIZE, 2, BrowseClient.DEFAULT_MAX_CACHED_ITEMS);
+        get(onMain(() -> client.getPage(FOLDER, 0)));
+
+        int pageCount = FOLDER_SIZE / PAGE_SIZE;
+        int waited = 0;
+        for (int page = 1; page < pageCount; page++) {
+            // A page every two round trips, as a steady scroll reaches them
+            Thread.sleep(2 * ROUND_TRIP_MS);
+            int scrolledPage = page;
+            ListenableFuture<List<MediaItem>> result =
+                    onMain(
+                            () -> {
+                                client.onScrolled(FOLDER, scrolledPage * PAGE_SIZE);
+                                return client.getPage(FOLDER, scrolledPage);
+                            });
+            if (!result.isDone()) {
+                waited++;
+            }
+            assertEquals(itemId(page * PAGE_SIZE), get(result).get(0).mediaId);
+        }
+        Log.i(TAG, dump());
+
+        assertEquals(0, waited);
+        assertEquals(pageCount - 1, client.getCacheHitCount());
+        assertEquals(pageCount - 1, client.getPrefetchHitCount());
+        assertEquals(pageCount - 1, client.getRoundTripsSaved());
+        // One round trip per page, plus at most the empty page past the end
+        assertTrue(connection.requestCount <= pageCount + 1);
+    }
+
+    @Test
+    public void requestsForLoadingPageShareRoundTrip() throws Exception {
+        FakeConnection connection = new FakeConnection();
+        client = new BrowseClient(connection, PAGE_SIZE, 0, BrowseClient.DEFAULT_MAX_CACHED_ITEMS);
+
+        List<ListenableFuture<List<MediaItem>>> results =
+                onMain(
+                        () -> {
+                            List<ListenableFuture<List<MediaItem>>> list = new ArrayList<>();
+                            for (int i = 0; i < 5; i++) {
+                                list.add(client.getPage(FOLDER, 3));
+                            }
+                            return list;
+                        });
+        for (ListenableFuture<List<MediaItem>> result : results) {
+            assertEquals(PAGE_SIZE, get(result).size());
+        }
+
+        assertEquals(1, connection.requestCount);
+        assertEquals(4, client.getJoinedCount());
+        assertEquals(4, client.getRoundTripsSaved());
+    }
+
+    @Test
+    public void childrenChangedDropsCachedAndLoadingPages() throws Exception {
+        FakeConnection connection = new FakeConnection();
+        client = new BrowseClient(connection, PAGE_SIZE, 0, BrowseClient.DEFAULT_MAX_CACHED_ITEMS);
+        AtomicReference<String> changed = new AtomicReference<>();
+        get(
+                onMain(
+                        () -> {
+                            client.setListener((parentId, itemCount) -> changed.set(parentId));
+                            return client.getPage(FOLDER, 0);
+                        }));
+        assertEquals(1, connection.subscribed.size());
+
+        // Page 1 is still loading when the folder changes
+        onMain(
+                () -> {
+                    client.getPage(FOLDER, 1);
+                    connection.prefix = "new-";
+                    client.onChildrenChanged(FOLDER, FOLDER_SIZE);
+                    return null;
+                });
+        Thread.sleep(2 * ROUND_TRIP_MS);
+
+        assertEquals(FOLDER, changed.get());
+        assertNull(onMain(() -> client.peekPage(FOLDER, 0)));
+        assertNull(onMain(() -> client.peekPage(FOLDER, 1)));
+        List<MediaItem> page = get(onMain(() -> client.getPage(FOLDER, 1)));
+        assertEquals("new-" + itemId(PAGE_SIZE), page.get(0).mediaId);
+        assertEquals(1, client.getInvalidationCount());
+    }
+
+    @Test
+    public void cacheStaysWithinItemBound() throws Exception {
+        FakeConnection connection = new FakeConnection();
+        int maxItems = 10 * PAGE_SIZE;
+        client = new BrowseClient(connection, PAGE_SIZE, 2, maxItems);
+
+        for (int page = 0; page < FOLDER_SIZE / PAGE_SIZE; page++) {
+            int requested = page;
+            get(onMain(() -> client.getPage(FOLDER, requested)));
+            assertTrue(client.getCachedItemCount() <= maxItems);
+        }
+
+        // Scrolling back up past the bound reloads what was evicted
+        long roundTrips = client.getRoundTripCount();
+        get(onMain(() -> client.getPage(FOLDER, 0)));
+        assertTrue(client.getRoundTripCount() > roundTrips);
+    }
+
+    @Test
+    public void browsesLibraryService() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ListenableFuture<BrowseClient> connecting = onMain(() -> BrowseClient.connect(context));
+        client = connecting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        List<MediaItem> root = get(onMain(() -> client.getPage("root", 0)));
+        ListenableFuture<List<MediaItem>> again = onMain(() -> client.getPage("root", 0));
+
+        assertTrue(again.isDone());
+        assertEquals(root, get(again));
+        assertEquals(1, client.getRoundTripsSaved());
+    }
+
+    private String dump() {
+        StringWriter out = new StringWriter();
+        client.dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    private static String itemId(int index) {
+        return FOLDER + "/" + index;
+    }
+
+    /** Runs task on the main thread, where the client is used, and returns its result. */
+    private static <T> T onMain(Callable<T> task) throws Exception {
+        AtomicReference<T> result = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        InstrumentationRegistry.getInstrumentation()
+                .runOnMainSync(
+                        () -> {
+                            try {
+                                result.set(task.call());
+                            } catch (Exception e) {
+                                error.set(e);
+                            }
+                        });
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result.get();
+    }
+
+    private static List<MediaItem> get(ListenableFuture<List<MediaItem>> future)
+            throws Exception {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Serves {@link #FOLDER_SIZE} items on the main thread, {@link #ROUND_TRIP_MS} after asked. */
+    private final class FakeConnection implements BrowseClient.Connection {
+
+        final List<String> subscribed = new ArrayList<>();
+        volatile int requestCount;
+        volatile String prefix = "";
+
+        @Override
+        public ListenableFuture<List<MediaItem>> getChildren(
+                String parentId, int page, int pageSize) {
+            requestCount++;
+            String itemPrefix = prefix;
+            SettableFuture<List<MediaItem>> future = SettableFuture.create();
+            mainHandler.postDelayed(
+                    () -> {
+                        List<MediaItem> items = new ArrayList<>();
+                        int end = Math.min((page + 1) * pageSize, FOLDER_SIZE);
+                        for (int i = page * pageSize; i < end; i++) {
+                            items.add(
+                                    new MediaItem.Builder()
+                                            .setMediaId(itemPrefix + itemId(i))
+                                            .build());
+                        }
+                        future.set(items);
+                    },
+                    ROUND_TRIP_MS);
+            return future;
+        }
+
+        @Override
+        public void subscribe(String parentId) {
+            subscribed.add(parentId);
+        }
+
+        @Override
+        public void release() {}
+    }
+}
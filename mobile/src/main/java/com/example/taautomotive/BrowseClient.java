@@ -0,0 +1,430 @@
+package com.example.taautomotive;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.session.LibraryResult;
+import androidx.media3.session.MediaBrowser;
+import androidx.media3.session.MediaLibraryService.LibraryParams;
+import androidx.media3.session.SessionToken;
+import com.example.taautomotive.shared.LatencyHistogram;
+import com.example.taautomotive.shared.TAMediaLibraryService;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Browses {@link TAMediaLibraryService} for the phone UI without a round trip per page the user
+ * scrolls to. Pages are kept in a cache bounded by item count, and the pages after the one in
+ * view are fetched before the list reaches them, so a large folder scrolls from memory. The
+ * pages of a parent are dropped when the service reports, through onChildrenChanged, that it
+ * changed; loads started before that are not cached.
+ *
+ * <p>Like the MediaBrowser it wraps, must be used on the main thread, where its futures complete.
+ */
+public final class BrowseClient {
+
+    private static final String TAG = "BrowseClient";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    /** Items per page; a phone screen shows about a dozen rows. */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    /** Pages fetched ahead of the one in view; a fling rarely crosses more than two. */
+    public static final int DEFAULT_PREFETCH_PAGES = 2;
+    /** Bound on the items held across all cached pages. */
+    public static final int DEFAULT_MAX_CACHED_ITEMS = 2_000;
+
+    /** Notified when a parent that was browsed changed in the service. */
+    public interface Listener {
+        void onChildrenChanged(String parentId, int itemCount);
+    }
+
+    /** The service calls the client saves; a connected MediaBrowser outside tests. */
+    interface Connection {
+
+        ListenableFuture<List<MediaItem>> getChildren(String parentId, int page, int pageSize);
+
+        /** Asks the service to report changes to parentId's children. */
+        void subscribe(String parentId);
+
+        void release();
+    }
+
+    private final Connection connection;
+    private final int pageSize;
+    private final int prefetchPages;
+    private final LruCache<PageKey, CachedPage> pages;
+    /** Round trips not yet answered, so requests for the same page share one. */
+    private final Map<PageKey, ListenableFuture<List<MediaItem>>> loading = new HashMap<>();
+    /** Bumped when a parent changes, so pages loaded before the change are never served. */
+    private final Map<String, Integer> generations = new HashMap<>();
+    private final Set<String> subscribed = new HashSet<>();
+    @Nullable private Listener listener;
+
+    private final AtomicLong pageRequestCount = new AtomicLong();
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong joinedCount = new AtomicLong();
+    private final AtomicLong roundTripCount = new AtomicLong();
+    private final AtomicLong prefetchCount = new AtomicLong();
+    private final AtomicLong prefetchHitCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final LatencyHistogram roundTripLatency = new LatencyHistogram();
+    private final LatencyHistogram pageWaitLatency = new LatencyHistogram();
+
+    BrowseClient(Connection connection, int pageSize, int prefetchPages, int maxCachedItems) {
+        this.connection = connection;
+        this.pageSize = pageSize;
+        this.prefetchPages = prefetchPages;
+        this.pages =
+                new LruCache<PageKey, CachedPage>(maxCachedItems) {
+                    @Override
+                    protected int sizeOf(PageKey key, CachedPage page) {
+                        return Math.max(1, page.items.size());
+                    }
+                };
+    }
+
+    /** Connects to the library service in this app; completes on the main thread. */
+    public static ListenableFuture<BrowseClient> connect(Context context) {
+        BrowserConnection connection = new BrowserConnection();
+        SessionToken token =
+                new SessionToken(
+                        context, new ComponentName(context, TAMediaLibraryService.class));
+        ListenableFuture<MediaBrowser> browser =
+                new MediaBrowser.Builder(context, token).setListener(connection).buildAsync();
+        return Futures.transform(
+                browser,
+                connected -> {
+                    connection.browser = connected;
+                    connection.client =
+                            new BrowseClient(
+                                    connection,
+                                    DEFAULT_PAGE_SIZE,
+                                    DEFAULT_PREFETCH_PAGES,
+                                    DEFAULT_MAX_CACHED_ITEMS);
+                    return connection.client;
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns page of parentId's children, done at once if it is cached, and fetches the pages
+     * after it. A page shorter than {@link #getPageSize()} is the last one.
+     */
+    public ListenableFuture<List<MediaItem>> getPage(String parentId, int page) {
+        pageRequestCount.incrementAndGet();
+        subscribe(parentId);
+        PageKey key = keyOf(parentId, page);
+        CachedPage cached = pages.get(key);
+        ListenableFuture<List<MediaItem>> result;
+        if (cached != null) {
+            cacheHitCount.incrementAndGet();
+            if (cached.prefetched && !cached.used) {
+                prefetchHitCount.incrementAndGet();
+            }
+            cached.used = true;
+            pageWaitLatency.record(0);
+            result = Futures.immediateFuture(cached.items);
+        } else {
+            if (loading.containsKey(key)) {
+                // Already on its way, e.g. prefetched; waits for less than a round trip
+                joinedCount.incrementAndGet();
+            }
+            long startNanos = System.nanoTime();
+            result = load(key, /* prefetch= */ false);
+            result.addListener(
+                    () -> pageWaitLatency.recordSince(startNanos), MoreExecutors.directExecutor());
+        }
+        prefetchAfter(parentId, page);
+        return result;
+    }
+
+    /** Returns page of parentId's children if it is cached, without fetching anything. */
+    @Nullable
+    public List<MediaItem> peekPage(String parentId, int page) {
+        CachedPage cached = pages.get(keyOf(parentId, page));
+        return cached != null ? cached.items : null;
+    }
+
+    /**
+     * Tells the client how far the list of parentId's children shows, so the pages after it are
+     * fetched before the user scrolls to them.
+     */
+    public void onScrolled(String parentId, int lastVisiblePosition) {
+        prefetchAfter(parentId, Math.max(0, lastVisiblePosition) / pageSize);
+    }
+
+    /** Drops the cached pages of parentId; loads already started are not cached either. */
+    public void invalidate(String parentId) {
+        invalidationCount.incrementAndGet();
+        Integer generation = generations.get(parentId);
+        generations.put(parentId, generation != null ? generation + 1 : 1);
+        for (PageKey key : pages.snapshot().keySet()) {
+            if (key.parentId.equals(parentId)) {
+                pages.remove(key);
+            }
+        }
+    }
+
+    /** Disconnects from the service and drops every cached page. */
+    public void release() {
+        connection.release();
+        pages.evictAll();
+        loading.clear();
+        subscribed.clear();
+    }
+
+    /** Returns the number of pages requested through {@link #getPage}. */
+    public long getPageRequestCount() {
+        return pageRequestCount.get();
+    }
+
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    /** Returns how many requested pages joined a round trip already in flight. */
+    public long getJoinedCount() {
+        return joinedCount.get();
+    }
+
+    /** Returns the number of getChildren calls made to the service, prefetches included. */
+    public long getRoundTripCount() {
+        return roundTripCount.get();
+    }
+
+    /** Returns how many requested pages were served without a round trip of their own. */
+    public long getRoundTripsSaved() {
+        return cacheHitCount.get() + joinedCount.get();
+    }
+
+    public long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    /** Returns how many prefetched pages were later requested from the cache. */
+    public long getPrefetchHitCount() {
+        return prefetchHitCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    /** Returns the items held across all cached pages. */
+    public int getCachedItemCount() {
+        return pages.size();
+    }
+
+    /** Latency of getChildren round trips to the service. */
+    public LatencyHistogram getRoundTripLatency() {
+        return roundTripLatency;
+    }
+
+    /** How long each {@link #getPage} left the UI waiting; zero for cache hits. */
+    public LatencyHistogram getPageWaitLatency() {
+        return pageWaitLatency;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Browse client:");
+        writer.println("  pages=" + pageRequestCount.get()
+                + " hits=" + cacheHitCount.get()
+                + " joined=" + joinedCount.get()
+                + " roundTrips=" + roundTripCount.get()
+                + " saved=" + getRoundTripsSaved());
+        writer.println("  prefetched=" + prefetchCount.get()
+                + " prefetchHits=" + prefetchHitCount.get()
+                + " invalidations=" + invalidationCount.get()
+                + " cachedItems=" + pages.size() + "/" + pages.maxSize());
+        writer.println("  round trip: " + roundTripLatency.summary());
+        writer.println("  page wait: " + pageWaitLatency.summary());
+    }
+
+    /** Drops parentId's pages and tells the listener; called by the connection. */
+    void onChildrenChanged(String parentId, int itemCount) {
+        if (DEBUG) Log.d(TAG, "onChildrenChanged: parentId=" + parentId + ", itemCount=" + itemCount);
+        invalidate(parentId);
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onChildrenChanged(parentId, itemCount);
+        }
+    }
+
+    /** Fetches the {@link #prefetchPages} pages after page that are neither cached nor loading. */
+    private void prefetchAfter(String parentId, int page) {
+        for (int next = page + 1; next <= page + prefetchPages; next++) {
+            CachedPage previous = pages.get(keyOf(parentId, next - 1));
+            if (previous != null && previous.items.size() < pageSize) {
+                return; // Past the end of the folder
+            }
+            PageKey key = keyOf(parentId, next);
+            if (pages.get(key) == null && !loading.containsKey(key)) {
+                prefetchCount.incrementAndGet();
+                load(key, /* prefetch= */ true);
+            }
+        }
+    }
+
+    /** Returns the round trip for key, starting one unless it is already in flight. */
+    private ListenableFuture<List<MediaItem>> load(PageKey key, boolean prefetch) {
+        ListenableFuture<List<MediaItem>> inFlight = loading.get(key);
+        if (inFlight != null) {
+            return Futures.nonCancellationPropagating(inFlight);
+        }
+        roundTripCount.incrementAndGet();
+        long startNanos = System.nanoTime();
+        ListenableFuture<List<MediaItem>> future =
+                connection.getChildren(key.parentId, key.page, pageSize);
+        loading.put(key, future);
+        Futures.addCallback(
+                future,
+                new FutureCallback<List<MediaItem>>() {
+                    @Override
+                    public void onSuccess(List<MediaItem> items) {
+                        roundTripLatency.recordSince(startNanos);
+                        loading.remove(key);
+                        if (key.generation == generationOf(key.parentId)) {
+                            pages.put(key, new CachedPage(items, prefetch));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        loading.remove(key);
+                        Log.w(TAG, "load: Failed to get page " + key.page + " of " + key.parentId, t);
+                    }
+                },
+                MoreExecutors.directExecutor());
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    private void subscribe(String parentId) {
+        if (subscribed.add(parentId)) {
+            connection.subscribe(parentId);
+        }
+    }
+
+    private PageKey keyOf(String parentId, int page) {
+        return new PageKey(parentId, page, generationOf(parentId));
+    }
+
+    private int generationOf(String parentId) {
+        Integer generation = generations.get(parentId);
+        return generation != null ? generation : 0;
+    }
+
+    private static final class PageKey {
+
+        final String parentId;
+        final int page;
+        final int generation;
+
+        PageKey(String parentId, int page, int generation) {
+            this.parentId = parentId;
+            this.page = page;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey other = (PageKey) o;
+            return page == other.page
+                    && generation == other.generation
+                    && parentId.equals(other.parentId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(parentId, page, generation);
+        }
+    }
+
+    private static final class CachedPage {
+
+        final List<MediaItem> items;
+        final boolean prefetched;
+        /** Whether {@link #getPage} has served it, to count each prefetch hit once. */
+        boolean used;
+
+        CachedPage(List<MediaItem> items, boolean prefetched) {
+            this.items = items;
+            this.prefetched = prefetched;
+        }
+    }
+
+    /** Connection through a MediaBrowser, which reports changes back to the client. */
+    private static final class BrowserConnection implements Connection, MediaBrowser.Listener {
+
+        @Nullable MediaBrowser browser;
+        @Nullable BrowseClient client;
+
+        @Override
+        public ListenableFuture<List<MediaItem>> getChildren(
+                String parentId, int page, int pageSize) {
+            return Futures.transformAsync(
+                    Objects.requireNonNull(browser)
+                            .getChildren(parentId, page, pageSize, /* params= */ null),
+                    result ->
+                            result.resultCode == LibraryResult.RESULT_SUCCESS
+                                            && result.value != null
+                                    ? Futures.<List<MediaItem>>immediateFuture(result.value)
+                                    : Futures.immediateFailedFuture(
+                                            new IOException(
+                                                    "getChildren failed with "
+                                                            + result.resultCode)),
+                    MoreExecutors.directExecutor());
+        }
+
+        @Override
+        public void subscribe(String parentId) {
+            Objects.requireNonNull(browser).subscribe(parentId, /* params= */ null);
+        }
+
+        @Override
+        public void release() {
+            if (browser != null) {
+                browser.release();
+            }
+        }
+
+        @Override
+        public void onChildrenChanged(
+                MediaBrowser browser,
+                String parentId,
+                int itemCount,
+                @Nullable LibraryParams params) {
+            BrowseClient client = this.client;
+            if (client != null) {
+                client.onChildrenChanged(parentId, itemCount);
+            }
+        }
+    }
+}
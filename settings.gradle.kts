@@ -23,3 +23,5 @@ rootProject.name = "TAAutomotive"
 include(":mobile")
 include(":automotive")
 include(":shared")
+include(":core")
+include(":benchmark")
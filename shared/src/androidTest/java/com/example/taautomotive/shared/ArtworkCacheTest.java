@@ -0,0 +1,193 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Loads artwork from a local HTTP server through {@link ArtworkCache}. */
+@RunWith(AndroidJUnit4.class)
+public class ArtworkCacheTest {
+
+    private static final int SOURCE_COUNT = 50;
+    private static final int GRID_ITEMS = 500;
+    /** A car grid tile; served from the 256 px bucket. */
+    private static final int TILE_PX = 240;
+
+    private Context context;
+    private File cacheDir;
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cacheDir = new File(context.getCacheDir(), "artwork-cache-test-" + System.nanoTime());
+        server = new LocalHttpServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        TestMedia.deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void scrollingGridDecodesEachSourceOnce() throws Exception {
+        ArtworkCache cache = newCache(ArtworkCache.DEFAULT_MEMORY_BYTES);
+        Uri[] sources = serveSources(SOURCE_COUNT, /* sizePx= */ 1_600);
+
+        // Down and back up a grid whose items share album artwork, as tracks of an album do
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < GRID_ITEMS; i++) {
+                byte[] variant = read(get(cache.load(sources[i % SOURCE_COUNT], TILE_PX)));
+                if (pass == 0 && i < SOURCE_COUNT) {
+                    assertFitsIn(ArtworkCache.bucketOf(TILE_PX), variant);
+                }
+            }
+        }
+
+        assertEquals(SOURCE_COUNT, cache.getDecodeCount());
+        assertEquals(SOURCE_COUNT, server.getRequestCount());
+        assertEquals(2 * GRID_ITEMS - SOURCE_COUNT, cache.getMemoryHitCount());
+        assertTrue(cache.getMemoryBytes() <= cache.getMaxMemoryBytes());
+    }
+
+    @Test
+    public void variantsOutliveTheMemoryTier() throws Exception {
+        ArtworkCache cache = newCache(ArtworkCache.DEFAULT_MEMORY_BYTES);
+        Uri[] sources = serveSources(SOURCE_COUNT, /* sizePx= */ 800);
+        for (Uri source : sources) {
+            get(cache.load(source, TILE_PX));
+        }
+
+        cache.clearMemory();
+        for (Uri source : sources) {
+            ArtworkCache.Variant variant = get(cache.load(source, TILE_PX));
+            assertFitsIn(ArtworkCache.bucketOf(TILE_PX), read(variant));
+        }
+
+        assertEquals(0, cache.getMemoryBytes());
+        assertEquals(SOURCE_COUNT, cache.getDecodeCount());
+        assertEquals(SOURCE_COUNT, cache.getDiskHitCount());
+    }
+
+    @Test
+    public void concurrentLoadsShareOneDecode() throws Exception {
+        ArtworkCache cache = newCache(ArtworkCache.DEFAULT_MEMORY_BYTES);
+        Uri source = serveSources(1, /* sizePx= */ 1_600)[0];
+        server.setResponseDelayMs(200);
+
+        List<ListenableFuture<ArtworkCache.Variant>> loads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            // Sizes in the same bucket share the variant
+            loads.add(cache.load(source, 200 + i * 7));
+        }
+        for (ListenableFuture<ArtworkCache.Variant> load : loads) {
+            assertNotNull(get(load));
+        }
+
+        assertEquals(1, cache.getDecodeCount());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(7, cache.getCoalescedCount());
+    }
+
+    @Test
+    public void sourceWithoutImageIsNotReadAgain() throws Exception {
+        ArtworkCache cache = newCache(ArtworkCache.DEFAULT_MEMORY_BYTES);
+        server.serve("/not-an-image", new byte[] {1, 2, 3, 4});
+        Uri source = Uri.parse(server.url("/not-an-image"));
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                get(cache.load(source, TILE_PX));
+                fail("Loaded artwork from a source that isn't an image");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof FileNotFoundException);
+            }
+        }
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, cache.getFailureCount());
+    }
+
+    @Test
+    public void diskTierEvictsLeastRecentlyUsed() throws Exception {
+        Uri[] sources = serveSources(SOURCE_COUNT, /* sizePx= */ 800);
+        long variantBytes = get(newCache(1).load(sources[0], TILE_PX)).getLength();
+        long maxDiskBytes = variantBytes * 10;
+        // A one byte memory tier keeps nothing, so every variant goes to disk
+        ArtworkCache cache = new ArtworkCache(context, cacheDir, 1, maxDiskBytes);
+
+        for (Uri source : sources) {
+            get(cache.load(source, TILE_PX));
+        }
+
+        assertTrue(cache.getDiskEvictionCount() > 0);
+        assertTrue(cache.getDiskBytes() <= maxDiskBytes);
+    }
+
+    private ArtworkCache newCache(long memoryBytes) {
+        return new ArtworkCache(context, cacheDir, memoryBytes, ArtworkCache.DEFAULT_DISK_BYTES);
+    }
+
+    /** Serves count distinct square JPEGs of sizePx and returns their URLs. */
+    private Uri[] serveSources(int count, int sizePx) {
+        Uri[] sources = new Uri[count];
+        for (int i = 0; i < count; i++) {
+            Bitmap bitmap = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(Color.rgb(i * 5, 255 - i * 5, 128));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            bitmap.recycle();
+            server.serve("/art" + i + ".jpg", out.toByteArray());
+            sources[i] = Uri.parse(server.url("/art" + i + ".jpg"));
+        }
+        return sources;
+    }
+
+    private static ArtworkCache.Variant get(ListenableFuture<ArtworkCache.Variant> load)
+            throws Exception {
+        return load.get(TestMedia.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static byte[] read(ArtworkCache.Variant variant) throws Exception {
+        if (variant.bytes != null) {
+            return variant.bytes;
+        }
+        try (InputStream in = new FileInputStream(variant.file)) {
+            byte[] bytes = new byte[(int) variant.file.length()];
+            assertEquals(bytes.length, in.read(bytes));
+            return bytes;
+        }
+    }
+
+    private static void assertFitsIn(int sizePx, byte[] variant) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(variant, 0, variant.length, options);
+        assertEquals(sizePx, Math.max(options.outWidth, options.outHeight));
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.taautomotive.shared;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stands in for the remote catalog endpoint read by {@link CatalogSource}: serves a synthetic
+ * catalog of albums and tracks as JSON from a {@link LocalHttpServer}, with an ETag per
+ * revision. Each new revision renames the tracks of album 0 only, so tests can check that a
+ * change reloads just that folder.
+ */
+final class CatalogServer {
+
+    static final String PATH = "/catalog.json";
+
+    private final LocalHttpServer server = new LocalHttpServer();
+    private final int trackCount;
+    private final int albumCount;
+
+    CatalogServer(int trackCount, int albumCount) {
+        this.trackCount = trackCount;
+        this.albumCount = albumCount;
+    }
+
+    void start() throws IOException {
+        server.start();
+        publish(0);
+    }
+
+    void stop() throws IOException {
+        server.stop();
+    }
+
+    /** Serves the given revision of the catalog from now on. */
+    void publish(int revision) {
+        server.serve(PATH, buildCatalog(revision), "\"rev-" + revision + "\"");
+    }
+
+    String url() {
+        return server.url(PATH);
+    }
+
+    LocalHttpServer getServer() {
+        return server;
+    }
+
+    /** Returns the mediaId of the folder that lists album's tracks. */
+    static String albumFolderId(int album) {
+        return DefaultFolder.CATALOG.getRoute() + "/artist" + album % 10 + "/album" + album;
+    }
+
+    /**
+     * Returns the catalog: ten artist folders, albumCount album folders spread over them and
+     * trackCount tracks spread over the albums, plus fields the parser must skip.
+     */
+    private byte[] buildCatalog(int revision) {
+        StringBuilder json = new StringBuilder(trackCount * 160);
+        json.append("{\"generated\":{\"revision\":").append(revision).append(",\"tags\":[1,2]},");
+        json.append("\"folders\":[");
+        for (int artist = 0; artist < 10; artist++) {
+            json.append("{\"id\":\"artist").append(artist)
+                    .append("\",\"parent\":null,\"title\":\"Artist ").append(artist).append("\"},");
+        }
+        for (int album = 0; album < albumCount; album++) {
+            if (album > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"album").append(album)
+                    .append("\",\"parent\":\"artist").append(album % 10)
+                    .append("\",\"title\":\"Album ").append(album).append("\"}");
+        }
+        json.append("],\"tracks\":[");
+        for (int i = 0; i < trackCount; i++) {
+            int album = i % albumCount;
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"catalog_track_").append(i)
+                    .append("\",\"folder\":\"album").append(album)
+                    .append("\",\"uri\":\"https://cdn.example.com/catalog/").append(i)
+                    .append(".mp3\",\"title\":\"")
+                    .append(album == 0 && revision > 0 ? "Remastered " : "Track ").append(i)
+                    .append("\",\"artist\":\"Artist ").append(album % 10)
+                    .append("\",\"album\":\"Album ").append(album)
+                    .append("\",\"durationMs\":180000,\"explicit\":false}");
+        }
+        json.append("]}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.media3.common.MediaItem;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.example.taautomotive.core.MediaIds;
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Loads a synthetic 100k-track catalog from a {@link CatalogServer} through {@link
+ * CatalogSource}: the streamed parse, revalidation with the ETag, and incremental updates of the
+ * trie.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CatalogSourceTest {
+
+    private static final String TAG = "CatalogSourceTest";
+    private static final int TRACK_COUNT = 100_000;
+    private static final int ALBUM_COUNT = 1_000;
+
+    private File cacheFile;
+    private CatalogServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cacheFile = new File(context.getCacheDir(), "catalog-test-" + System.nanoTime());
+        server = new CatalogServer(TRACK_COUNT, ALBUM_COUNT);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        cacheFile.delete();
+    }
+
+    @Test
+    public void catalogStreamsIntoPagedFolders() throws Exception {
+        CatalogSource source = newSource();
+        long startNanos = System.nanoTime();
+        Set<String> changed = source.refresh();
+        Log.i(TAG, TRACK_COUNT + " tracks fetched and parsed in "
+                + (System.nanoTime() - startNanos) / 1_000_000 + " ms, "
+                + source.getBytesRead() / 1024 + " KiB");
+
+        assertEquals(TRACK_COUNT, source.getTrackCount());
+        assertEquals(0, source.getSkippedCount());
+        // The catalog folder, 10 artists and the albums
+        assertEquals(1 + 10 + ALBUM_COUNT, changed.size());
+        MediaFolderTrie trie = newTrie(source);
+        MediaFolderNode album = trie.getNode(CatalogServer.albumFolderId(7));
+        assertNotNull(album);
+        assertEquals(TRACK_COUNT / ALBUM_COUNT, trie.getChildCount(album));
+        List<MediaItem> page = trie.getChildrenPage(album, 2, 3);
+        assertEquals("catalog_track_2007", page.get(0).mediaId);
+        assertEquals("Track 2007", page.get(0).mediaMetadata.title.toString());
+        assertEquals(10, trie.getChildCount(trie.getNode(DefaultFolder.CATALOG.getRoute())));
+    }
+
+    @Test
+    public void unchangedCatalogCostsOneRequest() throws Exception {
+        CatalogSource source = newSource();
+        source.refresh();
+        long bytesServed = server.getServer().getBytesServed();
+        int requests = server.getServer().getRequestCount();
+
+        assertEquals(Collections.emptySet(), source.refresh());
+        assertEquals(requests + 1, server.getServer().getRequestCount());
+        assertEquals(bytesServed, server.getServer().getBytesServed());
+        assertEquals(1, source.getNotModifiedCount());
+    }
+
+    @Test
+    public void changeReloadsOnlyTheChangedFolder() throws Exception {
+        CatalogSource source = newSource();
+        source.refresh();
+        MediaFolderTrie trie = newTrie(source);
+        MediaFolderNode album = trie.getNode(CatalogServer.albumFolderId(0));
+        MediaFolderNode otherAlbum = trie.getNode(CatalogServer.albumFolderId(1));
+        trie.getChildrenPage(album, 0, 1);
+
+        server.publish(1);
+        Set<String> changed = source.refresh();
+        assertEquals(Collections.singleton(CatalogServer.albumFolderId(0)), changed);
+        // Same folders, so no node is replaced; the changed folder is reloaded in place.
+        assertTrue(trie.update(source::attachTo).isEmpty());
+        assertTrue(trie.reindex(CatalogServer.albumFolderId(0)));
+        assertEquals(
+                "Remastered 0",
+                trie.getChildrenPage(album, 0, 1).get(0).mediaMetadata.title.toString());
+        assertTrue(otherAlbum == trie.getNode(CatalogServer.albumFolderId(1)));
+    }
+
+    @Test
+    public void itemIdsResolveInTheirFolder() throws Exception {
+        CatalogSource source = newSource();
+        source.refresh();
+        MediaFolderTrie trie = newTrie(source);
+        String albumPath = CatalogServer.albumFolderId(7);
+        String itemId = MediaIds.itemId(albumPath, "catalog_track_2007");
+
+        assertEquals("catalog_track_2007", trie.findMediaItemById(itemId).mediaId);
+        assertEquals(albumPath, trie.findParentPath(itemId));
+        // An id the album doesn't list is not searched for elsewhere.
+        assertNull(trie.findMediaItemById(MediaIds.itemId(albumPath, "catalog_track_2008")));
+        // A folder that is gone may have moved its items: the key is still looked up.
+        assertEquals(
+                "catalog_track_2008",
+                trie.findMediaItemById(MediaIds.itemId("catalog/gone", "catalog_track_2008"))
+                        .mediaId);
+        List<MediaItem> items =
+                trie.findMediaItemsById(
+                        Arrays.asList(itemId, "catalog_track_5", "unknown", itemId));
+        assertEquals("catalog_track_2007", items.get(0).mediaId);
+        assertEquals("catalog_track_5", items.get(1).mediaId);
+        assertNull(items.get(2));
+        assertEquals("catalog_track_2007", items.get(3).mediaId);
+    }
+
+    @Test
+    public void cachedCatalogLoadsWithoutTheNetwork() throws Exception {
+        newSource().refresh();
+        int requests = server.getServer().getRequestCount();
+
+        CatalogSource restarted = newSource();
+        assertTrue(restarted.loadCached());
+        assertEquals(TRACK_COUNT, restarted.getTrackCount());
+        assertEquals(requests, server.getServer().getRequestCount());
+        // The cached validators still match
+        assertEquals(Collections.emptySet(), restarted.refresh());
+        assertEquals(1, restarted.getNotModifiedCount());
+    }
+
+    private CatalogSource newSource() throws Exception {
+        return new CatalogSource(new URL(server.url()), cacheFile);
+    }
+
+    private static MediaFolderTrie newTrie(CatalogSource source) {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(source::attachTo);
+        return trie;
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks {@link CompactCatalog} against a synthetic library and measures its heap use against the
+ * same library held as MediaItems.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompactCatalogTest {
+
+    private static final String TAG = "CompactCatalogTest";
+    private static final int TRACK_COUNT = 100_000;
+    private static final int ALBUM_COUNT = 1_000;
+
+    @Test
+    public void pagesMaterializeTheRequestedRows() {
+        CompactCatalog catalog = buildCatalog(10_000);
+        int album = 1 + 7; // Folder 0 is the top folder.
+        PagedChildrenSource source = catalog.getFolderSource(album);
+
+        assertEquals(10, source.getChildCount());
+        List<MediaItem> page = source.loadPage(2, 3);
+        assertEquals(3, page.size());
+        // Album 7 lists tracks 7, 1007, 2007, ... in the order they were added.
+        MediaItem item = page.get(0);
+        assertEquals("track_2007", item.mediaId);
+        assertEquals(
+                "https://cdn.example.com/albums/7/track_2007.mp3",
+                item.localConfiguration.uri.toString());
+        assertEquals("Track 2007", item.mediaMetadata.title.toString());
+        assertEquals("Artist 2", item.mediaMetadata.artist.toString());
+        assertEquals("Album 7", item.mediaMetadata.albumTitle.toString());
+
+        assertEquals("track_9007", source.findItem("track_9007").mediaId);
+        assertNull(source.findItem("track_9008"));
+        assertEquals(-1, catalog.findTrack("missing"));
+        assertEquals(1_000, catalog.getFolderSource(0).getChildCount());
+    }
+
+    @Test
+    public void folderFindsItsOwnRowOfASharedId() {
+        CompactCatalog.Builder builder = new CompactCatalog.Builder();
+        int top = builder.addFolder(CompactCatalog.NO_PARENT, "synthetic", "Synthetic");
+        int first = builder.addFolder(top, "first", "First");
+        int second = builder.addFolder(top, "second", "Second");
+        builder.addTrack(first, "shared", uriOf(1, 1), "In first", null, null);
+        builder.addTrack(second, "other", uriOf(2, 2), "Other", null, null);
+        builder.addTrack(second, "shared", uriOf(3, 2), "In second", null, null);
+        CompactCatalog catalog = builder.build();
+
+        assertEquals(
+                "In first",
+                catalog.getFolderSource(first).findItem("shared").mediaMetadata.title.toString());
+        assertEquals(
+                "In second",
+                catalog.getFolderSource(second).findItem("shared").mediaMetadata.title.toString());
+        assertEquals(second, catalog.getTrackFolder(catalog.findTrack(second, "shared")));
+        assertEquals(-1, catalog.findTrack(first, "other"));
+        assertNull(catalog.getFolderSource(top).findItem("shared"));
+    }
+
+    @Test
+    public void smallFoldersOfALargeCatalogAreSearchable() {
+        // Far more tracks than the trie indexes per folder, in albums of twenty
+        CompactCatalog catalog = buildCatalog(10 * MediaFolderTrie.MAX_EAGERLY_INDEXED_CHILDREN);
+        MediaFolderTrie trie = new MediaFolderTrie();
+        MediaSearchIndex searchIndex = new MediaSearchIndex();
+        trie.addIndexListener(searchIndex);
+
+        trie.update(editor -> editor.putNode(DefaultFolder.LOCAL.getRoute(), catalog.toNode(0)));
+
+        List<MediaItem> results = searchIndex.search("track 1234", 10);
+        assertEquals("track_1234", results.get(0).mediaId);
+        assertEquals(
+                DefaultFolder.LOCAL.getRoute() + "/synthetic/album234",
+                trie.findParentPath("track_1234"));
+    }
+
+    @Test
+    public void idsOfUnindexedFoldersResolveThroughTheCatalog() {
+        String local = DefaultFolder.LOCAL.getRoute();
+        // Albums of ten, all larger than the trie indexes
+        MediaFolderTrie trie = new MediaFolderTrie(new ChildrenCache(), 5);
+        trie.update(editor -> editor.putNode(local, buildCatalog(10_000).toNode(0)));
+
+        assertEquals(local + "/synthetic/album234", trie.findParentPath("track_1234"));
+        List<MediaItem> found = trie.findMediaItemsById(Arrays.asList("track_9999", "missing"));
+        assertEquals("track_9999", found.get(0).mediaId);
+        assertNull(found.get(1));
+
+        trie.update(editor -> editor.removeNode(local + "/synthetic/album234"));
+        assertNull(trie.findParentPath("track_1234"));
+        assertEquals(local + "/synthetic/album235", trie.findParentPath("track_1235"));
+    }
+
+    @Test
+    public void catalogTakesAFractionOfTheMediaItemHeap() {
+        long baseline = usedHeapBytes();
+        List<MediaItem> items = buildMediaItems(TRACK_COUNT);
+        long itemBytes = usedHeapBytes() - baseline;
+
+        baseline = usedHeapBytes();
+        CompactCatalog catalog = buildCatalog(TRACK_COUNT);
+        long catalogBytes = usedHeapBytes() - baseline;
+
+        Log.i(TAG, TRACK_COUNT + " tracks: MediaItems=" + itemBytes / 1024 + " KiB"
+                + " catalog=" + catalogBytes / 1024 + " KiB"
+                + " (estimated " + catalog.estimateSizeBytes() / 1024 + " KiB)");
+        assertEquals(TRACK_COUNT, items.size());
+        assertEquals(TRACK_COUNT, catalog.getTrackCount());
+        // The catalog measures well under a quarter of the items; GC timing makes both
+        // measurements noisy, so only half is asserted.
+        assertTrue(
+                "catalog " + catalogBytes + " vs items " + itemBytes,
+                catalogBytes * 2 < itemBytes);
+    }
+
+    private static CompactCatalog buildCatalog(int trackCount) {
+        CompactCatalog.Builder builder = new CompactCatalog.Builder();
+        int top = builder.addFolder(CompactCatalog.NO_PARENT, "synthetic", "Synthetic");
+        int albumCount = Math.min(ALBUM_COUNT, trackCount);
+        int[] albums = new int[albumCount];
+        for (int a = 0; a < albumCount; a++) {
+            albums[a] = builder.addFolder(top, "album" + a, "Album " + a);
+        }
+        for (int i = 0; i < trackCount; i++) {
+            int a = i % albumCount;
+            builder.addTrack(
+                    albums[a], "track_" + i, uriOf(i, a), "Track " + i, artistOf(i), "Album " + a);
+        }
+        return builder.build();
+    }
+
+    /** The same library built the way folders used to hold it: one MediaItem per track. */
+    private static List<MediaItem> buildMediaItems(int trackCount) {
+        List<MediaItem> items = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            int a = i % ALBUM_COUNT;
+            items.add(
+                    new MediaItem.Builder()
+                            .setMediaId("track_" + i)
+                            .setUri(uriOf(i, a))
+                            .setMediaMetadata(
+                                    new MediaMetadata.Builder()
+                                            .setIsBrowsable(false)
+                                            .setIsPlayable(true)
+                                            .setTitle("Track " + i)
+                                            .setArtist(artistOf(i))
+                                            .setAlbumTitle("Album " + a)
+                                            .build())
+                            .build());
+        }
+        return items;
+    }
+
+    private static String uriOf(int track, int album) {
+        return "https://cdn.example.com/albums/" + album + "/track_" + track + ".mp3";
+    }
+
+    private static String artistOf(int track) {
+        return "Artist " + track % 5;
+    }
+
+    private static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.taautomotive.shared;
+
+import static com.example.taautomotive.shared.MediaFolderTrieTest.track;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.net.Uri;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.session.MediaSession.MediaItemsWithStartPosition;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Resolves queues through a {@link LazyQueue} backed by a map of library items. */
+@RunWith(AndroidJUnit4.class)
+public class LazyQueueTest {
+
+    private static final int EAGER_LIMIT = 5;
+    private static final int WINDOW = 1;
+
+    private final Map<String, MediaItem> library = new HashMap<>();
+    private final List<String> resolvedIds = new ArrayList<>();
+    private final LazyQueue lazyQueue =
+            new LazyQueue(
+                    mediaIds -> {
+                        resolvedIds.addAll(mediaIds);
+                        List<MediaItem> items = new ArrayList<>(mediaIds.size());
+                        for (String mediaId : mediaIds) {
+                            items.add(library.get(mediaId));
+                        }
+                        return items;
+                    },
+                    EAGER_LIMIT,
+                    WINDOW);
+
+    @Test
+    public void shortQueueIsResolvedInFull() {
+        List<MediaItem> requested = addTracks(EAGER_LIMIT);
+
+        MediaItemsWithStartPosition queue = lazyQueue.resolveQueue(requested, 2, 1_000);
+
+        assertEquals(EAGER_LIMIT, queue.mediaItems.size());
+        for (MediaItem item : queue.mediaItems) {
+            assertFalse(LazyQueue.isPlaceholder(item));
+        }
+        assertEquals(2, queue.startIndex);
+        assertEquals(1_000, queue.startPositionMs);
+        assertEquals(0, lazyQueue.getPlaceholderCount());
+    }
+
+    @Test
+    public void longQueueResolvesOnlyTheWindowAroundTheStart() {
+        List<MediaItem> requested = addTracks(10);
+
+        MediaItemsWithStartPosition queue = lazyQueue.resolveQueue(requested, 5, 1_000);
+
+        assertEquals(Arrays.asList("t4", "t5", "t6"), resolvedIds);
+        assertEquals(10, queue.mediaItems.size());
+        for (int i = 0; i < 10; i++) {
+            MediaItem item = queue.mediaItems.get(i);
+            assertEquals("t" + i, item.mediaId);
+            assertEquals(i < 4 || i > 6, LazyQueue.isPlaceholder(item));
+        }
+        assertEquals("Track 0", queue.mediaItems.get(0).mediaMetadata.title.toString());
+        assertEquals(5, queue.startIndex);
+        assertEquals(1_000, queue.startPositionMs);
+        assertEquals(7, lazyQueue.getPlaceholderCount());
+    }
+
+    @Test
+    public void startIndexFollowsItsItemPastDroppedItems() {
+        List<MediaItem> requested = addTracks(4);
+        library.remove("t0");
+
+        MediaItemsWithStartPosition queue = lazyQueue.resolveQueue(requested, 2, 1_000);
+
+        assertEquals(Arrays.asList("t1", "t2", "t3"), ids(queue.mediaItems));
+        assertEquals(1, queue.startIndex);
+        assertEquals(1_000, queue.startPositionMs);
+    }
+
+    @Test
+    public void droppedStartItemStartsTheNextFromItsDefaultPosition() {
+        List<MediaItem> requested = addTracks(4);
+        library.remove("t2");
+
+        MediaItemsWithStartPosition queue = lazyQueue.resolveQueue(requested, 2, 1_000);
+        assertEquals(Arrays.asList("t0", "t1", "t3"), ids(queue.mediaItems));
+        assertEquals(2, queue.startIndex);
+        assertEquals(C.TIME_UNSET, queue.startPositionMs);
+
+        // With nothing after it, the last remaining item is played instead
+        library.remove("t3");
+        queue = lazyQueue.resolveQueue(requested, 3, 1_000);
+        assertEquals(Arrays.asList("t0", "t1"), ids(queue.mediaItems));
+        assertEquals(1, queue.startIndex);
+        assertEquals(C.TIME_UNSET, queue.startPositionMs);
+
+        library.clear();
+        queue = lazyQueue.resolveQueue(requested, 1, 1_000);
+        assertTrue(queue.mediaItems.isEmpty());
+        assertEquals(C.INDEX_UNSET, queue.startIndex);
+    }
+
+    @Test
+    public void deferQueueMakesPlaceholdersWithoutResolving() {
+        List<MediaItem> requested = new ArrayList<>(addTracks(3));
+        requested.add(0, new MediaItem.Builder().build());
+
+        MediaItemsWithStartPosition queue = lazyQueue.deferQueue(requested, 2, 1_000);
+
+        assertTrue(resolvedIds.isEmpty());
+        assertEquals(Arrays.asList("t0", "t1", "t2"), ids(queue.mediaItems));
+        for (MediaItem item : queue.mediaItems) {
+            assertTrue(LazyQueue.isPlaceholder(item));
+        }
+        assertEquals(1, queue.startIndex);
+        assertEquals(1_000, queue.startPositionMs);
+        assertEquals(3, lazyQueue.getPlaceholderCount());
+    }
+
+    @Test
+    public void placeholderDataSpecOpensTheLibraryItem() throws Exception {
+        addTracks(1);
+        MediaItem placeholder =
+                lazyQueue.deferQueue(Collections.singletonList(library.get("t0")), 0, 0)
+                        .mediaItems.get(0);
+        DataSpec dataSpec = new DataSpec(placeholder.localConfiguration.uri);
+
+        DataSpec resolved = lazyQueue.resolveDataSpec(dataSpec);
+        lazyQueue.resolveDataSpec(dataSpec);
+
+        assertEquals(library.get("t0").localConfiguration.uri, resolved.uri);
+        assertEquals(MediaCache.cacheKeyOf(library.get("t0")), resolved.key);
+        // A track is opened many times while it plays; it is resolved once
+        assertEquals(Arrays.asList("t0"), resolvedIds);
+        assertEquals(1, lazyQueue.getResolvedOnOpenCount());
+
+        DataSpec other = new DataSpec(Uri.parse("https://example.com/other.mp3"));
+        assertSame(other, lazyQueue.resolveDataSpec(other));
+    }
+
+    @Test
+    public void placeholderResolvedUnderAnotherIdIsStillResolvedOnce() throws Exception {
+        String legacyId = "legacy|t0";
+        addTracks(1);
+        library.put(legacyId, library.get("t0"));
+        DataSpec dataSpec = new DataSpec(Uri.fromParts(LazyQueue.URI_SCHEME, legacyId, null));
+
+        lazyQueue.resolveDataSpec(dataSpec);
+        lazyQueue.resolveDataSpec(dataSpec);
+
+        assertEquals(Arrays.asList(legacyId), resolvedIds);
+    }
+
+    @Test
+    public void placeholderOfAMissingItemFailsToOpen() {
+        DataSpec dataSpec = new DataSpec(Uri.fromParts(LazyQueue.URI_SCHEME, "missing", null));
+        try {
+            lazyQueue.resolveDataSpec(dataSpec);
+            fail("Opened a placeholder of a missing item");
+        } catch (IOException expected) {
+            // The player reports it as a playback error and moves on
+        }
+    }
+
+    @Test
+    public void materializeCountsResolvedPlaceholders() {
+        List<MediaItem> placeholders = lazyQueue.deferQueue(addTracks(3), 0, 0).mediaItems;
+        library.remove("t1");
+
+        List<MediaItem> items = lazyQueue.materialize(placeholders);
+
+        assertEquals("t0", items.get(0).mediaId);
+        assertNull(items.get(1));
+        assertFalse(LazyQueue.isPlaceholder(items.get(2)));
+        assertEquals(2, lazyQueue.getMaterializedCount());
+    }
+
+    /** Adds count tracks, t0 onwards, to the library and returns them as requested. */
+    private List<MediaItem> addTracks(int count) {
+        List<MediaItem> requested = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            MediaItem item = track("t" + i, "Track " + i);
+            library.put(item.mediaId, item);
+            requested.add(item);
+        }
+        return requested;
+    }
+
+    private static List<String> ids(List<MediaItem> items) {
+        List<String> ids = new ArrayList<>(items.size());
+        for (MediaItem item : items) {
+            ids.add(item.mediaId);
+        }
+        return ids;
+    }
+}
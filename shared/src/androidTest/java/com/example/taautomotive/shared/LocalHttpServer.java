@@ -0,0 +1,195 @@
+package com.example.taautomotive.shared;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal HTTP/1.1 server on 127.0.0.1 that stands in for the track host in tests. Serves
+ * registered byte arrays by path, honours single "Range: bytes=" requests and "If-None-Match"
+ * against a body's ETag, and counts requests and body bytes sent, so tests can assert what went
+ * over the network. Responses can be slowed down to make concurrent transfers overlap.
+ */
+final class LocalHttpServer {
+
+    private final Map<String, byte[]> bodies = new ConcurrentHashMap<>();
+    private final Map<String, String> etags = new ConcurrentHashMap<>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+    private volatile long responseDelayMs;
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(this::acceptLoop, "LocalHttpServer");
+        acceptThread.start();
+    }
+
+    void stop() throws IOException {
+        serverSocket.close();
+        try {
+            acceptThread.join(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void serve(String path, byte[] body) {
+        bodies.put(path, body);
+        etags.remove(path);
+    }
+
+    /** Serves body with the given ETag; requests that send it back get 304 Not Modified. */
+    void serve(String path, byte[] body, String etag) {
+        bodies.put(path, body);
+        etags.put(path, etag);
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    /** Delays every response body by delayMs. */
+    void setResponseDelayMs(long delayMs) {
+        responseDelayMs = delayMs;
+    }
+
+    /** Returns the most requests that were being served at the same time. */
+    int getMaxConcurrentRequests() {
+        return maxActiveRequests.get();
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    void resetCounters() {
+        requestCount.set(0);
+        bytesServed.set(0);
+        maxActiveRequests.set(0);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                new Thread(() -> handle(socket), "LocalHttpServer-conn").start();
+            } catch (SocketException e) {
+                return; // Closed by stop().
+            } catch (IOException e) {
+                // Keep accepting.
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        int active = activeRequests.incrementAndGet();
+        maxActiveRequests.accumulateAndGet(active, Math::max);
+        try (Socket s = socket) {
+            BufferedReader in =
+                    new BufferedReader(
+                            new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String range = null;
+            String ifNoneMatch = null;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                String lower = line.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                } else if (lower.startsWith("if-none-match:")) {
+                    ifNoneMatch = line.substring("if-none-match:".length()).trim();
+                }
+            }
+            requestCount.incrementAndGet();
+            String[] parts = requestLine.split(" ");
+            byte[] body = parts.length > 1 ? bodies.get(parts[1]) : null;
+            OutputStream out = s.getOutputStream();
+            if (body == null) {
+                out.write(header("404 Not Found", 0, null, null));
+                return;
+            }
+            String etag = etags.get(parts[1]);
+            if (etag != null && etag.equals(ifNoneMatch)) {
+                out.write(header("304 Not Modified", 0, null, etag));
+                return;
+            }
+            int start = 0;
+            int end = body.length - 1;
+            String status = "200 OK";
+            String contentRange = null;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+                if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+                if (start > end) {
+                    out.write(
+                            header(
+                                    "416 Range Not Satisfiable",
+                                    0,
+                                    "bytes */" + body.length,
+                                    etag));
+                    return;
+                }
+                status = "206 Partial Content";
+                contentRange = "bytes " + start + "-" + end + "/" + body.length;
+            }
+            int length = end - start + 1;
+            out.write(header(status, length, contentRange, etag));
+            if (responseDelayMs > 0) {
+                Thread.sleep(responseDelayMs);
+            }
+            if (!parts[0].equals("HEAD")) {
+                out.write(body, start, length);
+                bytesServed.addAndGet(length);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Client went away; nothing to do.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+    }
+
+    private static byte[] header(
+            String status, int contentLength, String contentRange, String etag) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Content-Type: audio/wav\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (contentRange != null) {
+            sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        if (etag != null) {
+            sb.append("ETag: ").append(etag).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.HandlerThread;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceUtil;
+import androidx.media3.datasource.DataSpec;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Plays and reads tracks from a local HTTP server through {@link MediaCache}. */
+@UnstableApi
+@RunWith(AndroidJUnit4.class)
+public class MediaCacheTest {
+
+    private Context context;
+    private File cacheDir;
+    private LocalHttpServer server;
+    private HandlerThread playbackThread;
+    private MediaCache mediaCache;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cacheDir = new File(context.getCacheDir(), "media-cache-test-" + System.nanoTime());
+        server = new LocalHttpServer();
+        server.start();
+        playbackThread = new HandlerThread("MediaCacheTest");
+        playbackThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mediaCache != null) {
+            mediaCache.release();
+        }
+        playbackThread.quitSafely();
+        server.stop();
+        TestMedia.deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void secondPlayTransfersNothingOverNetwork() throws Exception {
+        mediaCache = new MediaCache(context, cacheDir, MediaCache.DEFAULT_MAX_BYTES);
+        byte[] track = TestMedia.silentWav(/* durationMs= */ 500);
+        server.serve("/track.wav", track);
+        MediaItem item = MediaItem.fromUri(server.url("/track.wav"));
+
+        playToEnd(item);
+        assertTrue(server.getBytesServed() > 0);
+        assertEquals(track.length, mediaCache.getCachedBytes(item));
+
+        server.resetCounters();
+        long networkBytesBefore = mediaCache.getNetworkBytesRead();
+        long hitsBefore = mediaCache.getHitCount();
+        playToEnd(item);
+
+        assertEquals(0, server.getBytesServed());
+        assertEquals(0, server.getRequestCount());
+        assertEquals(networkBytesBefore, mediaCache.getNetworkBytesRead());
+        assertTrue(mediaCache.getHitCount() > hitsBefore);
+    }
+
+    @Test
+    public void pinnedTrackSurvivesEviction() throws Exception {
+        byte[] track = TestMedia.silentWav(/* durationMs= */ 1_000);
+        mediaCache = new MediaCache(context, cacheDir, track.length * 5L / 2);
+        MediaItem[] items = new MediaItem[4];
+        for (int i = 0; i < items.length; i++) {
+            String path = "/track" + i + ".wav";
+            server.serve(path, track);
+            items[i] = MediaItem.fromUri(server.url(path));
+        }
+        mediaCache.pin(items[0]);
+        try {
+            for (MediaItem item : items) {
+                readFully(item);
+            }
+
+            assertEquals(track.length, mediaCache.getCachedBytes(items[0]));
+            assertEquals(0, mediaCache.getCachedBytes(items[1]));
+            assertEquals(track.length, mediaCache.getCachedBytes(items[3]));
+        } finally {
+            mediaCache.unpin(items[0]);
+        }
+    }
+
+    private void playToEnd(MediaItem item) throws Exception {
+        TestMedia.playToEnd(
+                context, playbackThread.getLooper(), mediaCache.createMediaSourceFactory(), item);
+    }
+
+    private void readFully(MediaItem item) throws Exception {
+        DataSource dataSource = mediaCache.createDataSourceFactory().createDataSource();
+        Uri uri = item.localConfiguration.uri;
+        try {
+            dataSource.open(new DataSpec(uri));
+            DataSourceUtil.readToEnd(dataSource);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
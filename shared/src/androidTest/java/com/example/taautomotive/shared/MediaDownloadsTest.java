@@ -0,0 +1,166 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.support.v4.media.MediaDescriptionCompat;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.util.UnstableApi;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Downloads folders from a local HTTP server through {@link MediaDownloads}. */
+@UnstableApi
+@RunWith(AndroidJUnit4.class)
+public class MediaDownloadsTest {
+
+    private static final String FOLDER_ID = "playlists";
+    private static final int MAX_PARALLEL_DOWNLOADS = 2;
+
+    private Context context;
+    private File testDir;
+    private LocalHttpServer server;
+    private HandlerThread downloadThread;
+    private MediaCache mediaCache;
+    private MediaDownloads downloads;
+    private final List<MediaItem> items = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        testDir = new File(context.getCacheDir(), "media-downloads-test-" + System.nanoTime());
+        server = new LocalHttpServer();
+        server.start();
+        downloadThread = new HandlerThread("MediaDownloadsTest");
+        downloadThread.start();
+        mediaCache =
+                new MediaCache(context, new File(testDir, "cache"), MediaCache.DEFAULT_MAX_BYTES);
+        downloads =
+                TestMedia.runOn(
+                        downloadThread.getLooper(),
+                        () ->
+                                new MediaDownloads(
+                                        context,
+                                        mediaCache,
+                                        new File(testDir, "downloads"),
+                                        MAX_PARALLEL_DOWNLOADS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Downloads are indexed in the app's database; don't leave them for the next test.
+        TestMedia.runOn(
+                downloadThread.getLooper(),
+                () -> {
+                    downloads.unmarkFolder(FOLDER_ID, items);
+                    return null;
+                });
+        TestMedia.waitUntil("downloads not removed", () -> downloads.getProgress().itemCount == 0);
+        TestMedia.runOn(
+                downloadThread.getLooper(),
+                () -> {
+                    downloads.release();
+                    return null;
+                });
+        mediaCache.release();
+        downloadThread.quitSafely();
+        server.stop();
+        TestMedia.deleteRecursively(testDir);
+    }
+
+    @Test
+    public void downloadedTrackPlaysWithoutNetwork() throws Exception {
+        byte[] track = TestMedia.silentWav(/* durationMs= */ 500);
+        addTracks(2, track);
+
+        markFolder();
+        TestMedia.waitUntil(
+                "folder not downloaded", () -> downloads.getProgress(FOLDER_ID).isComplete());
+
+        assertEquals(2L * track.length, downloads.getStorageBytes());
+        assertEquals(
+                MediaDescriptionCompat.STATUS_DOWNLOADED, downloads.getDownloadStatus(FOLDER_ID));
+        MediaItem decorated = downloads.withDownloadStatus(items.get(0));
+        assertEquals(
+                MediaDescriptionCompat.STATUS_DOWNLOADED,
+                decorated.mediaMetadata.extras.getLong(
+                        MediaDescriptionCompat.EXTRA_DOWNLOAD_STATUS));
+
+        server.resetCounters();
+        TestMedia.playToEnd(
+                context,
+                downloadThread.getLooper(),
+                downloads.createMediaSourceFactory(),
+                items.get(0));
+
+        assertEquals(0, server.getRequestCount());
+        assertTrue(downloads.getOfflineBytesRead() > 0);
+        // Played from the offline copy, not duplicated into the streaming cache.
+        assertEquals(0, mediaCache.getCachedBytes(items.get(0)));
+    }
+
+    @Test
+    public void transfersAreBoundedToMaxParallelDownloads() throws Exception {
+        addTracks(5, TestMedia.silentWav(/* durationMs= */ 200));
+        server.setResponseDelayMs(300);
+
+        markFolder();
+        TestMedia.waitUntil(
+                "folder not downloaded", () -> downloads.getProgress(FOLDER_ID).isComplete());
+
+        assertEquals(5, downloads.getProgress(FOLDER_ID).completedCount);
+        assertTrue(server.getMaxConcurrentRequests() <= MAX_PARALLEL_DOWNLOADS);
+    }
+
+    @Test
+    public void unmarkingFolderDeletesItsDownloads() throws Exception {
+        addTracks(2, TestMedia.silentWav(/* durationMs= */ 200));
+        markFolder();
+        TestMedia.waitUntil(
+                "folder not downloaded", () -> downloads.getProgress(FOLDER_ID).isComplete());
+
+        TestMedia.runOn(
+                downloadThread.getLooper(),
+                () -> {
+                    downloads.unmarkFolder(FOLDER_ID, items);
+                    return null;
+                });
+        TestMedia.waitUntil("downloads not removed", () -> downloads.getStorageBytes() == 0);
+
+        assertEquals(
+                MediaDescriptionCompat.STATUS_NOT_DOWNLOADED,
+                downloads.getDownloadStatus(items.get(0).mediaId));
+        assertFalse(downloads.isMarked(FOLDER_ID));
+    }
+
+    private void addTracks(int count, byte[] body) {
+        for (int i = 0; i < count; i++) {
+            String path = "/download" + i + ".wav";
+            server.serve(path, body);
+            items.add(
+                    new MediaItem.Builder()
+                            .setMediaId("download_" + i)
+                            .setUri(server.url(path))
+                            .build());
+        }
+    }
+
+    private void markFolder() throws Exception {
+        TestMedia.runOn(
+                downloadThread.getLooper(),
+                () -> {
+                    downloads.markFolder(FOLDER_ID, items);
+                    return null;
+                });
+    }
+}
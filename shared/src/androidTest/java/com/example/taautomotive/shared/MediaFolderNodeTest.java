@@ -0,0 +1,85 @@
+package com.example.taautomotive.shared;
+
+import static com.example.taautomotive.shared.MediaFolderTrieTest.folder;
+import static com.example.taautomotive.shared.MediaFolderTrieTest.track;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Copies {@link MediaFolderNode}s and checks the copies share what did not change. */
+@RunWith(AndroidJUnit4.class)
+public class MediaFolderNodeTest {
+
+    @Test
+    public void withChildCopiesTheParentAndPlacesTheChild() {
+        MediaFolderNode parent = folder("parent", track("p1", "P1"));
+        MediaFolderNode child = folder("child");
+
+        MediaFolderNode copy = parent.withChild(child);
+
+        assertNotSame(parent, copy);
+        assertNull(parent.getChild("child"));
+        assertEquals("parent/child", copy.getChild("child").getPath());
+        assertSame(parent.getMediaItem(), copy.getMediaItem());
+        assertSame(parent.getLoadChildren(), copy.getLoadChildren());
+        // Putting the same child again changes nothing
+        assertSame(copy, copy.withChild(copy.getChild("child")));
+    }
+
+    @Test
+    public void withChildReplacesBySegmentAndSharesSiblings() {
+        MediaFolderNode parent =
+                folder("parent").withChildren(Arrays.asList(folder("a"), folder("b")));
+        MediaFolderNode b = parent.getChild("b");
+
+        MediaFolderNode copy = parent.withChild(folder("a", track("a1", "A1")));
+
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(copy.getChildren().keySet()));
+        assertEquals("a1", copy.getChild("a").loadChildren().get(0).mediaId);
+        assertSame(b, copy.getChild("b"));
+    }
+
+    @Test
+    public void withoutChildRemovesOnlyThatChild() {
+        MediaFolderNode parent =
+                folder("parent").withChildren(Arrays.asList(folder("a"), folder("b")));
+
+        MediaFolderNode copy = parent.withoutChild("a");
+
+        assertNull(copy.getChild("a"));
+        assertSame(parent.getChild("b"), copy.getChild("b"));
+        assertEquals(2, parent.getChildren().size());
+        assertSame(copy, copy.withoutChild("missing"));
+    }
+
+    @Test
+    public void withChildrenReplacesAllChildrenInOrder() {
+        MediaFolderNode parent = folder("parent").withChild(folder("old"));
+
+        MediaFolderNode copy = parent.withChildren(Arrays.asList(folder("z"), folder("a")));
+
+        assertEquals(Arrays.asList("z", "a"), new ArrayList<>(copy.getChildren().keySet()));
+        assertEquals("parent/z", copy.getChild("z").getPath());
+        assertNull(copy.getChild("old"));
+    }
+
+    @Test
+    public void relocateMovesTheWholeSubtree() {
+        MediaFolderNode leaf = folder("leaf");
+        MediaFolderNode tree = folder("top").withChild(folder("middle").withChild(leaf));
+
+        MediaFolderNode moved = tree.relocate("root/top");
+
+        assertEquals("root/top", moved.getPath());
+        assertEquals("root/top/middle/leaf", moved.getChild("middle").getChild("leaf").getPath());
+        assertEquals("top/middle/leaf", tree.getChild("middle").getChild("leaf").getPath());
+        assertSame(tree, tree.relocate("top"));
+    }
+}
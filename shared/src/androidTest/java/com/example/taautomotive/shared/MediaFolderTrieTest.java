@@ -0,0 +1,303 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Indexes and edits {@link MediaFolderTrie}s built from plain folders under Local. */
+@RunWith(AndroidJUnit4.class)
+public class MediaFolderTrieTest {
+
+    private static final String LOCAL = DefaultFolder.LOCAL.getRoute();
+
+    @Test
+    public void sharedIdMovesToRemainingFolderWhenOwnerIsRemoved() {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", track("shared", "A"), track("a1", "A1")));
+                    editor.putNode(LOCAL, folder("b", track("b1", "B1"), track("shared", "B")));
+                });
+        assertEquals(LOCAL + "/a", trie.findParentPath("shared"));
+
+        trie.update(editor -> editor.removeNode(LOCAL + "/a"));
+
+        assertEquals(LOCAL + "/b", trie.findParentPath("shared"));
+        assertEquals("B", title(trie.findMediaItemById("shared")));
+        assertNull(trie.findMediaItemById("a1"));
+    }
+
+    @Test
+    public void sharedIdMovesToRemainingFolderWhenOwnerStopsListingIt() {
+        List<MediaItem> aItems = new ArrayList<>(Arrays.asList(track("shared", "A")));
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", () -> new ArrayList<>(aItems)));
+                    editor.putNode(LOCAL, folder("b", track("shared", "B")));
+                    editor.putNode(LOCAL, folder("c", track("shared", "C")));
+                });
+
+        aItems.clear();
+        trie.reindex(LOCAL + "/a");
+        assertEquals(LOCAL + "/b", trie.findParentPath("shared"));
+
+        // And on to the next folder still listing it
+        trie.update(editor -> editor.removeNode(LOCAL + "/b"));
+        assertEquals(LOCAL + "/c", trie.findParentPath("shared"));
+
+        trie.update(editor -> editor.removeNode(LOCAL + "/c"));
+        assertNull(trie.findMediaItemById("shared"));
+    }
+
+    @Test
+    public void reindexedOwnerListsSharedIdAfterOthers() {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", track("shared", "A")));
+                    editor.putNode(LOCAL, folder("b", track("shared", "B")));
+                });
+
+        // Reloading the owner hands the id over, and the owner waits behind b
+        trie.reindex(LOCAL + "/a");
+        assertEquals(LOCAL + "/b", trie.findParentPath("shared"));
+        trie.update(editor -> editor.removeNode(LOCAL + "/b"));
+
+        assertEquals(LOCAL + "/a", trie.findParentPath("shared"));
+    }
+
+    @Test
+    public void searchIndexFollowsHandedOverIds() {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        MediaSearchIndex searchIndex = new MediaSearchIndex();
+        trie.addIndexListener(searchIndex);
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", track("shared", "Harbour lights")));
+                    editor.putNode(LOCAL, folder("b", track("shared", "Harbour lights")));
+                });
+
+        trie.update(editor -> editor.removeNode(LOCAL + "/a"));
+
+        List<MediaItem> results = searchIndex.search("harbour", 10);
+        assertEquals(1, results.size());
+        assertEquals("shared", results.get(0).mediaId);
+    }
+
+    @Test
+    public void legacyIdWithSeparatorResolvesWhenItsFolderPartNamesAFolder() {
+        String legacyId = LOCAL + "/a|not-listed-by-a";
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", track("a1", "A1")));
+                    editor.putNode(LOCAL, folder("b", track(legacyId, "Legacy")));
+                });
+
+        assertEquals("a1", trie.findMediaItemById(LOCAL + "/a|a1").mediaId);
+        assertEquals(LOCAL + "/b", trie.findParentPath(legacyId));
+        List<MediaItem> found =
+                trie.findMediaItemsById(Arrays.asList(legacyId, LOCAL + "/a|a1", "unknown"));
+        assertEquals(legacyId, found.get(0).mediaId);
+        assertEquals("a1", found.get(1).mediaId);
+        assertNull(found.get(2));
+    }
+
+    @Test
+    public void itemIdResolvesInTheFolderItNamesWhenOthersListItsKey() {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", track("shared", "A")));
+                    editor.putNode(LOCAL, folder("b", track("shared", "B")));
+                    editor.putNode(LOCAL, folder("c", track("c1", "C1")));
+                });
+        trie.indexAll();
+
+        assertEquals("A", title(trie.findMediaItemById(LOCAL + "/a|shared")));
+        assertEquals("B", title(trie.findMediaItemById(LOCAL + "/b|shared")));
+        assertEquals(LOCAL + "/b", trie.findParentPath(LOCAL + "/b|shared"));
+        List<MediaItem> found =
+                trie.findMediaItemsById(
+                        Arrays.asList(
+                                LOCAL + "/b|shared", LOCAL + "/a|shared", LOCAL + "/c|shared"));
+        assertEquals("B", title(found.get(0)));
+        assertEquals("A", title(found.get(1)));
+        assertNull(found.get(2));
+
+        // Once a is gone, b owns the key, and ids naming a find the item where it moved
+        trie.update(editor -> editor.removeNode(LOCAL + "/a"));
+        assertEquals("B", title(trie.findMediaItemById(LOCAL + "/b|shared")));
+        assertEquals(LOCAL + "/b", trie.findParentPath(LOCAL + "/a|shared"));
+    }
+
+    @Test
+    public void updateCopiesThePathAndSharesTheRest() {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", track("a1", "A1")));
+                    editor.putNode(LOCAL, folder("b", track("b1", "B1")));
+                });
+        MediaFolderNode oldRoot = trie.getRoot();
+        MediaFolderNode oldLocal = trie.getNode(LOCAL);
+        MediaFolderNode oldA = trie.getNode(LOCAL + "/a");
+        MediaFolderNode oldB = trie.getNode(LOCAL + "/b");
+        long oldVersion = trie.getVersion();
+
+        trie.update(editor -> editor.putNode(LOCAL + "/a", folder("nested")));
+
+        assertNotSame(oldRoot, trie.getRoot());
+        assertNotSame(oldLocal, trie.getNode(LOCAL));
+        assertNotSame(oldA, trie.getNode(LOCAL + "/a"));
+        assertSame(oldB, trie.getNode(LOCAL + "/b"));
+        for (Map.Entry<String, MediaFolderNode> top : oldRoot.getChildren().entrySet()) {
+            if (!top.getKey().equals(LOCAL)) {
+                assertSame(top.getValue(), trie.getRoot().getChild(top.getKey()));
+            }
+        }
+        assertEquals(oldVersion + 1, trie.getVersion());
+        // The old version is untouched
+        assertNull(oldA.getChild("nested"));
+        assertEquals(LOCAL + "/a/nested", trie.getNode(LOCAL + "/a/nested").getPath());
+    }
+
+    @Test
+    public void updateReportsAddedRemovedAndChangedFolders() {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(editor -> editor.putNode(LOCAL, folder("a", track("a1", "A1"))));
+
+        assertEquals(
+                Arrays.asList("b"),
+                trie.update(editor -> editor.putNode(LOCAL, folder("b", track("b1", "B1")))));
+        assertEquals(
+                Arrays.asList("a"),
+                trie.update(editor -> editor.putNode(LOCAL, folder("a", track("a2", "A2")))));
+        assertEquals(
+                Arrays.asList("b"), trie.update(editor -> editor.removeNode(LOCAL + "/b")));
+
+        long version = trie.getVersion();
+        assertTrue(trie.update(editor -> editor.removeNode(LOCAL + "/missing")).isEmpty());
+        assertTrue(
+                trie.update(editor -> editor.putNode(LOCAL + "/missing", folder("c"))).isEmpty());
+        assertEquals(version, trie.getVersion());
+    }
+
+    @Test
+    public void refreshReportsListingsThatChangedBehindUnchangedNodes() {
+        List<MediaItem> aItems = new ArrayList<>(Arrays.asList(track("a1", "A1")));
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(editor -> editor.putNode(LOCAL, folder("a", () -> new ArrayList<>(aItems))));
+
+        aItems.add(track("a2", "A2"));
+        assertTrue(trie.update(editor -> {}).isEmpty());
+        assertNull(trie.findMediaItemById("a2"));
+
+        assertEquals(Arrays.asList("a"), trie.refresh(editor -> {}));
+        assertEquals(LOCAL + "/a", trie.findParentPath("a2"));
+        assertTrue(trie.refresh(editor -> {}).isEmpty());
+    }
+
+    @Test
+    public void indexFollowsFoldersAcrossUpdates() {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        RecordingListener listener = new RecordingListener();
+        trie.addIndexListener(listener);
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", track("a1", "A1"), track("a2", "A2")));
+                    editor.putNode(LOCAL + "/a", folder("nested", track("n1", "N1")));
+                });
+        assertEquals(LOCAL + "/a", trie.findParentPath("a1"));
+        assertEquals(LOCAL + "/a/nested", trie.findParentPath("n1"));
+        assertEquals(Arrays.asList("a1", "a2"), listener.indexed.get(LOCAL + "/a"));
+
+        // Replacing the folder re-indexes its new listing; the nested folder goes with it
+        trie.update(editor -> editor.putNode(LOCAL, folder("a", track("a3", "A3"))));
+        assertNull(trie.findMediaItemById("a1"));
+        assertNull(trie.findMediaItemById("n1"));
+        assertEquals(LOCAL + "/a", trie.findParentPath("a3"));
+        assertEquals(Arrays.asList("a1", "a2"), listener.unindexed.get(LOCAL + "/a"));
+        assertEquals(Arrays.asList("n1"), listener.unindexed.get(LOCAL + "/a/nested"));
+        assertEquals(Arrays.asList("a3"), listener.indexed.get(LOCAL + "/a"));
+
+        trie.update(editor -> editor.removeNode(LOCAL + "/a"));
+        assertNull(trie.findMediaItemById("a3"));
+        assertEquals(Arrays.asList("a3"), listener.unindexed.get(LOCAL + "/a"));
+    }
+
+    static MediaFolderNode folder(String segment, MediaItem... items) {
+        List<MediaItem> list = Arrays.asList(items);
+        return folder(segment, () -> list);
+    }
+
+    static MediaFolderNode folder(
+            String segment, java.util.function.Supplier<List<MediaItem>> loadChildren) {
+        MediaItem item =
+                new MediaItem.Builder()
+                        .setMediaId(segment)
+                        .setMediaMetadata(
+                                new MediaMetadata.Builder()
+                                        .setTitle(segment)
+                                        .setIsBrowsable(true)
+                                        .setIsPlayable(false)
+                                        .build())
+                        .build();
+        return new MediaFolderNode(segment, item, loadChildren, MediaFolderNode.NO_CACHE);
+    }
+
+    static MediaItem track(String mediaId, String title) {
+        return new MediaItem.Builder()
+                .setMediaId(mediaId)
+                .setUri("https://example.com/" + mediaId + ".mp3")
+                .setMediaMetadata(
+                        new MediaMetadata.Builder()
+                                .setTitle(title)
+                                .setIsBrowsable(false)
+                                .setIsPlayable(true)
+                                .build())
+                .build();
+    }
+
+    /** Keeps the last ids indexed and unindexed per folder. */
+    private static final class RecordingListener implements MediaFolderTrie.IndexListener {
+
+        final Map<String, List<String>> indexed = new HashMap<>();
+        final Map<String, List<String>> unindexed = new HashMap<>();
+
+        @Override
+        public void onFolderIndexed(String path, List<MediaItem> items) {
+            List<String> ids = new ArrayList<>();
+            for (MediaItem item : items) {
+                ids.add(item.mediaId);
+            }
+            indexed.put(path, ids);
+        }
+
+        @Override
+        public void onFolderUnindexed(String path, List<String> mediaIds) {
+            unindexed.put(path, new ArrayList<>(mediaIds));
+        }
+    }
+
+    private static String title(MediaItem item) {
+        assertNotNull(item);
+        assertTrue(item.mediaMetadata.title != null);
+        return item.mediaMetadata.title.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tokenizes, matches and ranks items in a {@link MediaSearchIndex}. */
+@RunWith(AndroidJUnit4.class)
+public class MediaSearchIndexTest {
+
+    @Test
+    public void tokenizeLowerCasesFoldsAccentsAndSplitsOnPunctuation() {
+        assertEquals(
+                Arrays.asList("beyonce", "s", "cafe", "del", "mar", "2"),
+                MediaSearchIndex.tokenize("Beyonc\u00e9's  Caf\u00e9-del_Mar (2)"));
+        assertEquals(Arrays.asList("naive"), MediaSearchIndex.tokenize("NAI\u0308VE"));
+        assertTrue(MediaSearchIndex.tokenize("").isEmpty());
+        assertTrue(MediaSearchIndex.tokenize(" -- ").isEmpty());
+        assertTrue(MediaSearchIndex.tokenize(null).isEmpty());
+    }
+
+    @Test
+    public void queryTokensMatchTheStartOfWords() {
+        MediaSearchIndex index = new MediaSearchIndex();
+        index.addAll(
+                Arrays.asList(
+                        item("1", "Harbour Lights", "Sea Band", null),
+                        item("2", "Lighthouse", null, null),
+                        item("3", "Starlight", null, null)));
+
+        assertEquals(Arrays.asList("2", "1"), ids(index.search("ligh", 10)));
+        assertEquals(Arrays.asList("1"), ids(index.search("harb light", 10)));
+        assertEquals(Arrays.asList("1"), ids(index.search("H\u00c4RBOUR", 10)));
+        assertTrue(index.search("ight", 10).isEmpty());
+        assertTrue(index.search("", 10).isEmpty());
+        assertTrue(index.search("light", 0).isEmpty());
+    }
+
+    @Test
+    public void resultsAreRankedByFieldThenTitleLength() {
+        MediaSearchIndex index = new MediaSearchIndex();
+        index.addAll(
+                Arrays.asList(
+                        item("album", "Other", null, "Blue"),
+                        item("artist", "Other", "Blue", null),
+                        item("long", "Blue in green", null, null),
+                        item("short", "Blue", null, null)));
+
+        assertEquals(
+                Arrays.asList("short", "long", "artist", "album"), ids(index.search("blue", 10)));
+        assertEquals(Arrays.asList("short", "long"), ids(index.search("blue", 2)));
+    }
+
+    @Test
+    public void wholeWordOutranksPrefixMatch() {
+        MediaSearchIndex index = new MediaSearchIndex();
+        index.addAll(
+                Arrays.asList(
+                        item("prefix", "Bluest", null, null),
+                        item("exact", "Kind of blue, remastered edition", null, null)));
+
+        assertEquals(Arrays.asList("exact", "prefix"), ids(index.search("blue", 10)));
+        assertEquals(Arrays.asList("prefix", "exact"), ids(index.search("blu", 10)));
+    }
+
+    @Test
+    public void itemsMatchingMostTokensAreReturnedWhenNoneMatchAll() {
+        MediaSearchIndex index = new MediaSearchIndex();
+        index.addAll(
+                Arrays.asList(
+                        item("1", "Red Rain", null, null),
+                        item("2", "Red", null, null),
+                        item("3", "Rain", null, null)));
+
+        assertEquals(Arrays.asList("1"), ids(index.search("red rain", 10)));
+        assertEquals(Arrays.asList("2", "1"), ids(index.search("red snow", 10)));
+    }
+
+    @Test
+    public void replacedAndRemovedItemsLeaveTheResults() {
+        MediaSearchIndex index = new MediaSearchIndex();
+        List<MediaItem> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(item("t" + i, "Track " + i, null, null));
+        }
+        index.addAll(items);
+        index.addAll(Collections.singletonList(item("t0", "Renamed", null, null)));
+
+        assertEquals(10, index.size());
+        assertEquals(Arrays.asList("t0"), ids(index.search("renamed", 10)));
+        assertEquals(9, index.search("track", 10).size());
+
+        // Removing most of the items compacts the postings; the rest still match
+        index.removeAll(Arrays.asList("t1", "t2", "t3", "t4", "t5"));
+        assertEquals(5, index.size());
+        assertEquals(Arrays.asList("t6", "t7", "t8", "t9"), ids(index.search("track", 10)));
+        assertEquals(Arrays.asList("t0"), ids(index.search("ren", 10)));
+    }
+
+    @Test
+    public void cachedResultsLastUntilTheIndexChanges() {
+        MediaSearchIndex index = new MediaSearchIndex();
+        index.addAll(Collections.singletonList(item("1", "Blue", null, null)));
+
+        List<MediaItem> first = index.searchCached("blue", 10);
+        assertSame(first, index.searchCached("blue", 10));
+
+        index.addAll(Collections.singletonList(item("2", "Blue", null, null)));
+        List<MediaItem> second = index.searchCached("blue", 10);
+        assertNotSame(first, second);
+        assertEquals(Arrays.asList("1", "2"), ids(second));
+    }
+
+    private static MediaItem item(String mediaId, String title, String artist, String album) {
+        return new MediaItem.Builder()
+                .setMediaId(mediaId)
+                .setMediaMetadata(
+                        new MediaMetadata.Builder()
+                                .setTitle(title)
+                                .setArtist(artist)
+                                .setAlbumTitle(album)
+                                .setIsBrowsable(false)
+                                .setIsPlayable(true)
+                                .build())
+                .build();
+    }
+
+    private static List<String> ids(List<MediaItem> items) {
+        List<String> ids = new ArrayList<>(items.size());
+        for (MediaItem item : items) {
+            ids.add(item.mediaId);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.taautomotive.shared;
+
+import static com.example.taautomotive.shared.MediaFolderTrieTest.folder;
+import static com.example.taautomotive.shared.MediaFolderTrieTest.track;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Writes {@link MediaTreeSnapshot}s and reads them back. */
+@RunWith(AndroidJUnit4.class)
+public class MediaTreeSnapshotTest {
+
+    private static final String TAG = "MediaTreeSnapshotTest";
+    private static final String LOCAL = DefaultFolder.LOCAL.getRoute();
+    private static final int LARGE_FOLDER_SIZE = 100_000;
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        file = new File(context.getCacheDir(), "snapshot-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTripKeepsFoldersAndListings() throws Exception {
+        MediaItem described =
+                new MediaItem.Builder()
+                        .setMediaId("described")
+                        .setUri("https://example.com/described.mp3")
+                        .setMediaMetadata(
+                                new MediaMetadata.Builder()
+                                        .setTitle("T\u00eftle \u2713")
+                                        .setArtist("Artist")
+                                        .setAlbumTitle("Album")
+                                        .setArtworkUri(Uri.parse("https://example.com/art.png"))
+                                        .setIsBrowsable(false)
+                                        .setIsPlayable(true)
+                                        .build())
+                        .build();
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(
+                editor -> {
+                    editor.putNode(LOCAL, folder("a", described, track("a1", "A1")));
+                    editor.putNode(LOCAL + "/a", folder("nested", track("n1", "N1")));
+                    editor.putNode(LOCAL, folder("empty"));
+                });
+
+        MediaTreeSnapshot.write(trie, file);
+        MediaFolderTrie restored = MediaTreeSnapshot.read(file, new ChildrenCache());
+
+        assertNotNull(restored);
+        assertSameTree(trie, trie.getRoot(), restored, restored.getRoot());
+        MediaItem restoredItem =
+                restored.getChildrenPage(restored.getNode(LOCAL + "/a"), 0, 1).get(0);
+        assertEquals(Boolean.FALSE, restoredItem.mediaMetadata.isBrowsable);
+        assertEquals(Boolean.TRUE, restoredItem.mediaMetadata.isPlayable);
+        restored.indexAll();
+        assertEquals(LOCAL + "/a/nested", restored.findParentPath("n1"));
+    }
+
+    @Test
+    public void lazilyIndexedFolderIsStoredByReference() throws Exception {
+        PagedChildrenSource large = largeSource();
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(editor -> editor.putNode(LOCAL, folder("small", track("s1", "S1"))));
+        MediaTreeSnapshot.write(trie, file);
+        long withoutLarge = file.length();
+
+        trie.update(editor -> editor.putNode(LOCAL, pagedFolder("large", large)));
+        long startNanos = System.nanoTime();
+        MediaTreeSnapshot.write(trie, file);
+        long writeMs = (System.nanoTime() - startNanos) / 1_000_000;
+        Log.i(TAG, "Snapshot with a " + LARGE_FOLDER_SIZE + " item folder: " + file.length()
+                + " bytes in " + writeMs + " ms");
+
+        // Only the folder's own record is written, not its items
+        assertTrue(file.length() - withoutLarge < 200);
+        MediaFolderTrie restored =
+                MediaTreeSnapshot.read(
+                        file,
+                        new ChildrenCache(),
+                        MediaFolderTrie.MAX_EAGERLY_INDEXED_CHILDREN,
+                        id -> id.equals("large") ? large : null);
+        assertNotNull(restored);
+        MediaFolderNode node = restored.getNode(LOCAL + "/large");
+        assertEquals(LARGE_FOLDER_SIZE, restored.getChildCount(node));
+        assertEquals("large-7", restored.getChildrenPage(node, 7, 1).get(0).mediaId);
+        restored.indexAll();
+        assertEquals(LOCAL + "/large", restored.findParentPath("large-99999"));
+        assertEquals(LOCAL + "/small", restored.findParentPath("s1"));
+        assertTrue(restored.getIndexSize() < 100);
+    }
+
+    @Test
+    public void unresolvedReferenceHasNoChildren() throws Exception {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(editor -> editor.putNode(LOCAL, pagedFolder("large", largeSource())));
+        MediaTreeSnapshot.write(trie, file);
+
+        MediaFolderTrie restored = MediaTreeSnapshot.read(file, new ChildrenCache());
+
+        assertNotNull(restored);
+        MediaFolderNode node = restored.getNode(LOCAL + "/large");
+        assertNotNull(node);
+        assertEquals(0, restored.getChildCount(node));
+        restored.indexAll();
+        assertNull(restored.findMediaItemById("large-1"));
+    }
+
+    @Test
+    public void otherVersionsAndDamagedFilesAreIgnored() throws Exception {
+        MediaFolderTrie trie = new MediaFolderTrie();
+        trie.update(editor -> editor.putNode(LOCAL, folder("a", track("a1", "A1"))));
+        MediaTreeSnapshot.write(trie, file);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(MediaTreeSnapshot.VERSION + 1);
+        }
+        assertNull(MediaTreeSnapshot.read(file, new ChildrenCache()));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(8);
+        }
+        assertNull(MediaTreeSnapshot.read(file, new ChildrenCache()));
+
+        assertTrue(file.delete());
+        assertNull(MediaTreeSnapshot.read(file, new ChildrenCache()));
+    }
+
+    private static void assertSameTree(
+            MediaFolderTrie expectedTrie,
+            MediaFolderNode expected,
+            MediaFolderTrie actualTrie,
+            MediaFolderNode actual) {
+        assertEquals(expected.getPath(), actual.getPath());
+        assertTrue(MediaFolderTrie.sameItem(expected.getMediaItem(), actual.getMediaItem()));
+        List<MediaItem> expectedItems =
+                expectedTrie.getChildrenPage(expected, 0, expectedTrie.getChildCount(expected));
+        List<MediaItem> actualItems =
+                actualTrie.getChildrenPage(actual, 0, actualTrie.getChildCount(actual));
+        assertEquals(expectedItems.size(), actualItems.size());
+        for (int i = 0; i < expectedItems.size(); i++) {
+            assertTrue(MediaFolderTrie.sameItem(expectedItems.get(i), actualItems.get(i)));
+        }
+        Map<String, MediaFolderNode> expectedChildren = expected.getChildren();
+        assertEquals(expectedChildren.keySet(), actual.getChildren().keySet());
+        for (Map.Entry<String, MediaFolderNode> child : expectedChildren.entrySet()) {
+            assertSameTree(
+                    expectedTrie,
+                    child.getValue(),
+                    actualTrie,
+                    actual.getChild(child.getKey()));
+        }
+    }
+
+    /** A folder of {@link #LARGE_FOLDER_SIZE} tracks that looks its ids up by number. */
+    private static PagedChildrenSource largeSource() {
+        return PagedChildrenSource.of(
+                LARGE_FOLDER_SIZE,
+                i -> track("large-" + i, "Track " + i),
+                id -> id.startsWith("large-") ? Integer.parseInt(id.substring(6)) : -1);
+    }
+
+    private static MediaFolderNode pagedFolder(String segment, PagedChildrenSource source) {
+        MediaFolderNode folder = folder(segment);
+        return new MediaFolderNode(segment, folder.getMediaItem(), source, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Reports, per {@link MemoryProfile}, the peak heap and player buffer while playing through a
+ * long queue, and the index and children cache held after browsing a large library. Look for
+ * the "MemoryProfileTest" lines in logcat.
+ */
+@UnstableApi
+@RunWith(AndroidJUnit4.class)
+public class MemoryProfileTest {
+
+    private static final String TAG = "MemoryProfileTest";
+    private static final int QUEUE_LENGTH = 40;
+    private static final int TRACK_DURATION_MS = 60_000;
+    /** Playback skips to the next track this often, so the buffer refills across items. */
+    private static final long SKIP_INTERVAL_MS = 1_500;
+    private static final int SKIPS = 6;
+    private static final long SAMPLE_INTERVAL_MS = 50;
+    private static final int FOLDERS = 20;
+    private static final int TRACKS_PER_FOLDER = 1_000;
+    private static final int PAGE_SIZE = 50;
+    private static final int PAGES_PER_FOLDER = 4;
+
+    private Context context;
+    private LocalHttpServer server;
+    private HandlerThread playbackThread;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        server = new LocalHttpServer();
+        server.start();
+        playbackThread = new HandlerThread("MemoryProfileTest");
+        playbackThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        playbackThread.quitSafely();
+        server.stop();
+    }
+
+    @Test
+    public void lowProfileBuffersLessDuringPlayback() throws Exception {
+        List<MediaItem> queue = serveQueue();
+        long standardPeak = playQueue(MemoryProfile.STANDARD, queue);
+        long lowPeak = playQueue(MemoryProfile.LOW, queue);
+
+        assertTrue(lowPeak < standardPeak);
+        assertTrue(lowPeak <= MemoryProfile.LOW.targetBufferBytes);
+    }
+
+    @Test
+    public void lowProfileBoundsIndexAndChildrenCache() {
+        int standardIndexSize = 0;
+        for (MemoryProfile profile : MemoryProfile.values()) {
+            Runtime.getRuntime().gc();
+            long heapBefore = usedHeap();
+            MediaFolderTrie trie =
+                    new MediaFolderTrie(
+                            profile.createChildrenCache(), profile.maxEagerlyIndexedChildren);
+            trie.update(
+                    editor -> {
+                        for (int f = 0; f < FOLDERS; f++) {
+                            editor.putNode(DefaultFolder.LOCAL.getRoute(), folderNode(f));
+                        }
+                    });
+            for (int f = 0; f < FOLDERS; f++) {
+                MediaFolderNode folder =
+                        trie.getNode(DefaultFolder.LOCAL.getRoute() + "/f" + f);
+                for (int page = 0; page < PAGES_PER_FOLDER; page++) {
+                    trie.getChildrenPage(folder, page * PAGE_SIZE, PAGE_SIZE);
+                }
+            }
+            ChildrenCache cache = trie.getChildrenCache();
+            Log.i(TAG, profile.getName() + ": indexed ids=" + trie.getIndexSize()
+                    + " cached items=" + cache.getCachedItemCount()
+                    + " heap retained=" + (usedHeap() - heapBefore) / 1024 + " KiB");
+
+            assertTrue(cache.getCachedItemCount() <= profile.childrenCacheItems);
+            String lastId = trackId(FOLDERS - 1, TRACKS_PER_FOLDER - 1);
+            assertEquals(lastId, trie.findMediaItemById(lastId).mediaId);
+            if (profile == MemoryProfile.STANDARD) {
+                standardIndexSize = trie.getIndexSize();
+            } else {
+                // Every folder is over the low bound, so their tracks resolve through the source
+                assertEquals(standardIndexSize - FOLDERS * TRACKS_PER_FOLDER, trie.getIndexSize());
+            }
+
+            cache.trimTo(0);
+            assertEquals(0, cache.getCachedItemCount());
+        }
+    }
+
+    @Test
+    public void trimLevelsShedInStages() {
+        assertEquals(0, MemoryProfile.trimStageOf(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(
+                MemoryProfile.TRIM_RECENT,
+                MemoryProfile.trimStageOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(
+                MemoryProfile.TRIM_RECENT,
+                MemoryProfile.trimStageOf(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(
+                MemoryProfile.TRIM_MOST,
+                MemoryProfile.trimStageOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(
+                MemoryProfile.TRIM_ALL,
+                MemoryProfile.trimStageOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(
+                MemoryProfile.TRIM_ALL,
+                MemoryProfile.trimStageOf(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    /**
+     * Plays queue with a player buffering as profile allows, skipping ahead through it, and
+     * returns the peak bytes the player's buffer held.
+     */
+    private long playQueue(MemoryProfile profile, List<MediaItem> queue) throws Exception {
+        DefaultLoadControl loadControl = profile.createLoadControl();
+        Runtime.getRuntime().gc();
+        long heapBefore = usedHeap();
+        ExoPlayer player =
+                TestMedia.runOn(
+                        playbackThread.getLooper(),
+                        () -> {
+                            ExoPlayer exoPlayer =
+                                    new ExoPlayer.Builder(context)
+                                            .setLooper(playbackThread.getLooper())
+                                            .setLoadControl(loadControl)
+                                            .setMediaSourceFactory(
+                                                    new DefaultMediaSourceFactory(context))
+                                            .build();
+                            exoPlayer.setVolume(0f);
+                            exoPlayer.setMediaItems(queue);
+                            exoPlayer.prepare();
+                            exoPlayer.play();
+                            return exoPlayer;
+                        });
+        long peakBufferBytes = 0;
+        long peakHeap = heapBefore;
+        try {
+            for (int skip = 0; skip <= SKIPS; skip++) {
+                long skipAt = SystemClock.elapsedRealtime() + SKIP_INTERVAL_MS;
+                while (SystemClock.elapsedRealtime() < skipAt) {
+                    peakBufferBytes =
+                            Math.max(
+                                    peakBufferBytes,
+                                    loadControl.getAllocator().getTotalBytesAllocated());
+                    peakHeap = Math.max(peakHeap, usedHeap());
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                }
+                TestMedia.runOn(
+                        playbackThread.getLooper(),
+                        () -> {
+                            player.seekToNextMediaItem();
+                            return null;
+                        });
+            }
+        } finally {
+            TestMedia.runOn(
+                    playbackThread.getLooper(),
+                    () -> {
+                        player.release();
+                        return null;
+                    });
+        }
+        Log.i(TAG, profile.getName() + ": peak player buffer=" + peakBufferBytes / 1024
+                + " KiB, peak heap=" + peakHeap / 1024
+                + " KiB (+" + (peakHeap - heapBefore) / 1024 + " KiB) over "
+                + (SKIPS + 1) + " of " + queue.size() + " tracks");
+        return peakBufferBytes;
+    }
+
+    private List<MediaItem> serveQueue() {
+        byte[] track = TestMedia.silentWav(TRACK_DURATION_MS);
+        List<MediaItem> queue = new ArrayList<>(QUEUE_LENGTH);
+        for (int i = 0; i < QUEUE_LENGTH; i++) {
+            server.serve("/track" + i + ".wav", track);
+            queue.add(MediaItem.fromUri(server.url("/track" + i + ".wav")));
+        }
+        return queue;
+    }
+
+    /** A paged folder of {@link #TRACKS_PER_FOLDER} tracks that looks its ids up by number. */
+    private static MediaFolderNode folderNode(int folder) {
+        String prefix = "f" + folder + "-t";
+        PagedChildrenSource source =
+                PagedChildrenSource.of(
+                        TRACKS_PER_FOLDER,
+                        t -> trackItem(folder, t),
+                        id -> id.startsWith(prefix)
+                                ? Integer.parseInt(id.substring(prefix.length()))
+                                : -1);
+        MediaItem item =
+                new MediaItem.Builder()
+                        .setMediaId("f" + folder)
+                        .setMediaMetadata(
+                                new MediaMetadata.Builder()
+                                        .setTitle("Folder " + folder)
+                                        .setIsBrowsable(true)
+                                        .setIsPlayable(false)
+                                        .build())
+                        .build();
+        return new MediaFolderNode(
+                "f" + folder, item, source, MediaFolderNode.DEFAULT_CHILDREN_TTL_MS);
+    }
+
+    private static MediaItem trackItem(int folder, int track) {
+        return new MediaItem.Builder()
+                .setMediaId(trackId(folder, track))
+                .setUri("https://example.com/f" + folder + "/t" + track + ".mp3")
+                .setMediaMetadata(
+                        new MediaMetadata.Builder()
+                                .setTitle("Track " + track)
+                                .setArtist("Artist " + folder)
+                                .setIsBrowsable(false)
+                                .setIsPlayable(true)
+                                .build())
+                .build();
+    }
+
+    private static String trackId(int folder, int track) {
+        return "f" + folder + "-t" + track;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.taautomotive.shared;
+
+import static com.example.taautomotive.shared.MediaFolderTrieTest.track;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import androidx.media3.common.MediaItem;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Records plays in a {@link PlayHistory} and checks both folders, notifications and the log. */
+@RunWith(AndroidJUnit4.class)
+public class PlayHistoryTest {
+
+    private static final String RECENT = DefaultFolder.RECENT.getRoute();
+    private static final String MOST_PLAYED = DefaultFolder.MOST_PLAYED.getRoute();
+
+    private File file;
+    private final List<String> changedFolders = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        file = new File(context.getCacheDir(), "play-history-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void foldersListRecentAndMostPlayedTracks() throws Exception {
+        PlayHistory history = open();
+
+        play(history, "a", "b", "c", "a", "c", "a");
+
+        assertEquals(Arrays.asList("a", "c", "b"), ids(history.getRecent()));
+        assertEquals(Arrays.asList("a", "c", "b"), ids(history.getMostPlayed()));
+        play(history, "b", "b", "b");
+        assertEquals(Arrays.asList("b", "a", "c"), ids(history.getRecent()));
+        // b overtook both with its fourth play
+        assertEquals(Arrays.asList("b", "a", "c"), ids(history.getMostPlayed()));
+        assertEquals(9, history.getPlayCount());
+        history.release();
+    }
+
+    @Test
+    public void trackOvertakingTheLastTopEntryTakesItsPlace() throws Exception {
+        PlayHistory history = open();
+        List<String> plays = new ArrayList<>();
+        for (int i = 0; i < PlayHistory.TOP_LIMIT; i++) {
+            plays.add("t" + i);
+        }
+        play(history, plays.toArray(new String[0]));
+
+        play(history, "new", "new");
+
+        List<String> top = ids(history.getMostPlayed());
+        assertEquals(PlayHistory.TOP_LIMIT, top.size());
+        assertEquals("new", top.get(0));
+        assertEquals(1, Collections.frequency(top, "new"));
+        history.release();
+    }
+
+    @Test
+    public void onlyChangesToTheFirstPageAreNotified() throws Exception {
+        PlayHistory history = open();
+        int tracks = PlayHistory.VISIBLE_ITEMS + 5;
+        // Track i is played 2 * (tracks - i) times, so t0 leads and no two counts are equal
+        List<String> plays = new ArrayList<>();
+        for (int i = 0; i < tracks; i++) {
+            plays.addAll(Collections.nCopies(2 * (tracks - i), "t" + i));
+        }
+        play(history, plays.toArray(new String[0]));
+        String last = "t" + (tracks - 1);
+        assertEquals(last, history.getRecent().get(0).mediaId);
+        assertEquals(last, history.getMostPlayed().get(tracks - 1).mediaId);
+        changedFolders.clear();
+        long unnotified = history.getUnnotifiedCount();
+
+        // Already first in recent, and it only passes the entry above it, past the first page
+        play(history, last, last, last);
+        assertEquals(last, history.getMostPlayed().get(tracks - 2).mediaId);
+        assertTrue(changedFolders.isEmpty());
+        assertEquals(unnotified + 6, history.getUnnotifiedCount());
+
+        // Moves to the front of recent, and into the first page of most played
+        String next = "t" + PlayHistory.VISIBLE_ITEMS;
+        play(history, next, next, next);
+        assertEquals(next, history.getMostPlayed().get(PlayHistory.VISIBLE_ITEMS - 1).mediaId);
+        assertEquals(Arrays.asList(RECENT, MOST_PLAYED), changedFolders);
+        history.release();
+    }
+
+    @Test
+    public void leastRecentlyPlayedUnlistedTrackIsForgotten() throws Exception {
+        PlayHistory history = open();
+        List<String> plays = new ArrayList<>();
+        for (int i = 0; i < PlayHistory.TOP_LIMIT; i++) {
+            plays.addAll(Collections.nCopies(3, "top" + i));
+        }
+        plays.addAll(Arrays.asList("old", "old"));
+        // Enough tracks to push old out of the recent folder and the history
+        for (int i = 0; i < PlayHistory.MAX_TRACKS; i++) {
+            plays.add("filler" + i);
+        }
+        play(history, plays.toArray(new String[0]));
+
+        // Remembered, old would have four plays and rank above every top track
+        play(history, "old", "old");
+        assertFalse(ids(history.getMostPlayed()).contains("old"));
+        assertEquals("old", history.getRecent().get(0).mediaId);
+        history.release();
+    }
+
+    @Test
+    public void logRoundTripsAndLosesOnlyATornLastPlay() throws Exception {
+        PlayHistory history = open();
+        play(history, "a", "a", "a", "b", "b");
+        play(history, "c");
+        history.release();
+
+        history = open();
+        assertEquals(Arrays.asList("c", "b", "a"), ids(history.getRecent()));
+        assertEquals(Arrays.asList("a", "b", "c"), ids(history.getMostPlayed()));
+        MediaItem a = history.getRecent().get(2);
+        assertEquals("https://example.com/a.mp3", a.localConfiguration.uri.toString());
+        assertEquals("a", a.mediaMetadata.title.toString());
+        history.release();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        history = open();
+        assertEquals(Arrays.asList("b", "a"), ids(history.getRecent()));
+        assertEquals(1, history.getCompactionCount());
+        play(history, "d");
+        history.release();
+
+        // Plays after the tear are appended to the compacted log
+        history = open();
+        assertEquals(Arrays.asList("d", "b", "a"), ids(history.getRecent()));
+        assertEquals(Arrays.asList("a", "b", "d"), ids(history.getMostPlayed()));
+        history.release();
+    }
+
+    /** Opens the history in file and waits for it to load. */
+    private PlayHistory open() throws Exception {
+        PlayHistory history = new PlayHistory(file);
+        history.setListener((folderId, itemCount) -> changedFolders.add(folderId));
+        history.awaitWrites();
+        return history;
+    }
+
+    /** Plays each track in turn and waits until the plays are written. */
+    private static void play(PlayHistory history, String... mediaIds) throws Exception {
+        for (String mediaId : mediaIds) {
+            history.recordPlay(track(mediaId, mediaId));
+        }
+        history.awaitWrites();
+    }
+
+    private static List<String> ids(List<MediaItem> items) {
+        List<String> ids = new ArrayList<>(items.size());
+        for (MediaItem item : items) {
+            ids.add(item.mediaId);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Saves playback state, damages the log in the ways power loss can, and loads it back. */
+@RunWith(AndroidJUnit4.class)
+public class PlaybackStateStoreTest {
+
+    /** Bytes a position record takes: type, length, index and position, checksum. */
+    private static final int POSITION_RECORD_BYTES = 1 + 4 + 4 + 8 + 4;
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        file = new File(context.getCacheDir(), "playback-state-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void savedStateRoundTrips() throws Exception {
+        PlaybackStateStore store = new PlaybackStateStore(file);
+        assertNull(store.getSavedState().get());
+        store.saveQueue(Arrays.asList("a", "b", "c"));
+        store.saveCurrentItem(1, new PlaybackStateStore.CurrentItem("b", "B", "Artist", ""));
+        store.savePosition(1, 1_234, /* sync= */ true);
+        store.awaitWrites();
+        store.release();
+
+        PlaybackStateStore.State state = load();
+
+        assertEquals(Arrays.asList("a", "b", "c"), state.mediaIds);
+        assertEquals(1, state.currentIndex);
+        assertEquals(1_234, state.positionMs);
+        assertNotNull(state.currentItem);
+        assertEquals("B", state.currentItem.title);
+        assertEquals("Artist", state.currentItem.artist);
+        assertNull(state.currentItem.toMediaMetadata().albumTitle);
+    }
+
+    @Test
+    public void currentItemOfAnotherQueueEntryIsDropped() throws Exception {
+        PlaybackStateStore store = new PlaybackStateStore(file);
+        store.saveQueue(Arrays.asList("a", "b"));
+        store.saveCurrentItem(0, new PlaybackStateStore.CurrentItem("a", "A", "", ""));
+        // Playback moved on without a new current item, and past the end of the queue
+        store.savePosition(5, 10, /* sync= */ true);
+        store.awaitWrites();
+        store.release();
+
+        PlaybackStateStore.State state = load();
+
+        assertEquals(1, state.currentIndex);
+        assertNull(state.currentItem);
+    }
+
+    @Test
+    public void tornLastRecordIsIgnoredAndLaterSavesSurvive() throws Exception {
+        saveQueueAndPositions(1_000, 2_000);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        PlaybackStateStore store = new PlaybackStateStore(file);
+        assertEquals(1_000, store.getSavedState().get().positionMs);
+        // The torn record is cut off before anything is appended after it
+        assertEquals(1, store.getCompactionCount());
+        store.savePosition(0, 3_000, /* sync= */ true);
+        store.awaitWrites();
+        store.release();
+
+        assertEquals(3_000, load().positionMs);
+    }
+
+    @Test
+    public void recordWithBadChecksumEndsTheLog() throws Exception {
+        saveQueueAndPositions(1_000, 2_000, 3_000);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The last byte of the index in the middle position record
+            long offset = raf.length() - 2 * POSITION_RECORD_BYTES + 1 + 4 + 3;
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0xff);
+        }
+
+        // Records after the corrupt one are dropped with it
+        assertEquals(1_000, load().positionMs);
+    }
+
+    @Test
+    public void logOfAnotherVersionIsIgnored() throws Exception {
+        saveQueueAndPositions(1_000);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(PlaybackStateStore.VERSION + 1);
+        }
+
+        PlaybackStateStore store = new PlaybackStateStore(file);
+        assertNull(store.getSavedState().get());
+        store.release();
+    }
+
+    @Test
+    public void logIsCompactedOnceItOutgrowsTheState() throws Exception {
+        PlaybackStateStore store = new PlaybackStateStore(file);
+        store.getSavedState().get();
+        long compactions = store.getCompactionCount();
+        store.saveQueue(Arrays.asList("a", "b"));
+        int saves = (int) (PlaybackStateStore.MIN_COMPACT_BYTES / POSITION_RECORD_BYTES) + 10;
+        for (int i = 1; i <= saves; i++) {
+            store.savePosition(1, i, /* sync= */ false);
+        }
+        store.awaitWrites();
+        store.release();
+
+        assertEquals(compactions + 1, store.getCompactionCount());
+        assertTrue(file.length() < PlaybackStateStore.MIN_COMPACT_BYTES);
+        PlaybackStateStore.State state = load();
+        assertEquals(Arrays.asList("a", "b"), state.mediaIds);
+        assertEquals(saves, state.positionMs);
+    }
+
+    /** Saves a two item queue, then each position in turn. */
+    private void saveQueueAndPositions(long... positionsMs) throws Exception {
+        PlaybackStateStore store = new PlaybackStateStore(file);
+        store.saveQueue(Arrays.asList("a", "b"));
+        for (long positionMs : positionsMs) {
+            store.savePosition(0, positionMs, /* sync= */ true);
+        }
+        store.awaitWrites();
+        store.release();
+    }
+
+    /** Loads the saved state through a new store, which is released again. */
+    private PlaybackStateStore.State load() throws Exception {
+        PlaybackStateStore store = new PlaybackStateStore(file);
+        PlaybackStateStore.State state = store.getSavedState().get();
+        store.release();
+        assertNotNull(state);
+        return state;
+    }
+}
@@ -0,0 +1,318 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Stress test for the thread layout of {@link TAMediaLibraryService}: transport controls sent to
+ * a player on its own playback thread keep their latency while the browse path (slow
+ * loadChildren, bursts of item resolutions, results handed back to the playback thread as the
+ * session does) and the main looper are saturated.
+ */
+@UnstableApi
+@RunWith(AndroidJUnit4.class)
+public class PlaybackThreadTest {
+
+    private static final String TAG = "PlaybackThreadTest";
+    private static final int COMMAND_COUNT = 60;
+    private static final int FOLDER_SIZE = 5_000;
+    private static final int MAX_QUEUED_BROWSE_TASKS = 32;
+    /** Growth of the p90 transport latency under load that still counts as flat. */
+    private static final long MAX_P90_INCREASE_MS = 25;
+
+    private Context context;
+    private LocalHttpServer server;
+    private HandlerThread playbackThread;
+    private Handler playbackHandler;
+    private BrowseExecutor browseExecutor;
+    private ExoPlayer player;
+    /** Times of the player events that acknowledge transport commands, on the playback thread. */
+    private final LinkedBlockingQueue<Long> commandEvents = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        server = new LocalHttpServer();
+        server.start();
+        byte[] track = TestMedia.silentWav(/* durationMs= */ 30_000);
+        server.serve("/track0.wav", track);
+        server.serve("/track1.wav", track);
+        playbackThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper());
+        browseExecutor = new BrowseExecutor();
+
+        CountDownLatch playing = new CountDownLatch(1);
+        Looper looper = playbackThread.getLooper();
+        player =
+                TestMedia.runOn(
+                        looper,
+                        () -> {
+                            ExoPlayer exoPlayer =
+                                    new ExoPlayer.Builder(context).setLooper(looper).build();
+                            exoPlayer.addListener(
+                                    new Player.Listener() {
+                                        @Override
+                                        public void onPlayWhenReadyChanged(
+                                                boolean playWhenReady, int reason) {
+                                            commandEvents.add(System.nanoTime());
+                                        }
+
+                                        @Override
+                                        public void onMediaItemTransition(
+                                                @Nullable MediaItem mediaItem, int reason) {
+                                            if (reason
+                                                    == Player.MEDIA_ITEM_TRANSITION_REASON_SEEK) {
+                                                commandEvents.add(System.nanoTime());
+                                            }
+                                        }
+
+                                        @Override
+                                        public void onIsPlayingChanged(boolean isPlaying) {
+                                            if (isPlaying) {
+                                                playing.countDown();
+                                            }
+                                        }
+                                    });
+                            exoPlayer.setVolume(0f);
+                            exoPlayer.setRepeatMode(Player.REPEAT_MODE_ALL);
+                            exoPlayer.setMediaItems(
+                                    Arrays.asList(
+                                            MediaItem.fromUri(server.url("/track0.wav")),
+                                            MediaItem.fromUri(server.url("/track1.wav"))));
+                            exoPlayer.prepare();
+                            exoPlayer.play();
+                            return exoPlayer;
+                        });
+        assertTrue(
+                "playback did not start",
+                playing.await(TestMedia.TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (player != null) {
+            TestMedia.runOn(
+                    playbackThread.getLooper(),
+                    () -> {
+                        player.release();
+                        return null;
+                    });
+        }
+        playbackThread.quitSafely();
+        browseExecutor.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void transportLatencyStaysFlatWhileBrowsePathIsSaturated() throws Exception {
+        long[] idle = measureTransportLatencies();
+
+        BrowseLoad load = new BrowseLoad(buildSlowLibrary());
+        load.start();
+        long[] loaded;
+        try {
+            loaded = measureTransportLatencies();
+        } finally {
+            load.stop();
+        }
+
+        long idleP90 = percentile(idle, 90);
+        long loadedP90 = percentile(loaded, 90);
+        Log.i(TAG, "transport latency p50/p90/max idle="
+                + percentile(idle, 50) / 1_000 + "/" + idleP90 / 1_000 + "/"
+                + idle[idle.length - 1] / 1_000 + "us"
+                + " loaded=" + percentile(loaded, 50) / 1_000 + "/" + loadedP90 / 1_000 + "/"
+                + loaded[loaded.length - 1] / 1_000 + "us"
+                + " pages=" + load.pagesServed.get()
+                + " resolutions=" + load.itemsResolved.get());
+        assertTrue("browse load did not run", load.pagesServed.get() > 0);
+        assertTrue(
+                "p90 " + loadedP90 / 1_000 + "us under load vs " + idleP90 / 1_000 + "us idle",
+                loadedP90 <= idleP90 + TimeUnit.MILLISECONDS.toNanos(MAX_P90_INCREASE_MS));
+    }
+
+    /**
+     * Sends pause, play and skip in turn to the player's thread and returns, sorted, the time
+     * from sending each until the player reported it.
+     */
+    private long[] measureTransportLatencies() throws Exception {
+        long[] latencies = new long[COMMAND_COUNT];
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            int command = i % 3;
+            commandEvents.clear();
+            long sentNanos = System.nanoTime();
+            playbackHandler.post(
+                    () -> {
+                        if (command == 0) {
+                            player.pause();
+                        } else if (command == 1) {
+                            player.play();
+                        } else {
+                            player.seekToNextMediaItem();
+                        }
+                    });
+            Long eventNanos = commandEvents.poll(TestMedia.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("command " + i + " was not applied", eventNanos);
+            latencies[i] = eventNanos - sentNanos;
+            Thread.sleep(10);
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[(sorted.length - 1) * percentile / 100];
+    }
+
+    /** Returns a library with one folder whose every load builds {@link #FOLDER_SIZE} items. */
+    private static MediaFolderTrie buildSlowLibrary() {
+        MediaFolderNode folder =
+                new MediaFolderNode(
+                        "slow",
+                        folderItem("slow"),
+                        PlaybackThreadTest::loadSlowFolder,
+                        MediaFolderNode.NO_CACHE);
+        MediaFolderNode root =
+                new MediaFolderNode(
+                                "",
+                                folderItem("root"),
+                                Collections::emptyList,
+                                MediaFolderNode.NO_CACHE)
+                        .withChildren(Collections.singletonList(folder));
+        return MediaFolderTrie.fromRoot(root, new ChildrenCache());
+    }
+
+    private static List<MediaItem> loadSlowFolder() {
+        List<MediaItem> items = new ArrayList<>(FOLDER_SIZE);
+        for (int i = 0; i < FOLDER_SIZE; i++) {
+            items.add(
+                    new MediaItem.Builder()
+                            .setMediaId("slow_" + i)
+                            .setUri("https://cdn.example.com/slow/" + i + ".mp3")
+                            .setMediaMetadata(
+                                    new MediaMetadata.Builder()
+                                            .setTitle("Track " + i)
+                                            .setIsBrowsable(false)
+                                            .setIsPlayable(true)
+                                            .build())
+                            .build());
+        }
+        return items;
+    }
+
+    private static MediaItem folderItem(String mediaId) {
+        return new MediaItem.Builder()
+                .setMediaId(mediaId)
+                .setMediaMetadata(
+                        new MediaMetadata.Builder()
+                                .setIsBrowsable(true)
+                                .setIsPlayable(false)
+                                .build())
+                .build();
+    }
+
+    /**
+     * Keeps the browse executor full of page loads and item resolutions whose results are
+     * delivered on the playback thread, and the main looper busy, until stopped.
+     */
+    private final class BrowseLoad implements Runnable {
+
+        final AtomicLong pagesServed = new AtomicLong();
+        final AtomicLong itemsResolved = new AtomicLong();
+        private final MediaFolderTrie trie;
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+        private final Thread feeder = new Thread(this, "BrowseLoad");
+        private volatile boolean running;
+
+        BrowseLoad(MediaFolderTrie trie) {
+            this.trie = trie;
+        }
+
+        void start() {
+            running = true;
+            feeder.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            feeder.join();
+            mainHandler.removeCallbacksAndMessages(null);
+        }
+
+        @Override
+        public void run() {
+            MediaFolderNode folder = trie.getNode("slow");
+            int task = 0;
+            while (running) {
+                if (browseExecutor.getQueueSize() >= MAX_QUEUED_BROWSE_TASKS) {
+                    mainHandler.post(() -> SystemClock.sleep(20));
+                    SystemClock.sleep(5);
+                    continue;
+                }
+                int offset = (task * 100) % FOLDER_SIZE;
+                if (task++ % 2 == 0) {
+                    deliverOnPlaybackThread(
+                            browseExecutor.submit(
+                                    () -> trie.getChildrenPage(folder, offset, 100),
+                                    Collections::emptyList),
+                            pagesServed);
+                } else {
+                    deliverOnPlaybackThread(
+                            browseExecutor.submit(
+                                    () -> trie.findMediaItemById("slow_" + offset),
+                                    () -> null),
+                            itemsResolved);
+                }
+            }
+        }
+
+        private <T> void deliverOnPlaybackThread(ListenableFuture<T> future, AtomicLong count) {
+            Futures.addCallback(
+                    future,
+                    new FutureCallback<T>() {
+                        @Override
+                        public void onSuccess(@Nullable T result) {
+                            if (result != null) {
+                                count.incrementAndGet();
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {}
+                    },
+                    playbackHandler::post);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.taautomotive.shared;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.source.MediaSource;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/** Media, playback and threading helpers shared by the instrumented tests. */
+@UnstableApi
+final class TestMedia {
+
+    static final long TIMEOUT_SECONDS = 20;
+    private static final int SAMPLE_RATE = 8_000;
+
+    private TestMedia() {}
+
+    /** Returns a 16-bit mono PCM WAV file of silence. */
+    static byte[] silentWav(int durationMs) {
+        int dataSize = SAMPLE_RATE * durationMs / 1_000 * 2;
+        ByteBuffer buffer = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[] {'R', 'I', 'F', 'F'}).putInt(36 + dataSize);
+        buffer.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '}).putInt(16);
+        buffer.putShort((short) 1).putShort((short) 1);
+        buffer.putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2);
+        buffer.putShort((short) 2).putShort((short) 16);
+        buffer.put(new byte[] {'d', 'a', 't', 'a'}).putInt(dataSize);
+        return buffer.array();
+    }
+
+    /**
+     * Plays item to the end with a player on looper that reads through mediaSourceFactory, and
+     * releases the player. Throws the player's error if playback fails.
+     */
+    static void playToEnd(
+            Context context, Looper looper, MediaSource.Factory mediaSourceFactory, MediaItem item)
+            throws Exception {
+        CountDownLatch ended = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        AtomicReference<ExoPlayer> player = new AtomicReference<>();
+        Handler handler = new Handler(looper);
+        handler.post(
+                () -> {
+                    ExoPlayer exoPlayer =
+                            new ExoPlayer.Builder(context)
+                                    .setLooper(looper)
+                                    .setMediaSourceFactory(mediaSourceFactory)
+                                    .build();
+                    exoPlayer.addListener(
+                            new Player.Listener() {
+                                @Override
+                                public void onPlaybackStateChanged(int state) {
+                                    if (state == Player.STATE_ENDED) {
+                                        ended.countDown();
+                                    }
+                                }
+
+                                @Override
+                                public void onPlayerError(PlaybackException e) {
+                                    error.set(e);
+                                    ended.countDown();
+                                }
+                            });
+                    exoPlayer.setVolume(0f);
+                    exoPlayer.setMediaItem(item);
+                    exoPlayer.prepare();
+                    exoPlayer.play();
+                    player.set(exoPlayer);
+                });
+        try {
+            assertTrue("playback did not end", ended.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            if (error.get() != null) {
+                throw error.get();
+            }
+        } finally {
+            runOn(
+                    looper,
+                    () -> {
+                        if (player.get() != null) {
+                            player.get().release();
+                        }
+                        return null;
+                    });
+        }
+    }
+
+    /** Runs task on looper's thread and returns its result. */
+    static <T> T runOn(Looper looper, Callable<T> task) throws Exception {
+        AtomicReference<T> result = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        new Handler(looper)
+                .post(
+                        () -> {
+                            try {
+                                result.set(task.call());
+                            } catch (Exception e) {
+                                error.set(e);
+                            }
+                            done.countDown();
+                        });
+        assertTrue("task did not run", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result.get();
+    }
+
+    /** Polls condition until it holds, failing with message after the timeout. */
+    static void waitUntil(String message, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(message, System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
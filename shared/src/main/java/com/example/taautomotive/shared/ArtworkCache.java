@@ -0,0 +1,459 @@
+package com.example.taautomotive.shared;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Artwork resized for display, cached in two tiers: encoded variants in an in-memory LRU bounded
+ * by bytes, and the same variants on disk, bounded by bytes with the least recently used going
+ * first. A variant is the source scaled to fit a square of one of {@link #SIZE_BUCKETS_PX}, so
+ * rows asking for slightly different sizes share one; variants are JPEG, so transparency is lost.
+ *
+ * <p>Sources are http(s) URLs, image files, audio files (their embedded picture) and anything
+ * else a ContentResolver opens. They are decoded on {@link #DECODE_THREADS} threads, so only
+ * that many bitmaps are alive at once: each is subsampled while decoding, scaled, encoded and
+ * recycled before the next. Concurrent requests for the same variant share one decode, and
+ * sources that have no usable image are remembered so scrolling past them again reads nothing.
+ *
+ * <p>There is one cache per process, shared by {@link ArtworkProvider} and the service.
+ */
+public final class ArtworkCache {
+
+    private static final String TAG = "ArtworkCache";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    public static final long DEFAULT_MEMORY_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_DISK_BYTES = 32L * 1024 * 1024;
+    /** Requested sizes are rounded up to the next of these; larger requests get the last. */
+    static final int[] SIZE_BUCKETS_PX = {96, 128, 192, 256, 384, 512, 768, 1024};
+    static final int DECODE_THREADS = 2;
+    public static final String MIME_TYPE = "image/jpeg";
+
+    private static final String CACHE_DIR = "artwork";
+    private static final int JPEG_QUALITY = 85;
+    /** Sources larger than this aren't decoded. */
+    private static final int MAX_SOURCE_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_MISSING_SOURCES = 512;
+    private static final int TIMEOUT_MS = 10_000;
+    /** A disk hit refreshes the file's age at most this often, to spare flash writes. */
+    private static final long TOUCH_INTERVAL_MS = 60 * 60 * 1000;
+
+    @Nullable private static ArtworkCache instance;
+
+    /** An encoded variant, held in memory or in a file of the disk tier. */
+    public static final class Variant {
+
+        @Nullable public final byte[] bytes;
+        @Nullable public final File file;
+
+        Variant(@Nullable byte[] bytes, @Nullable File file) {
+            this.bytes = bytes;
+            this.file = file;
+        }
+
+        public long getLength() {
+            return bytes != null ? bytes.length : file.length();
+        }
+    }
+
+    private final Context context;
+    private final File directory;
+    private final long maxDiskBytes;
+    private final LruCache<String, byte[]> memory;
+    /** Sources that failed to decode; the value is unused. */
+    private final LruCache<String, Boolean> missing = new LruCache<>(MAX_MISSING_SOURCES);
+    private final SingleFlight<String, Variant> flights = new SingleFlight<>();
+    private final ListeningExecutorService executor =
+            MoreExecutors.listeningDecorator(
+                    Executors.newFixedThreadPool(
+                            DECODE_THREADS, runnable -> new Thread(runnable, "TAArtwork")));
+    /** Bytes of the disk tier; -1 until the directory was first measured. */
+    private final AtomicLong diskBytes = new AtomicLong(-1);
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final AtomicLong memoryHitCount = new AtomicLong();
+    private final AtomicLong diskHitCount = new AtomicLong();
+    private final AtomicLong decodeCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong diskEvictionCount = new AtomicLong();
+
+    /** Returns the cache of this process, creating it on first use. */
+    public static synchronized ArtworkCache get(Context context) {
+        if (instance == null) {
+            instance = new ArtworkCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ArtworkCache(Context context) {
+        this(
+                context,
+                new File(context.getCacheDir(), CACHE_DIR),
+                DEFAULT_MEMORY_BYTES,
+                DEFAULT_DISK_BYTES);
+    }
+
+    @VisibleForTesting
+    ArtworkCache(Context context, File directory, long maxMemoryBytes, long maxDiskBytes) {
+        this.context = context;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.memory =
+                new LruCache<String, byte[]>((int) Math.min(maxMemoryBytes, Integer.MAX_VALUE)) {
+                    @Override
+                    protected int sizeOf(String key, byte[] value) {
+                        return value.length;
+                    }
+                };
+    }
+
+    /** Returns the size, in pixels, of the variant served for a request of sizePx. */
+    public static int bucketOf(int sizePx) {
+        for (int bucket : SIZE_BUCKETS_PX) {
+            if (sizePx <= bucket) {
+                return bucket;
+            }
+        }
+        return SIZE_BUCKETS_PX[SIZE_BUCKETS_PX.length - 1];
+    }
+
+    /**
+     * Returns the variant of source that fits sizePx: from memory or disk right away, or once a
+     * decode shared with other requests for it completes. Fails with a {@link
+     * FileNotFoundException} if source has no usable image.
+     */
+    @WorkerThread
+    public ListenableFuture<Variant> load(Uri source, int sizePx) {
+        String sourceKey = source.toString();
+        if (missing.get(sourceKey) != null) {
+            return Futures.immediateFailedFuture(new FileNotFoundException(sourceKey));
+        }
+        int bucket = bucketOf(sizePx);
+        String key = bucket + "/" + sourceKey;
+        byte[] bytes = memory.get(key);
+        if (bytes != null) {
+            memoryHitCount.incrementAndGet();
+            return Futures.immediateFuture(new Variant(bytes, null));
+        }
+        File file = fileOf(key);
+        if (file.isFile()) {
+            diskHitCount.incrementAndGet();
+            long now = System.currentTimeMillis();
+            if (now - file.lastModified() > TOUCH_INTERVAL_MS) {
+                file.setLastModified(now);
+            }
+            return Futures.immediateFuture(new Variant(null, file));
+        }
+        return flights.load(key, () -> executor.submit(() -> decode(source, bucket, key, file)));
+    }
+
+    /** Drops the in-memory tier; variants stay on disk. */
+    public void clearMemory() {
+        memory.evictAll();
+    }
+
+    /** Bounds the in-memory tier to maxBytes, evicting the least recently used beyond it. */
+    public void setMaxMemoryBytes(long maxBytes) {
+        memory.resize((int) Math.max(1, Math.min(maxBytes, Integer.MAX_VALUE)));
+    }
+
+    public long getMemoryBytes() {
+        return memory.size();
+    }
+
+    public long getMaxMemoryBytes() {
+        return memory.maxSize();
+    }
+
+    /** Returns the bytes of the disk tier, or -1 before anything was written this run. */
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    public long getMemoryHitCount() {
+        return memoryHitCount.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHitCount.get();
+    }
+
+    /** Returns how many sources were decoded, whether or not they had an image. */
+    public long getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getDiskEvictionCount() {
+        return diskEvictionCount.get();
+    }
+
+    /** Returns how many loads joined a decode of the same variant already in flight. */
+    public long getCoalescedCount() {
+        return flights.getCoalescedCount();
+    }
+
+    public LatencyHistogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    /** Reads, decodes and scales source, then keeps the variant in both tiers. */
+    private Variant decode(Uri source, int sizePx, String key, File file) throws IOException {
+        long startNanos = System.nanoTime();
+        decodeCount.incrementAndGet();
+        byte[] encoded;
+        try {
+            encoded = encode(readSource(source), sizePx);
+        } catch (IOException | RuntimeException e) {
+            failureCount.incrementAndGet();
+            missing.put(source.toString(), Boolean.TRUE);
+            if (DEBUG) Log.d(TAG, "decode: No artwork in " + source + ": " + e);
+            FileNotFoundException notFound = new FileNotFoundException(source.toString());
+            notFound.initCause(e);
+            throw notFound;
+        }
+        memory.put(key, encoded);
+        write(file, encoded);
+        decodeLatency.recordSince(startNanos);
+        return new Variant(encoded, null);
+    }
+
+    /** Scales image to fit a square of sizePx, never up, and encodes it as JPEG. */
+    @VisibleForTesting
+    static byte[] encode(byte[] image, int sizePx) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image");
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeOf(options.outWidth, options.outHeight, sizePx);
+        Bitmap decoded = BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (decoded == null) {
+            throw new IOException("Undecodable image");
+        }
+        Bitmap scaled = decoded;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            int longest = Math.max(decoded.getWidth(), decoded.getHeight());
+            if (longest > sizePx) {
+                scaled =
+                        Bitmap.createScaledBitmap(
+                                decoded,
+                                Math.max(1, decoded.getWidth() * sizePx / longest),
+                                Math.max(1, decoded.getHeight() * sizePx / longest),
+                                /* filter= */ true);
+            }
+            scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } finally {
+            if (scaled != decoded) {
+                scaled.recycle();
+            }
+            decoded.recycle();
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the largest power of two that subsamples the image no smaller than sizePx. */
+    @VisibleForTesting
+    static int sampleSizeOf(int width, int height, int sizePx) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= sizePx) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private byte[] readSource(Uri source) throws IOException {
+        String scheme = source.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme)) {
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL(source.toString()).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new FileNotFoundException(
+                            "HTTP " + connection.getResponseCode() + " for " + source);
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    return readFully(in);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+        if ("file".equals(scheme) && source.getPath() != null) {
+            String path = source.getPath();
+            if (isImageFile(path)) {
+                try (InputStream in = new FileInputStream(path)) {
+                    return readFully(in);
+                }
+            }
+            return readEmbeddedPicture(path);
+        }
+        InputStream in = context.getContentResolver().openInputStream(source);
+        if (in == null) {
+            throw new FileNotFoundException(source.toString());
+        }
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readEmbeddedPicture(String path) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            byte[] picture = retriever.getEmbeddedPicture();
+            if (picture == null) {
+                throw new FileNotFoundException("No embedded picture in " + path);
+            }
+            return picture;
+        } catch (IllegalArgumentException e) {
+            throw new FileNotFoundException(path);
+        } finally {
+            retriever.release();
+        }
+    }
+
+    private static boolean isImageFile(String path) {
+        String name = path.toLowerCase(Locale.ROOT);
+        return name.endsWith(".jpg")
+                || name.endsWith(".jpeg")
+                || name.endsWith(".png")
+                || name.endsWith(".webp");
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (out.size() > MAX_SOURCE_BYTES) {
+                throw new IOException("Artwork larger than " + MAX_SOURCE_BYTES + " bytes");
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private File fileOf(String key) {
+        return new File(directory, hexOf(sha1(key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /** Writes a variant through a temp file, then evicts the oldest if the tier is too big. */
+    private void write(File file, byte[] bytes) {
+        if (diskBytes.get() < 0) {
+            // First write of this run: measure what earlier runs left
+            diskBytes.compareAndSet(-1, sizeOf(directory.listFiles()));
+        }
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            directory.mkdirs();
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(bytes);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write: Failed to cache artwork", e);
+            temp.delete();
+            return;
+        }
+        if (diskBytes.addAndGet(bytes.length) > maxDiskBytes) {
+            trimDisk();
+        }
+    }
+
+    /** Deletes the least recently used variants until the tier is down to three quarters. */
+    private synchronized void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long[] ages = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            ages[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(ages[a], ages[b]));
+        long bytes = sizeOf(files);
+        for (int i = 0; i < order.length && bytes > maxDiskBytes * 3 / 4; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                bytes -= length;
+                diskEvictionCount.incrementAndGet();
+            }
+        }
+        diskBytes.set(bytes);
+    }
+
+    private static long sizeOf(@Nullable File[] files) {
+        long bytes = 0;
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] sha1(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hexOf(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.taautomotive.shared;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Serves item artwork to browsers as content URIs, resized through {@link ArtworkCache}. Items
+ * keep the URI of their artwork source; {@link #withArtwork} swaps it for one of ours when an
+ * item is handed out, so car UIs load a variant sized for them instead of the full source, and
+ * can read embedded pictures of local files they have no access to.
+ *
+ * <p>The size comes from the {@code android.content.extra.SIZE} the caller passes to
+ * openTypedAssetFile (as ContentResolver#loadThumbnail does); plain opens get {@link
+ * #DEFAULT_SIZE_PX}. The provider is exported, so each URI carries an HMAC of its source under a
+ * key kept on this device, and only URIs handed out by this app are served.
+ */
+public final class ArtworkProvider extends ContentProvider {
+
+    private static final String TAG = "ArtworkProvider";
+
+    /** Appended to the application id to form the authority, as in the manifest. */
+    public static final String AUTHORITY_SUFFIX = ".artwork";
+    /** Size of artwork opened without a size hint; a car's grid and now playing card. */
+    public static final int DEFAULT_SIZE_PX = 512;
+
+    private static final String EXTRA_SIZE = "android.content.extra.SIZE";
+    private static final String PARAM_SOURCE = "src";
+    private static final String KEY_FILE = "artwork.key";
+    private static final int KEY_BYTES = 32;
+    private static final int SIGNATURE_BYTES = 16;
+    private static final long OPEN_TIMEOUT_MS = 10_000;
+
+    @Nullable private static volatile byte[] signingKey;
+
+    /** Returns the URI that serves the artwork at source. */
+    public static Uri uriFor(Context context, Uri source) {
+        String sourceString = source.toString();
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(sign(context, sourceString))
+                .appendQueryParameter(PARAM_SOURCE, sourceString)
+                .build();
+    }
+
+    /**
+     * Returns item with its artwork served by this provider, or item itself if it has no
+     * artwork or already points here.
+     */
+    public static MediaItem withArtwork(Context context, MediaItem item) {
+        Uri artworkUri = item.mediaMetadata.artworkUri;
+        if (artworkUri == null
+                || (context.getPackageName() + AUTHORITY_SUFFIX).equals(artworkUri.getAuthority())) {
+            return item;
+        }
+        MediaMetadata metadata =
+                item.mediaMetadata.buildUpon().setArtworkUri(uriFor(context, artworkUri)).build();
+        return item.buildUpon().setMediaMetadata(metadata).build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public String getType(Uri uri) {
+        return ArtworkCache.MIME_TYPE;
+    }
+
+    @Nullable
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        return new String[] {ArtworkCache.MIME_TYPE};
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        return open(uri, mode, DEFAULT_SIZE_PX).getParcelFileDescriptor();
+    }
+
+    @Override
+    public AssetFileDescriptor openAssetFile(Uri uri, String mode) throws FileNotFoundException {
+        return open(uri, mode, DEFAULT_SIZE_PX);
+    }
+
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(
+            Uri uri, String mimeTypeFilter, @Nullable Bundle opts) throws FileNotFoundException {
+        Point size = opts != null ? opts.getParcelable(EXTRA_SIZE) : null;
+        int sizePx = size != null ? Math.max(size.x, size.y) : DEFAULT_SIZE_PX;
+        return open(uri, "r", sizePx > 0 ? sizePx : DEFAULT_SIZE_PX);
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(
+            Uri uri,
+            @Nullable String[] projection,
+            @Nullable String selection,
+            @Nullable String[] selectionArgs,
+            @Nullable String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Artwork is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Artwork is read-only");
+    }
+
+    @Override
+    public int update(
+            Uri uri,
+            @Nullable ContentValues values,
+            @Nullable String selection,
+            @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Artwork is read-only");
+    }
+
+    /**
+     * Opens the variant of the artwork named by uri that fits sizePx, waiting for it to be
+     * decoded if needed. Runs on a binder thread; decodes run on the cache's threads.
+     */
+    private AssetFileDescriptor open(Uri uri, String mode, int sizePx)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Artwork is read-only");
+        }
+        Context context = getContext();
+        String source = uri.getQueryParameter(PARAM_SOURCE);
+        String signature = uri.getLastPathSegment();
+        if (context == null
+                || source == null
+                || signature == null
+                || !MessageDigest.isEqual(
+                        signature.getBytes(StandardCharsets.US_ASCII),
+                        sign(context, source).getBytes(StandardCharsets.US_ASCII))) {
+            throw new FileNotFoundException("Unknown artwork: " + uri);
+        }
+        ArtworkCache.Variant variant;
+        try {
+            variant =
+                    ArtworkCache.get(context)
+                            .load(Uri.parse(source), sizePx)
+                            .get(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new FileNotFoundException("No artwork at " + source);
+        } catch (TimeoutException e) {
+            throw new FileNotFoundException("Timed out decoding " + source);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted decoding " + source);
+        }
+        if (variant.file != null) {
+            return new AssetFileDescriptor(
+                    ParcelFileDescriptor.open(variant.file, ParcelFileDescriptor.MODE_READ_ONLY),
+                    0,
+                    variant.getLength());
+        }
+        // Held in memory: stream it through a pipe rather than reading it back from disk
+        ParcelFileDescriptor pipe =
+                openPipeHelper(
+                        uri,
+                        ArtworkCache.MIME_TYPE,
+                        null,
+                        variant.bytes,
+                        (output, pipeUri, mimeType, opts, bytes) -> {
+                            try (FileOutputStream out =
+                                    new FileOutputStream(output.getFileDescriptor())) {
+                                out.write(bytes);
+                            } catch (IOException e) {
+                                // The reader went away, e.g. a row scrolled out of view
+                            }
+                        });
+        return new AssetFileDescriptor(pipe, 0, variant.getLength());
+    }
+
+    /** Returns the hex HMAC of source under this device's key. */
+    private static String sign(Context context, String source) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(getSigningKey(context), "HmacSHA256"));
+            byte[] digest = mac.doFinal(source.getBytes(StandardCharsets.UTF_8));
+            return ArtworkCache.hexOf(Arrays.copyOf(digest, SIGNATURE_BYTES));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the key URIs are signed with, creating it on first use on this device. */
+    private static byte[] getSigningKey(Context context) {
+        byte[] key = signingKey;
+        if (key != null) {
+            return key;
+        }
+        synchronized (ArtworkProvider.class) {
+            if (signingKey == null) {
+                signingKey = loadOrCreateKey(new File(context.getNoBackupFilesDir(), KEY_FILE));
+            }
+            return signingKey;
+        }
+    }
+
+    private static byte[] loadOrCreateKey(File file) {
+        byte[] key = new byte[KEY_BYTES];
+        try (FileInputStream in = new FileInputStream(file)) {
+            if (in.read(key) == KEY_BYTES) {
+                return key;
+            }
+        } catch (IOException e) {
+            // Not created yet
+        }
+        new SecureRandom().nextBytes(key);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(key);
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + temp);
+            }
+        } catch (IOException e) {
+            // URIs handed out this run stay valid until the process dies
+            Log.w(TAG, "loadOrCreateKey: Failed to save the artwork key", e);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.taautomotive.shared;
+
+import androidx.media3.session.MediaSession;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs library browse work (loading children, resolving items) off the main thread on a bounded
+ * pool. Every task is tied to the controller that requested it so it can be cancelled when that
+ * controller disconnects, and is bounded by a timeout after which a fallback result is returned.
+ */
+public final class BrowseExecutor {
+
+    public static final int DEFAULT_POOL_SIZE = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_TIMEOUT_MS = 4_000;
+
+    private final ThreadPoolExecutor pool;
+    private final ListeningExecutorService executor;
+    private final ScheduledExecutorService timeoutScheduler;
+    private final long timeoutMs;
+    private final Map<MediaSession.ControllerInfo, Set<ListenableFuture<?>>> pendingByController =
+            new ConcurrentHashMap<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    public BrowseExecutor() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_CAPACITY, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param poolSize number of browse threads
+     * @param queueCapacity tasks that may wait for a thread before new tasks get the fallback
+     * @param timeoutMs time after which a task is cancelled and its fallback returned
+     */
+    public BrowseExecutor(int poolSize, int queueCapacity, long timeoutMs) {
+        this.pool =
+                new ThreadPoolExecutor(
+                        poolSize,
+                        poolSize,
+                        30,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(queueCapacity),
+                        newThreadFactory("TABrowse"));
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = MoreExecutors.listeningDecorator(pool);
+        this.timeoutScheduler =
+                Executors.newSingleThreadScheduledExecutor(newThreadFactory("TABrowseTimeout"));
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Runs the task on the browse pool on behalf of the given controller. If the task fails,
+     * times out or cannot be queued, the returned future completes with the fallback instead.
+     * Cancelling the returned future cancels the task.
+     */
+    public <T> ListenableFuture<T> submit(
+            MediaSession.ControllerInfo controller, Callable<T> task, Supplier<T> fallback) {
+        return track(controller, submit(task, fallback));
+    }
+
+    /**
+     * Runs the task on the browse pool without tying it to a controller, e.g. for a load shared
+     * by several controllers. Fallback and timeout behave as in the controller-bound overload.
+     */
+    public <T> ListenableFuture<T> submit(Callable<T> task, Supplier<T> fallback) {
+        ListenableFuture<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            return Futures.immediateFuture(fallback.get());
+        }
+        return FluentFuture.from(
+                        Futures.withTimeout(
+                                future, timeoutMs, TimeUnit.MILLISECONDS, timeoutScheduler))
+                .catching(
+                        TimeoutException.class,
+                        e -> {
+                            timeoutCount.incrementAndGet();
+                            return fallback.get();
+                        },
+                        MoreExecutors.directExecutor())
+                .catching(
+                        RuntimeException.class,
+                        e -> {
+                            failureCount.incrementAndGet();
+                            return fallback.get();
+                        },
+                        MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Same as {@link #submit(MediaSession.ControllerInfo, Callable, Supplier)}, but the task is
+     * only started once ready completes, or after maxWaitMs if it hasn't, so no browse thread is
+     * held while it waits. The timeout counts from when the task is started.
+     */
+    public <T> ListenableFuture<T> submitWhen(
+            MediaSession.ControllerInfo controller,
+            ListenableFuture<?> ready,
+            long maxWaitMs,
+            Callable<T> task,
+            Supplier<T> fallback) {
+        return track(controller, submitWhen(ready, maxWaitMs, task, fallback));
+    }
+
+    /** Same as {@link #submit(Callable, Supplier)}, started as in the controller-bound overload. */
+    public <T> ListenableFuture<T> submitWhen(
+            ListenableFuture<?> ready, long maxWaitMs, Callable<T> task, Supplier<T> fallback) {
+        if (ready.isDone()) {
+            return submit(task, fallback);
+        }
+        // Waiting must neither cancel ready nor fail the task when it gives up
+        ListenableFuture<?> waited =
+                Futures.withTimeout(
+                        Futures.nonCancellationPropagating(ready),
+                        maxWaitMs,
+                        TimeUnit.MILLISECONDS,
+                        timeoutScheduler);
+        return Futures.whenAllComplete(waited)
+                .callAsync(() -> submit(task, fallback), MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Registers a future as pending for the given controller so it is cancelled if the
+     * controller disconnects. Returns the same future.
+     */
+    public <T> ListenableFuture<T> track(
+            MediaSession.ControllerInfo controller, ListenableFuture<T> future) {
+        if (future.isDone()) {
+            return future;
+        }
+        Set<ListenableFuture<?>> pending =
+                pendingByController.computeIfAbsent(
+                        controller, c -> Collections.newSetFromMap(new ConcurrentHashMap<>()));
+        pending.add(future);
+        future.addListener(() -> pending.remove(future), MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /** Cancels every task still pending for the given controller. */
+    public void cancelAll(MediaSession.ControllerInfo controller) {
+        Set<ListenableFuture<?>> pending = pendingByController.remove(controller);
+        if (pending == null) {
+            return;
+        }
+        for (ListenableFuture<?> future : pending) {
+            future.cancel(true);
+        }
+    }
+
+    /** Returns the number of tasks waiting for a browse thread. */
+    public int getQueueSize() {
+        return pool.getQueue().size();
+    }
+
+    /** Returns the number of browse threads currently running a task. */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /** Returns how many tasks got their fallback because the queue was full. */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /** Returns how many tasks got their fallback because they timed out. */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /** Returns how many tasks got their fallback because they threw. */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /** Returns the number of controllers with pending tasks. */
+    public int getTrackedControllerCount() {
+        return pendingByController.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        timeoutScheduler.shutdownNow();
+        pendingByController.clear();
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+    }
+}
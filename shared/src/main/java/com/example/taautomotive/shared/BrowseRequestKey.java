@@ -0,0 +1,79 @@
+package com.example.taautomotive.shared;
+
+import android.os.Bundle;
+import androidx.annotation.Nullable;
+import androidx.media3.session.MediaLibraryService.LibraryParams;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Identifies a browse request by (id, page, pageSize, params) so identical concurrent requests
+ * from different controllers can be coalesced by {@link SingleFlight}.
+ */
+public final class BrowseRequestKey {
+
+    private final String id;
+    private final int page;
+    private final int pageSize;
+    private final String params;
+
+    public BrowseRequestKey(String id, int page, int pageSize, @Nullable LibraryParams params) {
+        this.id = id;
+        this.page = page;
+        this.pageSize = pageSize;
+        this.params = describe(params);
+    }
+
+    /** Creates a key for a single-item request such as onGetItem. */
+    public static BrowseRequestKey forItem(String mediaId) {
+        return new BrowseRequestKey(mediaId, 0, 0, null);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BrowseRequestKey)) {
+            return false;
+        }
+        BrowseRequestKey other = (BrowseRequestKey) o;
+        return page == other.page
+                && pageSize == other.pageSize
+                && id.equals(other.id)
+                && params.equals(other.params);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, page, pageSize, params);
+    }
+
+    @Override
+    public String toString() {
+        return id + "[" + page + "x" + pageSize + "]" + params;
+    }
+
+    /** Flattens params into a stable string; extras are listed in key order. */
+    @SuppressWarnings("deprecation")
+    private static String describe(@Nullable LibraryParams params) {
+        if (params == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(params.isRecent ? 'r' : '-')
+                .append(params.isOffline ? 'o' : '-')
+                .append(params.isSuggested ? 's' : '-');
+        Bundle extras = params.extras;
+        if (!extras.isEmpty()) {
+            List<String> keys = new ArrayList<>(extras.keySet());
+            Collections.sort(keys);
+            for (String key : keys) {
+                sb.append(';').append(key).append('=').append(extras.get(key));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,600 @@
+package com.example.taautomotive.shared;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.media3.common.MediaItem;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Folders and tracks of a remote catalog served as JSON over HTTP, shown under {@link
+ * DefaultFolder#CATALOG}. The response is parsed as a stream straight into a {@link
+ * CompactCatalog}, so neither a JSON tree nor a MediaItem per track is ever held; items are
+ * built per page. The catalog document looks like:
+ *
+ * <pre>
+ * {
+ *   "folders": [{"id": "rock", "title": "Rock"}, {"id": "rock-70s", "parent": "rock", ...}],
+ *   "tracks": [{"id": "t1", "folder": "rock-70s", "uri": "https://...", "title": "...",
+ *               "artist": "...", "album": "...", "artwork": "https://..."}, ...]
+ * }
+ * </pre>
+ *
+ * Folder ids are path segments; a folder must be listed after its parent, and "folders" before
+ * "tracks". Track ids are mediaIds and must be unique across the library. Unknown fields are
+ * skipped.
+ *
+ * <p>Each response is kept on disk with its ETag and Last-Modified validators. {@link #refresh}
+ * sends them back, so an unchanged catalog costs one request answered with 304 Not Modified,
+ * and {@link #loadCached} restores the last catalog without the network. The trie nodes
+ * installed by {@link #attachTo} read from whichever catalog is current; when it changes,
+ * refresh returns the folders whose listing changed so only those are reloaded.
+ *
+ * <p>Loads and refreshes must run on one thread at a time; the catalog can be read from any.
+ */
+public final class CatalogSource {
+
+    private static final String TAG = "CatalogSource";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    private static final int MAGIC = 0x54414343; // "TACC"
+    /** Bump whenever the cache layout changes; caches of other versions are ignored. */
+    static final int VERSION = 1;
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final String ROOT_PATH = DefaultFolder.CATALOG.getRoute();
+    private static final PagedChildrenSource NO_CHILDREN = PagedChildrenSource.of(0, i -> null);
+
+    private final URL url;
+    private final File cacheFile;
+    /** Replaced as a whole when a catalog is loaded; read it once per operation. */
+    private volatile Catalog catalog = Catalog.EMPTY;
+    /** One source per folder mediaId, so trie nodes survive catalog updates. */
+    private final Map<String, FolderSource> folderSources = new ConcurrentHashMap<>();
+    /** Finds the source of a track's folder through the current catalog's id table. */
+    private final PagedChildrenSource.FolderLookup folderLookup =
+            mediaId -> {
+                CompactCatalog current = catalog.catalog;
+                int row = current.findTrack(mediaId);
+                return row >= 0
+                        ? folderSources.get(current.getFolderId(current.getTrackFolder(row)))
+                        : null;
+            };
+
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /**
+     * @param url catalog endpoint
+     * @param cacheFile where the last response and its validators are kept
+     */
+    public CatalogSource(URL url, File cacheFile) {
+        this.url = url;
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Loads the catalog kept from the last response, if there is one and no catalog is loaded
+     * yet. Returns whether a catalog is loaded.
+     */
+    @WorkerThread
+    public boolean loadCached() {
+        if (catalog != Catalog.EMPTY) {
+            return true;
+        }
+        if (!cacheFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            catalog = parse(in, etag, lastModified);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "loadCached: Ignoring unreadable catalog cache", e);
+            return false;
+        }
+    }
+
+    /**
+     * Fetches the catalog unless the server reports it unchanged since the current one, and
+     * returns the mediaIds of the folders whose listing or item changed, including added and
+     * removed ones. Returns an empty set if nothing changed.
+     */
+    @WorkerThread
+    public Set<String> refresh() throws IOException {
+        Catalog previous = catalog;
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (!previous.etag.isEmpty()) {
+                connection.setRequestProperty("If-None-Match", previous.etag);
+            }
+            if (!previous.lastModified.isEmpty()) {
+                connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+            }
+            int status = connection.getResponseCode();
+            requestCount.incrementAndGet();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModifiedCount.incrementAndGet();
+                return Collections.emptySet();
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Catalog request failed with HTTP " + status);
+            }
+            Catalog next =
+                    parseAndCache(
+                            connection.getInputStream(),
+                            orEmpty(connection.getHeaderField("ETag")),
+                            orEmpty(connection.getHeaderField("Last-Modified")));
+            catalog = next;
+            return findChangedFolders(previous, next);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Installs the current catalog's folders under {@link DefaultFolder#CATALOG}, keeping the
+     * nodes of folders whose item and subfolders are unchanged.
+     */
+    public void attachTo(MediaFolderTrie.Editor editor) {
+        Catalog current = catalog;
+        MediaFolderNode existing = editor.getNode(ROOT_PATH);
+        MediaFolderNode node = toNode(current.catalog, 0, existing);
+        if (node != existing) {
+            editor.putNode("", node);
+        }
+    }
+
+    /**
+     * Returns the source {@link #attachTo} installs for the catalog folder with mediaId, or null
+     * if the current catalog has no such folder.
+     */
+    @Nullable
+    public PagedChildrenSource findFolderSource(String mediaId) {
+        if (!catalog.folderIndexes.containsKey(mediaId)) {
+            return null;
+        }
+        return folderSources.computeIfAbsent(mediaId, FolderSource::new);
+    }
+
+    /** Returns the number of tracks in the current catalog. */
+    public int getTrackCount() {
+        return catalog.catalog.getTrackCount();
+    }
+
+    /** Time to parse a catalog, from the cache or the network. */
+    public LatencyHistogram getParseLatency() {
+        return parseLatency;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /** Returns how many requests were answered with 304 Not Modified. */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /** Returns the catalog bytes read from the network. */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /** Returns how many tracks were skipped because their folder was not listed before them. */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    private MediaFolderNode toNode(
+            CompactCatalog compact, int folder, @Nullable MediaFolderNode existing) {
+        String mediaId = compact.getFolderId(folder);
+        FolderSource source = folderSources.get(mediaId);
+        if (source == null) {
+            source = new FolderSource(mediaId);
+            folderSources.put(mediaId, source);
+        }
+        MediaItem folderItem = compact.buildFolder(folder);
+        boolean changed =
+                existing == null
+                        || existing.getPagedSource() != source
+                        || !MediaFolderTrie.sameItem(existing.getMediaItem(), folderItem);
+        int subfolderCount = compact.getSubfolderCount(folder);
+        changed |= existing == null || existing.getChildren().size() != subfolderCount;
+        List<MediaFolderNode> children = new ArrayList<>(subfolderCount);
+        for (int i = 0; i < subfolderCount; i++) {
+            int subfolder = compact.getSubfolder(folder, i);
+            MediaFolderNode existingChild =
+                    existing != null
+                            ? existing.getChild(compact.getFolderSegment(subfolder))
+                            : null;
+            MediaFolderNode child = toNode(compact, subfolder, existingChild);
+            changed |= child != existingChild;
+            children.add(child);
+        }
+        if (!changed) {
+            return existing;
+        }
+        MediaFolderNode node =
+                new MediaFolderNode(
+                        compact.getFolderSegment(folder), folderItem, source, Long.MAX_VALUE);
+        return children.isEmpty() ? node : node.withChildren(children);
+    }
+
+    /** Parses the response while copying it to the cache, which replaces the old one on success. */
+    @WorkerThread
+    private Catalog parseAndCache(InputStream body, String etag, String lastModified)
+            throws IOException {
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        Catalog parsed;
+        try (FileOutputStream file = new FileOutputStream(tmp);
+                InputStream in = body) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(etag);
+            out.writeUTF(lastModified);
+            parsed = parse(new TeeInputStream(in, out), etag, lastModified);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        if (!tmp.renameTo(cacheFile)) {
+            tmp.delete();
+            Log.w(TAG, "parseAndCache: Failed to replace " + cacheFile);
+        }
+        return parsed;
+    }
+
+    @WorkerThread
+    private Catalog parse(InputStream in, String etag, String lastModified) throws IOException {
+        long startNanos = System.nanoTime();
+        CompactCatalog.Builder builder = new CompactCatalog.Builder();
+        int root =
+                builder.addFolder(
+                        CompactCatalog.NO_PARENT,
+                        ROOT_PATH,
+                        String.valueOf(DefaultFolder.CATALOG.getFolderItem().mediaMetadata.title));
+        Map<String, Integer> folders = new HashMap<>();
+        List<Long> fingerprints = new ArrayList<>();
+        fingerprints.add(0L);
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("folders")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readFolder(reader, builder, root, folders, fingerprints);
+                }
+                reader.endArray();
+            } else if (name.equals("tracks")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readTrack(reader, builder, folders, fingerprints);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        CompactCatalog compact = builder.build();
+        long[] folderFingerprints = new long[fingerprints.size()];
+        for (int i = 0; i < folderFingerprints.length; i++) {
+            folderFingerprints[i] = fingerprints.get(i);
+        }
+        parseLatency.recordSince(startNanos);
+        if (DEBUG) Log.d(TAG, "parse: " + compact.getTrackCount() + " tracks in " + compact.getFolderCount() + " folders, " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+        return new Catalog(compact, folderFingerprints, etag, lastModified);
+    }
+
+    private static void readFolder(
+            JsonReader reader,
+            CompactCatalog.Builder builder,
+            int root,
+            Map<String, Integer> folders,
+            List<Long> fingerprints)
+            throws IOException {
+        String id = null;
+        String parentId = null;
+        String title = null;
+        String artwork = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = nextString(reader);
+                    break;
+                case "parent":
+                    parentId = nextString(reader);
+                    break;
+                case "title":
+                    title = nextString(reader);
+                    break;
+                case "artwork":
+                    artwork = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (id == null || id.isEmpty() || id.contains(MediaFolderTrie.PATH_SEPARATOR)) {
+            throw new IOException("Invalid catalog folder id: " + id);
+        }
+        Integer parent = parentId != null ? folders.get(parentId) : Integer.valueOf(root);
+        if (parent == null || folders.containsKey(id)) {
+            throw new IOException("Catalog folder " + id + " listed before its parent or twice");
+        }
+        String folderTitle = title != null ? title : id;
+        folders.put(id, builder.addFolder(parent, id, folderTitle, artwork));
+        fingerprints.add(0L);
+        // A parent lists its subfolders, so they are part of its fingerprint
+        fingerprints.set(
+                parent,
+                mix(
+                        fingerprints.get(parent),
+                        id.hashCode(),
+                        folderTitle.hashCode() * 31 + hashOf(artwork)));
+    }
+
+    private void readTrack(
+            JsonReader reader,
+            CompactCatalog.Builder builder,
+            Map<String, Integer> folders,
+            List<Long> fingerprints)
+            throws IOException {
+        String id = null;
+        String folderId = null;
+        String uri = null;
+        String title = null;
+        String artist = null;
+        String album = null;
+        String artwork = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = nextString(reader);
+                    break;
+                case "folder":
+                    folderId = nextString(reader);
+                    break;
+                case "uri":
+                    uri = nextString(reader);
+                    break;
+                case "title":
+                    title = nextString(reader);
+                    break;
+                case "artist":
+                    artist = nextString(reader);
+                    break;
+                case "album":
+                    album = nextString(reader);
+                    break;
+                case "artwork":
+                    artwork = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        Integer folder = folderId != null ? folders.get(folderId) : null;
+        if (id == null || uri == null || folder == null) {
+            skippedCount.incrementAndGet();
+            return;
+        }
+        String trackTitle = title != null ? title : id;
+        builder.addTrack(folder, id, uri, trackTitle, artist, album, artwork);
+        long fingerprint = mix(fingerprints.get(folder), id.hashCode(), uri.hashCode());
+        fingerprint =
+                mix(fingerprint, trackTitle.hashCode(), hashOf(artist) * 31 + hashOf(album));
+        fingerprints.set(folder, mix(fingerprint, hashOf(artwork), 0));
+    }
+
+    /** Returns the folders of either catalog whose fingerprint or folder item differs. */
+    private static Set<String> findChangedFolders(Catalog previous, Catalog next) {
+        Map<String, Integer> previousFolders = new HashMap<>();
+        for (int f = 0; f < previous.catalog.getFolderCount(); f++) {
+            previousFolders.put(previous.catalog.getFolderId(f), f);
+        }
+        Set<String> changed = new LinkedHashSet<>();
+        for (int f = 0; f < next.catalog.getFolderCount(); f++) {
+            String mediaId = next.catalog.getFolderId(f);
+            Integer old = previousFolders.remove(mediaId);
+            if (old == null
+                    || previous.fingerprints[old] != next.fingerprints[f]
+                    || !MediaFolderTrie.sameItem(
+                            previous.catalog.buildFolder(old), next.catalog.buildFolder(f))) {
+                changed.add(mediaId);
+            }
+        }
+        changed.addAll(previousFolders.keySet());
+        return changed;
+    }
+
+    @Nullable
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static long mix(long fingerprint, int a, int b) {
+        return (fingerprint * 31 + a) * 1_000_003 + b;
+    }
+
+    private static int hashOf(@Nullable String string) {
+        return string != null ? string.hashCode() : 0;
+    }
+
+    private static String orEmpty(@Nullable String string) {
+        return string != null ? string : "";
+    }
+
+    /** A parsed catalog with the validators of the response it came from. */
+    private static final class Catalog {
+
+        static final Catalog EMPTY = emptyCatalog();
+
+        final CompactCatalog catalog;
+        /** Per folder, a hash of its listing: its subfolders and tracks, in order. */
+        final long[] fingerprints;
+        /** Empty if the response had none. */
+        final String etag;
+        final String lastModified;
+        /** Folder index by mediaId. */
+        final Map<String, Integer> folderIndexes;
+
+        Catalog(CompactCatalog catalog, long[] fingerprints, String etag, String lastModified) {
+            this.catalog = catalog;
+            this.fingerprints = fingerprints;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.folderIndexes = new HashMap<>();
+            for (int f = 0; f < catalog.getFolderCount(); f++) {
+                folderIndexes.put(catalog.getFolderId(f), f);
+            }
+        }
+
+        private static Catalog emptyCatalog() {
+            CompactCatalog.Builder builder = new CompactCatalog.Builder();
+            builder.addFolder(
+                    CompactCatalog.NO_PARENT,
+                    ROOT_PATH,
+                    String.valueOf(DefaultFolder.CATALOG.getFolderItem().mediaMetadata.title));
+            return new Catalog(builder.build(), new long[1], "", "");
+        }
+    }
+
+    /**
+     * Children of one catalog folder, by mediaId, served from the current catalog. The folder
+     * has no children while it is not in the current catalog.
+     */
+    private final class FolderSource implements PagedChildrenSource {
+
+        private final String mediaId;
+
+        FolderSource(String mediaId) {
+            this.mediaId = mediaId;
+        }
+
+        private PagedChildrenSource current() {
+            Catalog current = catalog;
+            Integer folder = current.folderIndexes.get(mediaId);
+            return folder != null ? current.catalog.getFolderSource(folder) : NO_CHILDREN;
+        }
+
+        @Override
+        public int getChildCount() {
+            return current().getChildCount();
+        }
+
+        @Override
+        public List<MediaItem> loadPage(int offset, int limit) {
+            return current().loadPage(offset, limit);
+        }
+
+        @Nullable
+        @Override
+        public MediaItem findItem(String mediaId) {
+            return current().findItem(mediaId);
+        }
+
+        @Override
+        public boolean canFindItems() {
+            return current().canFindItems();
+        }
+
+        @Override
+        public boolean isLazilyIndexed() {
+            return current().isLazilyIndexed();
+        }
+
+        @Override
+        public FolderLookup getFolderLookup() {
+            return folderLookup;
+        }
+    }
+
+    /** Copies everything read through it to out, and counts it. */
+    private final class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream out;
+
+        TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                out.write(b);
+                bytesRead.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                out.write(buffer, offset, count);
+                bytesRead.addAndGet(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must still reach the cache
+            byte[] buffer = new byte[(int) Math.min(n, 8_192)];
+            int count = read(buffer, 0, buffer.length);
+            return Math.max(count, 0);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.example.taautomotive.shared;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import com.example.taautomotive.core.Paging;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of materialized folder children, keyed by folder path. The cache is bounded by the
+ * total number of cached MediaItems (a proxy for memory) and each entry expires after the TTL
+ * of the folder it was loaded from. Loading happens outside the lock, so a slow loadChildren
+ * never blocks readers of other folders.
+ *
+ * <p>Folders backed by a {@link PagedChildrenSource} are cached page by page under their path;
+ * other folders are cached as their full list and sliced. Entries remember the source they were
+ * loaded from, so after a trie update swaps the source behind a path, a load that raced with the
+ * update is never served for the new node.
+ */
+public final class ChildrenCache {
+
+    /** Default bound on the total number of MediaItems held across all folders. */
+    public static final int DEFAULT_MAX_ITEMS = 20_000;
+
+    private final int maxItems;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedItems;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+    public ChildrenCache() {
+        this(DEFAULT_MAX_ITEMS);
+    }
+
+    public ChildrenCache(int maxItems) {
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Returns the children of the given node, loading and caching them if they are missing or
+     * expired. Folders with a TTL of {@link MediaFolderNode#NO_CACHE} are always loaded.
+     */
+    public List<MediaItem> getOrLoad(MediaFolderNode node) {
+        String path = node.getPath();
+        Object source = node.getChildrenSource();
+        List<MediaItem> cached = get(path, source);
+        if (cached != null) {
+            return cached;
+        }
+        long startNanos = System.nanoTime();
+        List<MediaItem> loaded = Collections.unmodifiableList(node.loadChildren());
+        loadLatency.recordSince(startNanos);
+        put(path, loaded, node.getChildrenTtlMillis(), source);
+        return loaded;
+    }
+
+    /**
+     * Returns up to limit children of the node starting at offset. Paged nodes load and cache
+     * just that page; other nodes are loaded in full once and sliced.
+     */
+    public List<MediaItem> getOrLoadPage(MediaFolderNode node, int offset, int limit) {
+        PagedChildrenSource source = node.getPagedSource();
+        if (source == null) {
+            return Paging.slice(getOrLoad(node), offset, limit);
+        }
+        String path = node.getPath();
+        List<MediaItem> cached = getPage(path, offset, limit, source);
+        if (cached != null) {
+            return cached;
+        }
+        long startNanos = System.nanoTime();
+        List<MediaItem> loaded = Collections.unmodifiableList(source.loadPage(offset, limit));
+        loadLatency.recordSince(startNanos);
+        putPage(path, offset, limit, loaded, node.getChildrenTtlMillis(), source);
+        return loaded;
+    }
+
+    /** Returns the cached children for the path, or null if absent or expired. */
+    @Nullable
+    public List<MediaItem> get(String path) {
+        return get(path, null);
+    }
+
+    /** Returns a cached page for the path, or null if absent or expired. */
+    @Nullable
+    public List<MediaItem> getPage(String path, int offset, int limit) {
+        return getPage(path, offset, limit, null);
+    }
+
+    @Nullable
+    private synchronized List<MediaItem> get(String path, @Nullable Object source) {
+        Entry entry = getFreshEntry(path, source);
+        List<MediaItem> items = entry != null ? entry.items : null;
+        countLookup(items != null);
+        return items;
+    }
+
+    @Nullable
+    private synchronized List<MediaItem> getPage(
+            String path, int offset, int limit, @Nullable Object source) {
+        Entry entry = getFreshEntry(path, source);
+        List<MediaItem> page = entry != null ? entry.getPage(offset, limit) : null;
+        countLookup(page != null);
+        return page;
+    }
+
+    /** Returns the cached children for the path even if expired, or null if absent. */
+    @Nullable
+    public synchronized List<MediaItem> peek(String path) {
+        Entry entry = entries.get(path);
+        return entry != null ? entry.items : null;
+    }
+
+    /** Returns the cached page for the path even if expired, or null if absent. */
+    @Nullable
+    public synchronized List<MediaItem> peekPage(String path, int offset, int limit) {
+        Entry entry = entries.get(path);
+        return entry != null ? entry.getPage(offset, limit) : null;
+    }
+
+    public void put(String path, List<MediaItem> items, long ttlMillis) {
+        put(path, items, ttlMillis, null);
+    }
+
+    public void putPage(String path, int offset, int limit, List<MediaItem> page, long ttlMillis) {
+        putPage(path, offset, limit, page, ttlMillis, null);
+    }
+
+    private synchronized void put(
+            String path, List<MediaItem> items, long ttlMillis, @Nullable Object source) {
+        removeEntry(path);
+        if (ttlMillis <= MediaFolderNode.NO_CACHE || items.size() > maxItems) {
+            return;
+        }
+        Entry entry = new Entry(expiresAt(ttlMillis), source);
+        entry.items = items;
+        entry.size = items.size();
+        entries.put(path, entry);
+        cachedItems += entry.size;
+        trimToSize();
+    }
+
+    private synchronized void putPage(
+            String path,
+            int offset,
+            int limit,
+            List<MediaItem> page,
+            long ttlMillis,
+            @Nullable Object source) {
+        if (ttlMillis <= MediaFolderNode.NO_CACHE || page.size() > maxItems) {
+            return;
+        }
+        Entry entry = getFreshEntry(path, source);
+        if (entry == null) {
+            removeEntry(path);
+            entry = new Entry(expiresAt(ttlMillis), source);
+            entries.put(path, entry);
+        }
+        cachedItems += entry.putPage(offset, limit, page);
+        trimToSize();
+    }
+
+    /** Drops the cached children of the given path. */
+    public synchronized void invalidate(String path) {
+        removeEntry(path);
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        cachedItems = 0;
+    }
+
+    /** Evicts the least recently used folders until at most maxItems items are cached. */
+    public synchronized void trimTo(int maxItems) {
+        trimToSize(maxItems);
+    }
+
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    public synchronized int getCachedItemCount() {
+        return cachedItems;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** Returns how long cache misses spent in loadChildren or loading a page from a source. */
+    public LatencyHistogram getLoadLatency() {
+        return loadLatency;
+    }
+
+    /**
+     * Returns the entry for path unless it expired or, when source is given, was loaded from a
+     * different source; such entries are dropped.
+     */
+    @Nullable
+    private Entry getFreshEntry(String path, @Nullable Object source) {
+        Entry entry = entries.get(path);
+        if (entry != null
+                && (entry.isExpired(System.nanoTime())
+                        || (source != null && entry.source != null && entry.source != source))) {
+            removeEntry(path);
+            return null;
+        }
+        return entry;
+    }
+
+    private void countLookup(boolean hit) {
+        if (hit) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+    }
+
+    private static long expiresAt(long ttlMillis) {
+        return ttlMillis == Long.MAX_VALUE
+                ? Long.MAX_VALUE
+                : System.nanoTime() + ttlMillis * 1_000_000L;
+    }
+
+    private void removeEntry(String path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            cachedItems -= removed.size;
+        }
+    }
+
+    private void trimToSize() {
+        trimToSize(maxItems);
+    }
+
+    private void trimToSize(int maxItems) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (cachedItems > maxItems && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            cachedItems -= eldest.size;
+            evictionCount++;
+        }
+    }
+
+    /** Cached children of one folder: either the full list or individual pages. */
+    private static final class Entry {
+
+        final long expiresAtNanos;
+        @Nullable final Object source;
+        @Nullable List<MediaItem> items;
+        @Nullable Map<Long, List<MediaItem>> pages;
+        int size;
+
+        Entry(long expiresAtNanos, @Nullable Object source) {
+            this.expiresAtNanos = expiresAtNanos;
+            this.source = source;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return expiresAtNanos != Long.MAX_VALUE && nowNanos - expiresAtNanos >= 0;
+        }
+
+        @Nullable
+        List<MediaItem> getPage(int offset, int limit) {
+            if (items != null) {
+                return Paging.slice(items, offset, limit);
+            }
+            return pages != null ? pages.get(pageKey(offset, limit)) : null;
+        }
+
+        /** Stores a page and returns the change in the number of cached items. */
+        int putPage(int offset, int limit, List<MediaItem> page) {
+            if (pages == null) {
+                pages = new HashMap<>();
+            }
+            List<MediaItem> previous = pages.put(pageKey(offset, limit), page);
+            int delta = page.size() - (previous != null ? previous.size() : 0);
+            size += delta;
+            return delta;
+        }
+
+        private static long pageKey(int offset, int limit) {
+            return ((long) offset << 32) | (limit & 0xffffffffL);
+        }
+    }
+}
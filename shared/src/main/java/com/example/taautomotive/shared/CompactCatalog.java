@@ -0,0 +1,561 @@
+package com.example.taautomotive.shared;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, columnar store for a large catalog of folders and tracks. Instead of one MediaItem
+ * graph per track (several hundred bytes of objects), each track is a row across a few arrays:
+ * its id, title and URI file name packed as UTF-8 into one byte array per column, and its
+ * artist, album, artwork and URI directory as int references into a table of interned strings,
+ * so the tracks of an album share one copy of its artwork URI. Folders and their subfolder and
+ * track relations are int-indexed too; the tracks of each folder are stored contiguously.
+ *
+ * <p>MediaItems are built only for the rows a page asks for, through {@link
+ * #getFolderSource(int)}, which is meant to back {@link MediaFolderNode}s (see {@link
+ * #toNode(int)}). Ids are looked up through an open-addressing hash table without building
+ * items. Instances are immutable and safe to share between threads; build them with {@link
+ * Builder}.
+ */
+public final class CompactCatalog {
+
+    /** Parent of top-level folders. */
+    public static final int NO_PARENT = -1;
+    private static final int NO_STRING = -1;
+
+    /** Interned artist, album, artwork, folder title and URI directory strings. */
+    private final String[] strings;
+
+    private final String[] folderIds;
+    private final String[] folderSegments;
+    private final int[] folderTitles;
+    private final int[] folderArtwork;
+    private final int[] folderParents;
+    /** Subfolders of folder f are subfolders[subfolderStart[f] .. subfolderStart[f + 1]). */
+    private final int[] subfolderStart;
+    private final int[] subfolders;
+    /** Tracks of folder f are rows trackStart[f] .. trackStart[f + 1]. */
+    private final int[] trackStart;
+
+    private final PackedStrings trackIds;
+    private final PackedStrings trackTitles;
+    private final PackedStrings uriNames;
+    private final int[] uriDirectories;
+    private final int[] trackArtists;
+    private final int[] trackAlbums;
+    private final int[] trackArtwork;
+    private final int[] trackFolders;
+    /** Row + 1 of each id, by hash with linear probing; 0 is an empty slot. */
+    private final int[] idTable;
+    private final PagedChildrenSource.FolderLookup folderLookup =
+            mediaId -> {
+                int row = findTrack(mediaId);
+                return row >= 0 ? new FolderSource(getTrackFolder(row)) : null;
+            };
+
+    private CompactCatalog(Builder builder, int[] order) {
+        strings = builder.strings.toArray(new String[0]);
+        int folderCount = builder.folderIds.size();
+        folderIds = builder.folderIds.toArray(new String[0]);
+        folderSegments = builder.folderSegments.toArray(new String[0]);
+        folderTitles = Arrays.copyOf(builder.folderTitles.values, folderCount);
+        folderArtwork = Arrays.copyOf(builder.folderArtwork.values, folderCount);
+        folderParents = Arrays.copyOf(builder.folderParents.values, folderCount);
+
+        subfolderStart = new int[folderCount + 1];
+        for (int f = 0; f < folderCount; f++) {
+            if (folderParents[f] != NO_PARENT) {
+                subfolderStart[folderParents[f] + 1]++;
+            }
+        }
+        prefixSum(subfolderStart);
+        subfolders = new int[subfolderStart[folderCount]];
+        int[] subfolderFill = Arrays.copyOf(subfolderStart, folderCount);
+        for (int f = 0; f < folderCount; f++) {
+            if (folderParents[f] != NO_PARENT) {
+                subfolders[subfolderFill[folderParents[f]]++] = f;
+            }
+        }
+
+        int trackCount = order.length;
+        trackStart = new int[folderCount + 1];
+        trackFolders = new int[trackCount];
+        uriDirectories = new int[trackCount];
+        trackArtists = new int[trackCount];
+        trackAlbums = new int[trackCount];
+        trackArtwork = new int[trackCount];
+        for (int row = 0; row < trackCount; row++) {
+            int added = order[row];
+            trackFolders[row] = builder.trackFolders.values[added];
+            uriDirectories[row] = builder.uriDirectories.values[added];
+            trackArtists[row] = builder.trackArtists.values[added];
+            trackAlbums[row] = builder.trackAlbums.values[added];
+            trackArtwork[row] = builder.trackArtwork.values[added];
+            trackStart[trackFolders[row] + 1]++;
+        }
+        prefixSum(trackStart);
+        trackIds = builder.trackIds.build(order);
+        trackTitles = builder.trackTitles.build(order);
+        uriNames = builder.uriNames.build(order);
+
+        idTable = new int[tableSizeFor(trackCount)];
+        int mask = idTable.length - 1;
+        for (int row = 0; row < trackCount; row++) {
+            int slot = trackIds.hash(row) & mask;
+            while (idTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            idTable[slot] = row + 1;
+        }
+    }
+
+    public int getFolderCount() {
+        return folderIds.length;
+    }
+
+    public int getTrackCount() {
+        return trackFolders.length;
+    }
+
+    /** Returns the folder's mediaId, which is its trie path. */
+    public String getFolderId(int folder) {
+        return folderIds[folder];
+    }
+
+    public int getFolderParent(int folder) {
+        return folderParents[folder];
+    }
+
+    /** Returns the folder's last path segment. */
+    public String getFolderSegment(int folder) {
+        return folderSegments[folder];
+    }
+
+    public int getSubfolderCount(int folder) {
+        return subfolderStart[folder + 1] - subfolderStart[folder];
+    }
+
+    /** Returns the index'th subfolder of folder, in the order they were added. */
+    public int getSubfolder(int folder, int index) {
+        return subfolders[subfolderStart[folder] + index];
+    }
+
+    /**
+     * Returns the row of a track with the given mediaId, or -1. If several folders list the id,
+     * any of their rows may be returned. Does not build any item.
+     */
+    public int findTrack(String mediaId) {
+        return findTrack(mediaId, 0, trackFolders.length);
+    }
+
+    /** Returns the row of the track with the given mediaId in folder, or -1. */
+    public int findTrack(int folder, String mediaId) {
+        return findTrack(mediaId, trackStart[folder], trackStart[folder + 1]);
+    }
+
+    /** Returns the row of the track with the given mediaId within rows [start, end), or -1. */
+    private int findTrack(String mediaId, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        byte[] id = mediaId.getBytes(StandardCharsets.UTF_8);
+        int mask = idTable.length - 1;
+        int slot = PackedStrings.hash(id, 0, id.length) & mask;
+        int entry;
+        while ((entry = idTable[slot]) != 0) {
+            int row = entry - 1;
+            if (row >= start && row < end && trackIds.equalsAt(row, id)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Returns the folder that lists the track at row. */
+    public int getTrackFolder(int row) {
+        return trackFolders[row];
+    }
+
+    /** Builds the MediaItem of the track at row. */
+    public MediaItem buildTrack(int row) {
+        MediaMetadata.Builder metadata =
+                new MediaMetadata.Builder()
+                        .setIsBrowsable(false)
+                        .setIsPlayable(true)
+                        .setTitle(trackTitles.get(row));
+        if (trackArtists[row] != NO_STRING) {
+            metadata.setArtist(strings[trackArtists[row]]);
+        }
+        if (trackAlbums[row] != NO_STRING) {
+            metadata.setAlbumTitle(strings[trackAlbums[row]]);
+        }
+        if (trackArtwork[row] != NO_STRING) {
+            metadata.setArtworkUri(Uri.parse(strings[trackArtwork[row]]));
+        }
+        return new MediaItem.Builder()
+                .setMediaId(trackIds.get(row))
+                .setUri(strings[uriDirectories[row]] + uriNames.get(row))
+                .setMediaMetadata(metadata.build())
+                .build();
+    }
+
+    /** Builds the browsable MediaItem that represents the folder. */
+    public MediaItem buildFolder(int folder) {
+        MediaMetadata.Builder metadata =
+                new MediaMetadata.Builder()
+                        .setIsBrowsable(true)
+                        .setIsPlayable(false)
+                        .setTitle(strings[folderTitles[folder]]);
+        if (folderArtwork[folder] != NO_STRING) {
+            metadata.setArtworkUri(Uri.parse(strings[folderArtwork[folder]]));
+        }
+        return new MediaItem.Builder()
+                .setMediaId(folderIds[folder])
+                .setMediaMetadata(metadata.build())
+                .build();
+    }
+
+    /**
+     * Returns a source listing the folder's subfolders, then its tracks, that builds items only
+     * for the requested page. Sources of the same folder are equal.
+     */
+    public PagedChildrenSource getFolderSource(int folder) {
+        return new FolderSource(folder);
+    }
+
+    /** Returns the lookup that finds the folder of a track through the catalog's id table. */
+    public PagedChildrenSource.FolderLookup getFolderLookup() {
+        return folderLookup;
+    }
+
+    /**
+     * Returns a node for the folder, with nodes for all its subfolders, whose children are paged
+     * from this catalog. The catalog never changes, so its pages are cached until invalidated.
+     */
+    public MediaFolderNode toNode(int folder) {
+        MediaFolderNode node =
+                new MediaFolderNode(
+                        folderSegments[folder],
+                        buildFolder(folder),
+                        getFolderSource(folder),
+                        Long.MAX_VALUE);
+        int start = subfolderStart[folder];
+        int end = subfolderStart[folder + 1];
+        if (start == end) {
+            return node;
+        }
+        List<MediaFolderNode> children = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            children.add(toNode(subfolders[i]));
+        }
+        return node.withChildren(children);
+    }
+
+    /** Returns the approximate heap taken by the catalog's arrays and interned strings. */
+    public long estimateSizeBytes() {
+        long bytes = 4L * (folderTitles.length + folderArtwork.length + folderParents.length
+                + subfolderStart.length + subfolders.length + trackStart.length
+                + uriDirectories.length + trackArtists.length + trackAlbums.length
+                + trackArtwork.length + trackFolders.length + idTable.length);
+        bytes += trackIds.sizeBytes() + trackTitles.sizeBytes() + uriNames.sizeBytes();
+        for (String string : strings) {
+            bytes += 24 + 2L * string.length();
+        }
+        for (int f = 0; f < folderIds.length; f++) {
+            bytes += 48 + 2L * (folderIds[f].length() + folderSegments[f].length());
+        }
+        return bytes;
+    }
+
+    private static void prefixSum(int[] counts) {
+        for (int i = 1; i < counts.length; i++) {
+            counts[i] += counts[i - 1];
+        }
+    }
+
+    private static int tableSizeFor(int count) {
+        int size = 2;
+        while (size < count * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private final class FolderSource implements PagedChildrenSource {
+
+        private final int folder;
+
+        FolderSource(int folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        public int getChildCount() {
+            return subfolderStart[folder + 1] - subfolderStart[folder]
+                    + trackStart[folder + 1] - trackStart[folder];
+        }
+
+        @Override
+        public List<MediaItem> loadPage(int offset, int limit) {
+            int count = getChildCount();
+            if (offset < 0 || offset >= count || limit <= 0) {
+                return Collections.emptyList();
+            }
+            int end = (int) Math.min((long) offset + limit, count);
+            int subfolderCount = subfolderStart[folder + 1] - subfolderStart[folder];
+            List<MediaItem> page = new ArrayList<>(end - offset);
+            for (int i = offset; i < end; i++) {
+                page.add(
+                        i < subfolderCount
+                                ? buildFolder(subfolders[subfolderStart[folder] + i])
+                                : buildTrack(trackStart[folder] + i - subfolderCount));
+            }
+            return page;
+        }
+
+        @Override
+        public boolean canFindItems() {
+            return true;
+        }
+
+        @Nullable
+        @Override
+        public MediaItem findItem(String mediaId) {
+            int row = findTrack(folder, mediaId);
+            return row >= 0 ? buildTrack(row) : null;
+        }
+
+        @Override
+        public FolderLookup getFolderLookup() {
+            return folderLookup;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FolderSource)) {
+                return false;
+            }
+            FolderSource other = (FolderSource) o;
+            return other.catalog() == CompactCatalog.this && other.folder == folder;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(CompactCatalog.this) * 31 + folder;
+        }
+
+        private CompactCatalog catalog() {
+            return CompactCatalog.this;
+        }
+    }
+
+    /** Assembles a catalog; not thread-safe. */
+    public static final class Builder {
+
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final List<String> folderIds = new ArrayList<>();
+        private final List<String> folderSegments = new ArrayList<>();
+        private final IntList folderTitles = new IntList();
+        private final IntList folderArtwork = new IntList();
+        private final IntList folderParents = new IntList();
+        private final PackedStrings.Builder trackIds = new PackedStrings.Builder();
+        private final PackedStrings.Builder trackTitles = new PackedStrings.Builder();
+        private final PackedStrings.Builder uriNames = new PackedStrings.Builder();
+        private final IntList uriDirectories = new IntList();
+        private final IntList trackArtists = new IntList();
+        private final IntList trackAlbums = new IntList();
+        private final IntList trackArtwork = new IntList();
+        private final IntList trackFolders = new IntList();
+
+        /**
+         * Adds a folder under parent ({@link #NO_PARENT} for a top-level folder, whose mediaId
+         * is its segment) and returns its index.
+         */
+        public int addFolder(int parent, String segment, String title) {
+            return addFolder(parent, segment, title, null);
+        }
+
+        /** Adds a folder as {@link #addFolder(int, String, String)}, with artwork. */
+        public int addFolder(
+                int parent, String segment, String title, @Nullable String artworkUri) {
+            folderIds.add(
+                    parent == NO_PARENT
+                            ? segment
+                            : MediaFolderNode.childPath(folderIds.get(parent), segment));
+            folderSegments.add(segment);
+            folderTitles.add(intern(title));
+            folderArtwork.add(artworkUri != null ? intern(artworkUri) : NO_STRING);
+            folderParents.add(parent);
+            return folderIds.size() - 1;
+        }
+
+        /** Adds a track to folder. Tracks are listed in the order they are added. */
+        public Builder addTrack(
+                int folder,
+                String mediaId,
+                String uri,
+                String title,
+                @Nullable String artist,
+                @Nullable String album) {
+            return addTrack(folder, mediaId, uri, title, artist, album, null);
+        }
+
+        /**
+         * Adds a track as {@link #addTrack(int, String, String, String, String, String)}, with
+         * the URI of its artwork.
+         */
+        public Builder addTrack(
+                int folder,
+                String mediaId,
+                String uri,
+                String title,
+                @Nullable String artist,
+                @Nullable String album,
+                @Nullable String artworkUri) {
+            int split = uri.lastIndexOf('/') + 1;
+            trackIds.add(mediaId);
+            trackTitles.add(title);
+            uriNames.add(uri.substring(split));
+            uriDirectories.add(intern(uri.substring(0, split)));
+            trackArtists.add(artist != null ? intern(artist) : NO_STRING);
+            trackAlbums.add(album != null ? intern(album) : NO_STRING);
+            trackArtwork.add(artworkUri != null ? intern(artworkUri) : NO_STRING);
+            trackFolders.add(folder);
+            return this;
+        }
+
+        public CompactCatalog build() {
+            // Stable counting sort of the tracks by folder, so each folder's rows are contiguous.
+            int trackCount = trackFolders.size;
+            int[] start = new int[folderIds.size() + 1];
+            for (int i = 0; i < trackCount; i++) {
+                start[trackFolders.values[i] + 1]++;
+            }
+            prefixSum(start);
+            int[] order = new int[trackCount];
+            for (int i = 0; i < trackCount; i++) {
+                order[start[trackFolders.values[i]]++] = i;
+            }
+            return new CompactCatalog(this, order);
+        }
+
+        private int intern(String string) {
+            Integer index = stringIndex.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                stringIndex.put(string, index);
+            }
+            return index;
+        }
+    }
+
+    /** Strings packed as UTF-8 into one byte array, with the start of each in an int array. */
+    private static final class PackedStrings {
+
+        private final byte[] bytes;
+        /** String i is bytes[offsets[i] .. offsets[i + 1]). */
+        private final int[] offsets;
+
+        PackedStrings(byte[] bytes, int[] offsets) {
+            this.bytes = bytes;
+            this.offsets = offsets;
+        }
+
+        String get(int i) {
+            return new String(
+                    bytes, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+        }
+
+        boolean equalsAt(int i, byte[] other) {
+            int start = offsets[i];
+            int length = offsets[i + 1] - start;
+            if (length != other.length) {
+                return false;
+            }
+            for (int j = 0; j < length; j++) {
+                if (bytes[start + j] != other[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int hash(int i) {
+            return hash(bytes, offsets[i], offsets[i + 1]);
+        }
+
+        long sizeBytes() {
+            return bytes.length + 4L * offsets.length;
+        }
+
+        static int hash(byte[] bytes, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            // Spread the high bits, as HashMap does, since the table is indexed by the low ones.
+            return hash ^ (hash >>> 16);
+        }
+
+        static final class Builder {
+
+            private byte[] bytes = new byte[1024];
+            private int length;
+            private final IntList offsets = new IntList();
+
+            void add(String string) {
+                byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+                if (length + encoded.length > bytes.length) {
+                    bytes =
+                            Arrays.copyOf(
+                                    bytes, Math.max(bytes.length * 2, length + encoded.length));
+                }
+                System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                offsets.add(length);
+                length += encoded.length;
+            }
+
+            /** Returns the strings in the given order of their indices. */
+            PackedStrings build(int[] order) {
+                byte[] packed = new byte[length];
+                int[] packedOffsets = new int[order.length + 1];
+                int position = 0;
+                for (int i = 0; i < order.length; i++) {
+                    int start = offsets.values[order[i]];
+                    int end = order[i] + 1 < offsets.size ? offsets.values[order[i] + 1] : length;
+                    System.arraycopy(bytes, start, packed, position, end - start);
+                    packedOffsets[i] = position;
+                    position += end - start;
+                }
+                packedOffsets[order.length] = position;
+                return new PackedStrings(packed, packedOffsets);
+            }
+        }
+    }
+
+    /** Growable int array. */
+    private static final class IntList {
+
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
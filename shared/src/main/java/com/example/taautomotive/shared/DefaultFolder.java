@@ -1,5 +1,6 @@
 package com.example.taautomotive.shared;
 
+import androidx.annotation.Nullable;
 import androidx.media3.common.MediaItem;
 import androidx.media3.common.MediaMetadata;
 import java.util.ArrayList;
@@ -9,7 +10,9 @@ import java.util.function.Supplier;
 
 /**
  * Defines the default folders in the media library. Each constant has a route (path segment)
- * and a loadChildren function that returns the MediaItems shown when the folder is opened.
+ * and a loadChildren function that returns the MediaItems shown when the folder is opened, plus
+ * how long those MediaItems may be cached. Folders with a {@link PagedChildrenSource} can also
+ * serve a single page without building the rest of the folder.
  */
 public enum DefaultFolder {
 
@@ -23,35 +26,76 @@ public enum DefaultFolder {
                     items.add(folder.getFolderItem());
                 }
                 return items;
-            }),
+            },
+            Long.MAX_VALUE),
+
+    /** Populated by {@link PlayHistory} once it is attached to the trie. */
+    RECENT(
+            "recent",
+            "Recently played",
+            () -> Collections.emptyList()),
+
+    /** Populated by {@link PlayHistory} once it is attached to the trie. */
+    MOST_PLAYED(
+            "most_played",
+            "Most played",
+            () -> Collections.emptyList()),
 
     MUSIC(
             "music",
-            () -> {
-                List<MediaItem> items = new ArrayList<>();
-                items.add(
-                        buildTrack(
-                                "track_1",
-                                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-1.mp3",
-                                "SoundHelix Song 1"));
-                items.add(
-                        buildTrack(
-                                "track_2",
-                                "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-2.mp3",
-                                "SoundHelix Song 2"));
-                return items;
-            }),
+            MusicTracks.CATALOG.getFolderSource(MusicTracks.FOLDER),
+            MediaFolderNode.DEFAULT_CHILDREN_TTL_MS),
+
+    /** On-device music; populated by {@link LocalMusicLibrary} once it is attached to the trie. */
+    LOCAL(
+            "local",
+            () -> Collections.emptyList()),
+
+    /** Remote catalog; populated by {@link CatalogSource} once it is attached to the trie. */
+    CATALOG(
+            "catalog",
+            () -> Collections.emptyList()),
 
     PLAYLISTS(
             "playlists",
             () -> Collections.emptyList());
 
     private final String route;
+    @Nullable private final String title;
     private final Supplier<List<MediaItem>> loadChildren;
+    @Nullable private final PagedChildrenSource pagedSource;
+    private final long childrenTtlMillis;
 
     DefaultFolder(String route, Supplier<List<MediaItem>> loadChildren) {
+        this(route, loadChildren, MediaFolderNode.DEFAULT_CHILDREN_TTL_MS);
+    }
+
+    DefaultFolder(String route, String title, Supplier<List<MediaItem>> loadChildren) {
+        this(route, title, loadChildren, MediaFolderNode.DEFAULT_CHILDREN_TTL_MS);
+    }
+
+    DefaultFolder(String route, Supplier<List<MediaItem>> loadChildren, long childrenTtlMillis) {
+        this(route, null, loadChildren, childrenTtlMillis);
+    }
+
+    DefaultFolder(
+            String route,
+            @Nullable String title,
+            Supplier<List<MediaItem>> loadChildren,
+            long childrenTtlMillis) {
         this.route = route;
+        this.title = title;
         this.loadChildren = loadChildren;
+        this.pagedSource = null;
+        this.childrenTtlMillis = childrenTtlMillis;
+    }
+
+    DefaultFolder(String route, PagedChildrenSource pagedSource, long childrenTtlMillis) {
+        this.route = route;
+        this.title = null;
+        this.loadChildren = () -> pagedSource.loadPage(0, pagedSource.getChildCount());
+        this.pagedSource = pagedSource;
+        this.childrenTtlMillis = childrenTtlMillis;
     }
 
     public String getRoute() {
@@ -66,6 +110,16 @@ public enum DefaultFolder {
         return loadChildren.get();
     }
 
+    /** Returns the paged source of this folder, or null if it only has a loadChildren supplier. */
+    @Nullable
+    public PagedChildrenSource getPagedSource() {
+        return pagedSource;
+    }
+
+    public long getChildrenTtlMillis() {
+        return childrenTtlMillis;
+    }
+
     /** Returns the MediaItem that represents this folder in the library (browsable, not playable). */
     public MediaItem getFolderItem() {
         String mediaId = route.isEmpty() ? "root" : route;
@@ -82,22 +136,42 @@ public enum DefaultFolder {
     }
 
     private String getDisplayTitle() {
+        if (title != null) {
+            return title;
+        }
         if (route == null || route.isEmpty()) {
             return "TAAutomotive";
         }
         return route.substring(0, 1).toUpperCase() + route.substring(1);
     }
 
-    private static MediaItem buildTrack(String mediaId, String uri, String title) {
-        return new MediaItem.Builder()
-                .setMediaId(mediaId)
-                .setUri(uri)
-                .setMediaMetadata(
-                        new MediaMetadata.Builder()
-                                .setIsBrowsable(false)
-                                .setIsPlayable(true)
-                                .setTitle(title)
-                                .build())
-                .build();
+    /**
+     * Tracks listed in {@link #MUSIC}, held in a {@link CompactCatalog}; items are built only for
+     * the page being served.
+     */
+    private static final class MusicTracks {
+
+        static final int FOLDER;
+        static final CompactCatalog CATALOG;
+
+        static {
+            CompactCatalog.Builder builder = new CompactCatalog.Builder();
+            FOLDER = builder.addFolder(CompactCatalog.NO_PARENT, "music", "Music");
+            builder.addTrack(
+                    FOLDER,
+                    "track_1",
+                    "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-1.mp3",
+                    "SoundHelix Song 1",
+                    null,
+                    null);
+            builder.addTrack(
+                    FOLDER,
+                    "track_2",
+                    "https://www.soundhelix.com/examples/mp3/SoundHelix-Song-2.mp3",
+                    "SoundHelix Song 2",
+                    null,
+                    null);
+            CATALOG = builder.build();
+        }
     }
 }
@@ -0,0 +1,126 @@
+package com.example.taautomotive.shared;
+
+import android.os.Looper;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Player;
+import androidx.media3.common.SimpleBasePlayer;
+import androidx.media3.common.util.UnstableApi;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Stands in for the real player until the first playback command, so the session can be built
+ * and browsed without constructing ExoPlayer. Reports an idle player with an empty playlist;
+ * the first command that needs playback (setting items, prepare, play, repeat or shuffle) gets
+ * the real player from the factory, which installs it in the session, and is replayed on it.
+ * Later commands go to the real player directly. Commands that arrive once the service is
+ * shutting down, when there is no real player to build, are dropped.
+ */
+@UnstableApi
+final class DeferredPlayer extends SimpleBasePlayer {
+
+    private static final Commands COMMANDS =
+            new Commands.Builder()
+                    .addAll(
+                            COMMAND_PLAY_PAUSE,
+                            COMMAND_PREPARE,
+                            COMMAND_STOP,
+                            COMMAND_SET_MEDIA_ITEM,
+                            COMMAND_CHANGE_MEDIA_ITEMS,
+                            COMMAND_GET_TIMELINE,
+                            COMMAND_GET_CURRENT_MEDIA_ITEM,
+                            COMMAND_GET_METADATA,
+                            COMMAND_SET_REPEAT_MODE,
+                            COMMAND_SET_SHUFFLE_MODE,
+                            COMMAND_RELEASE)
+                    .build();
+
+    private final Supplier<Player> playerFactory;
+    private final State state;
+
+    /**
+     * @param playerFactory returns the real player, creating it and installing it in the session
+     *     on the first call, or null if the service is shutting down; called on the application
+     *     looper
+     */
+    DeferredPlayer(Looper looper, Supplier<Player> playerFactory) {
+        super(looper);
+        this.playerFactory = playerFactory;
+        this.state =
+                new State.Builder()
+                        .setAvailableCommands(COMMANDS)
+                        .setPlaybackState(STATE_IDLE)
+                        .build();
+    }
+
+    @Override
+    protected State getState() {
+        return state;
+    }
+
+    @Override
+    protected ListenableFuture<?> handleSetMediaItems(
+            List<MediaItem> mediaItems, int startIndex, long startPositionMs) {
+        if (startIndex == C.INDEX_UNSET) {
+            forward(player -> player.setMediaItems(mediaItems));
+        } else {
+            forward(player -> player.setMediaItems(mediaItems, startIndex, startPositionMs));
+        }
+        return Futures.immediateVoidFuture();
+    }
+
+    @Override
+    protected ListenableFuture<?> handleAddMediaItems(int index, List<MediaItem> mediaItems) {
+        forward(player -> player.addMediaItems(index, mediaItems));
+        return Futures.immediateVoidFuture();
+    }
+
+    @Override
+    protected ListenableFuture<?> handlePrepare() {
+        forward(Player::prepare);
+        return Futures.immediateVoidFuture();
+    }
+
+    @Override
+    protected ListenableFuture<?> handleSetPlayWhenReady(boolean playWhenReady) {
+        // Pausing an idle, empty player changes nothing; don't build a player for it
+        if (playWhenReady) {
+            forward(player -> player.setPlayWhenReady(true));
+        }
+        return Futures.immediateVoidFuture();
+    }
+
+    @Override
+    protected ListenableFuture<?> handleSetRepeatMode(int repeatMode) {
+        forward(player -> player.setRepeatMode(repeatMode));
+        return Futures.immediateVoidFuture();
+    }
+
+    @Override
+    protected ListenableFuture<?> handleSetShuffleModeEnabled(boolean shuffleModeEnabled) {
+        forward(player -> player.setShuffleModeEnabled(shuffleModeEnabled));
+        return Futures.immediateVoidFuture();
+    }
+
+    @Override
+    protected ListenableFuture<?> handleStop() {
+        return Futures.immediateVoidFuture();
+    }
+
+    @Override
+    protected ListenableFuture<?> handleRelease() {
+        return Futures.immediateVoidFuture();
+    }
+
+    /** Runs command on the real player, or drops it if there is none. */
+    private void forward(Consumer<Player> command) {
+        Player player = playerFactory.get();
+        if (player != null) {
+            command.accept(player);
+        }
+    }
+}
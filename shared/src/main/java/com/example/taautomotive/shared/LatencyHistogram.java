@@ -0,0 +1,98 @@
+package com.example.taautomotive.shared;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets: bucket 0 counts latencies
+ * under 1 us, bucket i latencies in [2^(i-1), 2^i) us, and the last bucket everything above.
+ * Recording never allocates, so it is safe on browse hot paths. Percentiles are reported as the
+ * upper bound of the bucket they fall in, i.e. within a factor of two.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records one latency in nanoseconds. */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1_000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Another thread raised the max; retry against its value.
+        }
+    }
+
+    /** Records the time elapsed since startNanos (a {@link System#nanoTime()} value). */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMicros() {
+        long n = count.get();
+        return n > 0 ? totalNanos.get() / n / 1_000 : 0;
+    }
+
+    public long getMaxMicros() {
+        return maxNanos.get() / 1_000;
+    }
+
+    /**
+     * Returns an upper bound, in microseconds, of the given percentile (0-100) of the recorded
+     * latencies, or 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return i < BUCKET_COUNT - 1 ? 1L << i : getMaxMicros();
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /** Clears all recorded latencies. Latencies recorded concurrently may be partly kept. */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    /** Returns a one-line summary such as "n=12 mean=340us p50<=512us p99<=2048us max=1900us". */
+    public String summary() {
+        return String.format(
+                Locale.ROOT,
+                "n=%d mean=%dus p50<=%dus p90<=%dus p99<=%dus max=%dus",
+                getCount(),
+                getMeanMicros(),
+                getPercentileMicros(50),
+                getPercentileMicros(90),
+                getPercentileMicros(99),
+                getMaxMicros());
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.taautomotive.shared;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.ResolvingDataSource;
+import androidx.media3.session.MediaSession;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Playback queues that are resolved against the library only around the playing item. When a
+ * controller sets a long queue (a whole folder, "play all"), {@link #resolveQueue} resolves the
+ * items within a window of the start index and turns the rest into placeholders that keep the
+ * requested mediaId and metadata and point at a {@code ta-media:} URI. The player's data sources,
+ * wrapped by {@link #createDataSourceFactory}, resolve such a URI when it is opened, and the
+ * service swaps the placeholders near the playing item for their full items as playback moves.
+ *
+ * <p>Placeholders are played as progressive streams, like every item of the library.
+ */
+@UnstableApi
+public final class LazyQueue {
+
+    /** Resolves mediaIds against the library. */
+    public interface Resolver {
+
+        /**
+         * Returns the items for mediaIds in the same order, with null for unknown ids. Called on
+         * browse and loader threads, never on the playback thread.
+         */
+        List<MediaItem> resolve(List<String> mediaIds);
+    }
+
+    public static final String URI_SCHEME = "ta-media";
+    /** Queues up to this many items are resolved in full. */
+    public static final int DEFAULT_EAGER_LIMIT = 100;
+    /** Items resolved on each side of the start or current item. */
+    public static final int DEFAULT_WINDOW = 20;
+
+    private final Resolver resolver;
+    private final int eagerLimit;
+    private final int window;
+    /** The item the data sources resolved last; a track is opened many times while it plays. */
+    @Nullable private volatile Opened lastOpened;
+
+    private final AtomicLong placeholderCount = new AtomicLong();
+    private final AtomicLong materializedCount = new AtomicLong();
+    private final AtomicLong resolvedOnOpenCount = new AtomicLong();
+
+    public LazyQueue(Resolver resolver) {
+        this(resolver, DEFAULT_EAGER_LIMIT, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param eagerLimit longest queue that is resolved in full
+     * @param window items resolved on each side of the start or current item
+     */
+    public LazyQueue(Resolver resolver, int eagerLimit, int window) {
+        this.resolver = resolver;
+        this.eagerLimit = eagerLimit;
+        this.window = window;
+    }
+
+    /**
+     * Returns the queue to play for the requested items. Short queues are resolved in full; in
+     * longer ones only the window around startIndex is, the rest become placeholders. Items that
+     * don't resolve are dropped and the start index follows its item; if the start item itself
+     * was dropped, playback starts at the next one from its default position. Not on the
+     * playback thread.
+     */
+    public MediaSession.MediaItemsWithStartPosition resolveQueue(
+            List<MediaItem> requested, int startIndex, long startPositionMs) {
+        int size = requested.size();
+        int center = startIndex == C.INDEX_UNSET ? 0 : Math.max(0, Math.min(startIndex, size - 1));
+        int from = 0;
+        int to = size;
+        if (size > eagerLimit) {
+            from = Math.max(0, center - window);
+            to = Math.min(size, center + window + 1);
+        }
+        List<String> ids = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            ids.add(requested.get(i).mediaId);
+        }
+        List<MediaItem> resolved = resolver.resolve(ids);
+
+        List<MediaItem> queue = new ArrayList<>(size);
+        int queueStartIndex = startIndex;
+        long queueStartPositionMs = startPositionMs;
+        for (int i = 0; i < size; i++) {
+            MediaItem item =
+                    i >= from && i < to ? resolved.get(i - from) : placeholderFor(requested.get(i));
+            if (item != null) {
+                queue.add(item);
+            } else if (startIndex != C.INDEX_UNSET && i <= startIndex) {
+                if (i < startIndex) {
+                    queueStartIndex--;
+                } else {
+                    queueStartPositionMs = C.TIME_UNSET;
+                }
+            }
+        }
+        if (queue.isEmpty()) {
+            return new MediaSession.MediaItemsWithStartPosition(
+                    queue, C.INDEX_UNSET, C.TIME_UNSET);
+        }
+        if (queueStartIndex >= queue.size()) {
+            queueStartIndex = queue.size() - 1;
+            queueStartPositionMs = C.TIME_UNSET;
+        }
+        placeholderCount.addAndGet(size - (to - from));
+        return new MediaSession.MediaItemsWithStartPosition(
+                queue, queueStartIndex, queueStartPositionMs);
+    }
+
+    /**
+     * Returns the requested queue as placeholders only, without touching the library, e.g. to
+     * resume playback before the library has loaded. The start item is resolved by the data
+     * source when the player opens it, and the ones around it as playback moves.
+     */
+    public MediaSession.MediaItemsWithStartPosition deferQueue(
+            List<MediaItem> requested, int startIndex, long startPositionMs) {
+        List<MediaItem> queue = new ArrayList<>(requested.size());
+        int queueStartIndex = startIndex;
+        for (int i = 0; i < requested.size(); i++) {
+            MediaItem placeholder = placeholderFor(requested.get(i));
+            if (placeholder != null) {
+                queue.add(placeholder);
+            } else if (i < startIndex) {
+                queueStartIndex--;
+            }
+        }
+        if (queue.isEmpty()) {
+            return new MediaSession.MediaItemsWithStartPosition(
+                    queue, C.INDEX_UNSET, C.TIME_UNSET);
+        }
+        placeholderCount.addAndGet(queue.size());
+        return new MediaSession.MediaItemsWithStartPosition(
+                queue, Math.min(queueStartIndex, queue.size() - 1), startPositionMs);
+    }
+
+    /**
+     * Returns the indexes of the placeholders in the player's queue within the window around
+     * its current item. The current item is left out: replacing it would restart it, and its
+     * data source resolves it anyway. Call on the player's application thread.
+     */
+    public List<Integer> findPlaceholdersAround(Player player) {
+        int current = player.getCurrentMediaItemIndex();
+        int count = player.getMediaItemCount();
+        if (current == C.INDEX_UNSET || count <= 1) {
+            return Collections.emptyList();
+        }
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = Math.max(0, current - window); i < Math.min(count, current + window + 1); i++) {
+            if (i != current && isPlaceholder(player.getMediaItemAt(i))) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Resolves placeholders to their full items, in the same order, with null for those that
+     * are no longer in the library. Not on the playback thread.
+     */
+    public List<MediaItem> materialize(List<MediaItem> placeholders) {
+        List<String> ids = new ArrayList<>(placeholders.size());
+        for (MediaItem placeholder : placeholders) {
+            ids.add(placeholder.mediaId);
+        }
+        List<MediaItem> items = resolver.resolve(ids);
+        for (MediaItem item : items) {
+            if (item != null) {
+                materializedCount.incrementAndGet();
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Returns a factory that opens placeholder URIs as their item's real URI and cache key,
+     * through upstream, and passes every other URI straight to upstream.
+     */
+    public DataSource.Factory createDataSourceFactory(DataSource.Factory upstream) {
+        return new ResolvingDataSource.Factory(upstream, this::resolveDataSpec);
+    }
+
+    public static boolean isPlaceholder(MediaItem item) {
+        return item.localConfiguration != null
+                && URI_SCHEME.equals(item.localConfiguration.uri.getScheme());
+    }
+
+    /** Returns how many queued items were left as placeholders. */
+    public long getPlaceholderCount() {
+        return placeholderCount.get();
+    }
+
+    /** Returns how many placeholders were replaced by their full item ahead of playback. */
+    public long getMaterializedCount() {
+        return materializedCount.get();
+    }
+
+    /** Returns how many times a placeholder was resolved by the data source opening it. */
+    public long getResolvedOnOpenCount() {
+        return resolvedOnOpenCount.get();
+    }
+
+    @Nullable
+    private static MediaItem placeholderFor(MediaItem requested) {
+        if (requested.mediaId.isEmpty()) {
+            return null;
+        }
+        return new MediaItem.Builder()
+                .setMediaId(requested.mediaId)
+                .setUri(Uri.fromParts(URI_SCHEME, requested.mediaId, null))
+                .setMediaMetadata(requested.mediaMetadata)
+                .build();
+    }
+
+    /** Runs on the player's loader threads. */
+    @VisibleForTesting
+    DataSpec resolveDataSpec(DataSpec dataSpec) throws IOException {
+        if (!URI_SCHEME.equals(dataSpec.uri.getScheme())) {
+            return dataSpec;
+        }
+        String mediaId = dataSpec.uri.getSchemeSpecificPart();
+        Opened opened = lastOpened;
+        MediaItem item;
+        // Keyed by the id the placeholder asked for: the resolver may answer a legacy id with an
+        // item under its current one.
+        if (opened != null && opened.mediaId.equals(mediaId)) {
+            item = opened.item;
+        } else {
+            item = resolver.resolve(Collections.singletonList(mediaId)).get(0);
+            if (item == null || item.localConfiguration == null) {
+                throw new IOException("Queued item is not in the library: " + mediaId);
+            }
+            lastOpened = new Opened(mediaId, item);
+            resolvedOnOpenCount.incrementAndGet();
+        }
+        return dataSpec.buildUpon()
+                .setUri(item.localConfiguration.uri)
+                .setKey(MediaCache.cacheKeyOf(item))
+                .build();
+    }
+
+    /** A placeholder's mediaId and the item it resolved to. */
+    private static final class Opened {
+
+        final String mediaId;
+        final MediaItem item;
+
+        Opened(String mediaId, MediaItem item) {
+            this.mediaId = mediaId;
+            this.item = item;
+        }
+    }
+}
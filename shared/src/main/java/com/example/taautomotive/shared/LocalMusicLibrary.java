@@ -0,0 +1,348 @@
+package com.example.taautomotive.shared;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * In-memory model of the on-device music found by {@link LocalMusicScanner}, grouped as
+ * artist / album / track under the {@link DefaultFolder#LOCAL} folder. Folder mediaIds are trie
+ * paths ("local/artist/album"), track mediaIds are "local:" followed by the file path. Tracks
+ * name their own file as artwork and albums the file of the track they were created for;
+ * {@link ArtworkCache} reads the picture embedded in it.
+ *
+ * <p>The scanner thread is the only writer. Browse threads read the published, immutable child
+ * lists of each folder through the loaders installed by
+ * {@link #attachTo(MediaFolderTrie.Editor)};
+ * track changes become visible when the scanner calls {@link #publishChanges()} after a batch.
+ */
+public final class LocalMusicLibrary {
+
+    public static final String TRACK_ID_PREFIX = "local:";
+    static final String UNKNOWN_ARTIST = "Unknown artist";
+    static final String UNKNOWN_ALBUM = "Unknown album";
+
+    private static final String ROOT_PATH = DefaultFolder.LOCAL.getRoute();
+
+    private final ConcurrentSkipListMap<String, Artist> artists = new ConcurrentSkipListMap<>();
+    /** Where each track currently lives, by file path; only touched by the scanner thread. */
+    private final Map<String, Track> tracksByPath = new HashMap<>();
+    /** Albums whose track list changed since the last {@link #publishChanges()}. */
+    private final Set<Album> dirtyAlbums = new HashSet<>();
+    private final Supplier<List<MediaItem>> rootLoader = this::getArtistItems;
+
+    /**
+     * Adds or updates a track and records the mediaIds of the folders whose listing changed.
+     */
+    void putTrack(Track track, Set<String> changedFolderIds) {
+        Track previous = tracksByPath.put(track.path, track);
+        if (previous != null) {
+            removeFromAlbum(previous, changedFolderIds);
+        }
+        String artistKey = keyOf(track.artist);
+        String albumKey = keyOf(track.album);
+        Artist artist = artists.get(artistKey);
+        if (artist == null) {
+            artist = new Artist(artistKey, track.artist);
+            artists.put(artistKey, artist);
+            changedFolderIds.add(ROOT_PATH);
+        }
+        Album album = artist.albums.get(albumKey);
+        if (album == null) {
+            album = new Album(artist, albumKey, track.album, track.path);
+            artist.albums.put(albumKey, album);
+            changedFolderIds.add(artist.getId());
+        }
+        album.tracks.put(track.sortKey(), track);
+        dirtyAlbums.add(album);
+        changedFolderIds.add(album.getId());
+    }
+
+    /** Removes the track for the given file path, recording the folders whose listing changed. */
+    void removeTrack(String path, Set<String> changedFolderIds) {
+        Track previous = tracksByPath.remove(path);
+        if (previous != null) {
+            removeFromAlbum(previous, changedFolderIds);
+        }
+    }
+
+    /** Makes the changes made since the last call visible to browse threads. */
+    void publishChanges() {
+        for (Album album : dirtyAlbums) {
+            album.publish();
+        }
+        dirtyAlbums.clear();
+    }
+
+    /** Returns the paths of all tracks currently in the library. */
+    Set<String> getTrackPaths() {
+        return Collections.unmodifiableSet(tracksByPath.keySet());
+    }
+
+    Collection<Track> getTracks() {
+        return Collections.unmodifiableCollection(tracksByPath.values());
+    }
+
+    @Nullable
+    Track getTrack(String path) {
+        return tracksByPath.get(path);
+    }
+
+    /**
+     * Installs the local folder and its artist and album sub-folders in the version being
+     * built, dropping sub-folders whose artist or album no longer exists. Nodes of unchanged
+     * artists and albums are reused, so a trie diff only visits what the scan changed. Run
+     * through {@link MediaFolderTrie#update} after each published batch and when a trie is
+     * rebuilt.
+     */
+    public void attachTo(MediaFolderTrie.Editor editor) {
+        MediaFolderNode localNode = editor.getNode(ROOT_PATH);
+        if (localNode == null || localNode.getLoadChildren() != rootLoader) {
+            localNode =
+                    new MediaFolderNode(
+                            ROOT_PATH,
+                            DefaultFolder.LOCAL.getFolderItem(),
+                            rootLoader,
+                            Long.MAX_VALUE);
+        }
+        List<MediaFolderNode> artistNodes = new ArrayList<>(artists.size());
+        boolean changed = localNode.getChildren().size() != artists.size();
+        for (Artist artist : artists.values()) {
+            MediaFolderNode existing = localNode.getChild(artist.key);
+            MediaFolderNode artistNode = artist.toNode(existing);
+            changed |= artistNode != existing;
+            artistNodes.add(artistNode);
+        }
+        if (changed || editor.getNode(ROOT_PATH) != localNode) {
+            editor.putNode("", localNode.withChildren(artistNodes));
+        }
+    }
+
+    private List<MediaItem> getArtistItems() {
+        List<MediaItem> items = new ArrayList<>();
+        for (Artist artist : artists.values()) {
+            items.add(artist.getFolderItem());
+        }
+        return items;
+    }
+
+    private void removeFromAlbum(Track track, Set<String> changedFolderIds) {
+        Artist artist = artists.get(keyOf(track.artist));
+        if (artist == null) {
+            return;
+        }
+        Album album = artist.albums.get(keyOf(track.album));
+        if (album == null || album.tracks.remove(track.sortKey()) == null) {
+            return;
+        }
+        dirtyAlbums.add(album);
+        changedFolderIds.add(album.getId());
+        if (album.tracks.isEmpty()) {
+            artist.albums.remove(album.key);
+            changedFolderIds.add(artist.getId());
+            if (artist.albums.isEmpty()) {
+                artists.remove(artist.key);
+                changedFolderIds.add(ROOT_PATH);
+            }
+        }
+    }
+
+    /** Returns a trie path segment for a display name; names differing only in case merge. */
+    static String keyOf(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(c == '/' || c == '|' || c == '~' ? '_' : c);
+        }
+        return sb.toString().trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static MediaItem buildFolderItem(
+            String mediaId, String title, int mediaType, @Nullable String artworkPath) {
+        return new MediaItem.Builder()
+                .setMediaId(mediaId)
+                .setMediaMetadata(
+                        new MediaMetadata.Builder()
+                                .setIsBrowsable(true)
+                                .setIsPlayable(false)
+                                .setTitle(title)
+                                .setMediaType(mediaType)
+                                .setArtworkUri(
+                                        artworkPath != null
+                                                ? Uri.fromFile(new File(artworkPath))
+                                                : null)
+                                .build())
+                .build();
+    }
+
+    /** A scanned audio file with its fingerprint (mtime and size) and tags. */
+    static final class Track {
+
+        final String path;
+        final long lastModified;
+        final long size;
+        final String title;
+        final String artist;
+        final String album;
+        final int trackNumber;
+
+        Track(
+                String path,
+                long lastModified,
+                long size,
+                String title,
+                String artist,
+                String album,
+                int trackNumber) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.trackNumber = trackNumber;
+        }
+
+        boolean matches(File file) {
+            return file.lastModified() == lastModified && file.length() == size;
+        }
+
+        String sortKey() {
+            // Zero-padded so track 2 sorts before track 10; the path keeps keys unique.
+            return String.format(Locale.ROOT, "%06d", Math.max(trackNumber, 0))
+                    + title.toLowerCase(Locale.ROOT)
+                    + '\u0000'
+                    + path;
+        }
+
+        MediaItem toMediaItem() {
+            Uri fileUri = Uri.fromFile(new File(path));
+            return new MediaItem.Builder()
+                    .setMediaId(TRACK_ID_PREFIX + path)
+                    .setUri(fileUri)
+                    .setMediaMetadata(
+                            new MediaMetadata.Builder()
+                                    .setIsBrowsable(false)
+                                    .setIsPlayable(true)
+                                    .setTitle(title)
+                                    .setArtist(artist)
+                                    .setAlbumTitle(album)
+                                    .setTrackNumber(trackNumber > 0 ? trackNumber : null)
+                                    .setMediaType(MediaMetadata.MEDIA_TYPE_MUSIC)
+                                    .setArtworkUri(fileUri)
+                                    .build())
+                    .build();
+        }
+    }
+
+    private static final class Artist {
+
+        final String key;
+        final String name;
+        final ConcurrentSkipListMap<String, Album> albums = new ConcurrentSkipListMap<>();
+        private final MediaItem folderItem;
+
+        Artist(String key, String name) {
+            this.key = key;
+            this.name = name;
+            this.folderItem =
+                    buildFolderItem(getId(), name, MediaMetadata.MEDIA_TYPE_ARTIST, null);
+        }
+
+        String getId() {
+            return ROOT_PATH + MediaFolderTrie.PATH_SEPARATOR + key;
+        }
+
+        MediaItem getFolderItem() {
+            return folderItem;
+        }
+
+        /** Returns existing if it already lists exactly this artist's albums, else a new node. */
+        MediaFolderNode toNode(@Nullable MediaFolderNode existing) {
+            List<MediaFolderNode> albumNodes = new ArrayList<>(albums.size());
+            boolean changed =
+                    existing == null || existing.getChildren().size() != albums.size();
+            for (Album album : albums.values()) {
+                MediaFolderNode albumNode =
+                        existing != null ? existing.getChild(album.key) : null;
+                if (albumNode == null) {
+                    albumNode =
+                            new MediaFolderNode(
+                                    album.key, album.getFolderItem(), album::getTrackItems);
+                    changed = true;
+                }
+                albumNodes.add(albumNode);
+            }
+            if (!changed) {
+                return existing;
+            }
+            MediaFolderNode base =
+                    existing != null
+                            ? existing
+                            : new MediaFolderNode(key, folderItem, this::getAlbumItems);
+            return base.withChildren(albumNodes);
+        }
+
+        List<MediaItem> getAlbumItems() {
+            List<MediaItem> items = new ArrayList<>(albums.size());
+            for (Album album : albums.values()) {
+                items.add(album.getFolderItem());
+            }
+            return items;
+        }
+    }
+
+    private static final class Album {
+
+        final Artist artist;
+        final String key;
+        final String name;
+        /** Tracks by sort key; only touched by the scanner thread. */
+        final TreeMap<String, Track> tracks = new TreeMap<>();
+        private final MediaItem folderItem;
+        private volatile List<MediaItem> trackItems = Collections.emptyList();
+
+        Album(Artist artist, String key, String name, String artworkPath) {
+            this.artist = artist;
+            this.key = key;
+            this.name = name;
+            this.folderItem =
+                    buildFolderItem(getId(), name, MediaMetadata.MEDIA_TYPE_ALBUM, artworkPath);
+        }
+
+        String getId() {
+            return artist.getId() + MediaFolderTrie.PATH_SEPARATOR + key;
+        }
+
+        MediaItem getFolderItem() {
+            return folderItem;
+        }
+
+        List<MediaItem> getTrackItems() {
+            return trackItems;
+        }
+
+        /** Rebuilds the immutable track list that browse threads read. */
+        void publish() {
+            List<MediaItem> items = new ArrayList<>(tracks.size());
+            for (Track track : tracks.values()) {
+                items.add(track.toMediaItem());
+            }
+            trackItems = Collections.unmodifiableList(items);
+        }
+    }
+}
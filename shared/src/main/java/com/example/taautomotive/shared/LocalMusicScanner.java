@@ -0,0 +1,282 @@
+package com.example.taautomotive.shared;
+
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scans configured directories for audio files and feeds them into a {@link LocalMusicLibrary}.
+ *
+ * <p>Scans are incremental: every known file is fingerprinted by its modification time and size,
+ * and tags are only re-read for files whose fingerprint changed. Fingerprints and tags are
+ * persisted in a state file, so after a restart the library is rebuilt from it without reading
+ * any file. Work is done on a background thread in batches of {@link #BATCH_SIZE} files; after
+ * each batch the changed folders are published and reported to the {@link Listener}.
+ */
+public final class LocalMusicScanner {
+
+    /** Receives the mediaIds of folders whose listing changed; called on the scanner thread. */
+    public interface Listener {
+        void onFoldersChanged(Set<String> changedFolderIds);
+    }
+
+    public static final int BATCH_SIZE = 200;
+
+    private static final String TAG = "LocalMusicScanner";
+    private static final int STATE_VERSION = 1;
+    private static final String[] AUDIO_EXTENSIONS = {
+        ".mp3", ".m4a", ".aac", ".flac", ".ogg", ".opus", ".wav"
+    };
+
+    private final List<File> roots;
+    private final File stateFile;
+    private final LocalMusicLibrary library;
+    private final Listener listener;
+    private final ExecutorService executor;
+    @Nullable private Future<?> currentScan;
+
+    public LocalMusicScanner(
+            List<File> roots, File stateFile, LocalMusicLibrary library, Listener listener) {
+        this.roots = new ArrayList<>(roots);
+        this.stateFile = stateFile;
+        this.library = library;
+        this.listener = listener;
+        this.executor =
+                Executors.newSingleThreadExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "TAMusicScanner");
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        });
+    }
+
+    public LocalMusicLibrary getLibrary() {
+        return library;
+    }
+
+    /**
+     * Starts a scan in the background unless one is already running. The first scan after
+     * construction restores the persisted state before walking the directories.
+     */
+    public synchronized void scan() {
+        if (currentScan != null && !currentScan.isDone()) {
+            return;
+        }
+        boolean restore = currentScan == null;
+        currentScan =
+                executor.submit(
+                        () -> {
+                            if (restore) {
+                                restoreState();
+                            }
+                            runScan();
+                        });
+    }
+
+    /** Cancels a running scan and stops the scanner thread. */
+    public synchronized void release() {
+        if (currentScan != null) {
+            currentScan.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+
+    @WorkerThread
+    private void restoreState() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        Set<String> changed = new HashSet<>();
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != STATE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                library.putTrack(
+                        new LocalMusicLibrary.Track(
+                                in.readUTF(),
+                                in.readLong(),
+                                in.readLong(),
+                                in.readUTF(),
+                                in.readUTF(),
+                                in.readUTF(),
+                                in.readInt()),
+                        changed);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "restoreState: Ignoring unreadable scan state", e);
+        }
+        publish(changed);
+    }
+
+    @WorkerThread
+    private void runScan() {
+        long startNanos = System.nanoTime();
+        Set<String> seen = new HashSet<>();
+        Set<String> changed = new HashSet<>();
+        int inBatch = 0;
+        int reread = 0;
+        Deque<File> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            File dir = pending.pop();
+            File[] files = dir.listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    pending.push(file);
+                    continue;
+                }
+                if (!isAudioFile(file)) continue;
+                String path = file.getAbsolutePath();
+                seen.add(path);
+                LocalMusicLibrary.Track known = library.getTrack(path);
+                if (known != null && known.matches(file)) continue;
+                library.putTrack(readTrack(file), changed);
+                reread++;
+                if (++inBatch >= BATCH_SIZE) {
+                    publish(changed);
+                    changed = new HashSet<>();
+                    inBatch = 0;
+                }
+            }
+        }
+        for (String path : new ArrayList<>(library.getTrackPaths())) {
+            if (!seen.contains(path)) {
+                library.removeTrack(path, changed);
+            }
+        }
+        publish(changed);
+        if (reread > 0 || !changed.isEmpty()) {
+            saveState();
+        }
+        Log.d(TAG, "runScan: " + seen.size() + " files, " + reread + " re-read, "
+                + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+    }
+
+    private void publish(Set<String> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        library.publishChanges();
+        listener.onFoldersChanged(changed);
+    }
+
+    private static boolean isAudioFile(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : AUDIO_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static LocalMusicLibrary.Track readTrack(File file) {
+        String title = null;
+        String artist = null;
+        String album = null;
+        int trackNumber = 0;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getAbsolutePath());
+            title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+            artist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUMARTIST);
+            if (artist == null) {
+                artist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+            }
+            album = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+            trackNumber =
+                    parseTrackNumber(
+                            retriever.extractMetadata(
+                                    MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "readTrack: Could not read tags of " + file, e);
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                // Nothing left to clean up.
+            }
+        }
+        if (title == null || title.trim().isEmpty()) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            title = dot > 0 ? name.substring(0, dot) : name;
+        }
+        return new LocalMusicLibrary.Track(
+                file.getAbsolutePath(),
+                file.lastModified(),
+                file.length(),
+                title,
+                isBlank(artist) ? LocalMusicLibrary.UNKNOWN_ARTIST : artist,
+                isBlank(album) ? LocalMusicLibrary.UNKNOWN_ALBUM : album,
+                trackNumber);
+    }
+
+    /** Parses "3" or "3/12" into 3; returns 0 if absent or malformed. */
+    private static int parseTrackNumber(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+        int slash = value.indexOf('/');
+        try {
+            return Integer.parseInt((slash >= 0 ? value.substring(0, slash) : value).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isBlank(@Nullable String s) {
+        return s == null || s.trim().isEmpty();
+    }
+
+    @WorkerThread
+    private void saveState() {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(STATE_VERSION);
+            out.writeInt(library.getTracks().size());
+            for (LocalMusicLibrary.Track track : library.getTracks()) {
+                out.writeUTF(track.path);
+                out.writeLong(track.lastModified);
+                out.writeLong(track.size);
+                out.writeUTF(track.title);
+                out.writeUTF(track.artist);
+                out.writeUTF(track.album);
+                out.writeInt(track.trackNumber);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "saveState: Failed to write scan state", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(stateFile)) {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.taautomotive.shared;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.database.DatabaseProvider;
+import androidx.media3.database.StandaloneDatabaseProvider;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.DefaultDataSource;
+import androidx.media3.datasource.DefaultHttpDataSource;
+import androidx.media3.datasource.TransferListener;
+import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheDataSource;
+import androidx.media3.datasource.cache.SimpleCache;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
+import androidx.media3.exoplayer.source.MediaSource;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk-backed LRU cache for streamed tracks, bounded by a byte budget. Plugged into the player
+ * through {@link #createMediaSourceFactory()}: http(s) URIs are read through the cache, other
+ * schemes (local files, content URIs) bypass it.
+ *
+ * <p>Tracks can be pinned (e.g. favorites) so they are never evicted; pins are persisted across
+ * restarts. Hit and miss counts and byte totals are kept for diagnostics: a hit is a read served
+ * from the cache, a miss a transfer that went to the network.
+ */
+@UnstableApi
+public final class MediaCache {
+
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    private static final String CACHE_DIR = "media";
+    private static final String PREFS_NAME = "media_cache";
+    private static final String PREF_PINNED_KEYS = "pinned_keys";
+
+    private final Context context;
+    private final SimpleCache cache;
+    private final PinningLruCacheEvictor evictor;
+    private final StandaloneDatabaseProvider databaseProvider;
+    private final SharedPreferences preferences;
+    private final DefaultHttpDataSource.Factory httpDataSourceFactory;
+    private final CacheDataSource.Factory cacheDataSourceFactory;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong cacheBytesRead = new AtomicLong();
+    private final AtomicLong networkBytesRead = new AtomicLong();
+    private final AtomicLong ignoredCount = new AtomicLong();
+
+    /** Creates a cache in the app's cache directory with {@link #DEFAULT_MAX_BYTES}. */
+    public MediaCache(Context context) {
+        this(context, new File(context.getCacheDir(), CACHE_DIR), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a cache in cacheDir holding up to maxBytes of unpinned content. Only one instance
+     * may use a directory at a time; call {@link #release()} when done.
+     */
+    public MediaCache(Context context, File cacheDir, long maxBytes) {
+        this.context = context.getApplicationContext();
+        this.evictor = new PinningLruCacheEvictor(maxBytes);
+        this.preferences = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (String key : preferences.getStringSet(PREF_PINNED_KEYS, new HashSet<>())) {
+            evictor.pin(key);
+        }
+        this.databaseProvider = new StandaloneDatabaseProvider(this.context);
+        this.cache = new SimpleCache(cacheDir, evictor, databaseProvider);
+        this.httpDataSourceFactory =
+                new DefaultHttpDataSource.Factory()
+                        .setAllowCrossProtocolRedirects(true)
+                        .setTransferListener(new NetworkTransferListener());
+        this.cacheDataSourceFactory =
+                new CacheDataSource.Factory()
+                        .setCache(cache)
+                        .setUpstreamDataSourceFactory(httpDataSourceFactory)
+                        .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR)
+                        .setEventListener(new CacheEventListener());
+    }
+
+    /** Returns a factory for the player: http(s) through the cache, other schemes directly. */
+    public MediaSource.Factory createMediaSourceFactory() {
+        return new DefaultMediaSourceFactory(createDataSourceFactory());
+    }
+
+    /** Returns a data source factory that reads http(s) through the cache. */
+    public DataSource.Factory createDataSourceFactory() {
+        return new DefaultDataSource.Factory(context, cacheDataSourceFactory);
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    /** Returns the factory for cached http(s) data sources, e.g. for prefetching. */
+    public CacheDataSource.Factory getCacheDataSourceFactory() {
+        return cacheDataSourceFactory;
+    }
+
+    /** Returns the factory for uncached http data sources, counted as network reads. */
+    public DataSource.Factory getUpstreamDataSourceFactory() {
+        return httpDataSourceFactory;
+    }
+
+    /** Returns the database the cache index lives in, for other caches of this process. */
+    public DatabaseProvider getDatabaseProvider() {
+        return databaseProvider;
+    }
+
+    /** Protects the item's cached content from eviction, now and after restarts. */
+    public void pin(MediaItem item) {
+        String key = cacheKeyOf(item);
+        if (key != null) {
+            evictor.pin(key);
+            persistPins(key, true);
+        }
+    }
+
+    /** Makes the item's cached content evictable again. */
+    public void unpin(MediaItem item) {
+        String key = cacheKeyOf(item);
+        if (key != null) {
+            evictor.unpin(key);
+            persistPins(key, false);
+        }
+    }
+
+    public boolean isPinned(MediaItem item) {
+        String key = cacheKeyOf(item);
+        return key != null && evictor.isPinned(key);
+    }
+
+    /** Returns the number of bytes of the item that are cached. */
+    public long getCachedBytes(MediaItem item) {
+        String key = cacheKeyOf(item);
+        return key != null ? cache.getCachedBytes(key, 0, Long.MAX_VALUE) : 0;
+    }
+
+    /**
+     * Returns the key the item's content is cached under: its custom cache key if set, else its
+     * URI, which is what CacheDataSource uses by default.
+     */
+    @Nullable
+    public static String cacheKeyOf(MediaItem item) {
+        MediaItem.LocalConfiguration configuration = item.localConfiguration;
+        if (configuration == null) {
+            return null;
+        }
+        return configuration.customCacheKey != null
+                ? configuration.customCacheKey
+                : configuration.uri.toString();
+    }
+
+    public long getMaxBytes() {
+        return evictor.getMaxBytes();
+    }
+
+    public long getCacheSpace() {
+        return cache.getCacheSpace();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getCacheBytesRead() {
+        return cacheBytesRead.get();
+    }
+
+    public long getNetworkBytesRead() {
+        return networkBytesRead.get();
+    }
+
+    /** Returns how often the cache was bypassed, e.g. because it failed. */
+    public long getIgnoredCount() {
+        return ignoredCount.get();
+    }
+
+    public void release() {
+        cache.release();
+        databaseProvider.close();
+    }
+
+    private synchronized void persistPins(String key, boolean pinned) {
+        Set<String> keys =
+                new HashSet<>(preferences.getStringSet(PREF_PINNED_KEYS, new HashSet<>()));
+        if (pinned ? keys.add(key) : keys.remove(key)) {
+            preferences.edit().putStringSet(PREF_PINNED_KEYS, keys).apply();
+        }
+    }
+
+    private final class CacheEventListener implements CacheDataSource.EventListener {
+
+        @Override
+        public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+            hitCount.incrementAndGet();
+            cacheBytesRead.addAndGet(cachedBytesRead);
+        }
+
+        @Override
+        public void onCacheIgnored(int reason) {
+            ignoredCount.incrementAndGet();
+        }
+    }
+
+    /** Counts what the upstream http data source actually transfers. */
+    private final class NetworkTransferListener implements TransferListener {
+
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            if (isNetwork) {
+                missCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onBytesTransferred(
+                DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+            if (isNetwork) {
+                networkBytesRead.addAndGet(bytesTransferred);
+            }
+        }
+
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+    }
+}
@@ -0,0 +1,402 @@
+package com.example.taautomotive.shared;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DefaultDataSource;
+import androidx.media3.datasource.cache.CacheDataSource;
+import androidx.media3.datasource.cache.NoOpCacheEvictor;
+import androidx.media3.datasource.cache.SimpleCache;
+import androidx.media3.exoplayer.offline.Download;
+import androidx.media3.exoplayer.offline.DownloadCursor;
+import androidx.media3.exoplayer.offline.DownloadManager;
+import androidx.media3.exoplayer.offline.DownloadRequest;
+import androidx.media3.exoplayer.scheduler.Requirements;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
+import androidx.media3.exoplayer.source.MediaSource;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline copies of the tracks of folders the user marked for download. Tracks are fetched by a
+ * media3 {@link DownloadManager} into their own cache, which is never evicted, with a bounded
+ * number of parallel transfers; interrupted transfers resume from the bytes already stored and
+ * wait for a network connection. Playback reads a track from its offline copy and falls back to
+ * the streaming {@link MediaCache} for whatever is not downloaded.
+ *
+ * <p>Downloads are keyed by mediaId. Marked folders are persisted; the items of each folder are
+ * passed in by the caller, which re-syncs them when the folder's contents change. Folders are
+ * marked and unmarked on the looper of the creating thread, or the main looper if that thread
+ * has none (e.g. when created on a background thread at startup); the {@link Listener} is called
+ * there too. Status and progress can be read from any thread.
+ */
+@UnstableApi
+public final class MediaDownloads {
+
+    private static final String TAG = "MediaDownloads";
+
+    public static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 2;
+    private static final String DOWNLOAD_DIR = "downloads";
+    private static final String PREFS_NAME = "media_downloads";
+    private static final String PREF_FOLDER_IDS = "folder_ids";
+
+    /** Receives mediaIds whose download was added, changed state or was removed. */
+    public interface Listener {
+        void onDownloadStatusChanged(String mediaId);
+    }
+
+    /** Download progress of a folder or of all downloads. */
+    public static final class Progress {
+        public final int itemCount;
+        public final int completedCount;
+        public final int failedCount;
+        public final long bytesDownloaded;
+
+        Progress(int itemCount, int completedCount, int failedCount, long bytesDownloaded) {
+            this.itemCount = itemCount;
+            this.completedCount = completedCount;
+            this.failedCount = failedCount;
+            this.bytesDownloaded = bytesDownloaded;
+        }
+
+        public boolean isComplete() {
+            return completedCount == itemCount;
+        }
+    }
+
+    private final Context context;
+    private final MediaCache mediaCache;
+    private final SimpleCache downloadCache;
+    private final ExecutorService downloadExecutor;
+    private final DownloadManager downloadManager;
+    private final SharedPreferences preferences;
+    /** Latest state of every download by mediaId; completed ones included. */
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+    /** Marked folder id to the mediaIds last synced for it. */
+    private final Map<String, Set<String>> folderItems = new ConcurrentHashMap<>();
+    private final AtomicLong offlineBytesRead = new AtomicLong();
+    @Nullable private Listener listener;
+
+    /** Stores downloads in the app's no-backup directory. */
+    public MediaDownloads(Context context, MediaCache mediaCache) {
+        this(
+                context,
+                mediaCache,
+                new File(context.getNoBackupFilesDir(), DOWNLOAD_DIR),
+                DEFAULT_MAX_PARALLEL_DOWNLOADS);
+    }
+
+    /**
+     * Stores downloads in downloadDir, fetching up to maxParallelDownloads tracks at once over
+     * mediaCache's network stack. Release this before releasing mediaCache.
+     */
+    public MediaDownloads(
+            Context context, MediaCache mediaCache, File downloadDir, int maxParallelDownloads) {
+        this.context = context.getApplicationContext();
+        this.mediaCache = mediaCache;
+        this.preferences = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (String folderId : preferences.getStringSet(PREF_FOLDER_IDS, new HashSet<>())) {
+            folderItems.put(folderId, Collections.emptySet());
+        }
+        this.downloadCache =
+                new SimpleCache(
+                        downloadDir, new NoOpCacheEvictor(), mediaCache.getDatabaseProvider());
+        AtomicInteger threadCount = new AtomicInteger();
+        this.downloadExecutor =
+                Executors.newFixedThreadPool(
+                        maxParallelDownloads,
+                        runnable -> {
+                            Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "TADownload-" + threadCount.incrementAndGet());
+                            thread.setPriority(Thread.NORM_PRIORITY - 1);
+                            return thread;
+                        });
+        this.downloadManager =
+                new DownloadManager(
+                        this.context,
+                        mediaCache.getDatabaseProvider(),
+                        downloadCache,
+                        mediaCache.getUpstreamDataSourceFactory(),
+                        downloadExecutor);
+        downloadManager.setMaxParallelDownloads(maxParallelDownloads);
+        downloadManager.setRequirements(new Requirements(Requirements.NETWORK));
+        downloadManager.addListener(new DownloadListener());
+        downloadExecutor.execute(this::loadDownloads);
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns a factory for the player that reads tracks from their offline copy where there is
+     * one and through the streaming cache otherwise.
+     */
+    public MediaSource.Factory createMediaSourceFactory() {
+        return new DefaultMediaSourceFactory(createDataSourceFactory());
+    }
+
+    /**
+     * Returns a data source factory that reads tracks from their offline copy where there is one
+     * and through the streaming cache otherwise.
+     */
+    public DataSource.Factory createDataSourceFactory() {
+        CacheDataSource.Factory offlineFactory =
+                new CacheDataSource.Factory()
+                        .setCache(downloadCache)
+                        .setUpstreamDataSourceFactory(mediaCache.getCacheDataSourceFactory())
+                        // Read-only: only the download manager writes offline copies.
+                        .setCacheWriteDataSinkFactory(null)
+                        .setEventListener(new OfflineReadListener());
+        return new DefaultDataSource.Factory(context, offlineFactory);
+    }
+
+    /**
+     * Marks the folder for download and downloads those of items that are streamed and not
+     * already downloaded or downloading. Calling it again with the folder's current items syncs
+     * it. Call on the listener's looper.
+     */
+    public void markFolder(String folderId, List<MediaItem> items) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (MediaItem item : items) {
+            String key = MediaCache.cacheKeyOf(item);
+            if (key == null || !isStreamed(item)) {
+                continue;
+            }
+            ids.add(item.mediaId);
+            Download download = downloads.get(item.mediaId);
+            if (download == null || download.state == Download.STATE_FAILED) {
+                downloadManager.addDownload(
+                        new DownloadRequest.Builder(item.mediaId, item.localConfiguration.uri)
+                                .setCustomCacheKey(key)
+                                .build());
+            }
+        }
+        folderItems.put(folderId, Collections.unmodifiableSet(ids));
+        persistFolders();
+    }
+
+    /**
+     * Unmarks the folder and deletes the downloads of items unless another marked folder holds
+     * them. Call on the listener's looper.
+     */
+    public void unmarkFolder(String folderId, List<MediaItem> items) {
+        Set<String> ids = new HashSet<>();
+        Set<String> previous = folderItems.remove(folderId);
+        if (previous != null) {
+            ids.addAll(previous);
+        }
+        for (MediaItem item : items) {
+            ids.add(item.mediaId);
+        }
+        for (Set<String> kept : folderItems.values()) {
+            ids.removeAll(kept);
+        }
+        for (String id : ids) {
+            if (downloads.containsKey(id)) {
+                downloadManager.removeDownload(id);
+            }
+        }
+        persistFolders();
+    }
+
+    public boolean isMarked(String folderId) {
+        return folderItems.containsKey(folderId);
+    }
+
+    public Set<String> getMarkedFolderIds() {
+        return Collections.unmodifiableSet(new HashSet<>(folderItems.keySet()));
+    }
+
+    /** Returns the marked folders whose last synced items include mediaId. */
+    public List<String> getFoldersContaining(String mediaId) {
+        List<String> folderIds = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> entry : folderItems.entrySet()) {
+            if (entry.getValue().contains(mediaId)) {
+                folderIds.add(entry.getKey());
+            }
+        }
+        return folderIds;
+    }
+
+    /** Returns whether the item's offline copy is complete. */
+    public boolean isDownloaded(String mediaId) {
+        Download download = downloads.get(mediaId);
+        return download != null && download.state == Download.STATE_COMPLETED;
+    }
+
+    /**
+     * Returns the {@link MediaDescriptionCompat#EXTRA_DOWNLOAD_STATUS} of a track, or of a folder
+     * if folderId names a marked one: downloaded once every track is, downloading before.
+     */
+    public long getDownloadStatus(String mediaId) {
+        if (isMarked(mediaId)) {
+            return getProgress(mediaId).isComplete()
+                    ? MediaDescriptionCompat.STATUS_DOWNLOADED
+                    : MediaDescriptionCompat.STATUS_DOWNLOADING;
+        }
+        Download download = downloads.get(mediaId);
+        if (download == null) {
+            return MediaDescriptionCompat.STATUS_NOT_DOWNLOADED;
+        }
+        switch (download.state) {
+            case Download.STATE_COMPLETED:
+                return MediaDescriptionCompat.STATUS_DOWNLOADED;
+            case Download.STATE_QUEUED:
+            case Download.STATE_STOPPED:
+            case Download.STATE_DOWNLOADING:
+            case Download.STATE_RESTARTING:
+                return MediaDescriptionCompat.STATUS_DOWNLOADING;
+            default:
+                return MediaDescriptionCompat.STATUS_NOT_DOWNLOADED;
+        }
+    }
+
+    /**
+     * Returns item with its download status in the metadata extras, or item itself if it is
+     * neither downloaded nor downloading.
+     */
+    public MediaItem withDownloadStatus(MediaItem item) {
+        long status = getDownloadStatus(item.mediaId);
+        if (status == MediaDescriptionCompat.STATUS_NOT_DOWNLOADED) {
+            return item;
+        }
+        Bundle extras =
+                item.mediaMetadata.extras != null
+                        ? new Bundle(item.mediaMetadata.extras)
+                        : new Bundle();
+        extras.putLong(MediaDescriptionCompat.EXTRA_DOWNLOAD_STATUS, status);
+        return item.buildUpon()
+                .setMediaMetadata(item.mediaMetadata.buildUpon().setExtras(extras).build())
+                .build();
+    }
+
+    /** Returns the progress of the items last synced for a marked folder. */
+    public Progress getProgress(String folderId) {
+        Set<String> ids = folderItems.get(folderId);
+        return ids != null ? progressOf(ids) : new Progress(0, 0, 0, 0);
+    }
+
+    /** Returns the progress of all downloads. */
+    public Progress getProgress() {
+        return progressOf(downloads.keySet());
+    }
+
+    /** Returns the bytes the offline copies take on disk. */
+    public long getStorageBytes() {
+        return downloadCache.getCacheSpace();
+    }
+
+    /** Returns the bytes playback read from offline copies. */
+    public long getOfflineBytesRead() {
+        return offlineBytesRead.get();
+    }
+
+    /** Stops downloading; unfinished downloads resume when a new instance is created. */
+    public void release() {
+        downloadManager.release();
+        downloadExecutor.shutdownNow();
+        downloadCache.release();
+    }
+
+    private Progress progressOf(Collection<String> ids) {
+        int completed = 0;
+        int failed = 0;
+        long bytes = 0;
+        for (String id : ids) {
+            Download download = downloads.get(id);
+            if (download == null) {
+                continue;
+            }
+            if (download.state == Download.STATE_COMPLETED) {
+                completed++;
+            } else if (download.state == Download.STATE_FAILED) {
+                failed++;
+            }
+            bytes += download.getBytesDownloaded();
+        }
+        return new Progress(ids.size(), completed, failed, bytes);
+    }
+
+    private void persistFolders() {
+        preferences
+                .edit()
+                .putStringSet(PREF_FOLDER_IDS, new HashSet<>(folderItems.keySet()))
+                .apply();
+    }
+
+    /** Reads downloads, including completed ones, from the index. Runs on a download thread. */
+    private void loadDownloads() {
+        try (DownloadCursor cursor = downloadManager.getDownloadIndex().getDownloads()) {
+            while (cursor.moveToNext()) {
+                Download download = cursor.getDownload();
+                downloads.putIfAbsent(download.request.id, download);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "loadDownloads: Failed to read the download index", e);
+        }
+    }
+
+    private static boolean isStreamed(MediaItem item) {
+        String scheme = item.localConfiguration.uri.getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    private final class DownloadListener implements DownloadManager.Listener {
+
+        @Override
+        public void onDownloadChanged(
+                DownloadManager manager, Download download, @Nullable Exception finalException) {
+            Download previous = downloads.put(download.request.id, download);
+            if (finalException != null) {
+                Log.w(TAG, "Download failed: " + download.request.id, finalException);
+            }
+            // Called on state changes only; progress is read from the Download when needed.
+            if (listener != null && (previous == null || previous.state != download.state)) {
+                listener.onDownloadStatusChanged(download.request.id);
+            }
+        }
+
+        @Override
+        public void onDownloadRemoved(DownloadManager manager, Download download) {
+            downloads.remove(download.request.id);
+            if (listener != null) {
+                listener.onDownloadStatusChanged(download.request.id);
+            }
+        }
+    }
+
+    private final class OfflineReadListener implements CacheDataSource.EventListener {
+
+        @Override
+        public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+            offlineBytesRead.addAndGet(cachedBytesRead);
+        }
+
+        @Override
+        public void onCacheIgnored(int reason) {
+            // Reads fall through to the streaming cache.
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.example.taautomotive.shared;
 
 import androidx.annotation.Nullable;
 import androidx.media3.common.MediaItem;
+import com.example.taautomotive.core.MediaPaths;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -11,26 +13,88 @@ import java.util.function.Supplier;
 /**
  * A node in the media folder trie. Acts as a folder in the MediaItem tree: each node has a
  * path segment, the MediaItem it represents, a function that returns the list of MediaItems
- * when this folder is opened (loadChildren), and child nodes for sub-folders.
+ * when this folder is opened (loadChildren), and child nodes for sub-folders. A node may
+ * instead be backed by a {@link PagedChildrenSource}, in which case single pages are loaded
+ * directly from the source.
+ *
+ * <p>Nodes are immutable: {@link #withChild(MediaFolderNode)} and friends return a copy, so a
+ * tree can be read by any number of threads while a writer builds the next version of it next
+ * to it (see {@link MediaFolderTrie#update}). Unchanged subtrees are shared between versions.
  */
 public final class MediaFolderNode {
 
+    /** TTL for folders whose children must never be cached. */
+    public static final long NO_CACHE = 0;
+    /** TTL used for cached children when a folder does not specify one. */
+    public static final long DEFAULT_CHILDREN_TTL_MS = 5 * 60 * 1000L;
+
     private final String segment;
+    private final String path;
     private final MediaItem mediaItem;
     private final Supplier<List<MediaItem>> loadChildren;
+    @Nullable private final PagedChildrenSource pagedSource;
+    private final long childrenTtlMillis;
     private final Map<String, MediaFolderNode> children;
 
     public MediaFolderNode(String segment, MediaItem mediaItem, Supplier<List<MediaItem>> loadChildren) {
+        this(segment, mediaItem, loadChildren, DEFAULT_CHILDREN_TTL_MS);
+    }
+
+    /**
+     * Creates a node whose loaded children may be cached for up to childrenTtlMillis
+     * ({@link #NO_CACHE} disables caching, Long.MAX_VALUE caches until invalidated).
+     */
+    public MediaFolderNode(
+            String segment,
+            MediaItem mediaItem,
+            Supplier<List<MediaItem>> loadChildren,
+            long childrenTtlMillis) {
         this.segment = segment;
+        this.path = segment;
         this.mediaItem = mediaItem;
         this.loadChildren = loadChildren != null ? loadChildren : () -> Collections.emptyList();
-        this.children = new LinkedHashMap<>();
+        this.pagedSource = null;
+        this.childrenTtlMillis = childrenTtlMillis;
+        this.children = Collections.emptyMap();
+    }
+
+    /** Creates a node whose children are loaded page by page from the given source. */
+    public MediaFolderNode(
+            String segment,
+            MediaItem mediaItem,
+            PagedChildrenSource pagedSource,
+            long childrenTtlMillis) {
+        this.segment = segment;
+        this.path = segment;
+        this.mediaItem = mediaItem;
+        this.loadChildren = () -> pagedSource.loadPage(0, pagedSource.getChildCount());
+        this.pagedSource = pagedSource;
+        this.childrenTtlMillis = childrenTtlMillis;
+        this.children = Collections.emptyMap();
+    }
+
+    private MediaFolderNode(MediaFolderNode source, String path, Map<String, MediaFolderNode> children) {
+        this.segment = source.segment;
+        this.path = path;
+        this.mediaItem = source.mediaItem;
+        this.loadChildren = source.loadChildren;
+        this.pagedSource = source.pagedSource;
+        this.childrenTtlMillis = source.childrenTtlMillis;
+        this.children = Collections.unmodifiableMap(children);
     }
 
     public String getSegment() {
         return segment;
     }
 
+    /**
+     * Returns the "/"-separated path of this node relative to the trie root (e.g. "music"). The
+     * root's path is empty; a node that is not part of a tree returns its own segment.
+     */
+    public String getPath() {
+        return path;
+    }
+
     /** Returns the MediaItem this node represents (e.g. the folder item shown in the library). */
     public MediaItem getMediaItem() {
         return mediaItem;
@@ -48,6 +112,27 @@ public final class MediaFolderNode {
         return loadChildren;
     }
 
+    /** Returns the paged source backing this node, or null if it uses a loadChildren supplier. */
+    @Nullable
+    public PagedChildrenSource getPagedSource() {
+        return pagedSource;
+    }
+
+    /** Returns the object the children are loaded from: the paged source or the supplier. */
+    Object getChildrenSource() {
+        return pagedSource != null ? pagedSource : loadChildren;
+    }
+
+    /** Returns true if single pages of this folder can be loaded without loading all children. */
+    public boolean isPaged() {
+        return pagedSource != null;
+    }
+
+    /** Returns how long the result of {@link #loadChildren()} may be cached, in milliseconds. */
+    public long getChildrenTtlMillis() {
+        return childrenTtlMillis;
+    }
+
     /** Returns the child node for the given segment, or null if none. */
     @Nullable
     public MediaFolderNode getChild(String segment) {
@@ -56,27 +141,54 @@ public final class MediaFolderNode {
 
     /** Returns an unmodifiable view of all child nodes. */
     public Map<String, MediaFolderNode> getChildren() {
-        return Collections.unmodifiableMap(children);
+        return children;
     }
 
     /**
-     * Adds or replaces a child node for the given segment. Returns the child node.
+     * Returns a copy of this node with the given child added, or replacing the child with the
+     * same segment.
      */
-    public MediaFolderNode putChild(String segment, MediaFolderNode node) {
-        children.put(segment, node);
-        return node;
+    public MediaFolderNode withChild(MediaFolderNode child) {
+        if (children.get(child.segment) == child) {
+            return this;
+        }
+        Map<String, MediaFolderNode> copy = new LinkedHashMap<>(children);
+        copy.put(child.segment, child.relocate(childPath(path, child.segment)));
+        return new MediaFolderNode(this, path, copy);
     }
 
-    /**
-     * Gets the child for the given segment, or creates and adds one with the given
-     * loadChildren supplier if absent.
-     */
-    public MediaFolderNode getOrCreateChild(String segment, MediaItem childMediaItem, Supplier<List<MediaItem>> loadChildren) {
-        MediaFolderNode child = children.get(segment);
-        if (child == null) {
-            child = new MediaFolderNode(segment, childMediaItem, loadChildren);
-            children.put(segment, child);
+    /** Returns a copy of this node without the child for the given segment. */
+    public MediaFolderNode withoutChild(String segment) {
+        if (!children.containsKey(segment)) {
+            return this;
         }
-        return child;
+        Map<String, MediaFolderNode> copy = new LinkedHashMap<>(children);
+        copy.remove(segment);
+        return new MediaFolderNode(this, path, copy);
+    }
+
+    /** Returns a copy of this node whose children are exactly the given nodes, in order. */
+    public MediaFolderNode withChildren(Collection<MediaFolderNode> newChildren) {
+        Map<String, MediaFolderNode> copy = new LinkedHashMap<>();
+        for (MediaFolderNode child : newChildren) {
+            copy.put(child.segment, child.relocate(childPath(path, child.segment)));
+        }
+        return new MediaFolderNode(this, path, copy);
+    }
+
+    /** Returns this node, or a copy of its subtree, placed at the given path. */
+    MediaFolderNode relocate(String newPath) {
+        if (path.equals(newPath)) {
+            return this;
+        }
+        Map<String, MediaFolderNode> copy = new LinkedHashMap<>();
+        for (MediaFolderNode child : children.values()) {
+            copy.put(child.segment, child.relocate(childPath(newPath, child.segment)));
+        }
+        return new MediaFolderNode(this, newPath, copy);
+    }
+
+    static String childPath(String parentPath, String segment) {
+        return MediaPaths.childPath(parentPath, segment);
     }
 }
@@ -1,49 +1,194 @@
 package com.example.taautomotive.shared;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import androidx.media3.common.MediaItem;
+import com.example.taautomotive.core.IdIndex;
+import com.example.taautomotive.core.MediaIds;
+import com.example.taautomotive.core.MediaPaths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.function.Supplier;
-import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * Trie that acts as a folder system for MediaItems. The root and its children are populated
  * from {@link DefaultFolder}. Lookup by path (e.g. "root", "root/music") returns the
  * corresponding node whose loadChildren supplies the MediaItems for that folder.
+ *
+ * <p>The tree is copy-on-write. Readers work against the current version of immutable
+ * {@link MediaFolderNode}s without taking any lock. Writers go through {@link #update} or
+ * {@link #refresh}: their changes are applied by path copying (only the changed nodes and their
+ * ancestors are copied) and the new version is published with a single volatile write. Writers
+ * are serialized among themselves but never block readers. Each write returns the mediaIds of
+ * the folders whose listing changed, found by diffing the two versions and skipping shared
+ * subtrees.
+ *
+ * <p>Every MediaItem returned by a node's loadChildren is recorded in a mediaId index together
+ * with the path of the folder that lists it, so resolving an id is a single hash lookup. The
+ * index is kept in sync by every write; call {@link #reindex(String)} when a folder's
+ * loadChildren starts returning different items.
+ *
+ * <p>Loaded children are kept in a {@link ChildrenCache}, so paging through a folder
+ * materializes its list once; {@link #invalidateChildren(String)} drops a folder's cached list.
+ * Folders backed by a {@link PagedChildrenSource} are served page by page. Paged folders that
+ * {@link PagedChildrenSource#canFindItems() can find their items} and are {@link
+ * PagedChildrenSource#isLazilyIndexed() lazily indexed} (by default those larger than {@link
+ * #MAX_EAGERLY_INDEXED_CHILDREN}), or larger than the bound the trie was created with, are not
+ * loaded into the index; ids the index does not know are looked up through {@link
+ * PagedChildrenSource#findItem(String)} instead. Other paged folders are always indexed.
+ *
+ * <p>Item ids in the {@link MediaIds} form name the folder that lists the item, so they are
+ * resolved by walking to that folder and looking the key up in it alone, without asking every
+ * paged folder or scanning the tree while the index isn't ready.
  */
 public final class MediaFolderTrie {
 
-    public static final String PATH_SEPARATOR = "/";
+    public static final String PATH_SEPARATOR = MediaPaths.PATH_SEPARATOR;
+    /** By default, paged folders with more children than this are resolved through their source. */
+    public static final int MAX_EAGERLY_INDEXED_CHILDREN = 2_000;
 
-    private final MediaFolderNode root;
+    private final ChildrenCache childrenCache;
+    /** Paged folders with more children than this are resolved through their source. */
+    private final int maxEagerlyIndexedChildren;
+    /** Serializes writers; readers never take it. */
+    private final Object writeLock = new Object();
+    private volatile MediaFolderNode root;
+    private volatile long version;
+    private final IdIndex<IndexEntry> mediaIdIndex = new IdIndex<>();
+    /** What was indexed per folder path, to unindex it and to tell whether a reload changed it. */
+    @GuardedBy("writeLock")
+    private final Map<String, IndexedFolder> indexedFolders = new HashMap<>();
+    @GuardedBy("writeLock")
+    private final List<IndexListener> indexListeners = new ArrayList<>();
+    /**
+     * For ids listed by more than one folder, the other folders that list them, with their item,
+     * in the order they were indexed. The first takes over the entry when its owner goes away.
+     * Changed under the write lock by replacing an id's map, never by changing it, so readers
+     * resolving an item id in its own folder need no lock.
+     */
+    private final Map<String, Map<String, MediaItem>> otherListings = new ConcurrentHashMap<>();
+    /**
+     * Large paged folders by path whose source has no folder lookup, each asked for ids that are
+     * not in the index.
+     */
+    private final Map<String, MediaFolderNode> unindexedPagedNodes = new ConcurrentHashMap<>();
+    /**
+     * Paths of the other large paged folders, by source. Ids that are not in the index are looked
+     * up once per folder lookup, which names the folder, instead of once per folder.
+     */
+    private final Map<PagedChildrenSource, String> lookupFolderPaths = new ConcurrentHashMap<>();
+    /** The folder lookups of the folders in lookupFolderPaths, with how many use each. */
+    private final Map<PagedChildrenSource.FolderLookup, Integer> folderLookups =
+            new ConcurrentHashMap<>();
+    private volatile boolean indexReady;
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
 
     public MediaFolderTrie() {
-        this.root = new MediaFolderNode(
-                DefaultFolder.ROOT.getRoute(),
-                DefaultFolder.ROOT.getFolderItem(),
-                DefaultFolder.ROOT.getLoadChildren());
-        populateFromDefaultFolders();
+        this(new ChildrenCache());
     }
 
-    /** Populates the trie with one node per {@link DefaultFolder} as direct children of root. */
-    private void populateFromDefaultFolders() {
+    public MediaFolderTrie(ChildrenCache childrenCache) {
+        this(childrenCache, MAX_EAGERLY_INDEXED_CHILDREN);
+    }
+
+    /**
+     * Returns a trie that resolves the ids of paged folders with more than
+     * maxEagerlyIndexedChildren children through their source, to bound the index.
+     */
+    public MediaFolderTrie(ChildrenCache childrenCache, int maxEagerlyIndexedChildren) {
+        this(buildDefaultRoot(), childrenCache, maxEagerlyIndexedChildren);
+        indexAll();
+    }
+
+    private MediaFolderTrie(
+            MediaFolderNode root, ChildrenCache childrenCache, int maxEagerlyIndexedChildren) {
+        this.childrenCache = childrenCache;
+        this.maxEagerlyIndexedChildren = maxEagerlyIndexedChildren;
+        this.root = root.relocate("");
+    }
+
+    /**
+     * Returns a trie over an already built tree (e.g. one restored from a
+     * {@link MediaTreeSnapshot}). Its mediaId index stays empty until {@link #indexAll()} is
+     * called; until then ids are resolved by scanning the tree.
+     */
+    public static MediaFolderTrie fromRoot(MediaFolderNode root, ChildrenCache childrenCache) {
+        return fromRoot(root, childrenCache, MAX_EAGERLY_INDEXED_CHILDREN);
+    }
+
+    /**
+     * Returns a trie over an already built tree, as {@link #fromRoot(MediaFolderNode,
+     * ChildrenCache)}, that indexes paged folders of up to maxEagerlyIndexedChildren children.
+     */
+    public static MediaFolderTrie fromRoot(
+            MediaFolderNode root, ChildrenCache childrenCache, int maxEagerlyIndexedChildren) {
+        return new MediaFolderTrie(root, childrenCache, maxEagerlyIndexedChildren);
+    }
+
+    /** Builds a root with one node per {@link DefaultFolder} as its direct children. */
+    public static MediaFolderNode buildDefaultRoot() {
+        List<MediaFolderNode> folders = new ArrayList<>();
         for (DefaultFolder folder : DefaultFolder.values()) {
             if (folder.getRoute().isEmpty()) continue;
-            root.putChild(
-                    folder.getRoute(),
-                    new MediaFolderNode(
-                            folder.getRoute(),
-                            folder.getFolderItem(),
-                            folder.getLoadChildren()));
+            PagedChildrenSource pagedSource = folder.getPagedSource();
+            folders.add(
+                    pagedSource != null
+                            ? new MediaFolderNode(
+                                    folder.getRoute(),
+                                    folder.getFolderItem(),
+                                    pagedSource,
+                                    folder.getChildrenTtlMillis())
+                            : new MediaFolderNode(
+                                    folder.getRoute(),
+                                    folder.getFolderItem(),
+                                    folder.getLoadChildren(),
+                                    folder.getChildrenTtlMillis()));
+        }
+        return new MediaFolderNode(
+                        DefaultFolder.ROOT.getRoute(),
+                        DefaultFolder.ROOT.getFolderItem(),
+                        DefaultFolder.ROOT.getLoadChildren(),
+                        DefaultFolder.ROOT.getChildrenTtlMillis())
+                .withChildren(folders);
+    }
+
+    /** Indexes every folder in the trie. Loads the children of every eagerly indexed folder. */
+    public void indexAll() {
+        synchronized (writeLock) {
+            indexSubtreeLocked(root);
+            indexReady = true;
         }
     }
 
+    /** Returns true once the mediaId index covers the whole trie. */
+    public boolean isIndexReady() {
+        return indexReady;
+    }
+
+    /** Returns the root of the current version. The returned tree never changes. */
     public MediaFolderNode getRoot() {
         return root;
     }
 
+    /** Returns the number of versions published since this trie was created. */
+    public long getVersion() {
+        return version;
+    }
+
+    public ChildrenCache getChildrenCache() {
+        return childrenCache;
+    }
+
     /**
      * Returns the node at the given path, or null if not found. Path uses "/" as separator
      * (e.g. "root", "root/music", "music"). The path "root" maps to the trie root node so
@@ -51,62 +196,727 @@ public final class MediaFolderTrie {
      */
     @Nullable
     public MediaFolderNode getNode(String path) {
-        if (path == null || path.isEmpty()) {
-            return root;
+        long startNanos = System.nanoTime();
+        MediaFolderNode node = getNode(root, path);
+        lookupLatency.recordSince(startNanos);
+        return node;
+    }
+
+    @Nullable
+    private static MediaFolderNode getNode(MediaFolderNode root, String path) {
+        return MediaPaths.walk(root, path, MediaFolderNode::getChild);
+    }
+
+    /**
+     * Returns the MediaItems for the folder at the given path, or an empty list if the path
+     * does not exist.
+     */
+    public List<MediaItem> loadChildrenForPath(String path) {
+        MediaFolderNode node = getNode(path);
+        return node != null ? getChildren(node) : Collections.emptyList();
+    }
+
+    /** Returns the children of the given node, served from the children cache when fresh. */
+    public List<MediaItem> getChildren(MediaFolderNode node) {
+        return childrenCache.getOrLoad(node);
+    }
+
+    /**
+     * Returns up to limit children of the given node starting at offset. For paged nodes only
+     * that page is loaded from the source.
+     */
+    public List<MediaItem> getChildrenPage(MediaFolderNode node, int offset, int limit) {
+        return childrenCache.getOrLoadPage(node, offset, limit);
+    }
+
+    /** Returns the number of children of the given node. */
+    public int getChildCount(MediaFolderNode node) {
+        PagedChildrenSource source = node.getPagedSource();
+        return source != null ? source.getChildCount() : getChildren(node).size();
+    }
+
+    /**
+     * Applies the editor's changes and publishes them as a new version. Returns the mediaIds of
+     * the folders that were added, removed, or whose folder item or listing changed. Only
+     * folders the changes touched are reloaded.
+     */
+    public List<String> update(Consumer<Editor> changes) {
+        return write(changes, false);
+    }
+
+    /**
+     * Same as {@link #update}, but afterwards reloads every folder, so changes behind unchanged
+     * nodes (e.g. a loadChildren that now returns different items) are reported too.
+     */
+    public List<String> refresh(Consumer<Editor> changes) {
+        return write(changes, true);
+    }
+
+    private List<String> write(Consumer<Editor> changes, boolean reloadAll) {
+        synchronized (writeLock) {
+            MediaFolderNode oldRoot = root;
+            Editor editor = new Editor(oldRoot);
+            changes.accept(editor);
+            MediaFolderNode newRoot = editor.root;
+            if (newRoot == oldRoot && !reloadAll) {
+                return Collections.emptyList();
+            }
+            root = newRoot;
+            version++;
+            List<String> changed = new ArrayList<>();
+            diffLocked(oldRoot, newRoot, reloadAll, changed);
+            return changed;
         }
-        String normalized = path.startsWith(PATH_SEPARATOR) ? path.substring(1) : path;
-        if (normalized.isEmpty()) {
-            return root;
+    }
+
+    /**
+     * Brings the index and cache of the subtree in line with the new version and collects the
+     * folders that changed. Subtrees shared by both versions are skipped unless reloadAll.
+     */
+    @GuardedBy("writeLock")
+    private void diffLocked(
+            @Nullable MediaFolderNode oldNode,
+            @Nullable MediaFolderNode newNode,
+            boolean reloadAll,
+            List<String> changed) {
+        if (oldNode == newNode && !reloadAll) {
+            return;
         }
-        if ("root".equals(normalized)) {
-            return root;
+        if (oldNode == null || newNode == null) {
+            if (newNode != null) {
+                indexSubtreeLocked(newNode);
+            } else {
+                unindexSubtreeLocked(oldNode);
+            }
+            changed.add((newNode != null ? newNode : oldNode).getMediaItem().mediaId);
+            return;
         }
-        String[] segments = normalized.split(PATH_SEPARATOR);
-        MediaFolderNode current = root;
-        for (String segment : segments) {
-            if (segment.isEmpty()) continue;
-            current = current.getChild(segment);
-            if (current == null) {
-                return null;
+        boolean listingChanged = reindexLocked(newNode);
+        if (listingChanged || !sameItem(oldNode.getMediaItem(), newNode.getMediaItem())) {
+            changed.add(newNode.getMediaItem().mediaId);
+        }
+        for (Map.Entry<String, MediaFolderNode> child : oldNode.getChildren().entrySet()) {
+            diffLocked(child.getValue(), newNode.getChild(child.getKey()), reloadAll, changed);
+        }
+        for (Map.Entry<String, MediaFolderNode> child : newNode.getChildren().entrySet()) {
+            if (oldNode.getChild(child.getKey()) == null) {
+                diffLocked(null, child.getValue(), reloadAll, changed);
             }
         }
-        return current;
     }
 
     /**
-     * Returns the MediaItems for the folder at the given path, or an empty list if the path
-     * does not exist.
+     * Drops the cached children of the folder at the given path and re-indexes it, so the next
+     * request loads fresh items. Returns the new child count, or -1 if the path does not exist.
      */
-    public List<MediaItem> loadChildrenForPath(String path) {
-        MediaFolderNode node = getNode(path);
-        return node != null ? node.loadChildren() : Collections.emptyList();
+    public int invalidateChildren(String path) {
+        MediaFolderNode node;
+        synchronized (writeLock) {
+            node = getNode(path);
+            if (node == null) {
+                return -1;
+            }
+            reindexLocked(node);
+        }
+        return getChildCount(node);
     }
 
     /**
      * Returns the MediaItem with the given mediaId if it appears in any node's loadChildren()
-     * (i.e. it is reachable from the trie), or null otherwise.
+     * (i.e. it is reachable from the trie), or null otherwise. Served from the mediaId index.
      */
     @Nullable
     public MediaItem findMediaItemById(String mediaId) {
+        IndexEntry entry = findIndexEntry(mediaId);
+        return entry != null ? entry.getMediaItem() : null;
+    }
+
+    /**
+     * Looks up many mediaIds at once and returns their items in the same order, with null for
+     * ids that are not reachable from the trie. Ids the index doesn't hold cost one scan of the
+     * tree for the whole batch rather than one per id, so resolving a large folder or queue
+     * stays linear; {@link MediaIds item ids} are looked up in their folder and never scanned
+     * for. Records one lookup latency sample for the batch.
+     */
+    public List<MediaItem> findMediaItemsById(List<String> mediaIds) {
+        long startNanos = System.nanoTime();
+        MediaItem[] items = new MediaItem[mediaIds.size()];
+        Set<String> missing = mediaIdIndex.getAll(mediaIds, IndexEntry::getMediaItem, items);
+        if (!missing.isEmpty()) {
+            Map<String, MediaItem> found = new HashMap<>();
+            for (Iterator<String> it = missing.iterator(); it.hasNext(); ) {
+                String mediaId = it.next();
+                int parentPathEnd = MediaIds.parentPathEnd(mediaId);
+                if (parentPathEnd < 0) {
+                    continue;
+                }
+                MediaFolderNode folder = getItemFolder(mediaId, parentPathEnd);
+                String key = mediaId.substring(parentPathEnd + 1);
+                IndexEntry entry =
+                        folder != null ? findInFolder(folder, key) : findLegacyEntry(key);
+                // Ids that don't resolve as item ids may still be legacy ids.
+                if (entry != null) {
+                    found.put(mediaId, entry.getMediaItem());
+                    it.remove();
+                }
+            }
+            if (!indexReady && !missing.isEmpty()) {
+                findItemsByScan(root, missing, found);
+            } else {
+                for (String mediaId : missing) {
+                    IndexEntry entry = findUnindexedEntry(mediaId);
+                    if (entry != null) {
+                        found.put(mediaId, entry.getMediaItem());
+                    }
+                }
+            }
+            for (int i = 0; i < items.length; i++) {
+                if (items[i] == null && mediaIds.get(i) != null) {
+                    items[i] = found.get(mediaIds.get(i));
+                }
+            }
+        }
+        lookupLatency.recordSince(startNanos);
+        return Arrays.asList(items);
+    }
+
+    /** Returns the path of the folder that lists the given mediaId, or null if unknown. */
+    @Nullable
+    public String findParentPath(String mediaId) {
+        IndexEntry entry = findIndexEntry(mediaId);
+        return entry != null ? entry.getParentPath() : null;
+    }
+
+    @Nullable
+    public IndexEntry findIndexEntry(String mediaId) {
         if (mediaId == null || mediaId.isEmpty()) {
             return null;
         }
-        return findMediaItemByIdRecursive(root, mediaId);
+        long startNanos = System.nanoTime();
+        IndexEntry entry = findIndexEntryUntimed(mediaId);
+        lookupLatency.recordSince(startNanos);
+        return entry;
     }
 
     @Nullable
-    private static MediaItem findMediaItemByIdRecursive(MediaFolderNode node, String mediaId) {
-        for (MediaItem item : node.loadChildren()) {
+    private IndexEntry findIndexEntryUntimed(String mediaId) {
+        int parentPathEnd = MediaIds.parentPathEnd(mediaId);
+        if (parentPathEnd >= 0) {
+            MediaFolderNode folder = getItemFolder(mediaId, parentPathEnd);
+            String key = mediaId.substring(parentPathEnd + 1);
+            if (folder != null) {
+                // Once the folder is known, the item is not looked for in other folders
+                IndexEntry entry = findInFolder(folder, key);
+                if (entry != null) {
+                    return entry;
+                }
+            } else {
+                // The folder is gone, but the item may have moved to another one.
+                IndexEntry moved = findLegacyEntry(key);
+                if (moved != null) {
+                    return moved;
+                }
+            }
+        }
+        // Legacy ids may contain the separator too
+        return findLegacyEntry(mediaId);
+    }
+
+    /**
+     * Resolves an id that doesn't name its folder: in the index, then by scanning the tree while
+     * the index isn't ready, or else by asking the paged folders that aren't indexed.
+     */
+    @Nullable
+    private IndexEntry findLegacyEntry(String mediaId) {
+        IndexEntry entry = mediaIdIndex.get(mediaId);
+        if (entry == null && !indexReady) {
+            return findIndexEntryByScan(root, mediaId);
+        }
+        return entry != null ? entry : findUnindexedEntry(mediaId);
+    }
+
+    /**
+     * Asks the large paged folders left out of the index for an id: each folder lookup once, so
+     * the folders of a catalog cost one probe together, then each folder without a lookup.
+     */
+    @Nullable
+    private IndexEntry findUnindexedEntry(String mediaId) {
+        for (PagedChildrenSource.FolderLookup lookup : folderLookups.keySet()) {
+            PagedChildrenSource source = lookup.findFolder(mediaId);
+            String path = source != null ? lookupFolderPaths.get(source) : null;
+            MediaItem item = path != null ? source.findItem(mediaId) : null;
+            if (item != null) {
+                return new IndexEntry(item, path);
+            }
+        }
+        for (Map.Entry<String, MediaFolderNode> paged : unindexedPagedNodes.entrySet()) {
+            MediaItem item = paged.getValue().getPagedSource().findItem(mediaId);
+            if (item != null) {
+                return new IndexEntry(item, paged.getKey());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the key of an item id in the folder its id names: in the index if the folder owns
+     * the key, else among the folder's listings of keys other folders own, the folder's paged
+     * source or, while the index isn't ready, the folder's own children.
+     */
+    @Nullable
+    private IndexEntry findInFolder(MediaFolderNode folder, String key) {
+        String path = folder.getPath();
+        IndexEntry entry = mediaIdIndex.get(key);
+        if (entry != null) {
+            if (entry.getParentPath().equals(path)) {
+                return entry;
+            }
+            Map<String, MediaItem> others = otherListings.get(key);
+            MediaItem listed = others != null ? others.get(path) : null;
+            if (listed != null) {
+                return new IndexEntry(listed, path);
+            }
+        }
+        PagedChildrenSource source = folder.getPagedSource();
+        if (isLazilyIndexed(source)) {
+            MediaItem item = source.findItem(key);
+            return item != null ? new IndexEntry(item, path) : null;
+        }
+        if (!indexReady) {
+            for (MediaItem item : getChildren(folder)) {
+                if (key.equals(item.mediaId)) {
+                    return new IndexEntry(item, path);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns the folder named by the folder part of an item id, or null if there is none. */
+    @Nullable
+    private MediaFolderNode getItemFolder(String itemId, int parentPathEnd) {
+        return MediaPaths.walk(root, itemId, parentPathEnd, MediaFolderNode::getChild);
+    }
+
+    /** Compares the fields a browser displays; MediaItem.equals also compares extras. */
+    static boolean sameItem(MediaItem a, MediaItem b) {
+        return a.mediaId.equals(b.mediaId)
+                && Objects.equals(uriOf(a), uriOf(b))
+                && Objects.equals(textOf(a.mediaMetadata.title), textOf(b.mediaMetadata.title))
+                && Objects.equals(textOf(a.mediaMetadata.artist), textOf(b.mediaMetadata.artist))
+                && Objects.equals(
+                        textOf(a.mediaMetadata.albumTitle), textOf(b.mediaMetadata.albumTitle))
+                && Objects.equals(a.mediaMetadata.artworkUri, b.mediaMetadata.artworkUri);
+    }
+
+    @Nullable
+    private static String uriOf(MediaItem item) {
+        return item.localConfiguration != null ? item.localConfiguration.uri.toString() : null;
+    }
+
+    @Nullable
+    private static String textOf(@Nullable CharSequence text) {
+        return text != null ? text.toString() : null;
+    }
+
+    @Nullable
+    private IndexEntry findIndexEntryByScan(MediaFolderNode node, String mediaId) {
+        for (MediaItem item : getChildren(node)) {
             if (mediaId.equals(item.mediaId)) {
-                return item;
+                return new IndexEntry(item, node.getPath());
             }
         }
         for (MediaFolderNode child : node.getChildren().values()) {
-            MediaItem found = findMediaItemByIdRecursive(child, mediaId);
+            IndexEntry found = findIndexEntryByScan(child, mediaId);
             if (found != null) {
                 return found;
             }
         }
         return null;
     }
+
+    /** Moves the first item listed for each id in missing into found, in one pass. */
+    private void findItemsByScan(
+            MediaFolderNode node, Set<String> missing, Map<String, MediaItem> found) {
+        for (MediaItem item : getChildren(node)) {
+            if (missing.remove(item.mediaId)) {
+                found.put(item.mediaId, item);
+            }
+        }
+        for (MediaFolderNode child : node.getChildren().values()) {
+            if (missing.isEmpty()) {
+                return;
+            }
+            findItemsByScan(child, missing, found);
+        }
+    }
+
+    /** Returns the latency of path lookups and mediaId lookups. */
+    public LatencyHistogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    /** Returns the number of mediaIds currently in the index. */
+    public int getIndexSize() {
+        return mediaIdIndex.size();
+    }
+
+    /**
+     * Reloads the children of the folder at the given path and refreshes their index entries.
+     * Returns false if the path does not exist.
+     */
+    public boolean reindex(String path) {
+        synchronized (writeLock) {
+            MediaFolderNode node = getNode(path);
+            if (node == null) {
+                return false;
+            }
+            reindexLocked(node);
+            return true;
+        }
+    }
+
+    /**
+     * Registers a listener for index changes. The listener is first told about every folder
+     * that is already indexed.
+     */
+    public void addIndexListener(IndexListener listener) {
+        synchronized (writeLock) {
+            Map<String, List<MediaItem>> itemsByPath = new HashMap<>();
+            for (IndexEntry entry : mediaIdIndex.values()) {
+                List<MediaItem> items = itemsByPath.get(entry.getParentPath());
+                if (items == null) {
+                    items = new ArrayList<>();
+                    itemsByPath.put(entry.getParentPath(), items);
+                }
+                items.add(entry.getMediaItem());
+            }
+            for (Map.Entry<String, List<MediaItem>> folder : itemsByPath.entrySet()) {
+                listener.onFolderIndexed(folder.getKey(), folder.getValue());
+            }
+            indexListeners.add(listener);
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void indexSubtreeLocked(MediaFolderNode node) {
+        indexNodeLocked(node);
+        for (MediaFolderNode child : node.getChildren().values()) {
+            indexSubtreeLocked(child);
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void unindexSubtreeLocked(MediaFolderNode node) {
+        childrenCache.invalidate(node.getPath());
+        unindexNodeLocked(node.getPath());
+        for (MediaFolderNode child : node.getChildren().values()) {
+            unindexSubtreeLocked(child);
+        }
+    }
+
+    /** Reloads and re-indexes one folder; returns true if its listing differs from before. */
+    @GuardedBy("writeLock")
+    private boolean reindexLocked(MediaFolderNode node) {
+        childrenCache.invalidate(node.getPath());
+        IndexedFolder previous = indexedFolders.get(node.getPath());
+        IndexedFolder current = indexNodeLocked(node);
+        return previous == null || !previous.sameListing(current);
+    }
+
+    @GuardedBy("writeLock")
+    private IndexedFolder indexNodeLocked(MediaFolderNode node) {
+        String path = node.getPath();
+        unindexNodeLocked(path);
+        PagedChildrenSource source = node.getPagedSource();
+        if (isLazilyIndexed(source)) {
+            addUnindexedLocked(path, node, source);
+            IndexedFolder folder =
+                    new IndexedFolder(
+                            source, source.getChildCount(), null, null, Collections.emptyList());
+            indexedFolders.put(path, folder);
+            return folder;
+        }
+        List<MediaItem> items = getChildren(node);
+        List<String> ids = new ArrayList<>(items.size());
+        List<String> sharedIds = new ArrayList<>();
+        List<MediaItem> indexed = new ArrayList<>(items.size());
+        for (MediaItem item : items) {
+            if (item.mediaId.isEmpty()) continue;
+            // The first folder to list an id owns its entry; the others wait to take it over.
+            IndexEntry owner = mediaIdIndex.putIfAbsent(item.mediaId, new IndexEntry(item, path));
+            if (owner == null) {
+                ids.add(item.mediaId);
+                indexed.add(item);
+            } else if (!owner.getParentPath().equals(path)
+                    && putOtherListingLocked(item.mediaId, path, item)) {
+                sharedIds.add(item.mediaId);
+            }
+        }
+        IndexedFolder folder =
+                new IndexedFolder(node.getChildrenSource(), items.size(), items, ids, sharedIds);
+        indexedFolders.put(path, folder);
+        for (IndexListener listener : indexListeners) {
+            listener.onFolderIndexed(path, indexed);
+        }
+        return folder;
+    }
+
+    /**
+     * Returns whether source is left out of the index: if it says so, or if it can find its
+     * items and is larger than this trie's bound. Sources that can't find their items are always
+     * indexed, or their ids would not resolve.
+     */
+    boolean isLazilyIndexed(@Nullable PagedChildrenSource source) {
+        return source != null
+                && (source.isLazilyIndexed()
+                        || (source.canFindItems()
+                                && source.getChildCount() > maxEagerlyIndexedChildren));
+    }
+
+    @GuardedBy("writeLock")
+    private void unindexNodeLocked(String path) {
+        unindexedPagedNodes.remove(path);
+        IndexedFolder folder = indexedFolders.remove(path);
+        if (folder == null) {
+            return;
+        }
+        if (folder.ownedIds == null) {
+            removeLookupFolderLocked(path, (PagedChildrenSource) folder.source);
+            return;
+        }
+        for (String id : folder.sharedIds) {
+            removeOtherListingLocked(id, path);
+        }
+        // Ids other folders still list move to the first of them instead of being dropped
+        Map<String, List<MediaItem>> handedOver = new LinkedHashMap<>();
+        for (String id : folder.ownedIds) {
+            Map<String, MediaItem> others = otherListings.get(id);
+            if (others == null) {
+                mediaIdIndex.remove(id);
+                continue;
+            }
+            Map.Entry<String, MediaItem> heir = others.entrySet().iterator().next();
+            removeOtherListingLocked(id, heir.getKey());
+            mediaIdIndex.put(id, new IndexEntry(heir.getValue(), heir.getKey()));
+            indexedFolders.get(heir.getKey()).ownedIds.add(id);
+            List<MediaItem> heirItems = handedOver.get(heir.getKey());
+            if (heirItems == null) {
+                heirItems = new ArrayList<>();
+                handedOver.put(heir.getKey(), heirItems);
+            }
+            heirItems.add(heir.getValue());
+        }
+        for (IndexListener listener : indexListeners) {
+            listener.onFolderUnindexed(path, folder.ownedIds);
+            for (Map.Entry<String, List<MediaItem>> heir : handedOver.entrySet()) {
+                listener.onFolderIndexed(heir.getKey(), heir.getValue());
+            }
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void addUnindexedLocked(String path, MediaFolderNode node, PagedChildrenSource source) {
+        PagedChildrenSource.FolderLookup lookup = source.getFolderLookup();
+        if (lookup == null) {
+            unindexedPagedNodes.put(path, node);
+        } else if (lookupFolderPaths.put(source, path) == null) {
+            folderLookups.merge(lookup, 1, Integer::sum);
+        }
+    }
+
+    @GuardedBy("writeLock")
+    private void removeLookupFolderLocked(String path, PagedChildrenSource source) {
+        PagedChildrenSource.FolderLookup lookup = source.getFolderLookup();
+        if (lookup != null && lookupFolderPaths.remove(source, path)) {
+            folderLookups.computeIfPresent(lookup, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /** Records that the folder at path also lists id; returns false if it already did. */
+    @GuardedBy("writeLock")
+    private boolean putOtherListingLocked(String id, String path, MediaItem item) {
+        Map<String, MediaItem> others = otherListings.get(id);
+        LinkedHashMap<String, MediaItem> copy =
+                others != null ? new LinkedHashMap<>(others) : new LinkedHashMap<>();
+        boolean added = copy.put(path, item) == null;
+        otherListings.put(id, Collections.unmodifiableMap(copy));
+        return added;
+    }
+
+    @GuardedBy("writeLock")
+    private void removeOtherListingLocked(String id, String path) {
+        Map<String, MediaItem> others = otherListings.get(id);
+        if (others == null || !others.containsKey(path)) {
+            return;
+        }
+        if (others.size() == 1) {
+            otherListings.remove(id);
+            return;
+        }
+        LinkedHashMap<String, MediaItem> copy = new LinkedHashMap<>(others);
+        copy.remove(path);
+        otherListings.put(id, Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * Builds the next version of the tree. Every change copies the path from the root to the
+     * changed node; nothing is visible to readers until the write that owns the editor returns.
+     */
+    public static final class Editor {
+
+        private MediaFolderNode root;
+
+        Editor(MediaFolderNode root) {
+            this.root = root;
+        }
+
+        /** Returns the root of the version being built. */
+        public MediaFolderNode getRoot() {
+            return root;
+        }
+
+        /** Returns the node at the given path in the version being built, or null. */
+        @Nullable
+        public MediaFolderNode getNode(String path) {
+            return MediaFolderTrie.getNode(root, path);
+        }
+
+        /** Replaces the whole tree. */
+        public void setRoot(MediaFolderNode newRoot) {
+            root = newRoot.relocate("");
+        }
+
+        /**
+         * Adds child under the folder at parentPath, replacing any child with the same segment.
+         * Returns false if there is no such folder.
+         */
+        public boolean putNode(String parentPath, MediaFolderNode child) {
+            return replaceNode(parentPath, parent -> parent.withChild(child));
+        }
+
+        /** Removes the node at the given path. Returns false if there is no such node. */
+        public boolean removeNode(String path) {
+            List<String> segments = MediaPaths.segmentsOf(path);
+            if (segments.isEmpty()) {
+                return false;
+            }
+            String segment = segments.get(segments.size() - 1);
+            MediaFolderNode newRoot =
+                    copyPath(
+                            root,
+                            segments.subList(0, segments.size() - 1),
+                            0,
+                            parent -> parent.withoutChild(segment));
+            if (newRoot == null || newRoot == root) {
+                return false;
+            }
+            root = newRoot;
+            return true;
+        }
+
+        /**
+         * Replaces the node at the given path with change applied to it. Returns false if there
+         * is no such node.
+         */
+        public boolean replaceNode(String path, UnaryOperator<MediaFolderNode> change) {
+            MediaFolderNode newRoot = copyPath(root, MediaPaths.segmentsOf(path), 0, change);
+            if (newRoot == null) {
+                return false;
+            }
+            root = newRoot.relocate("");
+            return true;
+        }
+
+        @Nullable
+        private static MediaFolderNode copyPath(
+                MediaFolderNode node,
+                List<String> segments,
+                int depth,
+                UnaryOperator<MediaFolderNode> change) {
+            if (depth == segments.size()) {
+                return change.apply(node);
+            }
+            MediaFolderNode child = node.getChild(segments.get(depth));
+            if (child == null) {
+                return null;
+            }
+            MediaFolderNode newChild = copyPath(child, segments, depth + 1, change);
+            return newChild != null ? node.withChild(newChild) : null;
+        }
+    }
+
+    /**
+     * Notified, under the trie's write lock, when the items of a folder enter or leave the
+     * mediaId index. Large paged folders that are not indexed eagerly are not reported.
+     */
+    public interface IndexListener {
+
+        void onFolderIndexed(String path, List<MediaItem> items);
+
+        void onFolderUnindexed(String path, List<String> mediaIds);
+    }
+
+    /** A MediaItem in the index together with the path of the folder that lists it. */
+    public static final class IndexEntry {
+
+        private final MediaItem mediaItem;
+        private final String parentPath;
+
+        IndexEntry(MediaItem mediaItem, String parentPath) {
+            this.mediaItem = mediaItem;
+            this.parentPath = parentPath;
+        }
+
+        public MediaItem getMediaItem() {
+            return mediaItem;
+        }
+
+        public String getParentPath() {
+            return parentPath;
+        }
+    }
+
+    /**
+     * The listing a folder had when it was indexed, and the ids it owns in the index. Large
+     * paged folders keep only their source and count.
+     */
+    private static final class IndexedFolder {
+
+        final Object source;
+        final int count;
+        @Nullable final List<MediaItem> items;
+        /** Ids whose entry points at this folder; grows as it takes over ids from others. */
+        @Nullable final List<String> ownedIds;
+        /** Ids this folder lists that another folder owned when it was indexed. */
+        final List<String> sharedIds;
+
+        IndexedFolder(
+                Object source,
+                int count,
+                @Nullable List<MediaItem> items,
+                @Nullable List<String> ownedIds,
+                List<String> sharedIds) {
+            this.source = source;
+            this.count = count;
+            this.items = items;
+            this.ownedIds = ownedIds;
+            this.sharedIds = sharedIds;
+        }
+
+        boolean sameListing(IndexedFolder other) {
+            if (count != other.count) {
+                return false;
+            }
+            if (items == null || other.items == null) {
+                return source == other.source;
+            }
+            for (int i = 0; i < count; i++) {
+                if (!sameItem(items.get(i), other.items.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,252 @@
+package com.example.taautomotive.shared;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheDataSource;
+import androidx.media3.datasource.cache.CacheWriter;
+import androidx.media3.datasource.cache.ContentMetadata;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the first bytes of the tracks the user is likely to play next into the {@link
+ * MediaCache}, so tapping one starts from disk instead of waiting for a connection and a buffer
+ * fill. Targets are the playable items of the folder being browsed or the next items of the
+ * queue; each call to {@link #preload} replaces the previous targets and cancels their transfer.
+ *
+ * <p>Bounded in memory and bandwidth: one item is fetched at a time through a single reused
+ * buffer, at most {@code bytesPerItem} per item and throttled to {@code maxBytesPerSecond}, so
+ * it never competes hard with the playing track.
+ */
+@UnstableApi
+public final class MediaPreloader {
+
+    private static final String TAG = "MediaPreloader";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    public static final int DEFAULT_MAX_ITEMS = 3;
+    /** About 6 s of a 320 kbit/s stream. */
+    public static final long DEFAULT_BYTES_PER_ITEM = 256 * 1024;
+    /** 2 Mbit/s, well under a typical cellular link. */
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 256 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final MediaCache mediaCache;
+    private final int maxItems;
+    private final long bytesPerItem;
+    private final long maxBytesPerSecond;
+    /** Single thread, so the buffer below is never shared and only one transfer runs. */
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "TAPreload");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private final Object lock = new Object();
+    /** Incremented by every {@link #preload} and {@link #cancel}; older runs stop when it moves. */
+    private long generation;
+    private List<String> targetKeys = Collections.emptyList();
+    @Nullable private CacheWriter activeWriter;
+
+    private final AtomicLong preloadedCount = new AtomicLong();
+    private final AtomicLong preloadedBytes = new AtomicLong();
+    private final AtomicLong alreadyCachedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public MediaPreloader(MediaCache mediaCache) {
+        this(mediaCache, DEFAULT_MAX_ITEMS, DEFAULT_BYTES_PER_ITEM, DEFAULT_MAX_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @param maxItems number of items of each target list that are preloaded
+     * @param bytesPerItem bytes written from the start of each item
+     * @param maxBytesPerSecond network rate the preloader is throttled to
+     */
+    public MediaPreloader(
+            MediaCache mediaCache, int maxItems, long bytesPerItem, long maxBytesPerSecond) {
+        this.mediaCache = mediaCache;
+        this.maxItems = maxItems;
+        this.bytesPerItem = bytesPerItem;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Preloads the first playable http(s) items of candidates, in order, replacing whatever was
+     * being preloaded. Passing the same targets again keeps the running transfer; passing none
+     * just cancels. May be called from any thread.
+     */
+    public void preload(List<MediaItem> candidates) {
+        List<MediaItem> items = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (MediaItem item : candidates) {
+            if (items.size() == maxItems) {
+                break;
+            }
+            String key = isStreamed(item) ? MediaCache.cacheKeyOf(item) : null;
+            if (key != null) {
+                items.add(item);
+                keys.add(key);
+            }
+        }
+        long runGeneration;
+        synchronized (lock) {
+            if (keys.equals(targetKeys)) {
+                return;
+            }
+            runGeneration = cancelLocked();
+            targetKeys = keys;
+        }
+        if (!items.isEmpty()) {
+            executor.execute(() -> run(runGeneration, items));
+        }
+    }
+
+    /** Stops preloading, e.g. when the user navigates away from the targets. */
+    public void cancel() {
+        synchronized (lock) {
+            cancelLocked();
+            targetKeys = Collections.emptyList();
+        }
+    }
+
+    /**
+     * Returns whether the start of item is in the cache, up to what the preloader would have
+     * fetched, i.e. whether playing it now would start without the network.
+     */
+    public boolean isPreloaded(MediaItem item) {
+        String key = MediaCache.cacheKeyOf(item);
+        if (key == null || !isStreamed(item)) {
+            return false;
+        }
+        Cache cache = mediaCache.getCache();
+        long wanted = bytesPerItem;
+        long contentLength = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+        if (contentLength >= 0) {
+            wanted = Math.min(wanted, contentLength);
+        }
+        return cache.isCached(key, 0, wanted);
+    }
+
+    public void release() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    /** Returns how many items had their start written to the cache. */
+    public long getPreloadedCount() {
+        return preloadedCount.get();
+    }
+
+    /** Returns the bytes fetched from the network by the preloader. */
+    public long getPreloadedBytes() {
+        return preloadedBytes.get();
+    }
+
+    /** Returns how many targets were skipped because their start was already cached. */
+    public long getAlreadyCachedCount() {
+        return alreadyCachedCount.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private long cancelLocked() {
+        if (activeWriter != null) {
+            activeWriter.cancel();
+            activeWriter = null;
+        }
+        return ++generation;
+    }
+
+    /** Runs on the preload thread. */
+    private void run(long runGeneration, List<MediaItem> items) {
+        CacheDataSource dataSource =
+                mediaCache.getCacheDataSourceFactory().createDataSourceForDownloading();
+        for (MediaItem item : items) {
+            if (isPreloaded(item)) {
+                alreadyCachedCount.incrementAndGet();
+                continue;
+            }
+            String key = MediaCache.cacheKeyOf(item);
+            DataSpec dataSpec =
+                    new DataSpec.Builder()
+                            .setUri(item.localConfiguration.uri)
+                            .setPosition(0)
+                            .setLength(bytesPerItem)
+                            .setKey(key)
+                            .build();
+            Throttle throttle = new Throttle();
+            CacheWriter writer = new CacheWriter(dataSource, dataSpec, buffer, throttle);
+            synchronized (lock) {
+                if (generation != runGeneration) {
+                    return;
+                }
+                activeWriter = writer;
+            }
+            try {
+                writer.cache();
+                preloadedCount.incrementAndGet();
+                if (DEBUG) Log.d(TAG, "Preloaded " + throttle.newBytes + " bytes of " + key);
+            } catch (InterruptedIOException e) {
+                cancelledCount.incrementAndGet();
+                return;
+            } catch (IOException | RuntimeException e) {
+                // Playback will report the error if the user picks the item; try the next one.
+                failedCount.incrementAndGet();
+                Log.w(TAG, "Failed to preload " + key, e);
+            } finally {
+                preloadedBytes.addAndGet(throttle.newBytes);
+                synchronized (lock) {
+                    if (activeWriter == writer) {
+                        activeWriter = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isStreamed(MediaItem item) {
+        if (item.localConfiguration == null) {
+            return false;
+        }
+        String scheme = item.localConfiguration.uri.getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    /** Sleeps the preload thread whenever its transfer gets ahead of the allowed rate. */
+    private final class Throttle implements CacheWriter.ProgressListener {
+
+        private final long startMs = SystemClock.elapsedRealtime();
+        private long newBytes;
+
+        @Override
+        public void onProgress(long requestLength, long bytesCached, long newBytesCached) {
+            newBytes += newBytesCached;
+            long dueMs = startMs + newBytes * 1_000 / maxBytesPerSecond;
+            long aheadMs = dueMs - SystemClock.elapsedRealtime();
+            if (aheadMs > 0) {
+                SystemClock.sleep(aheadMs);
+            }
+        }
+    }
+}
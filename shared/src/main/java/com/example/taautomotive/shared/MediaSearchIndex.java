@@ -0,0 +1,331 @@
+package com.example.taautomotive.shared;
+
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over the title, artist and album of library items, used to answer
+ * search queries without walking the trie or calling any folder's loadChildren.
+ *
+ * <p>Tokens are lower-cased, accent-folded runs of letters and digits. Every query token must
+ * match the start of some token of an item (the last query token may be a partial word); items
+ * are ranked by field weight, exact-word matches and shorter titles. If no item matches every
+ * query token, items matching the most tokens are returned instead. The index is fed by
+ * {@link MediaFolderTrie} as folders are indexed and unindexed.
+ */
+public final class MediaSearchIndex implements MediaFolderTrie.IndexListener {
+
+    private static final int WEIGHT_TITLE = 4;
+    private static final int WEIGHT_ARTIST = 2;
+    private static final int WEIGHT_ALBUM = 1;
+    /** Extra weight for a whole-word match over a prefix match. */
+    private static final int EXACT_BONUS = 2;
+    /** Fraction of removed documents after which postings are compacted. */
+    private static final float COMPACT_THRESHOLD = 0.25f;
+    private static final int MAX_CACHED_QUERIES = 16;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Documents by doc id; null marks a removed document. */
+    private final List<MediaItem> docs = new ArrayList<>();
+    private final Map<String, Integer> docIdsByMediaId = new HashMap<>();
+    private final NavigableMap<String, Postings> postings = new TreeMap<>();
+    private int removedDocs;
+    /** Results of recent queries; cleared whenever the index changes. */
+    private final Map<String, List<MediaItem>> recentResults =
+            new LinkedHashMap<String, List<MediaItem>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<MediaItem>> eldest) {
+                    return size() > MAX_CACHED_QUERIES;
+                }
+            };
+
+    /** Adds or replaces the given items in the index. */
+    public void addAll(List<MediaItem> items) {
+        lock.writeLock().lock();
+        try {
+            clearRecentResults();
+            for (MediaItem item : items) {
+                removeLocked(item.mediaId);
+                int docId = docs.size();
+                docs.add(item);
+                docIdsByMediaId.put(item.mediaId, docId);
+                MediaMetadata metadata = item.mediaMetadata;
+                addField(docId, metadata.title, WEIGHT_TITLE);
+                addField(docId, metadata.artist, WEIGHT_ARTIST);
+                addField(docId, metadata.albumTitle, WEIGHT_ALBUM);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Removes the items with the given mediaIds from the index. */
+    public void removeAll(List<String> mediaIds) {
+        lock.writeLock().lock();
+        try {
+            clearRecentResults();
+            for (String mediaId : mediaIds) {
+                removeLocked(mediaId);
+            }
+            if (removedDocs > COMPACT_THRESHOLD * docs.size()) {
+                compactLocked();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onFolderIndexed(String path, List<MediaItem> items) {
+        addAll(items);
+    }
+
+    @Override
+    public void onFolderUnindexed(String path, List<String> mediaIds) {
+        removeAll(mediaIds);
+    }
+
+    /** Returns the number of items in the index. */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docIdsByMediaId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #search(String, int)}, but reuses the result of a recent identical query
+     * if the index has not changed since. Lets result pages be served without re-searching.
+     */
+    public List<MediaItem> searchCached(String query, int maxResults) {
+        String key = maxResults + ":" + query;
+        synchronized (recentResults) {
+            List<MediaItem> cached = recentResults.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        lock.readLock().lock();
+        try {
+            List<MediaItem> results = Collections.unmodifiableList(search(query, maxResults));
+            // Still under the read lock, so no write can have cleared the cache in between.
+            synchronized (recentResults) {
+                recentResults.put(key, results);
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns up to maxResults items matching the query, best match first. */
+    public List<MediaItem> search(String query, int maxResults) {
+        List<String> queryTokens = tokenize(query);
+        if (queryTokens.isEmpty() || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            // Per-query state is kept only for the documents that match, not for every doc id.
+            Map<Integer, Match> matches = new HashMap<>();
+            for (int t = 0; t < queryTokens.size(); t++) {
+                String token = queryTokens.get(t);
+                // Every token starting with the query token, including the token itself.
+                for (Map.Entry<String, Postings> entry :
+                        postings.subMap(token, true, token + Character.MAX_VALUE, true)
+                                .entrySet()) {
+                    boolean exact = entry.getKey().length() == token.length();
+                    Postings p = entry.getValue();
+                    for (int i = 0; i < p.size; i++) {
+                        int docId = p.docIds[i];
+                        if (docs.get(docId) == null) continue;
+                        Match match = matches.get(docId);
+                        if (match == null) {
+                            match = new Match(docId);
+                            matches.put(docId, match);
+                        }
+                        if (match.lastToken != t) {
+                            match.lastToken = t;
+                            match.matchedTokens++;
+                        }
+                        match.score += p.weights[i] * (exact ? EXACT_BONUS : 1);
+                    }
+                }
+            }
+            int bestMatch = 0;
+            for (Match match : matches.values()) {
+                bestMatch = Math.max(bestMatch, match.matchedTokens);
+            }
+            List<Match> results = new ArrayList<>();
+            for (Match match : matches.values()) {
+                if (match.matchedTokens == bestMatch) {
+                    results.add(match);
+                }
+            }
+            Collections.sort(
+                    results,
+                    (a, b) -> {
+                        if (a.score != b.score) {
+                            return Integer.compare(b.score, a.score);
+                        }
+                        int byLength = Integer.compare(titleLength(a.docId), titleLength(b.docId));
+                        // Equal ranks keep the order the items were indexed in.
+                        return byLength != 0 ? byLength : Integer.compare(a.docId, b.docId);
+                    });
+            int count = Math.min(maxResults, results.size());
+            List<MediaItem> items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                items.add(docs.get(results.get(i).docId));
+            }
+            return items;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Splits text into lower-cased, accent-folded tokens of letters and digits. */
+    static List<String> tokenize(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return Collections.emptyList();
+        }
+        String folded =
+                Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            char c = i < folded.length() ? folded.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(stripMarks(folded, start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String stripMarks(String s, int start, int end) {
+        StringBuilder sb = null;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                if (sb == null) {
+                    sb = new StringBuilder(s.substring(start, i));
+                }
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb != null ? sb.toString() : s.substring(start, end);
+    }
+
+    /** Drops the results kept for recent queries; the index itself stays. */
+    public void clearRecentResults() {
+        synchronized (recentResults) {
+            recentResults.clear();
+        }
+    }
+
+    private int titleLength(int docId) {
+        CharSequence title = docs.get(docId).mediaMetadata.title;
+        return title != null ? title.length() : Integer.MAX_VALUE;
+    }
+
+    private void addField(int docId, CharSequence value, int weight) {
+        for (String token : tokenize(value)) {
+            Postings p = postings.get(token);
+            if (p == null) {
+                p = new Postings();
+                postings.put(token, p);
+            }
+            p.add(docId, weight);
+        }
+    }
+
+    private void removeLocked(String mediaId) {
+        Integer docId = docIdsByMediaId.remove(mediaId);
+        if (docId != null) {
+            docs.set(docId, null);
+            removedDocs++;
+        }
+    }
+
+    /** Rebuilds the postings without removed documents. */
+    private void compactLocked() {
+        List<MediaItem> live = new ArrayList<>(docIdsByMediaId.size());
+        for (MediaItem item : docs) {
+            if (item != null) {
+                live.add(item);
+            }
+        }
+        docs.clear();
+        docIdsByMediaId.clear();
+        postings.clear();
+        removedDocs = 0;
+        for (MediaItem item : live) {
+            int docId = docs.size();
+            docs.add(item);
+            docIdsByMediaId.put(item.mediaId, docId);
+            addField(docId, item.mediaMetadata.title, WEIGHT_TITLE);
+            addField(docId, item.mediaMetadata.artist, WEIGHT_ARTIST);
+            addField(docId, item.mediaMetadata.albumTitle, WEIGHT_ALBUM);
+        }
+    }
+
+    /** How well one document matches the query being searched. */
+    private static final class Match {
+
+        final int docId;
+        int matchedTokens;
+        int score;
+        /** Index of the last query token that matched, so each counts once. */
+        int lastToken = -1;
+
+        Match(int docId) {
+            this.docId = docId;
+        }
+    }
+
+    /** Doc ids containing a token, with the summed field weight per doc. */
+    private static final class Postings {
+
+        int[] docIds = new int[4];
+        int[] weights = new int[4];
+        int size;
+
+        void add(int docId, int weight) {
+            // Fields of one document are added consecutively, so a repeat is always the last.
+            if (size > 0 && docIds[size - 1] == docId) {
+                weights[size - 1] += weight;
+                return;
+            }
+            if (size == docIds.length) {
+                docIds = Arrays.copyOf(docIds, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            docIds[size] = docId;
+            weights[size] = weight;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.taautomotive.shared;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for the session callbacks of {@link TAMediaLibraryService}, measured from
+ * the callback being invoked until its future completes. Lower-level numbers (trie lookups,
+ * loadChildren durations, cache hits, queue sizes) are kept by the components themselves and
+ * collected by the service when it dumps. Also records how long startup took to reach each
+ * {@link StartupStage}, e.g. the time to serve the library root.
+ */
+public final class MediaServiceMetrics {
+
+    /** Session callbacks whose latency is recorded. */
+    public enum Callback {
+        GET_LIBRARY_ROOT("onGetLibraryRoot"),
+        GET_ITEM("onGetItem"),
+        GET_CHILDREN("onGetChildren"),
+        ADD_MEDIA_ITEMS("onAddMediaItems"),
+        SET_MEDIA_ITEMS("onSetMediaItems"),
+        PLAYBACK_RESUMPTION("onPlaybackResumption"),
+        SEARCH("onSearch"),
+        GET_SEARCH_RESULT("onGetSearchResult");
+
+        private final String label;
+
+        Callback(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Points of service startup whose time since onCreate is recorded, once each. */
+    public enum StartupStage {
+        SESSION_READY("session ready"),
+        ROOT_SERVED("time to root"),
+        LIBRARY_LOADED("library loaded"),
+        FIRST_CHILDREN_SERVED("first children page"),
+        PLAYER_CREATED("player created");
+
+        private final String label;
+
+        StartupStage(String label) {
+            this.label = label;
+        }
+    }
+
+    private final AtomicLongArray startupNanos = newStartupNanos();
+    private final LatencyHistogram[] callbackLatencies =
+            new LatencyHistogram[Callback.values().length];
+    private final LatencyHistogram resolveLatency = new LatencyHistogram();
+    private final LatencyHistogram tapToAudioPreloaded = new LatencyHistogram();
+    private final LatencyHistogram tapToAudioCold = new LatencyHistogram();
+
+    private static AtomicLongArray newStartupNanos() {
+        AtomicLongArray nanos = new AtomicLongArray(StartupStage.values().length);
+        for (int i = 0; i < nanos.length(); i++) {
+            nanos.set(i, -1);
+        }
+        return nanos;
+    }
+
+    public MediaServiceMetrics() {
+        for (int i = 0; i < callbackLatencies.length; i++) {
+            callbackLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram get(Callback callback) {
+        return callbackLatencies[callback.ordinal()];
+    }
+
+    /**
+     * Latency of resolving mediaIds: a single one in onGetItem, or a whole batch in
+     * onAddMediaItems, onSetMediaItems and queue materialization.
+     */
+    public LatencyHistogram getResolveLatency() {
+        return resolveLatency;
+    }
+
+    /**
+     * Time from onAddMediaItems until audio is playing, split by whether the first item's start
+     * was already cached by {@link MediaPreloader}.
+     */
+    public LatencyHistogram getTapToAudioLatency(boolean preloaded) {
+        return preloaded ? tapToAudioPreloaded : tapToAudioCold;
+    }
+
+    /**
+     * Records that startup reached stage now, sinceNanos after onCreate started. Only the first
+     * time is kept; returns whether this call recorded it.
+     */
+    public boolean recordStartup(StartupStage stage, long sinceNanos) {
+        long elapsedNanos = Math.max(0, System.nanoTime() - sinceNanos);
+        return startupNanos.compareAndSet(stage.ordinal(), -1, elapsedNanos);
+    }
+
+    /** Returns the time from onCreate to stage in nanoseconds, or -1 if not reached yet. */
+    public long getStartupNanos(StartupStage stage) {
+        return startupNanos.get(stage.ordinal());
+    }
+
+    /** Records the callback's latency once future completes, however it completes. */
+    public <T> ListenableFuture<T> time(
+            Callback callback, long startNanos, ListenableFuture<T> future) {
+        LatencyHistogram histogram = get(callback);
+        if (future.isDone()) {
+            histogram.recordSince(startNanos);
+        } else {
+            future.addListener(
+                    () -> histogram.recordSince(startNanos), MoreExecutors.directExecutor());
+        }
+        return future;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : callbackLatencies) {
+            histogram.reset();
+        }
+        resolveLatency.reset();
+        tapToAudioPreloaded.reset();
+        tapToAudioCold.reset();
+    }
+
+    /** Prints the time each reached startup stage took since onCreate; not cleared by reset. */
+    public void dumpStartup(PrintWriter writer) {
+        for (StartupStage stage : StartupStage.values()) {
+            long nanos = getStartupNanos(stage);
+            writer.print("  ");
+            writer.print(stage.label);
+            writer.print(": ");
+            writer.println(nanos < 0 ? "not reached" : nanos / 1_000_000 + " ms");
+        }
+    }
+
+    /** Prints one line per histogram. */
+    public void dump(PrintWriter writer) {
+        for (Callback callback : Callback.values()) {
+            printHistogram(writer, callback.label, get(callback));
+        }
+        printHistogram(writer, "resolveMediaItem", resolveLatency);
+        printHistogram(writer, "tap-to-audio (preloaded)", tapToAudioPreloaded);
+        printHistogram(writer, "tap-to-audio (cold)", tapToAudioCold);
+    }
+
+    static void printHistogram(PrintWriter writer, String label, LatencyHistogram histogram) {
+        writer.print("  ");
+        writer.print(label);
+        writer.print(": ");
+        writer.println(histogram.summary());
+    }
+}
@@ -0,0 +1,391 @@
+package com.example.taautomotive.shared;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Compact, versioned binary snapshot of a {@link MediaFolderTrie}: its nodes, their folder items
+ * and their child listings. A snapshot is written after a successful library load and
+ * memory-mapped on the next start, so the first root and page requests are served without
+ * running any folder's loadChildren. Child listings are decoded from the mapped file one page at
+ * a time.
+ *
+ * <p>Folders the trie leaves out of its index, such as catalog and history folders, are kept in
+ * their own stores already. Their listings are stored by reference, by folder mediaId only, and
+ * served on read from whatever source the reader resolves that mediaId to.
+ *
+ * <p>Layout (all ints big-endian, strings as varint length + UTF-8 bytes):
+ * <pre>
+ * header:    magic, version, nodeCount, directoryOffset
+ * items:     item records (mediaId, uri, title, artist, album, artwork uri, flags)
+ * tables:    per node, the absolute offset of each of its item records
+ * directory: per node in pre-order: parent index + 1, segment, folder item record,
+ *            item count, item table offset (or -1 for a listing stored by reference)
+ * </pre>
+ */
+public final class MediaTreeSnapshot {
+
+    private static final int MAGIC = 0x54414d54; // "TAMT"
+    /** Bump whenever the layout changes; snapshots of other versions are ignored. */
+    static final int VERSION = 3;
+    private static final int HEADER_SIZE = 16;
+    private static final int BY_REFERENCE = -1;
+
+    private static final int FLAG_BROWSABLE = 1;
+    private static final int FLAG_PLAYABLE = 1 << 1;
+
+    private MediaTreeSnapshot() {}
+
+    /** Writes a snapshot of the trie to file, replacing it atomically. */
+    public static void write(MediaFolderTrie trie, File file) throws IOException {
+        List<MediaFolderNode> nodes = new ArrayList<>();
+        List<Integer> parentIndexes = new ArrayList<>();
+        collectPreOrder(trie.getRoot(), -1, nodes, parentIndexes);
+
+        Output out = new Output();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(nodes.size());
+        out.writeInt(0); // directory offset, patched below
+        List<int[]> itemOffsets = new ArrayList<>(nodes.size());
+        for (MediaFolderNode node : nodes) {
+            if (trie.isLazilyIndexed(node.getPagedSource())) {
+                itemOffsets.add(null);
+                continue;
+            }
+            List<MediaItem> items = trie.getChildrenPage(node, 0, trie.getChildCount(node));
+            int[] offsets = new int[items.size()];
+            for (int i = 0; i < items.size(); i++) {
+                offsets[i] = out.size();
+                writeItem(out, items.get(i));
+            }
+            itemOffsets.add(offsets);
+        }
+        int[] tableOffsets = new int[nodes.size()];
+        for (int n = 0; n < nodes.size(); n++) {
+            if (itemOffsets.get(n) == null) {
+                tableOffsets[n] = BY_REFERENCE;
+                continue;
+            }
+            tableOffsets[n] = out.size();
+            for (int offset : itemOffsets.get(n)) {
+                out.writeInt(offset);
+            }
+        }
+        int directoryOffset = out.size();
+        for (int n = 0; n < nodes.size(); n++) {
+            MediaFolderNode node = nodes.get(n);
+            out.writeVarint(parentIndexes.get(n) + 1);
+            out.writeString(node.getSegment());
+            writeItem(out, node.getMediaItem());
+            out.writeVarint(itemOffsets.get(n) != null ? itemOffsets.get(n).length : 0);
+            out.writeInt(tableOffsets[n]);
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer.wrap(bytes).putInt(12, directoryOffset);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(bytes);
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace snapshot " + file);
+        }
+    }
+
+    /**
+     * Maps the snapshot file and returns a trie whose folders are served from it, or null if the
+     * file is missing or was written with a different version. The returned trie's mediaId
+     * index is empty until {@link MediaFolderTrie#indexAll()} is called. Folders stored by
+     * reference have no children.
+     */
+    @Nullable
+    public static MediaFolderTrie read(File file, ChildrenCache childrenCache) throws IOException {
+        return read(file, childrenCache, MediaFolderTrie.MAX_EAGERLY_INDEXED_CHILDREN, id -> null);
+    }
+
+    /**
+     * Same as {@link #read(File, ChildrenCache)}, for a trie that indexes paged folders of up to
+     * maxEagerlyIndexedChildren children. Folders stored by reference are served from the source
+     * references returns for their mediaId, looked up on each use so it may be registered after
+     * the read; they have no children while it returns null.
+     */
+    @Nullable
+    public static MediaFolderTrie read(
+            File file,
+            ChildrenCache childrenCache,
+            int maxEagerlyIndexedChildren,
+            Function<String, PagedChildrenSource> references)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        int nodeCount = buffer.getInt(8);
+        if (nodeCount <= 0) {
+            return null;
+        }
+        Input in = new Input(buffer, buffer.getInt(12));
+        MediaFolderNode[] nodes = new MediaFolderNode[nodeCount];
+        int[] parentIndexes = new int[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            parentIndexes[n] = in.readVarint() - 1;
+            String segment = in.readString();
+            MediaItem folderItem = readItem(in);
+            int itemCount = in.readVarint();
+            int tableOffset = in.readInt();
+            PagedChildrenSource source =
+                    tableOffset == BY_REFERENCE
+                            ? new ReferencedChildrenSource(folderItem.mediaId, references)
+                            : new SnapshotChildrenSource(buffer, tableOffset, itemCount);
+            nodes[n] = new MediaFolderNode(segment, folderItem, source, Long.MAX_VALUE);
+        }
+        // Nodes are immutable, so build bottom-up: in pre-order every child follows its parent.
+        List<List<MediaFolderNode>> children = new ArrayList<>(nodeCount);
+        for (int n = 0; n < nodeCount; n++) {
+            children.add(new ArrayList<>());
+        }
+        for (int n = nodeCount - 1; n >= 0; n--) {
+            List<MediaFolderNode> nodeChildren = children.get(n);
+            if (!nodeChildren.isEmpty()) {
+                Collections.reverse(nodeChildren);
+                nodes[n] = nodes[n].withChildren(nodeChildren);
+            }
+            if (parentIndexes[n] >= 0) {
+                children.get(parentIndexes[n]).add(nodes[n]);
+            }
+        }
+        return MediaFolderTrie.fromRoot(nodes[0], childrenCache, maxEagerlyIndexedChildren);
+    }
+
+    private static void collectPreOrder(
+            MediaFolderNode node,
+            int parentIndex,
+            List<MediaFolderNode> out,
+            List<Integer> parentIndexes) {
+        int index = out.size();
+        out.add(node);
+        parentIndexes.add(parentIndex);
+        for (MediaFolderNode child : node.getChildren().values()) {
+            collectPreOrder(child, index, out, parentIndexes);
+        }
+    }
+
+    private static void writeItem(Output out, MediaItem item) {
+        MediaMetadata metadata = item.mediaMetadata;
+        out.writeString(item.mediaId);
+        out.writeString(
+                item.localConfiguration != null ? item.localConfiguration.uri.toString() : "");
+        out.writeString(metadata.title);
+        out.writeString(metadata.artist);
+        out.writeString(metadata.albumTitle);
+        out.writeString(metadata.artworkUri != null ? metadata.artworkUri.toString() : "");
+        int flags = 0;
+        if (Boolean.TRUE.equals(metadata.isBrowsable)) flags |= FLAG_BROWSABLE;
+        if (Boolean.TRUE.equals(metadata.isPlayable)) flags |= FLAG_PLAYABLE;
+        out.writeVarint(flags);
+    }
+
+    private static MediaItem readItem(Input in) {
+        String mediaId = in.readString();
+        String uri = in.readString();
+        String title = in.readString();
+        String artist = in.readString();
+        String album = in.readString();
+        String artwork = in.readString();
+        int flags = in.readVarint();
+        MediaMetadata.Builder metadata =
+                new MediaMetadata.Builder()
+                        .setIsBrowsable((flags & FLAG_BROWSABLE) != 0)
+                        .setIsPlayable((flags & FLAG_PLAYABLE) != 0);
+        if (!title.isEmpty()) metadata.setTitle(title);
+        if (!artist.isEmpty()) metadata.setArtist(artist);
+        if (!album.isEmpty()) metadata.setAlbumTitle(album);
+        if (!artwork.isEmpty()) metadata.setArtworkUri(Uri.parse(artwork));
+        MediaItem.Builder item =
+                new MediaItem.Builder().setMediaId(mediaId).setMediaMetadata(metadata.build());
+        if (!uri.isEmpty()) {
+            item.setUri(uri);
+        }
+        return item.build();
+    }
+
+    /** Child listing of one snapshot node, decoded from the mapped file on demand. */
+    private static final class SnapshotChildrenSource implements PagedChildrenSource {
+
+        private final ByteBuffer buffer;
+        private final int tableOffset;
+        private final int count;
+
+        SnapshotChildrenSource(ByteBuffer buffer, int tableOffset, int count) {
+            this.buffer = buffer;
+            this.tableOffset = tableOffset;
+            this.count = count;
+        }
+
+        @Override
+        public int getChildCount() {
+            return count;
+        }
+
+        @Override
+        public List<MediaItem> loadPage(int offset, int limit) {
+            if (offset < 0 || offset >= count || limit <= 0) {
+                return Collections.emptyList();
+            }
+            int end = (int) Math.min((long) offset + limit, count);
+            List<MediaItem> page = new ArrayList<>(end - offset);
+            for (int i = offset; i < end; i++) {
+                page.add(readItem(new Input(buffer, buffer.getInt(tableOffset + 4 * i))));
+            }
+            return page;
+        }
+    }
+
+    /** Child listing of a folder stored by reference, served from the source it resolves to. */
+    private static final class ReferencedChildrenSource implements PagedChildrenSource {
+
+        private static final PagedChildrenSource NO_CHILDREN = PagedChildrenSource.of(0, i -> null);
+
+        private final String mediaId;
+        private final Function<String, PagedChildrenSource> references;
+
+        ReferencedChildrenSource(String mediaId, Function<String, PagedChildrenSource> references) {
+            this.mediaId = mediaId;
+            this.references = references;
+        }
+
+        private PagedChildrenSource current() {
+            PagedChildrenSource source = references.apply(mediaId);
+            return source != null ? source : NO_CHILDREN;
+        }
+
+        @Override
+        public int getChildCount() {
+            return current().getChildCount();
+        }
+
+        @Override
+        public List<MediaItem> loadPage(int offset, int limit) {
+            return current().loadPage(offset, limit);
+        }
+
+        @Nullable
+        @Override
+        public MediaItem findItem(String mediaId) {
+            return current().findItem(mediaId);
+        }
+
+        @Override
+        public boolean canFindItems() {
+            return current().canFindItems();
+        }
+
+        @Override
+        public boolean isLazilyIndexed() {
+            return current().isLazilyIndexed();
+        }
+    }
+
+    /** Growable byte output with varint and string helpers. */
+    private static final class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(64 * 1024);
+        }
+
+        void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        void writeVarint(int v) {
+            while ((v & ~0x7f) != 0) {
+                write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+        }
+
+        void writeString(@Nullable CharSequence s) {
+            byte[] bytes =
+                    s != null ? s.toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Cursor over the mapped buffer. Uses absolute reads only, so several threads can decode
+     * from the same buffer concurrently.
+     */
+    private static final class Input {
+
+        private final ByteBuffer buffer;
+        private int position;
+
+        Input(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        int readInt() {
+            int v = buffer.getInt(position);
+            position += 4;
+            return v;
+        }
+
+        int readVarint() {
+            int result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                result |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+
+        String readString() {
+            int length = readVarint();
+            if (length == 0) {
+                return "";
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(position + i);
+            }
+            position += length;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
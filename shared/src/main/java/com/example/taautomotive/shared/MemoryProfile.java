@@ -0,0 +1,149 @@
+package com.example.taautomotive.shared;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import java.util.Locale;
+
+/**
+ * How much memory the service may hold: the player's buffer durations and size, the bounds of
+ * the children cache and the mediaId index, and the in-memory artwork tier. Chosen once, when the
+ * service is created, by {@link #select}.
+ *
+ * <p>Under memory pressure the service sheds caches in stages of increasing cost, see {@link
+ * #trimStageOf}; the player's buffer is never shed, since playback would stall.
+ */
+@UnstableApi
+public enum MemoryProfile {
+
+    /** ExoPlayer's and the library's defaults. */
+    STANDARD(
+            "standard",
+            DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
+            DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
+            DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS,
+            DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS,
+            C.LENGTH_UNSET,
+            ChildrenCache.DEFAULT_MAX_ITEMS,
+            MediaFolderTrie.MAX_EAGERLY_INDEXED_CHILDREN,
+            ArtworkCache.DEFAULT_MEMORY_BYTES),
+
+    /**
+     * For head units with a tight RAM budget. Buffers 15 to 30 s of audio, and never more than
+     * 2 MiB (about 50 s at 320 kbit/s), instead of ExoPlayer's 12.5 MiB audio target; caches a
+     * tenth of the children and resolves folders of more than 200 items through their source.
+     */
+    LOW("low", 15_000, 30_000, 1_500, 3_000, 2 * 1024 * 1024, 2_000, 200, 1024 * 1024);
+
+    /** Stage of {@link #trimStageOf} that drops the in-memory artwork and search results. */
+    public static final int TRIM_RECENT = 1;
+    /** Stage that also trims the children cache to a quarter and stops preloading. */
+    public static final int TRIM_MOST = 2;
+    /** Stage that drops every cache that can be rebuilt. */
+    public static final int TRIM_ALL = 3;
+
+    /** Without an explicit profile, devices whose apps get at most this heap use {@link #LOW}. */
+    static final int LOW_MEMORY_CLASS_MB = 128;
+
+    private final String name;
+    public final int minBufferMs;
+    public final int maxBufferMs;
+    public final int bufferForPlaybackMs;
+    public final int bufferForPlaybackAfterRebufferMs;
+    /** Bound on the player's buffer, or {@link C#LENGTH_UNSET} for ExoPlayer's default. */
+    public final int targetBufferBytes;
+    public final int childrenCacheItems;
+    public final int maxEagerlyIndexedChildren;
+    public final long artworkMemoryBytes;
+
+    MemoryProfile(
+            String name,
+            int minBufferMs,
+            int maxBufferMs,
+            int bufferForPlaybackMs,
+            int bufferForPlaybackAfterRebufferMs,
+            int targetBufferBytes,
+            int childrenCacheItems,
+            int maxEagerlyIndexedChildren,
+            long artworkMemoryBytes) {
+        this.name = name;
+        this.minBufferMs = minBufferMs;
+        this.maxBufferMs = maxBufferMs;
+        this.bufferForPlaybackMs = bufferForPlaybackMs;
+        this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+        this.targetBufferBytes = targetBufferBytes;
+        this.childrenCacheItems = childrenCacheItems;
+        this.maxEagerlyIndexedChildren = maxEagerlyIndexedChildren;
+        this.artworkMemoryBytes = artworkMemoryBytes;
+    }
+
+    /** Returns the name the profile is selected by, e.g. in the service's meta-data. */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns a load control that buffers as this profile allows. */
+    public DefaultLoadControl createLoadControl() {
+        return new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(
+                        minBufferMs,
+                        maxBufferMs,
+                        bufferForPlaybackMs,
+                        bufferForPlaybackAfterRebufferMs)
+                .setTargetBufferBytes(targetBufferBytes)
+                .build();
+    }
+
+    /** Returns a children cache bounded as this profile allows. */
+    public ChildrenCache createChildrenCache() {
+        return new ChildrenCache(childrenCacheItems);
+    }
+
+    /**
+     * Returns the profile named by configured ("standard" or "low"); if there is none, {@link
+     * #LOW} on low-RAM devices and those whose apps get at most {@link #LOW_MEMORY_CLASS_MB} of
+     * heap, else {@link #STANDARD}.
+     */
+    public static MemoryProfile select(Context context, @Nullable String configured) {
+        if (configured != null) {
+            for (MemoryProfile profile : values()) {
+                if (profile.name.equals(configured.trim().toLowerCase(Locale.ROOT))) {
+                    return profile;
+                }
+            }
+        }
+        ActivityManager activityManager = context.getSystemService(ActivityManager.class);
+        if (activityManager != null
+                && (activityManager.isLowRamDevice()
+                        || activityManager.getMemoryClass() <= LOW_MEMORY_CLASS_MB)) {
+            return LOW;
+        }
+        return STANDARD;
+    }
+
+    /**
+     * Returns which caches to shed for an onTrimMemory level: 0 for none, up to {@link
+     * #TRIM_ALL}. The running levels, sent while the process is in the foreground (as a playing
+     * media service is), map to the same stages as the background levels.
+     */
+    @SuppressWarnings("deprecation") // The running levels are still sent below API 34
+    public static int trimStageOf(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TRIM_ALL;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return TRIM_MOST;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return TRIM_RECENT;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.taautomotive.shared;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.MediaItem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Source of a folder's children that can produce a single page without materializing the whole
+ * folder. Used by {@link MediaFolderNode} as an alternative to a loadChildren supplier so that
+ * the cost of serving a page depends on the page size, not on the size of the folder.
+ */
+public interface PagedChildrenSource {
+
+    /** Returns the total number of children in the folder. */
+    int getChildCount();
+
+    /**
+     * Returns up to limit children starting at offset. Returns an empty list if offset is at or
+     * past the end of the folder.
+     */
+    List<MediaItem> loadPage(int offset, int limit);
+
+    /**
+     * Returns the child with the given mediaId, or null if this folder does not contain it.
+     * Sources backed by a keyed store should override this along with {@link #canFindItems()};
+     * the default returns null so the trie does not scan paged folders when resolving ids.
+     */
+    @Nullable
+    default MediaItem findItem(String mediaId) {
+        return null;
+    }
+
+    /**
+     * Returns whether {@link #findItem} finds every child by its id. Only such folders can be
+     * left out of the trie's index; the others are indexed whatever their size, so their items
+     * stay resolvable.
+     */
+    default boolean canFindItems() {
+        return false;
+    }
+
+    /**
+     * Returns whether the trie should leave this folder's items out of its mediaId and search
+     * indexes and resolve them through {@link #findItem} instead, so they are never all built.
+     * By default folders that {@link #canFindItems() can find their items} are once they have
+     * more than {@link MediaFolderTrie#MAX_EAGERLY_INDEXED_CHILDREN} children.
+     */
+    default boolean isLazilyIndexed() {
+        return canFindItems() && getChildCount() > MediaFolderTrie.MAX_EAGERLY_INDEXED_CHILDREN;
+    }
+
+    /**
+     * Returns the lookup of the store this folder is paged from, shared by all its folders, or
+     * null if it has none. The trie asks it which folder lists an id that doesn't name its
+     * folder, so resolving such an id costs one probe per store rather than one per folder.
+     */
+    @Nullable
+    default FolderLookup getFolderLookup() {
+        return null;
+    }
+
+    /** Finds which folder of a store lists an id, without asking each folder. */
+    interface FolderLookup {
+
+        /**
+         * Returns the source of a folder that lists mediaId, equal to the source that folder's
+         * node holds, or null if no folder of the store lists it.
+         */
+        @Nullable
+        PagedChildrenSource findFolder(String mediaId);
+    }
+
+    /**
+     * Returns a source of count children that builds only the items in the requested range,
+     * calling itemAt with each index. It can't find its items by id, so the trie indexes it
+     * whatever its size; use {@link #of(int, IntFunction, ToIntFunction)} for large folders.
+     */
+    static PagedChildrenSource of(int count, IntFunction<MediaItem> itemAt) {
+        return new PagedChildrenSource() {
+            @Override
+            public int getChildCount() {
+                return count;
+            }
+
+            @Override
+            public List<MediaItem> loadPage(int offset, int limit) {
+                if (offset < 0 || offset >= count || limit <= 0) {
+                    return Collections.emptyList();
+                }
+                int end = (int) Math.min((long) offset + limit, count);
+                List<MediaItem> page = new ArrayList<>(end - offset);
+                for (int i = offset; i < end; i++) {
+                    page.add(itemAt.apply(i));
+                }
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Returns a source like {@link #of(int, IntFunction)} that finds its items by id, through
+     * indexOf returning the index of the child with an id or -1, so a large folder can be left
+     * out of the trie's index.
+     */
+    static PagedChildrenSource of(
+            int count, IntFunction<MediaItem> itemAt, ToIntFunction<String> indexOf) {
+        PagedChildrenSource items = of(count, itemAt);
+        return new PagedChildrenSource() {
+            @Override
+            public int getChildCount() {
+                return count;
+            }
+
+            @Override
+            public List<MediaItem> loadPage(int offset, int limit) {
+                return items.loadPage(offset, limit);
+            }
+
+            @Nullable
+            @Override
+            public MediaItem findItem(String mediaId) {
+                int index = indexOf.applyAsInt(mediaId);
+                if (index < 0 || index >= count) {
+                    return null;
+                }
+                MediaItem item = itemAt.apply(index);
+                return item != null && mediaId.equals(item.mediaId) ? item : null;
+            }
+
+            @Override
+            public boolean canFindItems() {
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.taautomotive.shared;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheEvictor;
+import androidx.media3.datasource.cache.CacheSpan;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evicts the least recently used cache spans once the cache would exceed its byte budget, like
+ * media3's LeastRecentlyUsedCacheEvictor, but never evicts spans of pinned keys (e.g. favorite
+ * tracks). Pinned content counts towards the budget; if pinned content alone exceeds it, the
+ * cache grows past the budget rather than dropping it.
+ *
+ * <p>The span callbacks are invoked by the cache under its lock; pins may be changed from any
+ * thread and take effect on the next eviction.
+ */
+@UnstableApi
+public final class PinningLruCacheEvictor implements CacheEvictor {
+
+    private final long maxBytes;
+    /** Spans ordered by last touch, least recently used first. */
+    private final TreeSet<CacheSpan> leastRecentlyUsed =
+            new TreeSet<>(
+                    (a, b) -> {
+                        long diff = a.lastTouchTimestamp - b.lastTouchTimestamp;
+                        return diff == 0 ? a.compareTo(b) : diff < 0 ? -1 : 1;
+                    });
+    private final Set<String> pinnedKeys = ConcurrentHashMap.newKeySet();
+    private long currentSize;
+
+    public PinningLruCacheEvictor(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Protects the spans of key from eviction. */
+    public void pin(String key) {
+        pinnedKeys.add(key);
+    }
+
+    /** Makes the spans of key evictable again. */
+    public void unpin(String key) {
+        pinnedKeys.remove(key);
+    }
+
+    public boolean isPinned(String key) {
+        return pinnedKeys.contains(key);
+    }
+
+    @Override
+    public boolean requiresCacheSpanTouches() {
+        return true;
+    }
+
+    @Override
+    public void onCacheInitialized() {
+        // Nothing to do.
+    }
+
+    @Override
+    public void onStartFile(Cache cache, String key, long position, long length) {
+        if (length != C.LENGTH_UNSET) {
+            evict(cache, length);
+        }
+    }
+
+    @Override
+    public void onSpanAdded(Cache cache, CacheSpan span) {
+        leastRecentlyUsed.add(span);
+        currentSize += span.length;
+        evict(cache, 0);
+    }
+
+    @Override
+    public void onSpanRemoved(Cache cache, CacheSpan span) {
+        leastRecentlyUsed.remove(span);
+        currentSize -= span.length;
+    }
+
+    @Override
+    public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+        onSpanRemoved(cache, oldSpan);
+        onSpanAdded(cache, newSpan);
+    }
+
+    private void evict(Cache cache, long requiredSpace) {
+        while (currentSize + requiredSpace > maxBytes) {
+            CacheSpan victim = leastRecentlyUsedUnpinned();
+            if (victim == null) {
+                return;
+            }
+            // Calls back into onSpanRemoved, which updates currentSize.
+            cache.removeSpan(victim);
+        }
+    }
+
+    @Nullable
+    private CacheSpan leastRecentlyUsedUnpinned() {
+        for (CacheSpan span : leastRecentlyUsed) {
+            if (!pinnedKeys.contains(span.key)) {
+                return span;
+            }
+        }
+        return null;
+    }
+}
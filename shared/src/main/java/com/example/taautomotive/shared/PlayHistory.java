@@ -0,0 +1,556 @@
+package com.example.taautomotive.shared;
+
+import android.net.Uri;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import com.example.taautomotive.core.MediaIds;
+import com.example.taautomotive.core.Paging;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts plays and serves them as two folders: {@link DefaultFolder#RECENT} lists the most
+ * recently played tracks, newest first, and {@link DefaultFolder#MOST_PLAYED} the most played
+ * ones. Both are kept in order as plays arrive (the recent list is moved to the front, a track in
+ * the top list bubbles up past those it overtook), so serving either is a slice of a list that
+ * is already built and never sorts the history.
+ *
+ * <p>Plays are persisted to a {@link RecordLog} of checksummed records, buffered and written in
+ * batches of up to {@link #FLUSH_BATCH_SIZE} plays or after {@link #FLUSH_DELAY_MS}. Like
+ * {@link PlaybackStateStore}, a torn record at the end is ignored on load and the log is
+ * compacted into one total per track once it grows well past them. At most
+ * {@link #MAX_TRACKS} tracks are remembered; the least recently played go first.
+ *
+ * <p>All state is changed on a single background thread; browsers read lists published from it.
+ * The {@link Listener} is told when the first {@link #VISIBLE_ITEMS} items of a folder change,
+ * and only then.
+ */
+public final class PlayHistory {
+
+    private static final String TAG = "PlayHistory";
+    private static final int MAGIC = 0x54415048; // "TAPH"
+    /** Bump whenever the record layout changes; logs of other versions are ignored. */
+    static final int VERSION = 1;
+
+    private static final byte RECORD_PLAY = 'E';
+    private static final byte RECORD_TOTAL = 'T';
+    /** The log is compacted once it is larger than this and twice the totals it holds. */
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    /** Tracks listed in the recently played folder. */
+    public static final int RECENT_LIMIT = 50;
+    /** Tracks listed in the most played folder. */
+    public static final int TOP_LIMIT = 50;
+    /** Tracks whose play counts are remembered. */
+    public static final int MAX_TRACKS = 2_000;
+    /** Items of a folder a browser shows without scrolling; later changes aren't notified. */
+    public static final int VISIBLE_ITEMS = 20;
+    static final int FLUSH_BATCH_SIZE = 16;
+    static final long FLUSH_DELAY_MS = 60_000;
+
+    /** Told, on the history thread, that the first page of a folder changed. */
+    public interface Listener {
+
+        void onFolderChanged(String folderId, int itemCount);
+    }
+
+    private final RecordLog log;
+    private final ScheduledThreadPoolExecutor executor =
+            new ScheduledThreadPoolExecutor(1, runnable -> new Thread(runnable, "TAPlayHistory"));
+    private final HistorySource recentSource = new HistorySource();
+    private final HistorySource mostPlayedSource = new HistorySource();
+    @Nullable private volatile Listener listener;
+
+    // Written and read on the history thread only.
+    /** Every remembered track, least recently played first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    /** The recently played folder, newest first. */
+    private final ArrayDeque<Entry> recent = new ArrayDeque<>();
+    /** The most played folder: by play count, then by most recent play. */
+    private final List<Entry> top = new ArrayList<>();
+    private final List<Entry> pendingPlays = new ArrayList<>();
+    private boolean flushScheduled;
+
+    private final AtomicLong playCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong notifiedCount = new AtomicLong();
+    private final AtomicLong unnotifiedCount = new AtomicLong();
+
+    /** Starts loading the history saved in file, if any. */
+    public PlayHistory(File file) {
+        this.log = new RecordLog(file, MAGIC, VERSION);
+        // release() writes what is pending, so a scheduled flush needn't keep the thread alive
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        execute(this::load);
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Installs the recently and most played folders in the trie being built. Their sources stay
+     * the same for the life of this history, so refreshes don't see them as changed.
+     */
+    public void attachTo(MediaFolderTrie.Editor editor) {
+        editor.putNode(
+                "",
+                new MediaFolderNode(
+                        DefaultFolder.RECENT.getRoute(),
+                        DefaultFolder.RECENT.getFolderItem(),
+                        recentSource,
+                        MediaFolderNode.NO_CACHE));
+        editor.putNode(
+                "",
+                new MediaFolderNode(
+                        DefaultFolder.MOST_PLAYED.getRoute(),
+                        DefaultFolder.MOST_PLAYED.getFolderItem(),
+                        mostPlayedSource,
+                        MediaFolderNode.NO_CACHE));
+    }
+
+    /** Records that item started playing. */
+    public void recordPlay(MediaItem item) {
+        if (item.mediaId.isEmpty()) {
+            return;
+        }
+        long timeMs = System.currentTimeMillis();
+        execute(
+                () -> {
+                    Entry entry = play(trackOf(item), timeMs);
+                    pendingPlays.add(entry);
+                    publish();
+                    if (pendingPlays.size() >= FLUSH_BATCH_SIZE) {
+                        flush();
+                    } else if (!flushScheduled && !executor.isShutdown()) {
+                        flushScheduled = true;
+                        executor.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+                    }
+                });
+    }
+
+    /**
+     * Returns the source {@link #attachTo} installs for the folder with mediaId, or null if it is
+     * not a history folder.
+     */
+    @Nullable
+    public PagedChildrenSource findFolderSource(String mediaId) {
+        if (mediaId.equals(DefaultFolder.RECENT.getRoute())) {
+            return recentSource;
+        }
+        if (mediaId.equals(DefaultFolder.MOST_PLAYED.getRoute())) {
+            return mostPlayedSource;
+        }
+        return null;
+    }
+
+    /** Returns the recently played tracks, newest first. */
+    public List<MediaItem> getRecent() {
+        return recentSource.items;
+    }
+
+    /** Returns the most played tracks, most played first. */
+    public List<MediaItem> getMostPlayed() {
+        return mostPlayedSource.items;
+    }
+
+    /** Writes the plays not written yet, closes the log and stops the history thread. */
+    public void release() {
+        execute(
+                () -> {
+                    flush();
+                    log.close();
+                });
+        executor.shutdown();
+    }
+
+    /** Blocks until every play recorded so far is counted and written. */
+    @VisibleForTesting
+    void awaitWrites() throws Exception {
+        executor.submit(this::flush).get();
+    }
+
+    public long getPlayCount() {
+        return playCount.get();
+    }
+
+    /** Returns how many batches of plays were appended to the log. */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /** Returns how many folder changes reached the first page and were notified. */
+    public long getNotifiedCount() {
+        return notifiedCount.get();
+    }
+
+    /** Returns how many folder changes were past the first page, or none, and not notified. */
+    public long getUnnotifiedCount() {
+        return unnotifiedCount.get();
+    }
+
+    /** Runs task on the history thread; plays after release are dropped. */
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "execute: Dropping play recorded after release");
+        }
+    }
+
+    /**
+     * Returns the track as listed in the history folders. Queued items, resolved or still
+     * placeholders of a lazily resolved queue, are counted under the track's own id rather than
+     * the item id a browser added them with, so plays from different folders add up.
+     * Placeholders keep their uri, which still resolves when played.
+     */
+    private static MediaItem trackOf(MediaItem item) {
+        String uri = item.localConfiguration != null ? item.localConfiguration.uri.toString() : "";
+        MediaMetadata metadata = item.mediaMetadata;
+        return buildItem(
+                MediaIds.keyOf(item.mediaId),
+                uri,
+                toString(metadata.title),
+                toString(metadata.artist),
+                toString(metadata.albumTitle));
+    }
+
+    private static MediaItem buildItem(
+            String mediaId, String uri, String title, String artist, String album) {
+        MediaItem.Builder builder =
+                new MediaItem.Builder()
+                        .setMediaId(mediaId)
+                        .setMediaMetadata(
+                                new MediaMetadata.Builder()
+                                        .setTitle(title.isEmpty() ? null : title)
+                                        .setArtist(artist.isEmpty() ? null : artist)
+                                        .setAlbumTitle(album.isEmpty() ? null : album)
+                                        .setIsBrowsable(false)
+                                        .setIsPlayable(true)
+                                        .build());
+        if (!uri.isEmpty()) {
+            builder.setUri(Uri.parse(uri));
+        }
+        return builder.build();
+    }
+
+    private static String toString(@Nullable CharSequence text) {
+        return text != null ? text.toString() : "";
+    }
+
+    /** Counts one play of track at timeMs and moves it in both folders. */
+    @WorkerThread
+    private Entry play(MediaItem track, long timeMs) {
+        Entry entry = entries.remove(track.mediaId);
+        if (entry == null) {
+            entry = new Entry(track);
+        } else {
+            entry.item = track;
+        }
+        // Re-inserted, so the map stays in order of last play
+        entries.put(track.mediaId, entry);
+        entry.count++;
+        entry.lastPlayedMs = timeMs;
+        playCount.incrementAndGet();
+
+        recent.remove(entry);
+        recent.addFirst(entry);
+        if (recent.size() > RECENT_LIMIT) {
+            recent.removeLast();
+        }
+        promote(entry);
+        if (entries.size() > MAX_TRACKS) {
+            evictOne();
+        }
+        return entry;
+    }
+
+    /**
+     * Moves entry up the top list past every entry it now ranks above, adding it in place of
+     * the last one if it overtook that. Counts only grow and a play is always the latest, so an
+     * entry outside the list ranks below all of it until it reaches the last one's count.
+     */
+    @WorkerThread
+    private void promote(Entry entry) {
+        int index = entry.topIndex;
+        if (index < 0) {
+            if (top.size() < TOP_LIMIT) {
+                top.add(entry);
+            } else if (ranksAbove(entry, top.get(top.size() - 1))) {
+                top.get(top.size() - 1).topIndex = -1;
+                top.set(top.size() - 1, entry);
+            } else {
+                return;
+            }
+            index = top.size() - 1;
+        }
+        while (index > 0 && ranksAbove(entry, top.get(index - 1))) {
+            Entry above = top.get(index - 1);
+            top.set(index, above);
+            above.topIndex = index;
+            index--;
+        }
+        top.set(index, entry);
+        entry.topIndex = index;
+    }
+
+    private static boolean ranksAbove(Entry a, Entry b) {
+        return a.count > b.count || (a.count == b.count && a.lastPlayedMs > b.lastPlayedMs);
+    }
+
+    /** Forgets the least recently played track that isn't listed in a folder. */
+    @WorkerThread
+    private void evictOne() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.topIndex < 0 && !recent.contains(entry)) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /** Publishes both folders and tells the listener about those whose first page changed. */
+    @WorkerThread
+    private void publish() {
+        publish(DefaultFolder.RECENT.getRoute(), recentSource, recent);
+        publish(DefaultFolder.MOST_PLAYED.getRoute(), mostPlayedSource, top);
+    }
+
+    @WorkerThread
+    private void publish(String folderId, HistorySource source, Iterable<Entry> listed) {
+        List<MediaItem> previous = source.items;
+        List<MediaItem> items = new ArrayList<>();
+        for (Entry entry : listed) {
+            items.add(entry.item);
+        }
+        source.items = Collections.unmodifiableList(items);
+        if (sameFirstPage(previous, items)) {
+            unnotifiedCount.incrementAndGet();
+            return;
+        }
+        notifiedCount.incrementAndGet();
+        Listener current = listener;
+        if (current != null) {
+            current.onFolderChanged(folderId, items.size());
+        }
+    }
+
+    private static boolean sameFirstPage(List<MediaItem> a, List<MediaItem> b) {
+        int visible = Math.min(VISIBLE_ITEMS, a.size());
+        if (visible != Math.min(VISIBLE_ITEMS, b.size())) {
+            return false;
+        }
+        for (int i = 0; i < visible; i++) {
+            if (!MediaFolderTrie.sameItem(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Reads the log, stopping at the first incomplete or corrupt record, then lists the folders. */
+    @WorkerThread
+    private void load() {
+        boolean readAll = log.load(this::readRecord);
+        // Loaded totals are ranked once here; from now on every play keeps the lists in order
+        recent.clear();
+        List<Entry> byRecency = new ArrayList<>(entries.values());
+        for (int i = byRecency.size() - 1; i >= 0 && recent.size() < RECENT_LIMIT; i--) {
+            recent.addLast(byRecency.get(i));
+        }
+        top.clear();
+        for (Entry entry : byRecency) {
+            entry.topIndex = -1;
+        }
+        Collections.sort(byRecency, (a, b) -> ranksAbove(a, b) ? -1 : ranksAbove(b, a) ? 1 : 0);
+        for (int i = 0; i < Math.min(TOP_LIMIT, byRecency.size()); i++) {
+            top.add(byRecency.get(i));
+            byRecency.get(i).topIndex = i;
+        }
+        if (!readAll || log.size() > MIN_COMPACT_BYTES) {
+            compact();
+        }
+        publish();
+    }
+
+    /** Applies one record read from the log. */
+    @WorkerThread
+    private void readRecord(int type, DataInputStream record, int size) throws IOException {
+        MediaItem track =
+                buildItem(
+                        record.readUTF(),
+                        record.readUTF(),
+                        record.readUTF(),
+                        record.readUTF(),
+                        record.readUTF());
+        switch (type) {
+            case RECORD_PLAY:
+                long timeMs = record.readLong();
+                Entry played = entries.remove(track.mediaId);
+                if (played == null) {
+                    played = new Entry(track);
+                }
+                played.item = track;
+                played.count++;
+                played.lastPlayedMs = timeMs;
+                entries.put(track.mediaId, played);
+                break;
+            case RECORD_TOTAL:
+                Entry total = new Entry(track);
+                total.count = record.readInt();
+                total.lastPlayedMs = record.readLong();
+                entries.remove(track.mediaId);
+                entries.put(track.mediaId, total);
+                break;
+            default:
+                throw new EOFException("Unknown record type " + type);
+        }
+        if (entries.size() > MAX_TRACKS) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /** Appends the buffered plays to the log in a single write. */
+    @WorkerThread
+    private void flush() {
+        flushScheduled = false;
+        if (pendingPlays.isEmpty()) {
+            return;
+        }
+        try {
+            for (Entry entry : pendingPlays) {
+                addRecord(RECORD_PLAY, entry);
+            }
+            bytesWritten.addAndGet(log.append(/* sync= */ true));
+            batchCount.incrementAndGet();
+            pendingPlays.clear();
+            if (log.size() > Math.max(MIN_COMPACT_BYTES, 2 * entries.size() * 128L)) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "flush: Failed to save play history", e);
+        }
+    }
+
+    /** Replaces the log with one total per remembered track, least recently played first. */
+    @WorkerThread
+    private void compact() {
+        try {
+            for (Entry entry : entries.values()) {
+                addRecord(RECORD_TOTAL, entry);
+            }
+            bytesWritten.addAndGet(log.rewrite());
+        } catch (IOException e) {
+            Log.w(TAG, "compact: Failed to rewrite play history", e);
+            return;
+        }
+        // Plays not written yet are in the totals now
+        pendingPlays.clear();
+        compactionCount.incrementAndGet();
+    }
+
+    /** Adds one record about entry to the log's next write. */
+    @WorkerThread
+    private void addRecord(byte type, Entry entry) throws IOException {
+        log.add(
+                type,
+                payload -> {
+                    MediaItem item = entry.item;
+                    payload.writeUTF(item.mediaId);
+                    payload.writeUTF(
+                            item.localConfiguration != null
+                                    ? item.localConfiguration.uri.toString()
+                                    : "");
+                    payload.writeUTF(toString(item.mediaMetadata.title));
+                    payload.writeUTF(toString(item.mediaMetadata.artist));
+                    payload.writeUTF(toString(item.mediaMetadata.albumTitle));
+                    if (type == RECORD_TOTAL) {
+                        payload.writeInt(entry.count);
+                    }
+                    payload.writeLong(entry.lastPlayedMs);
+                });
+    }
+
+    /** A remembered track and its plays. */
+    private static final class Entry {
+
+        MediaItem item;
+        int count;
+        long lastPlayedMs;
+        /** Position in the most played list, or -1 if not in it. */
+        int topIndex = -1;
+
+        Entry(MediaItem item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * One history folder, serving pages of the list last published for it. Its items are kept
+     * out of the trie's index and resolved through {@link #findItem}.
+     */
+    private static final class HistorySource implements PagedChildrenSource {
+
+        volatile List<MediaItem> items = Collections.emptyList();
+
+        @Override
+        public int getChildCount() {
+            return items.size();
+        }
+
+        @Override
+        public List<MediaItem> loadPage(int offset, int limit) {
+            return Paging.slice(items, offset, limit);
+        }
+
+        @Nullable
+        @Override
+        public MediaItem findItem(String mediaId) {
+            for (MediaItem item : items) {
+                if (item.mediaId.equals(mediaId)) {
+                    return item;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean canFindItems() {
+            return true;
+        }
+
+        @Override
+        public boolean isLazilyIndexed() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.taautomotive.shared;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists the playback queue and position so playback can resume after the service restarts,
+ * e.g. after an ignition cycle. The file is a {@link RecordLog} of small checksummed records:
+ * the queue's mediaIds when the queue changes, the current item's display metadata when it
+ * changes, and the index and position, which are cheap to append often while playing. A torn
+ * record at the end (power lost mid-write) is ignored on load. When the log has grown well past
+ * the size of the state it holds, it is compacted into a fresh file with one record of each
+ * kind, written beside it and renamed over it.
+ *
+ * <p>Loading and writing happen on a single background thread, in call order; the saved state
+ * is loaded first, once, and is available through {@link #getSavedState()}.
+ */
+public final class PlaybackStateStore {
+
+    private static final String TAG = "PlaybackStateStore";
+    private static final int MAGIC = 0x54415053; // "TAPS"
+    /** Bump whenever the record layout changes; logs of other versions are ignored. */
+    static final int VERSION = 1;
+
+    private static final byte RECORD_QUEUE = 'Q';
+    private static final byte RECORD_CURRENT_ITEM = 'C';
+    private static final byte RECORD_POSITION = 'P';
+    /** The log is compacted once it is larger than this and twice the state it holds. */
+    static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    /** A saved queue and where playback was in it. */
+    public static final class State {
+
+        public final List<String> mediaIds;
+        public final int currentIndex;
+        public final long positionMs;
+        /** Display metadata of the current item, so it can show before it is resolved. */
+        @Nullable public final CurrentItem currentItem;
+
+        State(
+                List<String> mediaIds,
+                int currentIndex,
+                long positionMs,
+                @Nullable CurrentItem currentItem) {
+            this.mediaIds = Collections.unmodifiableList(mediaIds);
+            this.currentIndex = currentIndex;
+            this.positionMs = positionMs;
+            this.currentItem = currentItem;
+        }
+    }
+
+    /** The current item's mediaId and display fields; empty strings for absent fields. */
+    public static final class CurrentItem {
+
+        public final String mediaId;
+        public final String title;
+        public final String artist;
+        public final String album;
+
+        public CurrentItem(String mediaId, String title, String artist, String album) {
+            this.mediaId = mediaId;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+        }
+
+        public static CurrentItem of(MediaItem item) {
+            MediaMetadata metadata = item.mediaMetadata;
+            return new CurrentItem(
+                    item.mediaId,
+                    toString(metadata.title),
+                    toString(metadata.artist),
+                    toString(metadata.albumTitle));
+        }
+
+        /** Returns the saved fields as metadata of a playable track. */
+        public MediaMetadata toMediaMetadata() {
+            return new MediaMetadata.Builder()
+                    .setTitle(title.isEmpty() ? null : title)
+                    .setArtist(artist.isEmpty() ? null : artist)
+                    .setAlbumTitle(album.isEmpty() ? null : album)
+                    .setIsBrowsable(false)
+                    .setIsPlayable(true)
+                    .build();
+        }
+
+        private static String toString(@Nullable CharSequence text) {
+            return text != null ? text.toString() : "";
+        }
+    }
+
+    private final RecordLog log;
+    private final ListeningExecutorService executor =
+            MoreExecutors.listeningDecorator(
+                    Executors.newSingleThreadExecutor(
+                            runnable -> new Thread(runnable, "TAPlaybackState")));
+    private final ListenableFuture<State> savedState;
+
+    // Written and read on the store thread only.
+    private List<String> mediaIds = Collections.emptyList();
+    private int currentIndex;
+    private long positionMs;
+    @Nullable private CurrentItem currentItem;
+    private long queueRecordBytes;
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    /** Starts loading the state saved in file, if any. */
+    public PlaybackStateStore(File file) {
+        this.log = new RecordLog(file, MAGIC, VERSION);
+        this.savedState = executor.submit(this::load);
+    }
+
+    /**
+     * Returns the state saved by the previous run; completes with null if there is none or it
+     * could not be read. Later saves don't change it.
+     */
+    public ListenableFuture<State> getSavedState() {
+        return savedState;
+    }
+
+    /** Records a new queue; the current index and position are kept until saved again. */
+    public void saveQueue(List<String> queueMediaIds) {
+        List<String> ids = new ArrayList<>(queueMediaIds);
+        execute(
+                () -> {
+                    mediaIds = ids;
+                    append(RECORD_QUEUE, /* sync= */ true);
+                });
+    }
+
+    /** Records the item playback moved to. */
+    public void saveCurrentItem(int index, CurrentItem item) {
+        execute(
+                () -> {
+                    currentIndex = index;
+                    currentItem = item;
+                    append(RECORD_CURRENT_ITEM, /* sync= */ false);
+                });
+    }
+
+    /**
+     * Records the position in the current item. Pass sync to force it to disk, e.g. on pause;
+     * the periodic saves while playing don't need to.
+     */
+    public void savePosition(int index, long position, boolean sync) {
+        execute(
+                () -> {
+                    currentIndex = index;
+                    positionMs = position;
+                    append(RECORD_POSITION, sync);
+                });
+    }
+
+    /** Writes what is queued, closes the log and stops the store thread. */
+    public void release() {
+        execute(log::close);
+        executor.shutdown();
+    }
+
+    /** Blocks until everything saved so far has been written. */
+    @VisibleForTesting
+    void awaitWrites() throws Exception {
+        executor.submit(() -> {}).get();
+    }
+
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /** Runs task on the store thread; saves after release are dropped. */
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "execute: Dropping playback state saved after release");
+        }
+    }
+
+    /** Reads the log, stopping at the first incomplete or corrupt record. */
+    @WorkerThread
+    @Nullable
+    private State load() {
+        boolean readAll = log.load(this::readRecord);
+        // Start appending to a clean log that holds exactly the state just read
+        if (!readAll || log.size() > MIN_COMPACT_BYTES) {
+            compact();
+        }
+        if (mediaIds.isEmpty()) {
+            return null;
+        }
+        int index = Math.max(0, Math.min(currentIndex, mediaIds.size() - 1));
+        CurrentItem item =
+                currentItem != null && currentItem.mediaId.equals(mediaIds.get(index))
+                        ? currentItem
+                        : null;
+        return new State(mediaIds, index, positionMs, item);
+    }
+
+    /** Applies one record read from the log. */
+    @WorkerThread
+    private void readRecord(int type, DataInputStream record, int size) throws IOException {
+        switch (type) {
+            case RECORD_QUEUE:
+                int count = record.readInt();
+                List<String> ids = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ids.add(record.readUTF());
+                }
+                mediaIds = ids;
+                queueRecordBytes = size;
+                break;
+            case RECORD_CURRENT_ITEM:
+                currentIndex = record.readInt();
+                currentItem =
+                        new CurrentItem(
+                                record.readUTF(),
+                                record.readUTF(),
+                                record.readUTF(),
+                                record.readUTF());
+                break;
+            case RECORD_POSITION:
+                currentIndex = record.readInt();
+                positionMs = record.readLong();
+                break;
+            default:
+                throw new EOFException("Unknown record type " + type);
+        }
+    }
+
+    @WorkerThread
+    private void append(byte type, boolean sync) {
+        try {
+            int size = addRecord(type);
+            bytesWritten.addAndGet(log.append(sync));
+            if (type == RECORD_QUEUE) {
+                queueRecordBytes = size;
+            }
+            if (log.size() > Math.max(MIN_COMPACT_BYTES, 2 * (queueRecordBytes + 256))) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "append: Failed to save playback state", e);
+        }
+    }
+
+    /** Replaces the log with one holding only the current state. */
+    @WorkerThread
+    private void compact() {
+        try {
+            if (!mediaIds.isEmpty()) {
+                queueRecordBytes = addRecord(RECORD_QUEUE);
+                if (currentItem != null) {
+                    addRecord(RECORD_CURRENT_ITEM);
+                }
+                addRecord(RECORD_POSITION);
+            }
+            bytesWritten.addAndGet(log.rewrite());
+        } catch (IOException e) {
+            Log.w(TAG, "compact: Failed to rewrite playback state", e);
+            return;
+        }
+        compactionCount.incrementAndGet();
+    }
+
+    /** Adds one record of the current state to the log's next write; returns its size. */
+    @WorkerThread
+    private int addRecord(byte type) throws IOException {
+        recordCount.incrementAndGet();
+        return log.add(type, payload -> writePayload(type, payload));
+    }
+
+    @WorkerThread
+    private void writePayload(byte type, DataOutputStream payload) throws IOException {
+        switch (type) {
+            case RECORD_QUEUE:
+                payload.writeInt(mediaIds.size());
+                for (String mediaId : mediaIds) {
+                    payload.writeUTF(mediaId);
+                }
+                break;
+            case RECORD_CURRENT_ITEM:
+                payload.writeInt(currentIndex);
+                payload.writeUTF(currentItem.mediaId);
+                payload.writeUTF(currentItem.title);
+                payload.writeUTF(currentItem.artist);
+                payload.writeUTF(currentItem.album);
+                break;
+            default:
+                payload.writeInt(currentIndex);
+                payload.writeLong(positionMs);
+                break;
+        }
+    }
+}
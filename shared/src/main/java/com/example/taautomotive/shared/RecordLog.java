@@ -0,0 +1,207 @@
+package com.example.taautomotive.shared;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of small checksummed records behind a magic and version header, as kept by
+ * {@link PlaybackStateStore} and {@link PlayHistory}. A record is its type byte, payload length,
+ * payload and the payload's CRC32. Records are collected with {@link #add} and then either
+ * appended in a single write, so a crash tears at most the last record, or written as the whole
+ * of a fresh log beside the file and renamed over it. On load, a torn or corrupt record ends the
+ * log and logs of another version are ignored.
+ *
+ * <p>Not thread-safe; each store uses its log on its own thread.
+ */
+final class RecordLog {
+
+    private static final String TAG = "RecordLog";
+    private static final int HEADER_SIZE = 8;
+    /** Type, length and checksum around each payload. */
+    private static final int RECORD_OVERHEAD = 9;
+
+    /** Applies one record read from the log. */
+    interface Reader {
+
+        /**
+         * @param size bytes the record takes in the log
+         * @throws EOFException if the record can't be applied; the log ends before it
+         */
+        void read(int type, DataInputStream payload, int size) throws IOException;
+    }
+
+    /** Writes the payload of one record. */
+    interface Writer {
+
+        void write(DataOutputStream payload) throws IOException;
+    }
+
+    private final File file;
+    private final int magic;
+    private final int version;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    @Nullable private FileOutputStream out;
+    private long size;
+
+    RecordLog(File file, int magic, int version) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+    }
+
+    /**
+     * Passes every record of the log to reader, in order, stopping at the first incomplete or
+     * corrupt one. Returns whether the whole log was read; if not, it should be rewritten before
+     * anything is appended.
+     */
+    @WorkerThread
+    boolean load(Reader reader) {
+        size = 0;
+        if (!file.isFile()) {
+            return false;
+        }
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != magic || in.readInt() != version) {
+                return false;
+            }
+            size = HEADER_SIZE;
+            while (readRecord(in, reader)) {}
+            return true;
+        } catch (EOFException e) {
+            // Torn write at the end; keep what was read before it
+        } catch (IOException e) {
+            Log.w(TAG, "load: Ignoring unreadable " + file.getName(), e);
+        }
+        return false;
+    }
+
+    /** Reads and applies one record; returns false at a clean end of the log. */
+    @WorkerThread
+    private boolean readRecord(DataInputStream in, Reader reader) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > file.length()) {
+            throw new EOFException("Record length " + length + " past the end of the log");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        int checksum = in.readInt();
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new EOFException("Corrupt record");
+        }
+        reader.read(
+                type,
+                new DataInputStream(new ByteArrayInputStream(payload)),
+                RECORD_OVERHEAD + length);
+        size += RECORD_OVERHEAD + length;
+        return true;
+    }
+
+    /** Adds a record to those to be written next; returns its size in bytes. */
+    @WorkerThread
+    int add(byte type, Writer writer) throws IOException {
+        payloadBuffer.reset();
+        writer.write(new DataOutputStream(payloadBuffer));
+        crc.reset();
+        crc.update(payloadBuffer.toByteArray(), 0, payloadBuffer.size());
+        DataOutputStream record = new DataOutputStream(pending);
+        record.writeByte(type);
+        record.writeInt(payloadBuffer.size());
+        payloadBuffer.writeTo(record);
+        record.writeInt((int) crc.getValue());
+        return RECORD_OVERHEAD + payloadBuffer.size();
+    }
+
+    /**
+     * Appends the added records to the log in a single write, forcing it to disk if sync, and
+     * returns the bytes written. The records are dropped if the write fails.
+     */
+    @WorkerThread
+    int append(boolean sync) throws IOException {
+        int bytes = pending.size();
+        try {
+            if (out == null) {
+                out = new FileOutputStream(file, /* append= */ true);
+            }
+            pending.writeTo(out);
+            if (sync) {
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            pending.reset();
+        }
+        size += bytes;
+        return bytes;
+    }
+
+    /**
+     * Replaces the log with one holding only the added records, and returns its size in bytes.
+     * The old log is kept, and the records dropped, if the new one can't be written.
+     */
+    @WorkerThread
+    long rewrite() throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        long bytes = HEADER_SIZE + pending.size();
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp)) {
+            DataOutputStream header = new DataOutputStream(tmpOut);
+            header.writeInt(magic);
+            header.writeInt(version);
+            pending.writeTo(tmpOut);
+            tmpOut.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            pending.reset();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        size = bytes;
+        return bytes;
+    }
+
+    /** Returns the bytes in the log as read, appended and rewritten. */
+    long size() {
+        return size;
+    }
+
+    /** Closes the file; the next append reopens it. */
+    @WorkerThread
+    void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close: Failed to close " + file.getName(), e);
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.taautomotive.shared;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent requests for the same key so they share one in-flight load. The first
+ * caller for a key starts the load; callers that arrive while it is running get the same result.
+ * Once the load completes the key is forgotten, so later requests start a fresh load.
+ *
+ * <p>Each caller gets a future whose cancellation does not propagate to the shared load, so one
+ * controller disconnecting never cancels work another controller is waiting for.
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, ListenableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /** Returns the in-flight load for key, or starts one with the given loader. */
+    public ListenableFuture<V> load(K key, Supplier<ListenableFuture<V>> loader) {
+        requestCount.incrementAndGet();
+        ListenableFuture<V> existing = inFlight.get(key);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return Futures.nonCancellationPropagating(existing);
+        }
+        boolean[] started = new boolean[1];
+        ListenableFuture<V> future =
+                inFlight.computeIfAbsent(
+                        key,
+                        k -> {
+                            started[0] = true;
+                            return loader.get();
+                        });
+        if (!started[0]) {
+            coalescedCount.incrementAndGet();
+        } else {
+            future.addListener(() -> inFlight.remove(key, future), MoreExecutors.directExecutor());
+        }
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    /** Returns the number of loads currently in flight. */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /** Returns the total number of requests made through {@link #load}. */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /** Returns how many requests joined a load that was already in flight. */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+}
@@ -1,44 +1,243 @@
 package com.example.taautomotive.shared;
 
+import android.Manifest;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.Trace;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.util.Log;
 import androidx.annotation.Nullable;
+import androidx.media3.common.C;
 import androidx.media3.common.MediaItem;
 import androidx.media3.common.Player;
+import androidx.media3.common.Timeline;
 import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.DefaultLoadControl;
 import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
 import androidx.media3.session.LibraryResult;
 import androidx.media3.session.MediaLibraryService;
 import androidx.media3.session.MediaSession;
+import androidx.media3.session.SessionCommand;
+import androidx.media3.session.SessionCommands;
 import androidx.media3.session.SessionError;
+import androidx.media3.session.SessionResult;
+import com.example.taautomotive.core.MediaIds;
+import com.example.taautomotive.core.Paging;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * MediaLibraryService that exposes a browsable media library and playback for Android Automotive.
  * The library structure is driven by {@link MediaFolderTrie} and {@link DefaultFolder}; the user
  * can select and play audio from the library via the system media UI.
+ *
+ * <p>The player and the session run on a dedicated playback thread, so transport controls and
+ * position updates are never queued behind work on the main looper (service lifecycle, download
+ * and local scan callbacks). Browse callbacks arrive on the playback thread and do their work on
+ * a {@link BrowseExecutor}, so slow folder loads never block it either; library changes made on
+ * other threads are posted back to it before browsers are notified. Identical concurrent
+ * onGetChildren and onGetItem requests (e.g. from the car UI, the phone and the assistant at
+ * ignition) are coalesced through {@link SingleFlight}. Search is served from a {@link
+ * MediaSearchIndex} that the trie keeps up to date as folders are indexed.
+ *
+ * <p>The library is restored from a {@link MediaTreeSnapshot} on start when one exists and
+ * refreshed from the folder sources in the background. On-device music is scanned incrementally
+ * by {@link LocalMusicScanner} and shown under the local folder. A remote catalog, if its
+ * endpoint is set in {@link #META_DATA_CATALOG_URL}, is served from its last response at start
+ * and revalidated by {@link CatalogSource} in the background.
+ *
+ * <p>Streamed tracks are read through the on-disk {@link MediaCache}; {@link MediaPreloader}
+ * fills it with the start of the tracks in the folder being browsed and the next ones in the
+ * queue, so a tap usually starts playing from disk.
+ *
+ * <p>Startup is staged so the first browse is not held up by work it doesn't need. onCreate only
+ * builds the session, with a {@link DeferredPlayer} in place of ExoPlayer, and a placeholder
+ * trie that serves the root; the library, the media cache and downloads are loaded on the
+ * library executor, and ExoPlayer is built on the first playback command. Browse requests other
+ * than the root wait for the library, without holding a browse thread, for at most {@link
+ * #LIBRARY_WAIT_MS}; after that the placeholder answers them. Each stage is a systrace section
+ * and the time to reach it is kept in {@link MediaServiceMetrics}.
  */
 @UnstableApi
 public final class TAMediaLibraryService extends MediaLibraryService {
 
     private static final String TAG = "TAMediaLibraryService";
+    /** Verbose logging; enable with "adb shell setprop log.tag.TAMediaLibraryService DEBUG". */
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
     private static final String NOTIFICATION_CHANNEL_ID = "ta_automotive_media";
     private static final int NOTIFICATION_ID = 1;
-    private ExoPlayer player;
-    private MediaFolderTrie folderTrie;
-    private MediaLibraryService.MediaLibrarySession librarySession;
+    private static final int MAX_SEARCH_RESULTS = 200;
+    private static final String SNAPSHOT_FILE = "media_tree.snapshot";
+    private static final String LOCAL_SCAN_STATE_FILE = "local_music.state";
+    private static final String PLAYBACK_STATE_FILE = "playback_state.log";
+    private static final String PLAY_HISTORY_FILE = "play_history.log";
+    private static final String CATALOG_CACHE_FILE = "catalog.cache";
+    /**
+     * Service meta-data naming the JSON endpoint of the remote catalog shown under {@link
+     * DefaultFolder#CATALOG}, e.g. {@code <meta-data android:name="com.example.taautomotive
+     * .CATALOG_URL" android:value="https://..." />}. Without it the folder stays empty.
+     */
+    public static final String META_DATA_CATALOG_URL = "com.example.taautomotive.CATALOG_URL";
+    /**
+     * Service meta-data naming the {@link MemoryProfile} to run with, "standard" or "low". Without
+     * it, the profile is chosen from the device's memory class.
+     */
+    public static final String META_DATA_MEMORY_PROFILE =
+            "com.example.taautomotive.MEMORY_PROFILE";
+    /** How often the remote catalog is revalidated; unchanged catalogs cost one request. */
+    private static final long CATALOG_REFRESH_INTERVAL_MS = 30 * 60 * 1000L;
+    /** How often the position is saved while playing; at most this much is replayed on resume. */
+    private static final long POSITION_SAVE_INTERVAL_MS = 5_000;
+    /** Taps that take longer than this to start audio did not start it and are not recorded. */
+    private static final long TAP_TO_AUDIO_TIMEOUT_NANOS = 30_000_000_000L;
+    /**
+     * Browse requests are started once the library is loaded or after this long, well inside the
+     * browse timeout, so a cold start is answered from the placeholder rather than the fallback.
+     */
+    private static final long LIBRARY_WAIT_MS = 1_000;
+    /** The player's loader threads wait this long for the library to open a queued item. */
+    private static final long LOADER_LIBRARY_WAIT_MS = 10_000;
+
+    /**
+     * Custom session command that returns the same metrics as "adb shell dumpsys activity
+     * service TAMediaLibraryService" as a string under {@link #EXTRA_METRICS_DUMP}. Available to
+     * controllers of this app and to trusted controllers.
+     */
+    public static final String COMMAND_DUMP_METRICS = "com.example.taautomotive.DUMP_METRICS";
+    public static final String EXTRA_METRICS_DUMP = "metrics_dump";
+
+    /**
+     * Custom session commands that mark the folder named by {@link #EXTRA_MEDIA_ID} for offline
+     * download, or unmark it and delete its downloads. Available to every controller.
+     */
+    public static final String COMMAND_DOWNLOAD = "com.example.taautomotive.DOWNLOAD";
+    public static final String COMMAND_REMOVE_DOWNLOAD = "com.example.taautomotive.REMOVE_DOWNLOAD";
+    /**
+     * Custom session command that returns the download progress of the folder named by {@link
+     * #EXTRA_MEDIA_ID}, or of all downloads without it, in the EXTRA_DOWNLOAD_* extras.
+     */
+    public static final String COMMAND_GET_DOWNLOAD_PROGRESS =
+            "com.example.taautomotive.GET_DOWNLOAD_PROGRESS";
+    public static final String EXTRA_MEDIA_ID = "media_id";
+    /** Same key and values as MediaDescriptionCompat's, which browse results carry too. */
+    public static final String EXTRA_DOWNLOAD_STATUS = MediaDescriptionCompat.EXTRA_DOWNLOAD_STATUS;
+    public static final String EXTRA_DOWNLOAD_ITEM_COUNT = "download_item_count";
+    public static final String EXTRA_DOWNLOAD_COMPLETED_COUNT = "download_completed_count";
+    public static final String EXTRA_DOWNLOAD_FAILED_COUNT = "download_failed_count";
+    public static final String EXTRA_DOWNLOAD_BYTES = "download_bytes";
+    public static final String EXTRA_DOWNLOAD_STORAGE_BYTES = "download_storage_bytes";
+    /** Upper bound on the tracks one folder download collects from its subfolders. */
+    private static final int MAX_DOWNLOAD_ITEMS = 1_000;
+
+    /** Start action that (re)scans on-device music, e.g. after storage permission is granted. */
+    public static final String ACTION_SCAN_LOCAL_MUSIC =
+            "com.example.taautomotive.action.SCAN_LOCAL_MUSIC";
+    /** Built on the first playback command; null until then. Playback thread only. */
+    @Nullable private ExoPlayer player;
+    /** Bounds the player's buffer and the library's caches; chosen in onCreate. */
+    private MemoryProfile memoryProfile;
+    /** The player's load control, once the player is built; read by the dump. */
+    @Nullable private volatile DefaultLoadControl loadControl;
+    /** Most caches shed by one onTrimMemory so far, as a {@link MemoryProfile#trimStageOf}. */
+    private volatile int maxTrimStage;
+    private final AtomicLong trimCount = new AtomicLong();
+    /**
+     * Replaced as a whole when the library is loaded or refreshed; read it once per operation.
+     * Serves only the root until {@link #libraryLoaded} is set.
+     */
+    private volatile MediaFolderTrie folderTrie;
+    private final SettableFuture<Void> libraryLoaded = SettableFuture.create();
+    private BrowseExecutor browseExecutor;
+    private final MediaSearchIndex searchIndex = new MediaSearchIndex();
+    /** Runs library loads, refreshes and snapshot writes, which may outlast browse timeouts. */
+    private ExecutorService libraryExecutor;
+    private long createStartNanos;
+    private boolean restoredFromSnapshot;
+    private final MediaServiceMetrics metrics = new MediaServiceMetrics();
+    private final LazyQueue lazyQueue = new LazyQueue(this::resolveQueuedIds);
+    /** Created together by {@link #ensureMediaComponents}; null until then and after release. */
+    @Nullable private volatile MediaCache mediaCache;
+    @Nullable private volatile MediaPreloader mediaPreloader;
+    @Nullable private volatile MediaDownloads mediaDownloads;
+    private boolean mediaComponentsReleased;
+    /** When the last onAddMediaItems or onSetMediaItems was invoked, until audio plays; or 0. */
+    private volatile long tapStartNanos;
+    private volatile boolean tapPreloaded;
+    private final LocalMusicLibrary localMusicLibrary = new LocalMusicLibrary();
+    /** Created when the library loads, if an endpoint is configured; null otherwise. */
+    @Nullable private volatile CatalogSource catalogSource;
+    private final Runnable refreshCatalogRunnable =
+            () -> executeOnLibrary(this::refreshCatalog);
+    @Nullable private LocalMusicScanner localMusicScanner;
+    /** Queue and position of the last run, for onPlaybackResumption, and of this one. */
+    private PlaybackStateStore playbackStateStore;
+    private final Runnable savePositionRunnable = this::savePositionPeriodically;
+    /** Serves the recently and most played folders. */
+    private PlayHistory playHistory;
+    /** The item playback moved to, until it starts playing and counts as played. */
+    @Nullable private MediaItem unplayedItem;
+    /** Drives {@link MediaDownloads} and the local music scanner. */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /** Set by onDestroy; main thread only. */
+    private boolean destroyed;
+    /** Application thread of the player and session; the session is only touched on it. */
+    private HandlerThread playbackThread;
+    private Handler playbackHandler;
+    /** Concurrent identical requests from different controllers share one load. */
+    private final SingleFlight<BrowseRequestKey, LibraryResult<ImmutableList<MediaItem>>>
+            childrenFlights = new SingleFlight<>();
+    private final SingleFlight<BrowseRequestKey, LibraryResult<MediaItem>> itemFlights =
+            new SingleFlight<>();
+    private volatile MediaLibraryService.MediaLibrarySession librarySession;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        Log.d(TAG, "onCreate: Starting TAMediaLibraryService");
+        createStartNanos = System.nanoTime();
+        Trace.beginSection("TAService.onCreate");
+        if (DEBUG) Log.d(TAG, "onCreate: Starting TAMediaLibraryService");
         
         // Create notification channel for Android O+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -51,20 +250,99 @@ public final class TAMediaLibraryService extends MediaLibraryService {
             manager.createNotificationChannel(channel);
         }
         
-        player = new ExoPlayer.Builder(this).build();
-        player.setRepeatMode(Player.REPEAT_MODE_OFF);
-        folderTrie = new MediaFolderTrie();
-        Log.d(TAG, "onCreate: MediaFolderTrie initialized");
+        // Every cache and the player are bounded by the profile, so choose it first
+        Bundle metaData = getServiceMetaData();
+        memoryProfile =
+                MemoryProfile.select(
+                        this,
+                        metaData != null ? metaData.getString(META_DATA_MEMORY_PROFILE) : null);
+        ArtworkCache.get(this).setMaxMemoryBytes(memoryProfile.artworkMemoryBytes);
+        if (DEBUG) Log.d(TAG, "onCreate: Memory profile " + memoryProfile.getName());
+
+        // Read ahead of the library, so a resume request doesn't wait behind it
+        playbackStateStore =
+                new PlaybackStateStore(new File(getNoBackupFilesDir(), PLAYBACK_STATE_FILE));
+        playHistory = new PlayHistory(new File(getNoBackupFilesDir(), PLAY_HISTORY_FILE));
+        playHistory.setListener(this::postChildrenChanged);
+        // The root is served from a placeholder while the library loads in the background
+        folderTrie = buildPlaceholderTrie();
+        libraryExecutor =
+                Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "TALibrary"));
+        libraryExecutor.execute(this::loadInBackground);
+        browseExecutor = new BrowseExecutor();
+        playbackThread = new HandlerThread("TAPlayback", Process.THREAD_PRIORITY_AUDIO);
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper());
 
         MediaLibraryService.MediaLibrarySession.Callback callback =
                 new MediaLibraryService.MediaLibrarySession.Callback() {
 
+                    @Override
+                    public MediaSession.ConnectionResult onConnect(
+                            MediaSession session, MediaSession.ControllerInfo controller) {
+                        SessionCommands.Builder commands =
+                                MediaSession.ConnectionResult.DEFAULT_SESSION_AND_LIBRARY_COMMANDS
+                                        .buildUpon();
+                        commands.add(new SessionCommand(COMMAND_DOWNLOAD, Bundle.EMPTY));
+                        commands.add(new SessionCommand(COMMAND_REMOVE_DOWNLOAD, Bundle.EMPTY));
+                        commands.add(
+                                new SessionCommand(COMMAND_GET_DOWNLOAD_PROGRESS, Bundle.EMPTY));
+                        if (canReadMetrics(controller)) {
+                            commands.add(new SessionCommand(COMMAND_DUMP_METRICS, Bundle.EMPTY));
+                        }
+                        return new MediaSession.ConnectionResult.AcceptedResultBuilder(session)
+                                .setAvailableSessionCommands(commands.build())
+                                .build();
+                    }
+
+                    @Override
+                    public ListenableFuture<SessionResult> onCustomCommand(
+                            MediaSession session,
+                            MediaSession.ControllerInfo controller,
+                            SessionCommand customCommand,
+                            Bundle args) {
+                        switch (customCommand.customAction) {
+                            case COMMAND_DOWNLOAD:
+                                return Futures.immediateFuture(
+                                        setDownloaded(args.getString(EXTRA_MEDIA_ID), true));
+                            case COMMAND_REMOVE_DOWNLOAD:
+                                return Futures.immediateFuture(
+                                        setDownloaded(args.getString(EXTRA_MEDIA_ID), false));
+                            case COMMAND_GET_DOWNLOAD_PROGRESS:
+                                return Futures.immediateFuture(
+                                        getDownloadProgress(args.getString(EXTRA_MEDIA_ID)));
+                            default:
+                                break;
+                        }
+                        if (!COMMAND_DUMP_METRICS.equals(customCommand.customAction)
+                                || !canReadMetrics(controller)) {
+                            return Futures.immediateFuture(
+                                    new SessionResult(SessionError.ERROR_NOT_SUPPORTED));
+                        }
+                        StringWriter dump = new StringWriter();
+                        dumpMetrics(new PrintWriter(dump));
+                        Bundle extras = new Bundle();
+                        extras.putString(EXTRA_METRICS_DUMP, dump.toString());
+                        return Futures.immediateFuture(
+                                new SessionResult(SessionResult.RESULT_SUCCESS, extras));
+                    }
+
                     @Override
                     public ListenableFuture<LibraryResult<MediaItem>> onGetLibraryRoot(
                             MediaLibraryService.MediaLibrarySession session,
                             MediaSession.ControllerInfo browser,
                             @Nullable LibraryParams params) {
+                        long startNanos = System.nanoTime();
+                        // Same item in the placeholder and the loaded library; no need to wait
                         MediaItem rootItem = folderTrie.getRoot().getMediaItem();
+                        metrics.get(MediaServiceMetrics.Callback.GET_LIBRARY_ROOT)
+                                .recordSince(startNanos);
+                        if (metrics.recordStartup(
+                                MediaServiceMetrics.StartupStage.ROOT_SERVED, createStartNanos)) {
+                            Log.i(TAG, "onGetLibraryRoot: Root served "
+                                    + (System.nanoTime() - createStartNanos) / 1_000_000
+                                    + " ms after onCreate");
+                        }
                         return Futures.immediateFuture(LibraryResult.ofItem(rootItem, params));
                     }
 
@@ -73,12 +351,10 @@ public final class TAMediaLibraryService extends MediaLibraryService {
                             MediaLibraryService.MediaLibrarySession session,
                             MediaSession.ControllerInfo browser,
                             String mediaId) {
-                        MediaItem item = resolveMediaItem(mediaId);
-                        if (item != null) {
-                            return Futures.immediateFuture(LibraryResult.ofItem(item, null));
-                        }
-                        return Futures.immediateFuture(
-                                LibraryResult.ofError(SessionError.ERROR_BAD_VALUE));
+                        return metrics.time(
+                                MediaServiceMetrics.Callback.GET_ITEM,
+                                System.nanoTime(),
+                                browseExecutor.track(browser, loadItemShared(mediaId)));
                     }
 
                     @Override
@@ -89,59 +365,298 @@ public final class TAMediaLibraryService extends MediaLibraryService {
                             int page,
                             int pageSize,
                             @Nullable LibraryParams params) {
-                        Log.d(TAG, "onGetChildren: parentId=" + parentId + ", page=" + page + ", pageSize=" + pageSize);
-                        // Load children from the trie for the selected folder node
-                        MediaFolderNode node = folderTrie.getNode(parentId);
-                        if (node == null) {
-                            Log.w(TAG, "onGetChildren: No node found for parentId=" + parentId);
-                            return Futures.immediateFuture(
-                                    LibraryResult.ofItemList(ImmutableList.of(), params));
-                        }
-                        List<MediaItem> all = node.loadChildren();
-                        Log.d(TAG, "onGetChildren: Found " + all.size() + " items for parentId=" + parentId);
-                        int fromIndex = page * pageSize;
-                        int toIndex = Math.min(fromIndex + pageSize, all.size());
-                        if (fromIndex >= all.size()) {
-                            return Futures.immediateFuture(
-                                    LibraryResult.ofItemList(ImmutableList.of(), params));
-                        }
-                        ImmutableList<MediaItem> pageItems =
-                                ImmutableList.copyOf(all.subList(fromIndex, toIndex));
-                        return Futures.immediateFuture(
-                                LibraryResult.ofItemList(pageItems, params));
+                        if (DEBUG) Log.d(TAG, "onGetChildren: parentId=" + parentId + ", page=" + page + ", pageSize=" + pageSize);
+                        return metrics.time(
+                                MediaServiceMetrics.Callback.GET_CHILDREN,
+                                System.nanoTime(),
+                                browseExecutor.track(
+                                        browser,
+                                        loadChildrenShared(parentId, page, pageSize, params)));
                     }
 
                     @Override
                     public ListenableFuture<List<MediaItem>> onAddMediaItems(MediaSession mediaSession, MediaSession.ControllerInfo controller, List<MediaItem> mediaItems) {
-                        Log.d(TAG, "onAddMediaItems: Received " + mediaItems.size() + " items");
-                        // Resolve each media item to ensure it exists in our library
-                        ImmutableList.Builder<MediaItem> resolvedItems = ImmutableList.builder();
-                        for (MediaItem item : mediaItems) {
-                            Log.d(TAG, "onAddMediaItems: Processing item with mediaId=" + item.mediaId);
-                            MediaItem resolved = resolveMediaItem(item.mediaId);
-                            if (resolved != null) {
-                                Log.d(TAG, "onAddMediaItems: Resolved item " + item.mediaId + ", URI=" + 
-                                    (resolved.localConfiguration != null ? resolved.localConfiguration.uri.toString() : "null"));
-                                resolvedItems.add(resolved);
-                            } else {
-                                Log.w(TAG, "onAddMediaItems: Failed to resolve item with mediaId=" + item.mediaId);
-                            }
+                        if (DEBUG) Log.d(TAG, "onAddMediaItems: Received " + mediaItems.size() + " items");
+                        long startNanos = System.nanoTime();
+                        // The player fetches the tapped item itself; don't race it for the link
+                        MediaPreloader preloader = mediaPreloader;
+                        if (preloader != null) {
+                            preloader.cancel();
                         }
-                        List<MediaItem> result = resolvedItems.build();
-                        Log.d(TAG, "onAddMediaItems: Returning " + result.size() + " resolved items");
-                        return Futures.immediateFuture(result);
+                        return metrics.time(
+                                MediaServiceMetrics.Callback.ADD_MEDIA_ITEMS,
+                                startNanos,
+                                submitAfterLibrary(
+                                        controller,
+                                        () -> {
+                                            List<MediaItem> resolved =
+                                                    resolveMediaItems(mediaItems);
+                                            startTapToAudio(startNanos, resolved);
+                                            return resolved;
+                                        },
+                                        ImmutableList::of));
+                    }
+
+                    @Override
+                    public ListenableFuture<MediaSession.MediaItemsWithStartPosition>
+                            onSetMediaItems(
+                                    MediaSession mediaSession,
+                                    MediaSession.ControllerInfo controller,
+                                    List<MediaItem> mediaItems,
+                                    int startIndex,
+                                    long startPositionMs) {
+                        if (DEBUG) Log.d(TAG, "onSetMediaItems: Received " + mediaItems.size() + " items, startIndex=" + startIndex);
+                        long startNanos = System.nanoTime();
+                        MediaPreloader preloader = mediaPreloader;
+                        if (preloader != null) {
+                            preloader.cancel();
+                        }
+                        // Long queues are only resolved around the start item
+                        return metrics.time(
+                                MediaServiceMetrics.Callback.SET_MEDIA_ITEMS,
+                                startNanos,
+                                submitAfterLibrary(
+                                        controller,
+                                        () -> {
+                                            // Still loading: queue placeholders, resolved on play
+                                            MediaSession.MediaItemsWithStartPosition queue =
+                                                    libraryLoaded.isDone()
+                                                            ? lazyQueue.resolveQueue(
+                                                                    mediaItems,
+                                                                    startIndex,
+                                                                    startPositionMs)
+                                                            : lazyQueue.deferQueue(
+                                                                    mediaItems,
+                                                                    startIndex,
+                                                                    startPositionMs);
+                                            List<MediaItem> items = queue.mediaItems;
+                                            startTapToAudio(
+                                                    startNanos,
+                                                    items.subList(
+                                                            Math.max(0, queue.startIndex),
+                                                            items.size()));
+                                            return queue;
+                                        },
+                                        () -> new MediaSession.MediaItemsWithStartPosition(
+                                                ImmutableList.of(),
+                                                C.INDEX_UNSET,
+                                                C.TIME_UNSET)));
+                    }
+
+                    @Override
+                    public ListenableFuture<MediaSession.MediaItemsWithStartPosition>
+                            onPlaybackResumption(
+                                    MediaSession mediaSession,
+                                    MediaSession.ControllerInfo controller) {
+                        if (DEBUG) Log.d(TAG, "onPlaybackResumption: controller=" + controller.getPackageName());
+                        return metrics.time(
+                                MediaServiceMetrics.Callback.PLAYBACK_RESUMPTION,
+                                System.nanoTime(),
+                                Futures.transformAsync(
+                                        playbackStateStore.getSavedState(),
+                                        state -> resumeQueue(controller, state),
+                                        MoreExecutors.directExecutor()));
+                    }
+
+                    @Override
+                    public ListenableFuture<LibraryResult<Void>> onSearch(
+                            MediaLibraryService.MediaLibrarySession session,
+                            MediaSession.ControllerInfo browser,
+                            String query,
+                            @Nullable LibraryParams params) {
+                        return metrics.time(
+                                MediaServiceMetrics.Callback.SEARCH,
+                                System.nanoTime(),
+                                submitAfterLibrary(
+                                        browser,
+                                        () -> {
+                                            int count = search(query).size();
+                                            playbackHandler.post(
+                                                    () -> session.notifySearchResultChanged(
+                                                            browser, query, count, params));
+                                            return LibraryResult.ofVoid(params);
+                                        },
+                                        () -> LibraryResult.ofError(SessionError.ERROR_UNKNOWN)));
+                    }
+
+                    @Override
+                    public ListenableFuture<LibraryResult<ImmutableList<MediaItem>>> onGetSearchResult(
+                            MediaLibraryService.MediaLibrarySession session,
+                            MediaSession.ControllerInfo browser,
+                            String query,
+                            int page,
+                            int pageSize,
+                            @Nullable LibraryParams params) {
+                        return metrics.time(
+                                MediaServiceMetrics.Callback.GET_SEARCH_RESULT,
+                                System.nanoTime(),
+                                submitAfterLibrary(
+                                        browser,
+                                        () -> getSearchResult(query, page, pageSize, params),
+                                        () -> LibraryResult.ofItemList(
+                                                ImmutableList.of(), params)));
+                    }
+
+                    @Override
+                    public void onDisconnected(
+                            MediaSession session, MediaSession.ControllerInfo controller) {
+                        browseExecutor.cancelAll(controller);
                     }
                 };
 
-        librarySession =
-                new MediaLibraryService.MediaLibrarySession.Builder(
-                                TAMediaLibraryService.this, player, callback)
-                        .build();
+        Trace.beginSection("TAService.buildSession");
+        try {
+            // ExoPlayer is built when the first playback command reaches the placeholder
+            librarySession =
+                    new MediaLibraryService.MediaLibrarySession.Builder(
+                                    TAMediaLibraryService.this,
+                                    new DeferredPlayer(
+                                            playbackThread.getLooper(), this::getPlayer),
+                                    callback)
+                            .build();
+        } finally {
+            Trace.endSection();
+        }
         
         // Start foreground service with notification
         Notification notification = createNotification();
         startForeground(NOTIFICATION_ID, notification);
-        Log.d(TAG, "onCreate: MediaLibraryService started as foreground service");
+        metrics.recordStartup(MediaServiceMetrics.StartupStage.SESSION_READY, createStartNanos);
+        if (DEBUG) Log.d(TAG, "onCreate: MediaLibraryService started as foreground service");
+        Trace.endSection();
+    }
+
+    /**
+     * Returns the player, building ExoPlayer and installing it in the session in place of the
+     * {@link DeferredPlayer} on the first call. Returns null, leaving the DeferredPlayer in place,
+     * if the media components were already released by onDestroy. Playback thread only.
+     */
+    @Nullable
+    private Player getPlayer() {
+        if (player != null) {
+            return player;
+        }
+        Trace.beginSection("TAService.createPlayer");
+        try {
+            // Normally done on the library executor by now; otherwise this waits for it
+            ensureMediaComponents();
+            MediaDownloads downloads = mediaDownloads;
+            if (downloads == null) {
+                Log.w(TAG, "getPlayer: Service is shutting down, not creating the player");
+                return null;
+            }
+            DefaultLoadControl playerLoadControl = memoryProfile.createLoadControl();
+            loadControl = playerLoadControl;
+            player = new ExoPlayer.Builder(this)
+                    .setLooper(playbackThread.getLooper())
+                    .setLoadControl(playerLoadControl)
+                    .setMediaSourceFactory(
+                            new DefaultMediaSourceFactory(
+                                    lazyQueue.createDataSourceFactory(
+                                            downloads.createDataSourceFactory())))
+                    .build();
+            player.setRepeatMode(Player.REPEAT_MODE_OFF);
+            // The start of the next likely tracks is fetched into the cache ahead of a tap
+            player.addListener(
+                    new Player.Listener() {
+                        @Override
+                        public void onTimelineChanged(Timeline timeline, int reason) {
+                            if (reason == Player.TIMELINE_CHANGE_REASON_PLAYLIST_CHANGED) {
+                                saveQueue();
+                            }
+                        }
+
+                        @Override
+                        public void onMediaItemTransition(
+                                @Nullable MediaItem mediaItem, int reason) {
+                            if (mediaItem != null) {
+                                playbackStateStore.saveCurrentItem(
+                                        player.getCurrentMediaItemIndex(),
+                                        PlaybackStateStore.CurrentItem.of(mediaItem));
+                            }
+                            // Skipped past without playing, it doesn't count
+                            unplayedItem = mediaItem;
+                            if (player.isPlaying()) {
+                                recordPlay();
+                            }
+                            materializeQueue();
+                            preloadQueue();
+                        }
+
+                        @Override
+                        public void onPositionDiscontinuity(
+                                Player.PositionInfo oldPosition,
+                                Player.PositionInfo newPosition,
+                                int reason) {
+                            if (reason == Player.DISCONTINUITY_REASON_SEEK) {
+                                savePosition(/* sync= */ false);
+                            }
+                        }
+
+                        @Override
+                        public void onIsPlayingChanged(boolean isPlaying) {
+                            playbackHandler.removeCallbacks(savePositionRunnable);
+                            if (isPlaying) {
+                                recordTapToAudio();
+                                recordPlay();
+                                preloadQueue();
+                                playbackHandler.postDelayed(
+                                        savePositionRunnable, POSITION_SAVE_INTERVAL_MS);
+                            } else {
+                                // Paused, stopped or ended: often the last chance before power off
+                                savePosition(/* sync= */ true);
+                            }
+                        }
+                    });
+            librarySession.setPlayer(player);
+            metrics.recordStartup(
+                    MediaServiceMetrics.StartupStage.PLAYER_CREATED, createStartNanos);
+            return player;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Creates the media cache, downloads and preloader unless they exist or were released. Called
+     * on the library executor at startup, or first by {@link #getPlayer} if playback starts
+     * before that ran.
+     */
+    private synchronized void ensureMediaComponents() {
+        if (mediaDownloads != null || mediaComponentsReleased) {
+            return;
+        }
+        Trace.beginSection("TAService.createMediaComponents");
+        try {
+            // Streamed tracks are read through an on-disk LRU cache, so replays skip the network
+            MediaCache cache = new MediaCache(this);
+            // Tracks of folders marked for download play from their offline copy. Created off
+            // the main thread, it still reports to and is driven from the main looper.
+            MediaDownloads downloads = new MediaDownloads(this, cache);
+            downloads.setListener(
+                    mediaId -> executeOnLibrary(() -> onDownloadStatusChanged(mediaId)));
+            mediaPreloader = new MediaPreloader(cache);
+            mediaCache = cache;
+            mediaDownloads = downloads;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private synchronized void releaseMediaComponents() {
+        mediaComponentsReleased = true;
+        if (mediaPreloader != null) {
+            mediaPreloader.release();
+            mediaPreloader = null;
+        }
+        if (mediaDownloads != null) {
+            mediaDownloads.release();
+            mediaDownloads = null;
+        }
+        if (mediaCache != null) {
+            mediaCache.release();
+            mediaCache = null;
+        }
     }
 
     private Notification createNotification() {
@@ -160,6 +675,50 @@ public final class TAMediaLibraryService extends MediaLibraryService {
         }
     }
 
+    @Override
+    public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_SCAN_LOCAL_MUSIC.equals(intent.getAction())) {
+            scanLocalMusicWhenLoaded();
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        int stage = MemoryProfile.trimStageOf(level);
+        if (stage > 0) {
+            trimCount.incrementAndGet();
+            maxTrimStage = Math.max(maxTrimStage, stage);
+            shedCaches(stage);
+        }
+    }
+
+    /**
+     * Drops caches that can be rebuilt, cheapest to rebuild first: at {@link
+     * MemoryProfile#TRIM_RECENT} in-memory artwork and search results, at {@link
+     * MemoryProfile#TRIM_MOST} also most loaded children and preloading, at {@link
+     * MemoryProfile#TRIM_ALL} all loaded children. Folders reload on their next page request.
+     */
+    private void shedCaches(int stage) {
+        if (DEBUG) Log.d(TAG, "shedCaches: stage " + stage);
+        ArtworkCache.get(this).clearMemory();
+        searchIndex.clearRecentResults();
+        if (stage < MemoryProfile.TRIM_MOST) {
+            return;
+        }
+        ChildrenCache childrenCache = folderTrie.getChildrenCache();
+        if (stage < MemoryProfile.TRIM_ALL) {
+            childrenCache.trimTo(childrenCache.getMaxItems() / 4);
+        } else {
+            childrenCache.invalidateAll();
+        }
+        MediaPreloader preloader = mediaPreloader;
+        if (preloader != null) {
+            preloader.cancel();
+        }
+    }
+
     @Override
     @Nullable
     public MediaLibraryService.MediaLibrarySession onGetSession(
@@ -167,41 +726,1055 @@ public final class TAMediaLibraryService extends MediaLibraryService {
         return librarySession;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpMetrics(writer);
+        if (args != null && Arrays.asList(args).contains("--reset")) {
+            resetMetrics();
+            writer.println("Metrics reset.");
+        }
+    }
+
+    /** Controllers of this app and trusted (system) controllers may read the metrics. */
+    private boolean canReadMetrics(MediaSession.ControllerInfo controller) {
+        return controller.isTrusted() || getPackageName().equals(controller.getPackageName());
+    }
+
+    /** Prints callback latencies and the counters of the trie, cache and browse executor. */
+    private void dumpMetrics(PrintWriter writer) {
+        writer.println("Startup:");
+        metrics.dumpStartup(writer);
+        DefaultLoadControl playerLoadControl = loadControl;
+        Runtime runtime = Runtime.getRuntime();
+        writer.println("Memory:");
+        writer.println("  profile=" + memoryProfile.getName()
+                + " heap used=" + (runtime.totalMemory() - runtime.freeMemory())
+                + " heap max=" + runtime.maxMemory()
+                + " player buffer bytes="
+                + (playerLoadControl != null
+                        ? playerLoadControl.getAllocator().getTotalBytesAllocated()
+                        : 0)
+                + " trims=" + trimCount.get()
+                + " max trim stage=" + maxTrimStage);
+        writer.println("Callback latency:");
+        metrics.dump(writer);
+        MediaFolderTrie trie = folderTrie;
+        if (trie != null) {
+            ChildrenCache cache = trie.getChildrenCache();
+            writer.println("Library:");
+            writer.println("  trie version=" + trie.getVersion()
+                    + " indexed ids=" + trie.getIndexSize()
+                    + " index ready=" + trie.isIndexReady()
+                    + " from snapshot=" + restoredFromSnapshot);
+            MediaServiceMetrics.printHistogram(writer, "trie lookup", trie.getLookupLatency());
+            MediaServiceMetrics.printHistogram(writer, "loadChildren", cache.getLoadLatency());
+            writer.println("  children cache: items=" + cache.getCachedItemCount()
+                    + " hits=" + cache.getHitCount()
+                    + " misses=" + cache.getMissCount()
+                    + " evictions=" + cache.getEvictionCount());
+            writer.println("  search index: items=" + searchIndex.size());
+        }
+        MediaCache cache = mediaCache;
+        if (cache != null) {
+            writer.println("Media cache:");
+            writer.println("  bytes=" + cache.getCacheSpace() + "/" + cache.getMaxBytes()
+                    + " hits=" + cache.getHitCount()
+                    + " misses=" + cache.getMissCount()
+                    + " cache bytes read=" + cache.getCacheBytesRead()
+                    + " network bytes read=" + cache.getNetworkBytesRead()
+                    + " ignored=" + cache.getIgnoredCount());
+        }
+        MediaDownloads downloads = mediaDownloads;
+        if (downloads != null) {
+            MediaDownloads.Progress progress = downloads.getProgress();
+            writer.println("Downloads:");
+            writer.println("  folders=" + downloads.getMarkedFolderIds().size()
+                    + " items=" + progress.itemCount
+                    + " completed=" + progress.completedCount
+                    + " failed=" + progress.failedCount
+                    + " bytes=" + progress.bytesDownloaded
+                    + " storage=" + downloads.getStorageBytes()
+                    + " offline bytes read=" + downloads.getOfflineBytesRead());
+        }
+        MediaPreloader preloader = mediaPreloader;
+        if (preloader != null) {
+            writer.println("Preloader:");
+            writer.println("  preloaded=" + preloader.getPreloadedCount()
+                    + " bytes=" + preloader.getPreloadedBytes()
+                    + " already cached=" + preloader.getAlreadyCachedCount()
+                    + " cancelled=" + preloader.getCancelledCount()
+                    + " failed=" + preloader.getFailedCount());
+        }
+        CatalogSource catalog = catalogSource;
+        if (catalog != null) {
+            writer.println("Catalog:");
+            writer.println("  tracks=" + catalog.getTrackCount()
+                    + " requests=" + catalog.getRequestCount()
+                    + " not modified=" + catalog.getNotModifiedCount()
+                    + " bytes read=" + catalog.getBytesRead()
+                    + " skipped=" + catalog.getSkippedCount());
+            MediaServiceMetrics.printHistogram(writer, "parse", catalog.getParseLatency());
+        }
+        writer.println("Playback state:");
+        writer.println("  records=" + playbackStateStore.getRecordCount()
+                + " bytes written=" + playbackStateStore.getBytesWritten()
+                + " compactions=" + playbackStateStore.getCompactionCount());
+        writer.println("Play history:");
+        writer.println("  plays=" + playHistory.getPlayCount()
+                + " recent=" + playHistory.getRecent().size()
+                + " most played=" + playHistory.getMostPlayed().size()
+                + " batches=" + playHistory.getBatchCount()
+                + " bytes written=" + playHistory.getBytesWritten()
+                + " compactions=" + playHistory.getCompactionCount()
+                + " notified=" + playHistory.getNotifiedCount()
+                + " not notified=" + playHistory.getUnnotifiedCount());
+        ArtworkCache artwork = ArtworkCache.get(this);
+        writer.println("Artwork:");
+        writer.println("  memory bytes=" + artwork.getMemoryBytes()
+                + "/" + artwork.getMaxMemoryBytes()
+                + " disk bytes=" + artwork.getDiskBytes() + "/" + artwork.getMaxDiskBytes()
+                + " memory hits=" + artwork.getMemoryHitCount()
+                + " disk hits=" + artwork.getDiskHitCount()
+                + " decodes=" + artwork.getDecodeCount()
+                + " failures=" + artwork.getFailureCount()
+                + " coalesced=" + artwork.getCoalescedCount()
+                + " disk evictions=" + artwork.getDiskEvictionCount());
+        MediaServiceMetrics.printHistogram(writer, "decode", artwork.getDecodeLatency());
+        writer.println("Queue:");
+        writer.println("  placeholders=" + lazyQueue.getPlaceholderCount()
+                + " materialized=" + lazyQueue.getMaterializedCount()
+                + " resolved on open=" + lazyQueue.getResolvedOnOpenCount());
+        BrowseExecutor executor = browseExecutor;
+        if (executor != null) {
+            writer.println("Browse executor:");
+            writer.println("  queued=" + executor.getQueueSize()
+                    + " active=" + executor.getActiveCount()
+                    + " rejected=" + executor.getRejectedCount()
+                    + " timed out=" + executor.getTimeoutCount()
+                    + " failed=" + executor.getFailureCount()
+                    + " controllers=" + executor.getTrackedControllerCount());
+        }
+        writer.println("Coalescing:");
+        writer.println("  children: in flight=" + childrenFlights.getInFlightCount()
+                + " requests=" + childrenFlights.getRequestCount()
+                + " coalesced=" + childrenFlights.getCoalescedCount());
+        writer.println("  items: in flight=" + itemFlights.getInFlightCount()
+                + " requests=" + itemFlights.getRequestCount()
+                + " coalesced=" + itemFlights.getCoalescedCount());
+        writer.flush();
+    }
+
+    private void resetMetrics() {
+        metrics.reset();
+        MediaFolderTrie trie = folderTrie;
+        if (trie != null) {
+            trie.getLookupLatency().reset();
+            trie.getChildrenCache().getLoadLatency().reset();
+        }
+    }
+
     @Override
     public void onDestroy() {
-        if (librarySession != null) {
-            librarySession.release();
-            librarySession = null;
+        // Scans, catalog refreshes and download changes posted here are not run any more
+        destroyed = true;
+        mainHandler.removeCallbacksAndMessages(null);
+        MediaLibraryService.MediaLibrarySession session = librarySession;
+        librarySession = null;
+        if (playbackThread != null) {
+            // The session and player are released on their own thread, then the cache they read.
+            // The executors outlive whatever was already posted to it, such as queue
+            // materialization and resumption, and are shut down last.
+            playbackHandler.removeCallbacksAndMessages(null);
+            playbackHandler.post(
+                    () -> {
+                        if (session != null) {
+                            session.release();
+                        }
+                        playbackHandler.removeCallbacks(savePositionRunnable);
+                        if (player != null) {
+                            savePosition(/* sync= */ true);
+                            player.release();
+                            player = null;
+                        }
+                        playbackStateStore.release();
+                        playHistory.release();
+                        releaseMediaComponents();
+                        shutdownExecutors();
+                    });
+            playbackThread.quitSafely();
+            playbackThread = null;
+        } else {
+            if (playbackStateStore != null) {
+                playbackStateStore.release();
+            }
+            if (playHistory != null) {
+                playHistory.release();
+            }
+            releaseMediaComponents();
+            shutdownExecutors();
         }
-        if (player != null) {
-            player.release();
-            player = null;
+        if (localMusicScanner != null) {
+            localMusicScanner.release();
+            localMusicScanner = null;
         }
         super.onDestroy();
     }
 
+    /** Stops the browse and library executors; later tasks get their fallback or are dropped. */
+    private void shutdownExecutors() {
+        if (browseExecutor != null) {
+            browseExecutor.shutdown();
+        }
+        if (libraryExecutor != null) {
+            libraryExecutor.shutdownNow();
+        }
+    }
+
+    /** Runs task on the library executor; tasks after the service is destroyed are dropped. */
+    private void executeOnLibrary(Runnable task) {
+        try {
+            libraryExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "executeOnLibrary: Dropping library task after onDestroy");
+        }
+    }
+
+    /**
+     * Drops the cached children of the given folder and notifies subscribed browsers that its
+     * children changed, so they reload it. Does nothing if parentId is not a folder in the trie.
+     */
+    public void invalidateChildren(String parentId) {
+        int itemCount = folderTrie.invalidateChildren(parentId);
+        if (itemCount >= 0) {
+            postChildrenChanged(parentId, itemCount);
+        }
+    }
+
+    /** Notifies subscribed browsers that the given folders of the trie changed. */
+    private void notifyFoldersChanged(MediaFolderTrie trie, Collection<String> parentIds) {
+        for (String parentId : parentIds) {
+            MediaFolderNode node = trie.getNode(parentId);
+            postChildrenChanged(parentId, node != null ? trie.getChildCount(node) : 0);
+            MediaDownloads downloads = mediaDownloads;
+            if (node != null && downloads != null && downloads.isMarked(parentId)) {
+                // Download tracks added to a marked folder
+                syncDownloads(trie, parentId);
+            }
+        }
+    }
+
+    private void postChildrenChanged(String parentId, int itemCount) {
+        playbackHandler.post(
+                () -> {
+                    if (librarySession != null) {
+                        librarySession.notifyChildrenChanged(parentId, itemCount, null);
+                    }
+                });
+    }
+
+    /** Returns a trie whose root has no children, served until the library is loaded. */
+    private static MediaFolderTrie buildPlaceholderTrie() {
+        MediaFolderNode root =
+                new MediaFolderNode(
+                        DefaultFolder.ROOT.getRoute(),
+                        DefaultFolder.ROOT.getFolderItem(),
+                        Collections::emptyList,
+                        MediaFolderNode.NO_CACHE);
+        return MediaFolderTrie.fromRoot(root, new ChildrenCache());
+    }
+
+    /**
+     * Background startup stages, run on the library executor after onCreate: loads the library
+     * and lets waiting browse requests through, then creates the media cache and downloads and
+     * starts the local music scan.
+     */
+    private void loadInBackground() {
+        Trace.beginSection("TAService.loadLibrary");
+        try {
+            loadLibrary();
+        } finally {
+            libraryLoaded.set(null);
+            Trace.endSection();
+        }
+        metrics.recordStartup(MediaServiceMetrics.StartupStage.LIBRARY_LOADED, createStartNanos);
+        if (DEBUG) Log.d(TAG, "loadInBackground: MediaFolderTrie initialized");
+        ensureMediaComponents();
+        syncDownloads();
+        mainHandler.post(this::scanLocalMusic);
+        // After the library refresh queued by loadLibrary, which serves the cached catalog
+        executeOnLibrary(this::refreshCatalog);
+    }
+
+    /**
+     * Runs the browse task on behalf of controller once the library is loaded, or after {@link
+     * #LIBRARY_WAIT_MS} with only the placeholder root to read, without holding a browse thread
+     * meanwhile.
+     */
+    private <T> ListenableFuture<T> submitAfterLibrary(
+            MediaSession.ControllerInfo controller, Callable<T> task, Supplier<T> fallback) {
+        return browseExecutor.submitWhen(
+                controller, libraryLoaded, LIBRARY_WAIT_MS, task, fallback);
+    }
+
+    /** Same as {@link #submitAfterLibrary}, for loads shared by several controllers. */
+    private <T> ListenableFuture<T> submitAfterLibrary(Callable<T> task, Supplier<T> fallback) {
+        return browseExecutor.submitWhen(libraryLoaded, LIBRARY_WAIT_MS, task, fallback);
+    }
+
+    /**
+     * Resolver for {@link #lazyQueue}. Browse tasks only reach it with the library loaded; the
+     * player's loader threads, opening a queued item during a cold start, wait for it here for at
+     * most {@link #LOADER_LIBRARY_WAIT_MS}.
+     */
+    private List<MediaItem> resolveQueuedIds(List<String> mediaIds) {
+        try {
+            libraryLoaded.get(LOADER_LIBRARY_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "resolveQueuedIds: Library still loading after "
+                    + LOADER_LIBRARY_WAIT_MS + " ms");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return resolveMediaIds(mediaIds);
+    }
+
+    /**
+     * Serves the library from the last snapshot if there is one and refreshes it from the folder
+     * sources afterwards; otherwise builds it from the sources now and snapshots it. Runs on the
+     * library executor.
+     */
+    private void loadLibrary() {
+        CatalogSource catalog = createCatalogSource();
+        if (catalog != null) {
+            catalog.loadCached();
+            catalogSource = catalog;
+        }
+        MediaFolderTrie restored = null;
+        try {
+            restored =
+                    MediaTreeSnapshot.read(
+                            getSnapshotFile(),
+                            memoryProfile.createChildrenCache(),
+                            memoryProfile.maxEagerlyIndexedChildren,
+                            this::findFolderSource);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "loadLibrary: Ignoring unreadable snapshot", e);
+        }
+        if (restored != null) {
+            restoredFromSnapshot = true;
+            folderTrie = restored;
+            MediaFolderTrie snapshotTrie = restored;
+            executeOnLibrary(
+                    () -> {
+                        snapshotTrie.indexAll();
+                        snapshotTrie.addIndexListener(searchIndex);
+                        refreshLibrary();
+                    });
+        } else {
+            MediaFolderTrie trie =
+                    new MediaFolderTrie(
+                            memoryProfile.createChildrenCache(),
+                            memoryProfile.maxEagerlyIndexedChildren);
+            trie.update(this::attachLibraries);
+            trie.addIndexListener(searchIndex);
+            folderTrie = trie;
+            executeOnLibrary(() -> writeSnapshot(trie));
+        }
+    }
+
+    /**
+     * Replaces the tree with one built from the folder sources, reloading every folder, notifies
+     * the folders that changed and snapshots the library if anything did. Browsers keep reading
+     * the previous version until the new one is published. Runs on the library executor.
+     */
+    private void refreshLibrary() {
+        MediaFolderTrie trie = folderTrie;
+        List<String> changed =
+                trie.refresh(
+                        editor -> {
+                            editor.setRoot(MediaFolderTrie.buildDefaultRoot());
+                            attachLibraries(editor);
+                        });
+        if (DEBUG) Log.d(TAG, "refreshLibrary: " + changed.size() + " folders changed since the snapshot");
+        notifyFoldersChanged(trie, changed);
+        if (!changed.isEmpty()) {
+            writeSnapshot(trie);
+        }
+    }
+
+    /**
+     * Returns the live source of a history or catalog folder, for the snapshot folders that store
+     * their listing by reference.
+     */
+    @Nullable
+    private PagedChildrenSource findFolderSource(String mediaId) {
+        PagedChildrenSource source = playHistory.findFolderSource(mediaId);
+        CatalogSource catalog = catalogSource;
+        if (source == null && catalog != null) {
+            source = catalog.findFolderSource(mediaId);
+        }
+        return source;
+    }
+
+    /** Installs the folders of the local music library, the remote catalog and play history. */
+    private void attachLibraries(MediaFolderTrie.Editor editor) {
+        playHistory.attachTo(editor);
+        localMusicLibrary.attachTo(editor);
+        CatalogSource catalog = catalogSource;
+        if (catalog != null) {
+            catalog.attachTo(editor);
+        }
+    }
+
+    /** Returns a source for the catalog endpoint in the service's meta-data, or null if none. */
+    @Nullable
+    private CatalogSource createCatalogSource() {
+        Bundle metaData = getServiceMetaData();
+        String url = metaData != null ? metaData.getString(META_DATA_CATALOG_URL) : null;
+        if (url == null) {
+            return null;
+        }
+        try {
+            return new CatalogSource(
+                    new URL(url), new File(getNoBackupFilesDir(), CATALOG_CACHE_FILE));
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "createCatalogSource: No usable catalog endpoint", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private Bundle getServiceMetaData() {
+        try {
+            return getPackageManager()
+                    .getServiceInfo(
+                            new ComponentName(this, getClass()), PackageManager.GET_META_DATA)
+                    .metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "getServiceMetaData: Service not found", e);
+            return null;
+        }
+    }
+
+    /**
+     * Revalidates the remote catalog and, if it changed, re-attaches it and reloads and
+     * notifies only the folders whose listing changed. Runs on the library executor, then again
+     * every {@link #CATALOG_REFRESH_INTERVAL_MS}.
+     */
+    private void refreshCatalog() {
+        CatalogSource catalog = catalogSource;
+        if (catalog == null) {
+            return;
+        }
+        try {
+            Set<String> changedFolderIds = catalog.refresh();
+            if (!changedFolderIds.isEmpty()) {
+                MediaFolderTrie trie = folderTrie;
+                Set<String> changed = new LinkedHashSet<>(trie.update(catalog::attachTo));
+                // Folders whose tracks changed keep their node; reload them.
+                for (String parentId : changedFolderIds) {
+                    if (changed.add(parentId)) {
+                        trie.reindex(parentId);
+                    }
+                }
+                if (DEBUG) Log.d(TAG, "refreshCatalog: " + changed.size() + " folders changed");
+                notifyFoldersChanged(trie, changed);
+                writeSnapshot(trie);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "refreshCatalog: Keeping the current catalog", e);
+        }
+        mainHandler.removeCallbacks(refreshCatalogRunnable);
+        mainHandler.postDelayed(refreshCatalogRunnable, CATALOG_REFRESH_INTERVAL_MS);
+    }
+
+    /** Scans local music on the main thread once the library has loaded. */
+    private void scanLocalMusicWhenLoaded() {
+        executeOnLibrary(() -> mainHandler.post(this::scanLocalMusic));
+    }
+
+    /**
+     * Starts an incremental scan of the device's music directory if storage access is granted.
+     * Folders the scan changes are re-attached to the trie and reported to browsers. Runs on the
+     * main thread after the library is loaded, so the scan attaches to the loaded trie.
+     */
+    private void scanLocalMusic() {
+        if (destroyed) {
+            return;
+        }
+        String permission =
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                        ? Manifest.permission.READ_MEDIA_AUDIO
+                        : Manifest.permission.READ_EXTERNAL_STORAGE;
+        if (checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+            if (DEBUG) Log.d(TAG, "scanLocalMusic: " + permission + " not granted, skipping");
+            return;
+        }
+        if (localMusicScanner == null) {
+            localMusicScanner =
+                    new LocalMusicScanner(
+                            Collections.singletonList(
+                                    Environment.getExternalStoragePublicDirectory(
+                                            Environment.DIRECTORY_MUSIC)),
+                            new File(getNoBackupFilesDir(), LOCAL_SCAN_STATE_FILE),
+                            localMusicLibrary,
+                            changedFolderIds -> {
+                                MediaFolderTrie trie = folderTrie;
+                                Set<String> changed =
+                                        new LinkedHashSet<>(
+                                                trie.update(localMusicLibrary::attachTo));
+                                // Albums whose tracks changed keep their node; reload them.
+                                for (String parentId : changedFolderIds) {
+                                    if (changed.add(parentId)) {
+                                        trie.reindex(parentId);
+                                    }
+                                }
+                                notifyFoldersChanged(trie, changed);
+                            });
+        }
+        localMusicScanner.scan();
+    }
+
+    private void writeSnapshot(MediaFolderTrie trie) {
+        try {
+            MediaTreeSnapshot.write(trie, getSnapshotFile());
+        } catch (IOException e) {
+            Log.w(TAG, "writeSnapshot: Failed to write library snapshot", e);
+        }
+    }
+
+    private File getSnapshotFile() {
+        return new File(getNoBackupFilesDir(), SNAPSHOT_FILE);
+    }
+
+    /**
+     * Preloads the items that follow the current one in the queue. Runs on the playback thread.
+     */
+    private void preloadQueue() {
+        MediaPreloader preloader = mediaPreloader;
+        Timeline timeline = player.getCurrentTimeline();
+        if (preloader == null || timeline.isEmpty()) {
+            return;
+        }
+        List<MediaItem> next = new ArrayList<>();
+        int index = player.getCurrentMediaItemIndex();
+        while (next.size() < MediaPreloader.DEFAULT_MAX_ITEMS) {
+            index = timeline.getNextWindowIndex(
+                    index, player.getRepeatMode(), player.getShuffleModeEnabled());
+            if (index == C.INDEX_UNSET || index == player.getCurrentMediaItemIndex()) {
+                break;
+            }
+            next.add(player.getMediaItemAt(index));
+        }
+        preloader.preload(withoutDownloaded(next));
+    }
+
+    /** Saves the player's queue for resumption. Playback thread only. */
+    private void saveQueue() {
+        int count = player.getMediaItemCount();
+        List<String> mediaIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            mediaIds.add(player.getMediaItemAt(i).mediaId);
+        }
+        playbackStateStore.saveQueue(mediaIds);
+    }
+
+    /** Saves the current index and position for resumption. Playback thread only. */
+    private void savePosition(boolean sync) {
+        if (player.getCurrentMediaItemIndex() != C.INDEX_UNSET) {
+            playbackStateStore.savePosition(
+                    player.getCurrentMediaItemIndex(), player.getCurrentPosition(), sync);
+        }
+    }
+
+    /** Counts the item playback moved to as played, once, when it starts playing. */
+    private void recordPlay() {
+        if (unplayedItem != null) {
+            playHistory.recordPlay(unplayedItem);
+            unplayedItem = null;
+        }
+    }
+
+    private void savePositionPeriodically() {
+        if (player != null && player.isPlaying()) {
+            savePosition(/* sync= */ false);
+            playbackHandler.postDelayed(savePositionRunnable, POSITION_SAVE_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Returns the saved queue to resume, or fails like the default callback when there is none.
+     * Once the library is loaded the items around the saved one are resolved up front; before
+     * that the queue is returned as placeholders at once, so playback can start without waiting
+     * for the catalog, and the player resolves the saved item when it opens it.
+     */
+    private ListenableFuture<MediaSession.MediaItemsWithStartPosition> resumeQueue(
+            MediaSession.ControllerInfo controller, @Nullable PlaybackStateStore.State state) {
+        if (state == null) {
+            return Futures.immediateFailedFuture(
+                    new UnsupportedOperationException("No saved queue to resume"));
+        }
+        Log.i(TAG, "resumeQueue: Resuming " + state.mediaIds.size() + " items at "
+                + state.currentIndex + "/" + state.positionMs + " ms, library "
+                + (libraryLoaded.isDone() ? "loaded" : "loading"));
+        List<MediaItem> requested = new ArrayList<>(state.mediaIds.size());
+        for (int i = 0; i < state.mediaIds.size(); i++) {
+            MediaItem.Builder item = new MediaItem.Builder().setMediaId(state.mediaIds.get(i));
+            if (i == state.currentIndex && state.currentItem != null) {
+                // Shown on the car's now-playing card before the item is resolved
+                item.setMediaMetadata(state.currentItem.toMediaMetadata());
+            }
+            requested.add(item.build());
+        }
+        if (!libraryLoaded.isDone()) {
+            return Futures.immediateFuture(
+                    lazyQueue.deferQueue(requested, state.currentIndex, state.positionMs));
+        }
+        return browseExecutor.submit(
+                controller,
+                () -> lazyQueue.resolveQueue(requested, state.currentIndex, state.positionMs),
+                () -> lazyQueue.deferQueue(requested, state.currentIndex, state.positionMs));
+    }
+
+    /**
+     * Replaces the queue placeholders around the current item with their full items, resolved
+     * on the browse executor, so they show their metadata and can be preloaded. Runs on the
+     * playback thread.
+     */
+    private void materializeQueue() {
+        if (!libraryLoaded.isDone()) {
+            // Placeholders are resolved as they're opened until then
+            return;
+        }
+        List<Integer> indexes = lazyQueue.findPlaceholdersAround(player);
+        if (indexes.isEmpty()) {
+            return;
+        }
+        List<MediaItem> placeholders = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            placeholders.add(player.getMediaItemAt(index));
+        }
+        Futures.addCallback(
+                browseExecutor.submit(
+                        () -> lazyQueue.materialize(placeholders), Collections::emptyList),
+                new FutureCallback<List<MediaItem>>() {
+                    @Override
+                    public void onSuccess(List<MediaItem> items) {
+                        if (player == null) {
+                            return;
+                        }
+                        int current = player.getCurrentMediaItemIndex();
+                        for (int i = 0; i < items.size(); i++) {
+                            int index = indexes.get(i);
+                            // Skip items the queue no longer holds at that index
+                            if (items.get(i) != null
+                                    && index != current
+                                    && index < player.getMediaItemCount()
+                                    && player.getMediaItemAt(index).equals(placeholders.get(i))) {
+                                player.replaceMediaItem(index, items.get(i));
+                            }
+                        }
+                        preloadQueue();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        // Unmaterialized placeholders are still resolved when played
+                    }
+                },
+                playbackHandler::post);
+    }
+
+    /**
+     * Marks or unmarks the folder for offline download. Its tracks, including those of its
+     * subfolders, are collected on the library executor.
+     */
+    private SessionResult setDownloaded(@Nullable String folderId, boolean downloaded) {
+        MediaFolderTrie trie = folderTrie;
+        if (folderId == null || trie.getNode(folderId) == null) {
+            return new SessionResult(SessionError.ERROR_BAD_VALUE);
+        }
+        executeOnLibrary(
+                () -> {
+                    List<MediaItem> items = collectTracks(trie, folderId);
+                    // The folder's own status shows in its parent's listing
+                    String path = trie.getNode(folderId).getPath();
+                    int separator = path.lastIndexOf(MediaFolderTrie.PATH_SEPARATOR);
+                    String parentId = separator > 0 ? path.substring(0, separator) : "root";
+                    int parentCount = trie.getChildCount(trie.getNode(parentId));
+                    mainHandler.post(
+                            () -> {
+                                if (mediaDownloads == null) {
+                                    return;
+                                }
+                                if (downloaded) {
+                                    mediaDownloads.markFolder(folderId, items);
+                                } else {
+                                    mediaDownloads.unmarkFolder(folderId, items);
+                                }
+                                postChildrenChanged(parentId, parentCount);
+                            });
+                });
+        return new SessionResult(SessionResult.RESULT_SUCCESS);
+    }
+
+    private SessionResult getDownloadProgress(@Nullable String folderId) {
+        MediaDownloads downloads = mediaDownloads;
+        if (downloads == null) {
+            // Still starting up, or released
+            return new SessionResult(SessionError.ERROR_INVALID_STATE);
+        }
+        MediaDownloads.Progress progress =
+                folderId != null ? downloads.getProgress(folderId) : downloads.getProgress();
+        Bundle extras = new Bundle();
+        if (folderId != null) {
+            extras.putLong(EXTRA_DOWNLOAD_STATUS, downloads.getDownloadStatus(folderId));
+        }
+        extras.putInt(EXTRA_DOWNLOAD_ITEM_COUNT, progress.itemCount);
+        extras.putInt(EXTRA_DOWNLOAD_COMPLETED_COUNT, progress.completedCount);
+        extras.putInt(EXTRA_DOWNLOAD_FAILED_COUNT, progress.failedCount);
+        extras.putLong(EXTRA_DOWNLOAD_BYTES, progress.bytesDownloaded);
+        extras.putLong(EXTRA_DOWNLOAD_STORAGE_BYTES, downloads.getStorageBytes());
+        return new SessionResult(SessionResult.RESULT_SUCCESS, extras);
+    }
+
+    /** Re-syncs every marked folder with the library. Runs on the library executor. */
+    private void syncDownloads() {
+        MediaFolderTrie trie = folderTrie;
+        MediaDownloads downloads = mediaDownloads;
+        if (downloads == null) {
+            return;
+        }
+        for (String folderId : downloads.getMarkedFolderIds()) {
+            if (trie.getNode(folderId) != null) {
+                syncDownloads(trie, folderId);
+            }
+        }
+    }
+
+    /** Downloads the folder's tracks that are not downloaded yet. Not on the main thread. */
+    private void syncDownloads(MediaFolderTrie trie, String folderId) {
+        List<MediaItem> items = collectTracks(trie, folderId);
+        mainHandler.post(
+                () -> {
+                    if (mediaDownloads != null && mediaDownloads.isMarked(folderId)) {
+                        mediaDownloads.markFolder(folderId, items);
+                    }
+                });
+    }
+
+    /** Returns the playable items of the folder and its subfolders, loading them as needed. */
+    private static List<MediaItem> collectTracks(MediaFolderTrie trie, String folderId) {
+        List<MediaItem> tracks = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        ArrayDeque<String> pending = new ArrayDeque<>();
+        pending.add(folderId);
+        while (!pending.isEmpty() && tracks.size() < MAX_DOWNLOAD_ITEMS) {
+            String id = pending.poll();
+            MediaFolderNode node = trie.getNode(id);
+            if (node == null || !visited.add(node.getPath())) {
+                continue;
+            }
+            for (MediaItem item : trie.getChildren(node)) {
+                if (Boolean.TRUE.equals(item.mediaMetadata.isPlayable)
+                        && tracks.size() < MAX_DOWNLOAD_ITEMS) {
+                    tracks.add(item);
+                } else if (Boolean.TRUE.equals(item.mediaMetadata.isBrowsable)) {
+                    pending.add(item.mediaId);
+                }
+            }
+        }
+        return tracks;
+    }
+
+    /** Notifies the folders showing mediaId that its download status changed. */
+    private void onDownloadStatusChanged(String mediaId) {
+        MediaFolderTrie trie = folderTrie;
+        MediaDownloads downloads = mediaDownloads;
+        if (downloads == null) {
+            return;
+        }
+        Set<String> parentIds = new LinkedHashSet<>(downloads.getFoldersContaining(mediaId));
+        String parentPath = trie.findParentPath(mediaId);
+        if (parentPath != null) {
+            parentIds.add(parentPath);
+        }
+        for (String parentId : parentIds) {
+            MediaFolderNode node = trie.getNode(parentId);
+            if (node != null) {
+                postChildrenChanged(parentId, trie.getChildCount(node));
+            }
+        }
+    }
+
+    /**
+     * Returns a page of parentPath's children as handed to browsers: with their download status,
+     * artwork served resized by {@link ArtworkProvider}, and with playable items under their
+     * {@link MediaIds} item id so that adding or getting one later resolves within parentPath
+     * instead of searching for it.
+     */
+    private ImmutableList<MediaItem> forBrowser(String parentPath, List<MediaItem> items) {
+        MediaDownloads downloads = mediaDownloads;
+        ImmutableList.Builder<MediaItem> page = ImmutableList.builder();
+        for (MediaItem item : items) {
+            MediaItem decorated = downloads != null ? downloads.withDownloadStatus(item) : item;
+            decorated = ArtworkProvider.withArtwork(this, decorated);
+            if (Boolean.TRUE.equals(item.mediaMetadata.isPlayable)) {
+                String itemId = MediaIds.itemId(parentPath, item.mediaId);
+                if (!itemId.equals(item.mediaId)) {
+                    decorated = decorated.buildUpon().setMediaId(itemId).build();
+                }
+            }
+            page.add(decorated);
+        }
+        return page.build();
+    }
+
+    /** Returns the items that have no complete offline copy; only those need preloading. */
+    private List<MediaItem> withoutDownloaded(List<MediaItem> items) {
+        MediaDownloads downloads = mediaDownloads;
+        if (downloads == null) {
+            return items;
+        }
+        List<MediaItem> notDownloaded = new ArrayList<>(items.size());
+        for (MediaItem item : items) {
+            // Queue items keep the item id they were added with; downloads use the item's own
+            if (!downloads.isDownloaded(item.mediaId)
+                    && !downloads.isDownloaded(MediaIds.keyOf(item.mediaId))) {
+                notDownloaded.add(item);
+            }
+        }
+        return notDownloaded;
+    }
+
+    /** Starts timing a tap on resolved items until audio plays. Runs on the browse executor. */
+    private void startTapToAudio(long startNanos, List<MediaItem> resolved) {
+        MediaPreloader preloader = mediaPreloader;
+        if (!resolved.isEmpty()) {
+            tapPreloaded = preloader != null && preloader.isPreloaded(resolved.get(0));
+            tapStartNanos = startNanos;
+        }
+    }
+
+    /** Records the pending tap's latency now that audio plays. Runs on the playback thread. */
+    private void recordTapToAudio() {
+        long startNanos = tapStartNanos;
+        if (startNanos == 0) {
+            return;
+        }
+        tapStartNanos = 0;
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (elapsedNanos <= TAP_TO_AUDIO_TIMEOUT_NANOS) {
+            metrics.getTapToAudioLatency(tapPreloaded).record(elapsedNanos);
+        }
+    }
+
+    /** Returns the shared in-flight onGetItem load for mediaId, starting one if needed. */
+    private ListenableFuture<LibraryResult<MediaItem>> loadItemShared(String mediaId) {
+        return itemFlights.load(
+                BrowseRequestKey.forItem(mediaId),
+                () -> submitAfterLibrary(
+                        () -> getItemResult(mediaId),
+                        () -> LibraryResult.ofError(SessionError.ERROR_UNKNOWN)));
+    }
+
+    /** Returns the shared in-flight onGetChildren load for the page, starting one if needed. */
+    private ListenableFuture<LibraryResult<ImmutableList<MediaItem>>> loadChildrenShared(
+            String parentId, int page, int pageSize, @Nullable LibraryParams params) {
+        return childrenFlights.load(
+                new BrowseRequestKey(parentId, page, pageSize, params),
+                () -> submitAfterLibrary(
+                        () -> getChildrenResult(parentId, page, pageSize, params),
+                        () -> getCachedChildrenResult(parentId, page, pageSize, params)));
+    }
+
+    private LibraryResult<MediaItem> getItemResult(String mediaId) {
+        MediaItem item = resolveMediaItem(mediaId);
+        MediaDownloads downloads = mediaDownloads;
+        if (item != null) {
+            if (downloads != null) {
+                item = downloads.withDownloadStatus(item);
+            }
+            item = withRequestedId(ArtworkProvider.withArtwork(this, item), mediaId);
+            return LibraryResult.ofItem(item, null);
+        }
+        return LibraryResult.ofError(SessionError.ERROR_BAD_VALUE);
+    }
+
+    /**
+     * Loads one page of the children of parentId, passing the page straight through to the
+     * folder's source. Runs on the browse executor.
+     */
+    private LibraryResult<ImmutableList<MediaItem>> getChildrenResult(
+            String parentId, int page, int pageSize, @Nullable LibraryParams params) {
+        // Load children from the trie for the selected folder node
+        MediaFolderTrie trie = folderTrie;
+        MediaFolderNode node = trie.getNode(parentId);
+        if (node == null) {
+            Log.w(TAG, "onGetChildren: No node found for parentId=" + parentId);
+            return LibraryResult.ofItemList(ImmutableList.of(), params);
+        }
+        int offset = Paging.offsetOf(page, pageSize);
+        if (offset < 0) {
+            return LibraryResult.ofItemList(ImmutableList.of(), params);
+        }
+        List<MediaItem> pageItems = trie.getChildrenPage(node, offset, pageSize);
+        if (DEBUG) Log.d(TAG, "onGetChildren: Found " + pageItems.size() + " items for parentId=" + parentId);
+        if (metrics.recordStartup(
+                MediaServiceMetrics.StartupStage.FIRST_CHILDREN_SERVED, createStartNanos)) {
+            Log.i(TAG, "onGetChildren: First page served "
+                    + (System.nanoTime() - createStartNanos) / 1_000_000 + " ms after onCreate"
+                    + " (from snapshot: " + restoredFromSnapshot + ")");
+        }
+        // The user is looking at this folder now: its tracks are the likely next taps
+        MediaPreloader preloader = mediaPreloader;
+        if (preloader != null) {
+            preloader.preload(withoutDownloaded(pageItems));
+        }
+        return LibraryResult.ofItemList(forBrowser(node.getPath(), pageItems), params);
+    }
+
+    /**
+     * Returns the page from whatever is cached for parentId, even if expired, or an empty page.
+     * Used when loading the children timed out or failed.
+     */
+    private LibraryResult<ImmutableList<MediaItem>> getCachedChildrenResult(
+            String parentId, int page, int pageSize, @Nullable LibraryParams params) {
+        MediaFolderTrie trie = folderTrie;
+        MediaFolderNode node = trie.getNode(parentId);
+        int offset = Paging.offsetOf(page, pageSize);
+        List<MediaItem> cached =
+                node != null && offset >= 0
+                        ? trie.getChildrenCache().peekPage(node.getPath(), offset, pageSize)
+                        : null;
+        if (cached == null) {
+            Log.w(TAG, "onGetChildren: Timed out with nothing cached for parentId=" + parentId);
+            return LibraryResult.ofItemList(ImmutableList.of(), params);
+        }
+        return LibraryResult.ofItemList(forBrowser(node.getPath(), cached), params);
+    }
+
+    /** Returns the ranked results for the query, reusing recent results for the same query. */
+    private List<MediaItem> search(String query) {
+        return searchIndex.searchCached(query, MAX_SEARCH_RESULTS);
+    }
+
+    private LibraryResult<ImmutableList<MediaItem>> getSearchResult(
+            String query, int page, int pageSize, @Nullable LibraryParams params) {
+        int offset = Paging.offsetOf(page, pageSize);
+        if (offset < 0) {
+            return LibraryResult.ofItemList(ImmutableList.of(), params);
+        }
+        ImmutableList.Builder<MediaItem> pageItems = ImmutableList.builder();
+        for (MediaItem item : Paging.slice(search(query), offset, pageSize)) {
+            pageItems.add(ArtworkProvider.withArtwork(this, item));
+        }
+        return LibraryResult.ofItemList(pageItems.build(), params);
+    }
+
+    /**
+     * Resolves the items to ensure they exist in our library, dropping those that don't, in one
+     * batch. Runs on the browse executor.
+     */
+    private List<MediaItem> resolveMediaItems(List<MediaItem> mediaItems) {
+        List<String> mediaIds = new ArrayList<>(mediaItems.size());
+        for (MediaItem item : mediaItems) {
+            mediaIds.add(item.mediaId);
+        }
+        ImmutableList.Builder<MediaItem> resolvedItems = ImmutableList.builder();
+        for (MediaItem resolved : resolveMediaIds(mediaIds)) {
+            if (resolved != null) {
+                resolvedItems.add(resolved);
+            }
+        }
+        List<MediaItem> result = resolvedItems.build();
+        if (result.size() < mediaItems.size()) {
+            Log.w(TAG, "onAddMediaItems: Failed to resolve "
+                    + (mediaItems.size() - result.size()) + " of " + mediaItems.size() + " items");
+        }
+        if (DEBUG) Log.d(TAG, "onAddMediaItems: Returning " + result.size() + " resolved items");
+        return result;
+    }
+
+    /**
+     * Batch form of {@link #resolveMediaItem}: returns the items for mediaIds in the same order,
+     * with null for unknown ids. Ids that aren't folders are looked up in a single pass over the
+     * trie. Their artwork is served by {@link ArtworkProvider}, which the session's bitmap
+     * loader reads like any content URI. Not on the playback thread.
+     */
+    private List<MediaItem> resolveMediaIds(List<String> mediaIds) {
+        long startNanos = System.nanoTime();
+        MediaFolderTrie trie = folderTrie;
+        List<MediaItem> items = new ArrayList<>(mediaIds.size());
+        List<String> itemIds = new ArrayList<>();
+        for (String mediaId : mediaIds) {
+            MediaFolderNode node =
+                    mediaId == null || mediaId.isEmpty() ? trie.getRoot() : trie.getNode(mediaId);
+            items.add(node != null ? node.getMediaItem() : null);
+            if (node == null) {
+                itemIds.add(mediaId);
+            }
+        }
+        if (!itemIds.isEmpty()) {
+            List<MediaItem> found = trie.findMediaItemsById(itemIds);
+            for (int i = 0, next = 0; i < items.size(); i++) {
+                if (items.get(i) == null) {
+                    items.set(i, found.get(next++));
+                }
+            }
+        }
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i) != null) {
+                items.set(
+                        i,
+                        withRequestedId(
+                                ArtworkProvider.withArtwork(this, items.get(i)), mediaIds.get(i)));
+            }
+        }
+        metrics.getResolveLatency().recordSince(startNanos);
+        return items;
+    }
+
+    /**
+     * Item ids resolve to the item under its own id; returns it under the id that was asked for,
+     * so browsers and the queue see the ids they handed in.
+     */
+    private static MediaItem withRequestedId(MediaItem item, String mediaId) {
+        if (item.mediaId.equals(mediaId) || MediaIds.parentPathEnd(mediaId) < 0) {
+            return item;
+        }
+        return item.buildUpon().setMediaId(mediaId).build();
+    }
+
     /**
      * Resolves a mediaId to a MediaItem only if it exists in the trie: either as a folder node
      * (returns that node's MediaItem) or as a playable item returned by some node's loadChildren().
+     * Item ids handed out by onGetChildren cost a walk to their folder plus one lookup; legacy
+     * ids are resolved through the index.
      */
     @Nullable
     private MediaItem resolveMediaItem(String mediaId) {
-        Log.d(TAG, "resolveMediaItem: Resolving mediaId=" + mediaId);
+        long startNanos = System.nanoTime();
+        MediaItem item = resolveMediaItemUntimed(mediaId);
+        metrics.getResolveLatency().recordSince(startNanos);
+        return item;
+    }
+
+    @Nullable
+    private MediaItem resolveMediaItemUntimed(String mediaId) {
+        MediaFolderTrie trie = folderTrie;
         if (mediaId == null || mediaId.isEmpty()) {
-            MediaItem rootItem = folderTrie.getRoot().getMediaItem();
-            Log.d(TAG, "resolveMediaItem: Returning root item");
-            return rootItem;
+            return trie.getRoot().getMediaItem();
         }
-        MediaFolderNode node = folderTrie.getNode(mediaId);
+        MediaFolderNode node = trie.getNode(mediaId);
         if (node != null) {
-            Log.d(TAG, "resolveMediaItem: Found folder node for mediaId=" + mediaId);
+            if (DEBUG) Log.d(TAG, "resolveMediaItem: Found folder node for mediaId=" + mediaId);
             return node.getMediaItem();
         }
-        MediaItem foundItem = folderTrie.findMediaItemById(mediaId);
-        if (foundItem != null) {
-            Log.d(TAG, "resolveMediaItem: Found media item for mediaId=" + mediaId + 
-                ", URI=" + (foundItem.localConfiguration != null ? foundItem.localConfiguration.uri.toString() : "null"));
-        } else {
+        MediaItem foundItem = trie.findMediaItemById(mediaId);
+        if (foundItem == null) {
             Log.w(TAG, "resolveMediaItem: No item found for mediaId=" + mediaId);
         }
         return foundItem;